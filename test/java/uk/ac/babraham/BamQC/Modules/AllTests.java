@@ -33,13 +33,19 @@ import org.junit.internal.TextListener;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+	AnalysisQueueTest.class,
 	BasicStatisticsTest.class,
+	BatchProcessingTest.class,
+	MergeTest.class,
 	ChromosomeDensityTest.class,
 	FeatureCoverageTest.class,
+	FeatureReadCountsTest.class,
+	FeatureIntervalsTest.class,
 	GenomeCoverageTest.class,
 	InsertLengthDistributionTest.class,
 	MappingQualityDistributionTest.class,
 	NormalDistributionModelerTest.class,
+	ParallelBGZFInputStreamTest.class,
 	RpkmReferenceTest.class,
 	SequenceQualityDistributionTest.class,	
 	SoftClipDistributionTest.class,
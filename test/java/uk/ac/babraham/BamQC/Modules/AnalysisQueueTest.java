@@ -0,0 +1,170 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package test.java.uk.ac.babraham.BamQC.Modules;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.babraham.BamQC.Analysis.AnalysisListener;
+import uk.ac.babraham.BamQC.Analysis.AnalysisQueue;
+import uk.ac.babraham.BamQC.Analysis.AnalysisRunner;
+import uk.ac.babraham.BamQC.Modules.QCModule;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+
+/**
+ * Tests the order in which the queued analyses start.
+ */
+public class AnalysisQueueTest {
+
+	private static Logger log = Logger.getLogger(AnalysisQueueTest.class);
+
+	private List<File> files = null;
+	// The names of the files, in the order in which their analyses started.
+	private List<String> started = null;
+
+
+	@Before
+	public void setUp() throws Exception {
+		files = new ArrayList<File>();
+		started = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (File file : files) {
+			file.delete();
+		}
+		files = null;
+		started = null;
+	}
+
+	/**
+	 * Write a SAM file with no reads, whose header has the given number of comment lines.
+	 */
+	private File samFile(String name, int comments) throws Exception {
+		File file = File.createTempFile(name, ".sam");
+		files.add(file);
+		FileWriter writer = new FileWriter(file);
+		writer.write("@HD\tVN:1.0\tSO:unsorted\n");
+		for (int i=0; i<comments; i++) {
+			writer.write("@CO\tcomment " + i + "\n");
+		}
+		writer.close();
+		return file;
+	}
+
+	/**
+	 * An analysis which only records when it starts. Its file is never opened.
+	 */
+	private class RecordingRunner extends AnalysisRunner {
+		private final String name;
+		private final CountDownLatch done;
+
+		RecordingRunner(File file, String name, CountDownLatch done) {
+			super(file);
+			this.name = name;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			started.add(name);
+			done.countDown();
+		}
+	}
+
+	@Test
+	public void testBatchStartsLargestFirst() throws Exception {
+		System.out.println("Running test AnalysisQueueTest.testBatchStartsLargestFirst");
+		log.info("Running test AnalysisQueueTest.testBatchStartsLargestFirst");
+
+		// the files are queued from the smallest, while the threads of the queue are idle
+		String [] names = {"small", "medium", "large", "cancelled"};
+		int [] comments = {10, 100, 1000, 10000};
+		CountDownLatch done = new CountDownLatch(names.length - 1);
+		AnalysisRunner [] runners = new AnalysisRunner[names.length];
+		AnalysisQueue queue = AnalysisQueue.getInstance();
+		queue.startBatch();
+		try {
+			for (int i=0; i<names.length; i++) {
+				// the analyses are ranked by the size of their files, which are not opened
+				runners[i] = new RecordingRunner(samFile(names[i], comments[i]), names[i], done);
+				runners[i].startAnalysis(new QCModule[0]);
+			}
+			assertEquals(names.length, queue.queuedAnalyses());
+			// an analysis of the batch can be removed before it starts
+			assertTrue(queue.removeFromQueue(runners[3]));
+			assertTrue(started.isEmpty());
+		}
+		finally {
+			queue.endBatch();
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		// with one thread, the analyses run one after the other
+		assertEquals(Arrays.asList("large", "medium", "small"), started);
+	}
+
+	@Test
+	public void testMissingFile() throws Exception {
+		System.out.println("Running test AnalysisQueueTest.testMissingFile");
+		log.info("Running test AnalysisQueueTest.testMissingFile");
+
+		// the file is only opened when the analysis runs, and the failure goes to the listeners
+		File file = samFile("missing", 0);
+		AnalysisRunner runner = new AnalysisRunner(file);
+		final List<Exception> exceptions = new ArrayList<Exception>();
+		runner.addAnalysisListener(new AnalysisListener() {
+			@Override
+			public void analysisStarted(SequenceFile file) {
+				fail("The analysis of a missing file must not start");
+			}
+			@Override
+			public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {}
+			@Override
+			public void analysisComplete(SequenceFile file, QCModule[] results) {
+				fail("The analysis of a missing file must not complete");
+			}
+			@Override
+			public void analysisExceptionReceived(SequenceFile file, Exception e) {
+				assertNull(file);
+				exceptions.add(e);
+			}
+		});
+		assertTrue(file.delete());
+		runner.run();
+		assertEquals(1, exceptions.size());
+	}
+
+}
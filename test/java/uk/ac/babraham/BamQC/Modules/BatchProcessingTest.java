@@ -0,0 +1,180 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package test.java.uk.ac.babraham.BamQC.Modules;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+
+import net.sf.samtools.SAMRecord;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.babraham.BamQC.Modules.BasicStatistics;
+import uk.ac.babraham.BamQC.Modules.InsertLengthDistribution;
+import uk.ac.babraham.BamQC.Modules.MappingQualityDistribution;
+import uk.ac.babraham.BamQC.Modules.QCModule;
+import uk.ac.babraham.BamQC.Modules.SoftClipDistribution;
+import uk.ac.babraham.BamQC.Modules.VariantCallDetection;
+
+
+/**
+ * Tests that processing the reads in batches gives the same results as 
+ * processing them one by one.
+ *
+ */
+public class BatchProcessingTest {
+	
+	private static Logger log = Logger.getLogger(BatchProcessingTest.class);
+	
+	private static final int BATCH_SIZE = 64;
+	
+	private List<SAMRecord> samRecords = null;
+	
+	@Before
+	public void setUp() throws Exception {
+		String filename = new String(new File("").getAbsolutePath() + "/test/resources/rhod_plasmidA.sam");
+		samRecords = SAMRecordLoader.loadSAMFile(filename);		
+		if(samRecords.isEmpty()) { 
+			log.warn("Impossible to run the test as " + filename + " seems empty");
+			return; 
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		samRecords = null;
+	}
+	
+	private void processSequences(QCModule module, List<SAMRecord> reads) {
+		for (SAMRecord read : reads) {
+			module.processSequence(read);
+		}
+	}
+	
+	private void processBatches(QCModule module, List<SAMRecord> reads) {
+		SAMRecord[] batch = new SAMRecord[BATCH_SIZE];
+		int count = 0;
+		for (SAMRecord read : reads) {
+			batch[count++] = read;
+			if (count == BATCH_SIZE) {
+				module.processBatch(batch, count);
+				count = 0;
+			}
+		}
+		module.processBatch(batch, count);
+	}
+
+	@Test
+	public void testVariantCallDetection() {
+		System.out.println("Running test BatchProcessingTest.testVariantCallDetection");
+		log.info("Running test BatchProcessingTest.testVariantCallDetection");
+		
+		String filename = new String(new File("").getAbsolutePath() + "/test/resources/example_vc_errors.sam");
+		samRecords.addAll(SAMRecordLoader.loadSAMFile(filename));
+		
+		VariantCallDetection sequential = new VariantCallDetection();
+		VariantCallDetection batched = new VariantCallDetection();
+		processSequences(sequential, samRecords);
+		processBatches(batched, samRecords);
+		sequential.computeTotals();
+		batched.computeTotals();
+		
+		assertEquals(sequential.getTotalReads(), batched.getTotalReads());
+		assertEquals(sequential.getSkippedReads(), batched.getSkippedReads());
+		assertEquals(sequential.getReadWithoutMDString(), batched.getReadWithoutMDString());
+		assertEquals(sequential.getTotalSplicedReads(), batched.getTotalSplicedReads());
+		assertEquals(sequential.getTotal(), batched.getTotal());
+		assertEquals(sequential.getContributingReadsPerPos(), batched.getContributingReadsPerPos());
+		assertEquals(sequential.getFirstSNPs(), batched.getFirstSNPs());
+		assertEquals(sequential.getSecondSNPs(), batched.getSecondSNPs());
+		assertArrayEquals(sequential.getFirstSNPPos(), batched.getFirstSNPPos());
+		assertArrayEquals(sequential.getMatchPos(), batched.getMatchPos());
+	}
+	
+	@Test
+	public void testSoftClipDistribution() {
+		System.out.println("Running test BatchProcessingTest.testSoftClipDistribution");
+		log.info("Running test BatchProcessingTest.testSoftClipDistribution");
+		
+		SoftClipDistribution sequential = new SoftClipDistribution();
+		SoftClipDistribution batched = new SoftClipDistribution();
+		processSequences(sequential, samRecords);
+		processBatches(batched, samRecords);
+		
+		assertArrayEquals(sequential.getLeftClipCounts(), batched.getLeftClipCounts());
+		assertArrayEquals(sequential.getRightClipCounts(), batched.getRightClipCounts());
+	}
+	
+	@Test
+	public void testMappingQualityDistribution() {
+		System.out.println("Running test BatchProcessingTest.testMappingQualityDistribution");
+		log.info("Running test BatchProcessingTest.testMappingQualityDistribution");
+		
+		MappingQualityDistribution sequential = new MappingQualityDistribution();
+		MappingQualityDistribution batched = new MappingQualityDistribution();
+		processSequences(sequential, samRecords);
+		processBatches(batched, samRecords);
+		
+		assertArrayEquals(sequential.getDistribution(), batched.getDistribution());
+		assertEquals(sequential.getMaxCount(), batched.getMaxCount());
+		assertEquals(sequential.getFraction(), batched.getFraction(), 0d);
+	}
+	
+	@Test
+	public void testInsertLengthDistribution() {
+		System.out.println("Running test BatchProcessingTest.testInsertLengthDistribution");
+		log.info("Running test BatchProcessingTest.testInsertLengthDistribution");
+		
+		InsertLengthDistribution sequential = new InsertLengthDistribution();
+		InsertLengthDistribution batched = new InsertLengthDistribution();
+		processSequences(sequential, samRecords);
+		processBatches(batched, samRecords);
+		
+		assertEquals(sequential.getInsertLengthCounts(), batched.getInsertLengthCounts());
+		assertEquals(sequential.getUnpairedReads(), batched.getUnpairedReads());
+	}
+	
+	@Test
+	public void testBasicStatistics() {
+		System.out.println("Running test BatchProcessingTest.testBasicStatistics");
+		log.info("Running test BatchProcessingTest.testBasicStatistics");
+		
+		BasicStatistics sequential = new BasicStatistics(new VariantCallDetection());
+		BasicStatistics batched = new BasicStatistics(new VariantCallDetection());
+		processSequences(sequential, samRecords);
+		processBatches(batched, samRecords);
+		
+		assertEquals(sequential.getCommand(), batched.getCommand());
+		assertEquals(sequential.getActualCount(), batched.getActualCount());
+		assertEquals(sequential.getPrimaryCount(), batched.getPrimaryCount());
+		assertEquals(sequential.getPairedCount(), batched.getPairedCount());
+		assertEquals(sequential.getProperPairCount(), batched.getProperPairCount());
+		assertEquals(sequential.getUnmappedCount(), batched.getUnmappedCount());
+		assertEquals(sequential.getDuplicateCount(), batched.getDuplicateCount());
+		assertEquals(sequential.getQcFailCount(), batched.getQcFailCount());
+		assertEquals(sequential.getSingletonCount(), batched.getSingletonCount());
+	}
+
+}
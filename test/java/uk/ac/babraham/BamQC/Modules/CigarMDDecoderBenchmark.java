@@ -0,0 +1,158 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package test.java.uk.ac.babraham.BamQC.Modules;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
+import uk.ac.babraham.BamQC.Sequence.SequenceFactory;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Utilities.CigarMD.CigarMDDecoder;
+import uk.ac.babraham.BamQC.Utilities.CigarMD.CigarMDGenerator;
+
+/**
+ * Compares the decoding of the CIGAR and MD tags of a BAM file by the CigarMDGenerator
+ * (MD tag and read as Strings), by the CigarMDDecoder on the SAMRecords, and by the
+ * CigarMDDecoder on the raw bytes of the record views. The time of reading the record
+ * views without decoding them is reported as the baseline. If no BAM file is given,
+ * the reads of the test SAM files are copied in a temporary BAM file.
+ * Usage: CigarMDDecoderBenchmark [BAM file [number of rounds]]
+ */
+public class CigarMDDecoderBenchmark {
+
+	private static final int COPIES = 50000;
+
+	public static void main(String[] args) throws Exception {
+		File bamFile;
+		if (args.length > 0) {
+			bamFile = new File(args[0]);
+		}
+		else {
+			bamFile = createBAMFile();
+			bamFile.deleteOnExit();
+		}
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		// the record views are read by the parallel inflater
+		if (BamQCConfig.getInstance().inflater_threads == 0) {
+			BamQCConfig.getInstance().inflater_threads = 2;
+		}
+
+		CigarMDGenerator generator = new CigarMDGenerator();
+		CigarMDDecoder decoder = new CigarMDDecoder();
+		for (int round=0; round<rounds; round++) {
+			// reading the views only
+			long time = System.nanoTime();
+			SequenceFile file = SequenceFactory.getSequenceFile(bamFile);
+			BAMRecordView view = file.createRecordView();
+			long reads = 0;
+			while (file.hasNext()) {
+				file.nextView(view);
+				reads++;
+			}
+			file.close();
+			long readTime = System.nanoTime() - time;
+
+			// the current path: the CigarMD objects are created from the strings of the SAMRecords
+			time = System.nanoTime();
+			file = SequenceFactory.getSequenceFile(bamFile);
+			long generatorElements = 0;
+			while (file.hasNext()) {
+				generator.generateCigarMD(file.next());
+				if (generator.getCigarMD() != null) {
+					generatorElements += generator.getCigarMD().getCigarMDElements().size();
+				}
+			}
+			file.close();
+			long generatorTime = System.nanoTime() - time;
+
+			time = System.nanoTime();
+			file = SequenceFactory.getSequenceFile(bamFile);
+			long recordElements = 0;
+			while (file.hasNext()) {
+				decoder.decode(file.next());
+				recordElements += decoder.size();
+			}
+			file.close();
+			long recordTime = System.nanoTime() - time;
+
+			time = System.nanoTime();
+			file = SequenceFactory.getSequenceFile(bamFile);
+			view = file.createRecordView();
+			long viewElements = 0;
+			while (file.hasNext()) {
+				file.nextView(view);
+				decoder.decode(view);
+				viewElements += decoder.size();
+			}
+			file.close();
+			long viewTime = System.nanoTime() - time;
+
+			System.out.println(reads + " reads. reading views: " + (readTime / 1000000) + " ms, " +
+					"generator on records: " + (generatorTime / 1000000) + " ms (" + generatorElements + " elements), " +
+					"decoder on records: " + (recordTime / 1000000) + " ms (" + recordElements + " elements), " +
+					"decoder on views: " + (viewTime / 1000000) + " ms (" + viewElements + " elements)");
+		}
+	}
+
+	/**
+	 * Write the reads of the test SAM files in a temporary BAM file.
+	 */
+	private static File createBAMFile() throws IOException {
+		List<SAMRecord> samRecords = new ArrayList<SAMRecord>();
+		String[] filenames = {"example_full.sam", "snp_examples.fastq_bowtie2.sam"};
+		for (String filename : filenames) {
+			samRecords.addAll(SAMRecordLoader.loadSAMFile(new File("").getAbsolutePath() + "/test/resources/" + filename));
+		}
+		SAMFileHeader header = new SAMFileHeader();
+		for (SAMRecord samRecord : samRecords) {
+			String[] referenceNames = {samRecord.getReferenceName(), samRecord.getMateReferenceName()};
+			for (String referenceName : referenceNames) {
+				if (!SAMRecord.NO_ALIGNMENT_REFERENCE_NAME.equals(referenceName) && header.getSequence(referenceName) == null) {
+					header.addSequence(new SAMSequenceRecord(referenceName, 250000000));
+				}
+			}
+		}
+		for (SAMRecord samRecord : samRecords) {
+			samRecord.setHeader(header);
+			samRecord.setReferenceName(samRecord.getReferenceName());
+			samRecord.setMateReferenceName(samRecord.getMateReferenceName());
+		}
+		File bamFile = File.createTempFile("bamqc_benchmark", ".bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bamFile);
+		for (int i=0; i<COPIES; i++) {
+			for (SAMRecord samRecord : samRecords) {
+				writer.addAlignment(samRecord);
+			}
+		}
+		writer.close();
+		return bamFile;
+	}
+
+}
@@ -26,7 +26,15 @@ package test.java.uk.ac.babraham.BamQC.Modules;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 import net.sf.samtools.SAMRecord;
 
@@ -35,9 +43,17 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import uk.ac.babraham.BamQC.BamQCConfig;
 import uk.ac.babraham.BamQC.AnnotationParsers.AnnotationParser;
 import uk.ac.babraham.BamQC.AnnotationParsers.GTFAnnotationParser;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationIndex;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationIndexFile;
 import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
+import uk.ac.babraham.BamQC.DataTypes.Genome.Chromosome;
+import uk.ac.babraham.BamQC.DataTypes.Genome.Feature;
+import uk.ac.babraham.BamQC.DataTypes.Genome.FeatureSubclass;
+import uk.ac.babraham.BamQC.DataTypes.Genome.Location;
+import uk.ac.babraham.BamQC.DataTypes.Genome.SplitLocation;
 import uk.ac.babraham.BamQC.Modules.FeatureCoverage;
 
 
@@ -151,6 +167,362 @@ public class FeatureCoverageTest {
 		assertEquals(3L, (long)readCounts[6]);
 	}
 	
+	@Test
+	public void testSharedAnnotationIndex() {
+		System.out.println("Running test FeatureCoverageTest.testSharedAnnotationIndex");
+		log.info("Running test FeatureCoverageTest.testSharedAnnotationIndex");
+		
+		// two analyses sharing the same features count their reads separately
+		AnnotationIndex index = annotationSet.index();
+		AnnotationSet firstRun = new AnnotationSet(index);
+		AnnotationSet secondRun = new AnnotationSet(index);
+		for(SAMRecord read : samRecords) {
+			firstRun.processSequenceNoCache(read);
+		}
+		FeatureCoverage firstCoverage = new FeatureCoverage();
+		firstCoverage.processAnnotationSet(firstRun);
+		FeatureCoverage secondCoverage = new FeatureCoverage();
+		secondCoverage.processAnnotationSet(secondRun);
+		
+		assertEquals(firstRun.chromosomeFactory().getAllChromosomes().length, annotationSet.chromosomeFactory().getAllChromosomes().length);
+		double[] firstCounts = firstCoverage.getReadCounts();
+		double[] secondCounts = secondCoverage.getReadCounts();
+		FeatureCoverage coverage = new FeatureCoverage();
+		coverage.processAnnotationSet(annotationSet);
+		double[] counts = coverage.getReadCounts();
+		assertEquals(counts.length, firstCounts.length);
+		double total = 0d;
+		for(int i=0; i<counts.length; i++) {
+			assertEquals(counts[i], firstCounts[i], 0d);
+			assertEquals(0d, secondCounts[i], 0d);
+			total += counts[i];
+		}
+		assertTrue(total > 0d);
+	}
+	
+	@Test
+	public void testAnnotationIndexFile() throws Exception {
+		System.out.println("Running test FeatureCoverageTest.testAnnotationIndexFile");
+		log.info("Running test FeatureCoverageTest.testAnnotationIndexFile");
+		
+		// an index saved and read again counts the same reads as the parsed annotation
+		File annotationFile = File.createTempFile("example_annot", ".gtf");
+		File indexFile = AnnotationIndexFile.indexFile(annotationFile);
+		try {
+			copyFile(new File(new File("").getAbsolutePath() + "/test/resources/example_annot.gtf"), annotationFile, false);
+			assertNull(AnnotationIndexFile.read(annotationFile, 1));
+			AnnotationIndexFile.write(annotationSet.index(), annotationFile, 1);
+			assertNull(AnnotationIndexFile.read(annotationFile, 2));
+			AnnotationIndex index = AnnotationIndexFile.read(annotationFile, 1);
+			assertNotNull(index);
+			AnnotationIndex parsedIndex = annotationSet.index();
+			assertEquals(parsedIndex.featureCount(), index.featureCount());
+			for(int i=0; i<index.featureCount(); i++) {
+				assertEquals(parsedIndex.featureName(i), index.featureName(i));
+				assertEquals(parsedIndex.featureSubclass(i), index.featureSubclass(i));
+			}
+			
+			AnnotationSet readAnnotation = new AnnotationSet(index);
+			for(SAMRecord read : samRecords) {
+				readAnnotation.processSequenceNoCache(read);
+			}
+			assertEquals(annotationSet.getAllFeatures().length, readAnnotation.getAllFeatures().length);
+			FeatureCoverage coverage = new FeatureCoverage();
+			coverage.processAnnotationSet(readAnnotation);
+			FeatureCoverage parsedCoverage = new FeatureCoverage();
+			parsedCoverage.processAnnotationSet(annotationSet);
+			assertEquals(readCountsByName(parsedCoverage), readCountsByName(coverage));
+			
+			// a modified annotation is parsed again
+			copyFile(new File(new File("").getAbsolutePath() + "/test/resources/example_annot.gtf"), annotationFile, true);
+			assertNull(AnnotationIndexFile.read(annotationFile, 1));
+		}
+		finally {
+			annotationFile.delete();
+			indexFile.delete();
+		}
+	}
+	
+	@Test
+	public void testTooManySubclasses() {
+		System.out.println("Running test FeatureCoverageTest.testTooManySubclasses");
+		log.info("Running test FeatureCoverageTest.testTooManySubclasses");
+		
+		// the subclass ids are stored as shorts
+		AnnotationSet annotation = new AnnotationSet();
+		Chromosome chromosome = annotation.chromosomeFactory().getChromosome("1");
+		for (int i=0; i<=Short.MAX_VALUE; i++) {
+			Feature feature = new Feature("gene", "biotype" + i, chromosome);
+			feature.setLocation(new Location(1000 + i, 2000 + i, Location.FORWARD));
+			annotation.addFeature(feature);
+		}
+		Feature feature = new Feature("gene", "biotype" + (Short.MAX_VALUE + 1), chromosome);
+		feature.setLocation(new Location(1000, 2000, Location.FORWARD));
+		try {
+			annotation.addFeature(feature);
+			fail("The subclass id should not fit in a short");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	private static HashMap<String, Double> readCountsByName(FeatureCoverage coverage) {
+		HashMap<String, Double> readCounts = new HashMap<String, Double>();
+		for(int i=0; i<coverage.getFeatureNames().length; i++) {
+			readCounts.put(coverage.getFeatureNames()[i], coverage.getReadCounts()[i]);
+		}
+		return readCounts;
+	}
+	
+	private static void copyFile(File from, File to, boolean append) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to, append);
+		byte [] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		out.close();
+	}
+	
+	@Test
+	public void testManySubclasses() {
+		System.out.println("Running test FeatureCoverageTest.testManySubclasses");
+		log.info("Running test FeatureCoverageTest.testManySubclasses");
+		
+		// more subclasses than the bits of a word, with overlapping features
+		int subclassNumber = 150;
+		Random random = new Random(11);
+		AnnotationSet annotation = new AnnotationSet();
+		Chromosome chr = annotation.chromosomeFactory().getChromosome("chr1");
+		int [][] starts = new int[subclassNumber][];
+		int [][] ends = new int[subclassNumber][];
+		for (int c=0; c<subclassNumber; c++) {
+			starts[c] = new int[5];
+			ends[c] = new int[5];
+			for (int f=0; f<5; f++) {
+				starts[c][f] = 1 + random.nextInt(50000);
+				ends[c][f] = starts[c][f] + random.nextInt(2000);
+				Feature feature = new Feature("gene", "biotype" + c, chr);
+				feature.setLocation(new Location(starts[c][f], ends[c][f], Location.FORWARD));
+				annotation.addFeature(feature);
+			}
+		}
+		int [] expected = new int[subclassNumber];
+		for (int r=0; r<2000; r++) {
+			int start = 1 + random.nextInt(52000);
+			int end = start + 100;
+			SAMRecord read = new SAMRecord(null);
+			read.setReferenceName("chr1");
+			read.setAlignmentStart(start);
+			read.setCigarString("101M");
+			annotation.processSequenceNoCache(read);
+			for (int c=0; c<subclassNumber; c++) {
+				for (int f=0; f<5; f++) {
+					if (starts[c][f] < end && ends[c][f] > start) {
+						expected[c]++;
+						break;
+					}
+				}
+			}
+		}
+		for (int c=0; c<subclassNumber; c++) {
+			assertEquals(expected[c], annotation.getFeatureCount(annotation.getFeatureClassForType("gene").getSubclassForName("biotype" + c)));
+		}
+	}
+	
+	@Test
+	public void testReadCache() {
+		System.out.println("Running test FeatureCoverageTest.testReadCache");
+		log.info("Running test FeatureCoverageTest.testReadCache");
+
+		// more reads than the cache capacity, on several chromosomes and unmapped
+		Random random = new Random(13);
+		AnnotationSet annotation = new AnnotationSet();
+		String [] chromosomeNames = new String [] {"chr2", "chr1", "chrX"};
+		for (int f=0; f<300; f++) {
+			Chromosome chr = annotation.chromosomeFactory().getChromosome(chromosomeNames[f % chromosomeNames.length]);
+			Feature feature = new Feature("gene", "biotype" + (f % 7), chr);
+			int start = 1 + random.nextInt(1000000);
+			feature.setLocation(new Location(start, start + random.nextInt(5000), Location.FORWARD));
+			annotation.addFeature(feature);
+		}
+		AnnotationIndex index = annotation.index();
+		AnnotationSet cached = new AnnotationSet(index);
+		AnnotationSet notCached = new AnnotationSet(index);
+		for (int r=0; r<120001; r++) {
+			SAMRecord read = new SAMRecord(null);
+			if (r % 50 == 0) {
+				read.setReferenceName(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME);
+			} else {
+				read.setReferenceName(chromosomeNames[random.nextInt(chromosomeNames.length)]);
+				read.setAlignmentStart(1 + random.nextInt(1000000));
+				read.setCigarString("101M");
+			}
+			cached.processSequence(read);
+			notCached.processSequenceNoCache(read);
+		}
+		cached.flushCache();
+
+		for (String name : chromosomeNames) {
+			assertEquals(notCached.chromosomeFactory().getChromosome(name).seqCount(), cached.chromosomeFactory().getChromosome(name).seqCount());
+		}
+		for (int c=0; c<7; c++) {
+			FeatureSubclass subclass = annotation.getFeatureClassForType("gene").getSubclassForName("biotype" + c);
+			assertEquals(notCached.getFeatureCount(subclass), cached.getFeatureCount(subclass));
+		}
+	}
+
+	@Test
+	public void testCoordinateSorted() {
+		System.out.println("Running test FeatureCoverageTest.testCoordinateSorted");
+		log.info("Running test FeatureCoverageTest.testCoordinateSorted");
+
+		// long and short overlapping features, and reads of different lengths
+		Random random = new Random(17);
+		AnnotationSet annotation = new AnnotationSet();
+		String [] chromosomeNames = new String [] {"chr1", "chr2"};
+		for (int f=0; f<400; f++) {
+			Chromosome chr = annotation.chromosomeFactory().getChromosome(chromosomeNames[f % chromosomeNames.length]);
+			Feature feature = new Feature("gene", "biotype" + (f % 5), chr);
+			int start = 1 + random.nextInt(200000);
+			feature.setLocation(new Location(start, start + (f % 10 == 0 ? random.nextInt(50000) : random.nextInt(500)), Location.FORWARD));
+			annotation.addFeature(feature);
+		}
+		AnnotationIndex index = annotation.index();
+		
+		List<SAMRecord> reads = new ArrayList<SAMRecord>();
+		for (String name : chromosomeNames) {
+			int start = 1;
+			for (int r=0; r<5000; r++) {
+				start += random.nextInt(40);
+				SAMRecord read = new SAMRecord(null);
+				read.setReferenceName(name);
+				read.setAlignmentStart(start);
+				read.setCigarString((1 + random.nextInt(300)) + "M");
+				reads.add(read);
+			}
+		}
+		SAMRecord unmapped = new SAMRecord(null);
+		unmapped.setReferenceName(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME);
+		reads.add(unmapped);
+		
+		AnnotationSet notCached = new AnnotationSet(index);
+		for (SAMRecord read : reads) {
+			notCached.processSequenceNoCache(read);
+		}
+		
+		// the reads in order are counted by the sweep line, whereas the shuffled reads 
+		// fall back to the cache at the first read out of order.
+		List<SAMRecord> shuffledReads = new ArrayList<SAMRecord>(reads);
+		Collections.shuffle(shuffledReads.subList(3000, shuffledReads.size()), random);
+		for (List<SAMRecord> readOrder : Arrays.asList(reads, shuffledReads)) {
+			AnnotationSet sorted = new AnnotationSet(index);
+			sorted.setCoordinateSorted(true);
+			for (SAMRecord read : readOrder) {
+				sorted.processSequence(read);
+			}
+			sorted.flushCache();
+			for (String name : chromosomeNames) {
+				assertEquals(notCached.chromosomeFactory().getChromosome(name).seqCount(), sorted.chromosomeFactory().getChromosome(name).seqCount());
+			}
+			for (int c=0; c<5; c++) {
+				FeatureSubclass subclass = annotation.getFeatureClassForType("gene").getSubclassForName("biotype" + c);
+				assertTrue(notCached.getFeatureCount(subclass) > 0);
+				assertEquals(notCached.getFeatureCount(subclass), sorted.getFeatureCount(subclass));
+			}
+		}
+	}
+
+	@Test
+	public void testChromosomeAliases() {
+		System.out.println("Running test FeatureCoverageTest.testChromosomeAliases");
+		log.info("Running test FeatureCoverageTest.testChromosomeAliases");
+		
+		// the reads on chr1 and chrM are counted on the annotation chromosomes 1 and MT
+		AnnotationSet annotation = new AnnotationSet();
+		String [] chromosomeNames = new String [] {"1", "MT", "X"};
+		for (String name : chromosomeNames) {
+			Feature feature = new Feature("gene", "protein_coding", annotation.chromosomeFactory().getChromosome(name));
+			feature.setLocation(new Location(1000, 2000, Location.FORWARD));
+			annotation.addFeature(feature);
+		}
+		String [] referenceNames = new String [] {"chr1", "chrM", "X", "chr2"};
+		for (String name : referenceNames) {
+			SAMRecord read = new SAMRecord(null);
+			read.setReferenceName(name);
+			read.setAlignmentStart(1500);
+			read.setCigarString("100M");
+			annotation.processSequence(read);
+		}
+		annotation.flushCache();
+		
+		assertEquals(3, annotation.getFeatureCount(annotation.getFeatureClassForType("gene").getSubclassForName("protein_coding")));
+		for (String name : chromosomeNames) {
+			assertEquals(1, annotation.chromosomeFactory().getChromosome(name).seqCount());
+		}
+		assertEquals(1, annotation.chromosomeFactory().getChromosome("chr2").seqCount());
+		assertEquals(4, annotation.chromosomeFactory().getAllChromosomes().length);
+	}
+
+	/**
+	 * Count the reads of a transcript with two exons and of a gene within its intron.
+	 * @return the counts of the transcript and of the gene
+	 */
+	private int [] countSplicedReads(boolean cached) {
+		AnnotationSet annotation = new AnnotationSet();
+		Chromosome chr = annotation.chromosomeFactory().getChromosome("1");
+		Feature transcript = new Feature("transcript", "protein_coding", chr);
+		transcript.setLocation(new SplitLocation(new Location [] {
+				new Location(1000, 1100, Location.FORWARD), new Location(5000, 5100, Location.FORWARD)}));
+		annotation.addFeature(transcript);
+		Feature gene = new Feature("gene", "lincRNA", chr);
+		gene.setLocation(new Location(2000, 3000, Location.FORWARD));
+		annotation.addFeature(gene);
+		
+		// a spliced read on both the exons, a read within the intron and a read on the first exon
+		int [] starts = new int [] {1050, 2500, 1090};
+		String [] cigars = new String [] {"50M3900N50M", "100M", "20M"};
+		for (int r=0; r<starts.length; r++) {
+			SAMRecord read = new SAMRecord(null);
+			read.setReferenceName("1");
+			read.setAlignmentStart(starts[r]);
+			read.setCigarString(cigars[r]);
+			if (cached) {
+				annotation.processSequence(read);
+			} 
+			else {
+				annotation.processSequenceNoCache(read);
+			}
+		}
+		annotation.flushCache();
+		return new int [] {
+				annotation.getFeatureCount(annotation.getFeatureClassForType("transcript").getSubclassForName("protein_coding")), 
+				annotation.getFeatureCount(annotation.getFeatureClassForType("gene").getSubclassForName("lincRNA"))};
+	}
+	
+	@Test
+	public void testSpliceAwareOverlap() {
+		System.out.println("Running test FeatureCoverageTest.testSpliceAwareOverlap");
+		log.info("Running test FeatureCoverageTest.testSpliceAwareOverlap");
+		
+		// the span of the spliced read overlaps the gene in the intron
+		assertArrayEquals(new int [] {3, 2}, countSplicedReads(false));
+		assertArrayEquals(new int [] {3, 2}, countSplicedReads(true));
+		
+		// the blocks of the spliced read only overlap the exons, and the transcript is counted once
+		BamQCConfig.getInstance().splice_aware = true;
+		try {
+			assertArrayEquals(new int [] {2, 1}, countSplicedReads(false));
+			assertArrayEquals(new int [] {2, 1}, countSplicedReads(true));
+		}
+		finally {
+			BamQCConfig.getInstance().splice_aware = false;
+		}
+	}
+
 	@Test
 	public void testBooleans() {
 		System.out.println("Running test FeatureCoverageTest.testBooleans");	
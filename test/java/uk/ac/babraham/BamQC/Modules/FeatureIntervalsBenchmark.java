@@ -0,0 +1,247 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package test.java.uk.ac.babraham.BamQC.Modules;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import uk.ac.babraham.BamQC.DataTypes.Genome.FeatureIntervals;
+
+/**
+ * Compares the overlap queries of the interval index with the binned scan previously 
+ * used by FeatureSubclass, on the features of a GTF/GFF file (e.g. GENCODE). 
+ * As in FeatureCounter, all the overlapping features of a read are found with 
+ * FeatureIntervals.overlaps() and their subclasses (the feature types) and features are 
+ * counted as in FeatureCounter.countHits(). The binned scan finds the same features 
+ * and counts them in the same way, so only the queries differ.
+ * Usage: FeatureIntervalsBenchmark [annotation file [number of reads]]
+ */
+public class FeatureIntervalsBenchmark {
+
+	private static final int SEQUENCE_CHUNK_LENGTH = 100000;
+	private static final int READ_LENGTH = 100;
+	
+	/** The binned scan of FeatureSubclass, on features sorted by start as in FeatureIntervals. */
+	private static class BinnedFeatures {
+		private int [] starts;
+		private int [] ends;
+		private int [] indices;
+		
+		BinnedFeatures(int [] starts, int [] ends, int length) {
+			long [] order = new long[starts.length];
+			for (int i=0; i<starts.length; i++) {
+				order[i] = ((long)starts[i] << 32) | i;
+			}
+			Arrays.sort(order);
+			this.starts = new int[starts.length];
+			this.ends = new int[starts.length];
+			for (int i=0; i<starts.length; i++) {
+				this.starts[i] = starts[(int)order[i]];
+				this.ends[i] = ends[(int)order[i]];
+			}
+			indices = new int[length/SEQUENCE_CHUNK_LENGTH + 2];
+			int lastBin = 0;
+			for (int f=0; f<this.starts.length; f++) {
+				int startBin = this.starts[f]/SEQUENCE_CHUNK_LENGTH;
+				if (startBin > lastBin) {
+					for (int i=lastBin+1; i<=startBin; i++) {
+						indices[i] = f;
+					}
+					lastBin = startBin;
+				}
+			}
+			for (int i=lastBin+1; i<indices.length; i++) {
+				indices[i] = this.starts.length;
+			}
+		}
+		
+		/** Finds the overlapping features, as FeatureIntervals.overlaps(). */
+		int overlaps(int readStart, int readEnd, int [] hits) {
+			int binStart = readStart/SEQUENCE_CHUNK_LENGTH;
+			if (binStart >= indices.length) return 0;
+			int count = 0;
+			for (int i=indices[binStart]; i<starts.length && starts[i] < readEnd; i++) {
+				if (ends[i] > readStart) {
+					if (count < hits.length) hits[count] = i;
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+	
+	/** The counts of the subclasses and of the features, as in FeatureCounter. */
+	private static class Counts {
+		private final int [] counts;
+		private final int [] featureCounts;
+		private final long [] hitSubclasses;
+		
+		Counts(int subclassNumber, int featureNumber) {
+			counts = new int[subclassNumber];
+			featureCounts = new int[featureNumber];
+			hitSubclasses = new long[(subclassNumber + 63) >>> 6];
+		}
+		
+		/** Count one read for each subclass of the overlapping features, as FeatureCounter.countHits(). */
+		void countHits(short [] subclassIds, int firstFeature, int [] hits, int hitNumber) {
+			for (int i=0; i<hitNumber; i++) {
+				int id = subclassIds[hits[i]];
+				hitSubclasses[id >>> 6] |= 1L << id;
+				featureCounts[firstFeature + hits[i]]++;
+			}
+			for (int i=0; i<hitNumber; i++) {
+				int word = subclassIds[hits[i]] >>> 6;
+				long bits = hitSubclasses[word];
+				while (bits != 0) {
+					counts[(word << 6) + Long.numberOfTrailingZeros(bits)]++;
+					bits &= bits - 1;
+				}
+				hitSubclasses[word] = 0L;
+			}
+		}
+		
+		long total() {
+			long total = 0;
+			for (int count : counts) {
+				total += count;
+			}
+			return total;
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		String filename = args.length > 0 ? args[0] : new File("").getAbsolutePath() + "/test/resources/example_annot.gtf";
+		int readNumber = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		
+		// read the feature coordinates and types of each chromosome
+		Map<String, List<int[]>> features = new HashMap<String, List<int[]>>();
+		Map<String, Integer> subclasses = new HashMap<String, Integer>();
+		BufferedReader br;
+		if (filename.endsWith(".gz")) {
+			br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(filename))));
+		}
+		else {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(filename)));
+		}
+		String line;
+		int featureNumber = 0;
+		while ((line = br.readLine()) != null) {
+			if (line.startsWith("#")) continue;
+			String [] sections = line.split("\t");
+			if (sections.length < 5) continue;
+			if (!features.containsKey(sections[0])) {
+				features.put(sections[0], new ArrayList<int[]>());
+			}
+			if (!subclasses.containsKey(sections[2])) {
+				subclasses.put(sections[2], subclasses.size());
+			}
+			features.get(sections[0]).add(new int[] {Integer.parseInt(sections[3]), Integer.parseInt(sections[4]), subclasses.get(sections[2])});
+			featureNumber++;
+		}
+		br.close();
+		
+		String [] chromosomes = features.keySet().toArray(new String[0]);
+		FeatureIntervals [] intervals = new FeatureIntervals[chromosomes.length];
+		BinnedFeatures [] binned = new BinnedFeatures[chromosomes.length];
+		// the subclasses of the features in order of start, shared by both queries
+		short [][] subclassIds = new short[chromosomes.length][];
+		int [] firstFeatures = new int[chromosomes.length];
+		int [] lengths = new int[chromosomes.length];
+		for (int c=0; c<chromosomes.length; c++) {
+			List<int[]> chromosomeFeatures = features.get(chromosomes[c]);
+			int [] starts = new int[chromosomeFeatures.size()];
+			int [] ends = new int[chromosomeFeatures.size()];
+			for (int f=0; f<starts.length; f++) {
+				starts[f] = chromosomeFeatures.get(f)[0];
+				ends[f] = chromosomeFeatures.get(f)[1];
+				lengths[c] = Math.max(lengths[c], ends[f]);
+			}
+			intervals[c] = new FeatureIntervals(starts, ends);
+			binned[c] = new BinnedFeatures(starts, ends, lengths[c]);
+			subclassIds[c] = new short[starts.length];
+			for (int i=0; i<starts.length; i++) {
+				subclassIds[c][i] = (short)chromosomeFeatures.get(intervals[c].id(i))[2];
+			}
+			if (c > 0) {
+				firstFeatures[c] = firstFeatures[c-1] + subclassIds[c-1].length;
+			}
+		}
+		
+		// random reads on the annotated chromosomes, sorted as in the read cache of AnnotationSet
+		Random random = new Random(1);
+		long [] reads = new long[readNumber];
+		for (int r=0; r<readNumber; r++) {
+			int c = random.nextInt(chromosomes.length);
+			reads[r] = ((long)c << 32) | (1 + random.nextInt(lengths[c]));
+		}
+		Arrays.sort(reads);
+		int [] readChromosomes = new int[readNumber];
+		int [] readStarts = new int[readNumber];
+		for (int r=0; r<readNumber; r++) {
+			readChromosomes[r] = (int)(reads[r] >>> 32);
+			readStarts[r] = (int)reads[r];
+		}
+		
+		System.out.println(featureNumber + " features of " + subclasses.size() + " types on " + chromosomes.length + " chromosomes, " + readNumber + " reads");
+		int [] hits = new int[16];
+		for (int round=0; round<3; round++) {
+			long time = System.nanoTime();
+			Counts binnedCounts = new Counts(subclasses.size(), featureNumber);
+			for (int r=0; r<readNumber; r++) {
+				int c = readChromosomes[r];
+				int hitNumber = binned[c].overlaps(readStarts[r], readStarts[r] + READ_LENGTH, hits);
+				if (hitNumber > hits.length) {
+					hits = new int[Math.max(hitNumber, hits.length * 2)];
+					hitNumber = binned[c].overlaps(readStarts[r], readStarts[r] + READ_LENGTH, hits);
+				}
+				binnedCounts.countHits(subclassIds[c], firstFeatures[c], hits, hitNumber);
+			}
+			long binnedTime = System.nanoTime() - time;
+			
+			time = System.nanoTime();
+			Counts intervalCounts = new Counts(subclasses.size(), featureNumber);
+			for (int r=0; r<readNumber; r++) {
+				int c = readChromosomes[r];
+				int hitNumber = intervals[c].overlaps(readStarts[r], readStarts[r] + READ_LENGTH, hits);
+				if (hitNumber > hits.length) {
+					hits = new int[Math.max(hitNumber, hits.length * 2)];
+					hitNumber = intervals[c].overlaps(readStarts[r], readStarts[r] + READ_LENGTH, hits);
+				}
+				intervalCounts.countHits(subclassIds[c], firstFeatures[c], hits, hitNumber);
+			}
+			long intervalTime = System.nanoTime() - time;
+			
+			// the binned scan misses the features starting in a previous bin
+			System.out.println("binned scan: " + (binnedTime / 1000000) + " ms (" + binnedCounts.total() + " subclass counts), " + 
+					"interval index: " + (intervalTime / 1000000) + " ms (" + intervalCounts.total() + " subclass counts)");
+		}
+	}
+	
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package test.java.uk.ac.babraham.BamQC.Modules;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import uk.ac.babraham.BamQC.DataTypes.Genome.FeatureIntervals;
+
+/**
+ * Tests the interval index against a linear scan of the intervals.
+ */
+public class FeatureIntervalsTest {
+
+	private static Logger log = Logger.getLogger(FeatureIntervalsTest.class);
+	
+	private static final int QUERIES = 2000;
+	
+	private void checkQueries(int [] starts, int [] ends, int maxPosition, Random random) {
+		FeatureIntervals intervals = new FeatureIntervals(starts, ends);
+		assertEquals(starts.length, intervals.size());
+		for (int i=1; i<intervals.size(); i++) {
+			assertTrue(intervals.start(i-1) <= intervals.start(i));
+		}
+		
+		int [] hits = new int[starts.length];
+		for (int q=0; q<QUERIES; q++) {
+			int queryStart = random.nextInt(maxPosition);
+			int queryEnd = queryStart + random.nextInt(500);
+			
+			int expected = 0;
+			for (int i=0; i<starts.length; i++) {
+				if (starts[i] < queryEnd && ends[i] > queryStart) {
+					expected++;
+				}
+			}
+			int count = intervals.overlaps(queryStart, queryEnd, hits);
+			assertEquals(expected, count);
+			for (int h=0; h<count; h++) {
+				int id = intervals.id(hits[h]);
+				assertTrue(starts[id] < queryEnd && ends[id] > queryStart);
+				if (h > 0) {
+					assertTrue(hits[h-1] < hits[h]);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testRandomIntervals() {
+		System.out.println("Running test FeatureIntervalsTest.testRandomIntervals");
+		log.info("Running test FeatureIntervalsTest.testRandomIntervals");
+		
+		Random random = new Random(42);
+		// sizes around the powers of two, where the implicit tree is incomplete
+		int [] sizes = {0, 1, 2, 3, 7, 8, 9, 15, 16, 17, 100, 255, 256, 1000};
+		for (int size : sizes) {
+			int [] starts = new int[size];
+			int [] ends = new int[size];
+			for (int i=0; i<size; i++) {
+				starts[i] = 1 + random.nextInt(100000);
+				// mostly short features and a few long ones
+				ends[i] = starts[i] + (random.nextInt(10) == 0 ? random.nextInt(50000) : random.nextInt(1000));
+			}
+			checkQueries(starts, ends, 150000, random);
+		}
+	}
+	
+	@Test
+	public void testNestedIntervals() {
+		System.out.println("Running test FeatureIntervalsTest.testNestedIntervals");
+		log.info("Running test FeatureIntervalsTest.testNestedIntervals");
+		
+		// a long gene containing its exons, followed by short features
+		int [] starts = {1000, 1000, 1500, 3000, 90000, 90010, 95000};
+		int [] ends = {100000, 1200, 1700, 3500, 90005, 90020, 95001};
+		checkQueries(starts, ends, 110000, new Random(7));
+		
+		FeatureIntervals intervals = new FeatureIntervals(starts, ends);
+		// only the gene overlaps a read in an intron
+		int [] hits = new int[starts.length];
+		assertEquals(1, intervals.overlaps(50000, 50100, hits));
+		assertEquals(0, intervals.id(hits[0]));
+		// the ends are exclusive
+		assertEquals(0, intervals.overlaps(100000, 100100, hits));
+		assertEquals(0, intervals.overlaps(900, 1000, hits));
+		// the hits beyond the array are counted
+		assertEquals(3, intervals.overlaps(1100, 1600, new int[1]));
+	}
+	
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package test.java.uk.ac.babraham.BamQC.Modules;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+
+import net.sf.samtools.SAMRecord;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.AnnotationParsers.GTFAnnotationParser;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationIndex;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
+import uk.ac.babraham.BamQC.Modules.FeatureReadCounts;
+
+
+/**
+ * Tests the counts of the reads of each feature.
+ */
+public class FeatureReadCountsTest {
+
+	private static Logger log = Logger.getLogger(FeatureReadCountsTest.class);
+
+	private List<SAMRecord> samRecords = null;
+	private File annotationFile = null;
+
+
+	@Before
+	public void setUp() throws Exception {
+		String filename = new String(new File("").getAbsolutePath() + "/test/resources/example_annot.sam");
+		annotationFile = new File(new File("").getAbsolutePath() + "/test/resources/example_annot.gtf");
+		samRecords = SAMRecordLoader.loadSAMFile(filename);
+		if(samRecords.isEmpty()) {
+			log.warn("Impossible to run the test as " + filename + " seems empty");
+			return;
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		samRecords = null;
+		annotationFile = null;
+		BamQCConfig.getInstance().strandedness = "none";
+	}
+
+	/**
+	 * Parse the annotation and count the reads, with or without the read cache.
+	 */
+	private FeatureReadCounts countReads(boolean cached) throws Exception {
+		AnnotationSet annotationSet = new AnnotationSet();
+		new GTFAnnotationParser().parseAnnotation(annotationSet, annotationFile);
+		for(SAMRecord read : samRecords) {
+			if(cached) {
+				annotationSet.processSequence(read);
+			}
+			else {
+				annotationSet.processSequenceNoCache(read);
+			}
+		}
+		annotationSet.flushCache();
+		FeatureReadCounts featureReadCounts = new FeatureReadCounts();
+		featureReadCounts.processAnnotationSet(annotationSet);
+		return featureReadCounts;
+	}
+
+	/**
+	 * Return the read counts of the features by name.
+	 */
+	private HashMap<String, Integer> readCountsByName(AnnotationIndex index, int[] readCounts) {
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for(int i=0; i<readCounts.length; i++) {
+			counts.put(index.featureName(i), readCounts[i]);
+		}
+		return counts;
+	}
+
+	private AnnotationIndex index() throws Exception {
+		AnnotationSet annotationSet = new AnnotationSet();
+		new GTFAnnotationParser().parseAnnotation(annotationSet, annotationFile);
+		return annotationSet.index();
+	}
+
+	@Test
+	public void testFeatureReadCounts() throws Exception {
+		System.out.println("Running test FeatureReadCountsTest.testFeatureReadCounts");
+		log.info("Running test FeatureReadCountsTest.testFeatureReadCounts");
+
+		FeatureReadCounts featureReadCounts = countReads(false);
+		HashMap<String, Integer> counts = readCountsByName(index(), featureReadCounts.getReadCounts());
+
+		assertEquals(9, counts.size());
+		assertEquals(1, counts.get("ENSMUSG00000102693").intValue());
+		assertEquals(0, counts.get("ENSMUSG00000064842").intValue());
+		assertEquals(3, counts.get("ENSMUSG00000051951").intValue());
+		assertEquals(1, counts.get("ENSMUST00000193812").intValue());
+		assertEquals(2, counts.get("ENSMUST00000162897").intValue());
+		assertEquals(1, counts.get("ENSMUST00000159265").intValue());
+		assertEquals(2, counts.get("ENSMUST00000070533").intValue());
+
+		assertEquals(3, featureReadCounts.getGeneNumber());
+		assertEquals(2, featureReadCounts.getDetectedGeneNumber());
+		assertArrayEquals(new String[] {"ENSMUSG00000051951", "ENSMUSG00000102693"}, featureReadCounts.getTopGeneNames());
+		assertEquals(100d, featureReadCounts.getTopGeneReadPercentage(), 0.0001d);
+		assertFalse(featureReadCounts.raisesWarning());
+	}
+
+	@Test
+	public void testCachedFeatureReadCounts() throws Exception {
+		System.out.println("Running test FeatureReadCountsTest.testCachedFeatureReadCounts");
+		log.info("Running test FeatureReadCountsTest.testCachedFeatureReadCounts");
+
+		assertArrayEquals(countReads(false).getReadCounts(), countReads(true).getReadCounts());
+	}
+
+	@Test
+	public void testReset() throws Exception {
+		System.out.println("Running test FeatureReadCountsTest.testReset");
+		log.info("Running test FeatureReadCountsTest.testReset");
+
+		AnnotationSet annotationSet = new AnnotationSet();
+		new GTFAnnotationParser().parseAnnotation(annotationSet, annotationFile);
+		for(SAMRecord read : samRecords) {
+			annotationSet.processSequenceNoCache(read);
+		}
+		FeatureReadCounts featureReadCounts = new FeatureReadCounts();
+		featureReadCounts.processAnnotationSet(annotationSet);
+
+		featureReadCounts.reset();
+		assertNull(featureReadCounts.getReadCounts());
+		assertEquals(0, featureReadCounts.getGeneNumber());
+		assertEquals(0, featureReadCounts.getDetectedGeneNumber());
+		assertEquals(0, featureReadCounts.getTopGeneNames().length);
+		assertEquals(0d, featureReadCounts.getTopGeneReadPercentage(), 0d);
+		assertTrue(featureReadCounts.ignoreInReport());
+
+		// the module can be reused for another analysis
+		featureReadCounts.processAnnotationSet(annotationSet);
+		assertEquals(3, featureReadCounts.getGeneNumber());
+		assertEquals(2, featureReadCounts.getDetectedGeneNumber());
+		assertEquals(100d, featureReadCounts.getTopGeneReadPercentage(), 0.0001d);
+	}
+
+	@Test
+	public void testStrandedFeatureReadCounts() throws Exception {
+		System.out.println("Running test FeatureReadCountsTest.testStrandedFeatureReadCounts");
+		log.info("Running test FeatureReadCountsTest.testStrandedFeatureReadCounts");
+
+		int[] unstranded = countReads(false).getReadCounts();
+		BamQCConfig.getInstance().strandedness = "forward";
+		int[] forward = countReads(false).getReadCounts();
+		BamQCConfig.getInstance().strandedness = "reverse";
+		int[] reverse = countReads(true).getReadCounts();
+
+		// each read is counted on one strand of the features
+		for(int i=0; i<unstranded.length; i++) {
+			assertEquals(unstranded[i], forward[i] + reverse[i]);
+		}
+		HashMap<String, Integer> counts = readCountsByName(index(), reverse);
+		assertEquals(0, counts.get("ENSMUSG00000102693").intValue());
+		assertEquals(3, counts.get("ENSMUSG00000051951").intValue());
+	}
+
+}
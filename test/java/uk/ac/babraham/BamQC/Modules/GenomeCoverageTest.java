@@ -27,8 +27,10 @@ package test.java.uk.ac.babraham.BamQC.Modules;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.List;
 
+import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMRecord;
 
 import org.apache.log4j.Logger;
@@ -116,7 +118,132 @@ public class GenomeCoverageTest {
 		assertEquals(0, coverage[16]);
 		assertEquals(0, coverage[17]);
 		assertEquals(0, coverage[18]);
-		assertEquals(2, coverage[19]);
+		// aligned bases of the two reads on chromosome 6
+		assertEquals(181, coverage[19]);
+	}
+	
+	@Test
+	public void testDepthStatistics() {
+		System.out.println("Running test GenomeCoverageTest.testDepthStatistics");	
+		log.info("Running test GenomeCoverageTest.testDepthStatistics");
+		
+		// the chromosomes end at the last read, as there is no annotation
+		long genomeLength = 98816985L + 19486788L;
+		long[] depthHistogram = genomeCoverage.getDepthHistogram();
+		
+		assertTrue(genomeCoverage.isBaseResolution());
+		// the two reads on chromosome 13 overlap by 5 bases
+		assertEquals(5, depthHistogram[2]);
+		assertEquals(89+91-10 + 90+91, depthHistogram[1]);
+		assertEquals(genomeLength - 356, depthHistogram[0]);
+		assertEquals(361d / genomeLength, genomeCoverage.getMeanDepth(), 1e-12);
+		assertEquals(0, genomeCoverage.getMedianDepth());
+		assertEquals(100d * 356 / genomeLength, genomeCoverage.getBreadth(1), 1e-12);
+		assertEquals(100d * 5 / genomeLength, genomeCoverage.getBreadth(2), 1e-12);
+		assertEquals(0d, genomeCoverage.getBreadth(10), 0d);
+	}
+	
+	@Test
+	public void testUnsortedDepthStatistics() {
+		System.out.println("Running test GenomeCoverageTest.testUnsortedDepthStatistics");	
+		log.info("Running test GenomeCoverageTest.testUnsortedDepthStatistics");
+		
+		Collections.reverse(samRecords);
+		AnnotationSet unsortedAnnotationSet = new AnnotationSet();
+		for(SAMRecord read : samRecords) {
+			unsortedAnnotationSet.processSequenceNoCache(read);
+		}
+		GenomeCoverage unsortedGenomeCoverage = new GenomeCoverage();
+		unsortedGenomeCoverage.processAnnotationSet(unsortedAnnotationSet);
+		
+		// the depths are estimated from windows of bases, whereas the aligned bases are the same
+		long genomeLength = 98816985L + 19486788L;
+		assertFalse(unsortedGenomeCoverage.isBaseResolution());
+		assertEquals(genomeCoverage.getMeanDepth(), unsortedGenomeCoverage.getMeanDepth(), 1e-12);
+		assertEquals(genomeLength, unsortedGenomeCoverage.getDepthHistogram()[0]);
+		assertArrayEquals(genomeCoverage.getCoverage(), unsortedGenomeCoverage.getCoverage());
+	}
+	
+	@Test
+	public void testAlignedBlocks() {
+		System.out.println("Running test GenomeCoverageTest.testAlignedBlocks");	
+		log.info("Running test GenomeCoverageTest.testAlignedBlocks");
+		
+		// the deletions and the skipped regions of the reads are not covered
+		AnnotationSet splicedAnnotationSet = new AnnotationSet();
+		SAMFileHeader header = new SAMFileHeader();
+		String [] cigars = {"10M5D10M", "5M2I5M100N10M"};
+		int [] starts = {1, 16};
+		for (int i=0; i<cigars.length; i++) {
+			SAMRecord read = new SAMRecord(header);
+			read.setReadName("read" + i);
+			read.setReferenceName("1");
+			read.setAlignmentStart(starts[i]);
+			read.setCigarString(cigars[i]);
+			splicedAnnotationSet.processSequenceNoCache(read);
+		}
+		GenomeCoverage splicedGenomeCoverage = new GenomeCoverage();
+		splicedGenomeCoverage.processAnnotationSet(splicedAnnotationSet);
+		
+		// read0 covers 1-10 and 16-25, read1 covers 16-25 and 126-135
+		long genomeLength = 135;
+		long[] depthHistogram = splicedGenomeCoverage.getDepthHistogram();
+		assertTrue(splicedGenomeCoverage.isBaseResolution());
+		assertEquals(10, depthHistogram[2]);
+		assertEquals(20, depthHistogram[1]);
+		assertEquals(genomeLength - 30, depthHistogram[0]);
+		assertEquals(40d / genomeLength, splicedGenomeCoverage.getMeanDepth(), 1e-12);
+		assertEquals(40, splicedGenomeCoverage.getCoverage()[0]);
+	}
+	
+	@Test
+	public void testRegionMerge() {
+		System.out.println("Running test GenomeCoverageTest.testRegionMerge");	
+		log.info("Running test GenomeCoverageTest.testRegionMerge");
+		
+		// the reads of two regions processed separately and merged give the depths of all the reads
+		SAMFileHeader header = new SAMFileHeader();
+		String [] cigars = {"10M5D10M", "5M2I5M100N10M", "30M", "20M"};
+		int [] starts = {1, 16, 90, 110};
+		AnnotationSet sortedAnnotationSet = new AnnotationSet();
+		sortedAnnotationSet.setCoordinateSorted(true);
+		AnnotationSet mergedAnnotationSet = new AnnotationSet();
+		AnnotationSet regionAnnotationSet = new AnnotationSet();
+		int [][] regions = {{1, 99}, {100, Integer.MAX_VALUE}};
+		for (int [] region : regions) {
+			regionAnnotationSet.setRegion(region[0], region[1]);
+			for (int i=0; i<cigars.length; i++) {
+				SAMRecord read = new SAMRecord(header);
+				read.setReadName("read" + i);
+				read.setReferenceName("1");
+				read.setAlignmentStart(starts[i]);
+				read.setCigarString(cigars[i]);
+				if (region[0] == 1) {
+					sortedAnnotationSet.processSequence(read);
+				}
+				if (read.getAlignmentStart() < region[0]) {
+					if (read.getAlignmentEnd() >= region[0]) {
+						regionAnnotationSet.processOverlappingSequence(read);
+					}
+				}
+				else if (read.getAlignmentStart() <= region[1]) {
+					regionAnnotationSet.processSequence(read);
+				}
+			}
+			mergedAnnotationSet.merge(regionAnnotationSet);
+		}
+		sortedAnnotationSet.flushCache();
+		GenomeCoverage sortedGenomeCoverage = new GenomeCoverage();
+		sortedGenomeCoverage.processAnnotationSet(sortedAnnotationSet);
+		GenomeCoverage mergedGenomeCoverage = new GenomeCoverage();
+		mergedGenomeCoverage.processAnnotationSet(mergedAnnotationSet);
+		
+		assertTrue(mergedGenomeCoverage.isBaseResolution());
+		assertArrayEquals(sortedGenomeCoverage.getDepthHistogram(), mergedGenomeCoverage.getDepthHistogram());
+		assertArrayEquals(sortedGenomeCoverage.getCoverage(), mergedGenomeCoverage.getCoverage());
+		assertEquals(sortedGenomeCoverage.getMeanDepth(), mergedGenomeCoverage.getMeanDepth(), 1e-12);
+		// the reads overlap over 16-25, 110-119 and 126-129
+		assertEquals(24, mergedGenomeCoverage.getDepthHistogram()[2]);
 	}
 	
 	@Test
@@ -0,0 +1,445 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package test.java.uk.ac.babraham.BamQC.Modules;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Analysis.AnalysisListener;
+import uk.ac.babraham.BamQC.Analysis.AnalysisRunner;
+import uk.ac.babraham.BamQC.AnnotationParsers.GTFAnnotationParser;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationIndex;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
+import uk.ac.babraham.BamQC.Modules.BasicStatistics;
+import uk.ac.babraham.BamQC.Modules.FeatureReadCounts;
+import uk.ac.babraham.BamQC.Modules.GenomeCoverage;
+import uk.ac.babraham.BamQC.Modules.InsertLengthDistribution;
+import uk.ac.babraham.BamQC.Modules.MappingQualityDistribution;
+import uk.ac.babraham.BamQC.Modules.MergeableModule;
+import uk.ac.babraham.BamQC.Modules.ModuleFactory;
+import uk.ac.babraham.BamQC.Modules.QCModule;
+import uk.ac.babraham.BamQC.Modules.RpkmReference;
+import uk.ac.babraham.BamQC.Modules.SequenceQualityDistribution;
+import uk.ac.babraham.BamQC.Modules.SoftClipDistribution;
+import uk.ac.babraham.BamQC.Modules.VariantCallDetection;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.BAMFile;
+import uk.ac.babraham.BamQC.Sequence.SequenceFactory;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+
+/**
+ * Tests that processing the reads in separate partitions and merging the modules 
+ * gives the same results as processing all the reads with one module.
+ *
+ */
+public class MergeTest {
+	
+	private static Logger log = Logger.getLogger(MergeTest.class);
+	
+	private static final int PARTITIONS = 3;
+	
+	private List<SAMRecord> samRecords = null;
+	
+	@Before
+	public void setUp() throws Exception {
+		String filename = new String(new File("").getAbsolutePath() + "/test/resources/rhod_plasmidA.sam");
+		samRecords = SAMRecordLoader.loadSAMFile(filename);
+		filename = new String(new File("").getAbsolutePath() + "/test/resources/example_vc_errors.sam");
+		samRecords.addAll(SAMRecordLoader.loadSAMFile(filename));
+		if(samRecords.isEmpty()) { 
+			log.warn("Impossible to run the test as " + filename + " seems empty");
+			return; 
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		samRecords = null;
+	}
+	
+	private void processSequences(QCModule module, List<SAMRecord> reads) {
+		for (SAMRecord read : reads) {
+			module.processSequence(read);
+		}
+	}
+	
+	/** 
+	 * Process contiguous partitions of the reads with the modules in parts[1..N-1] 
+	 * and merge them into parts[0], which processes the first partition.
+	 */
+	private void processPartitions(QCModule [] parts, List<SAMRecord> reads) {
+		int partitionSize = (reads.size() + parts.length - 1) / parts.length;
+		for (int p=0; p<parts.length; p++) {
+			int start = Math.min(p * partitionSize, reads.size());
+			int end = Math.min(start + partitionSize, reads.size());
+			processSequences(parts[p], reads.subList(start, end));
+		}
+		for (int p=1; p<parts.length; p++) {
+			((MergeableModule)parts[0]).merge(parts[p]);
+		}
+	}
+
+	/**
+	 * Process the reads of a file with the standard modules, split in contiguous partitions 
+	 * merged at the end. The annotation modules are not merged, so all the partitions share 
+	 * one AnnotationSet. Return the text report of the modules.
+	 */
+	private String processReport(File file, AnnotationIndex index, int partitions) throws Exception {
+		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(file);
+		List<SAMRecord> reads = SAMRecordLoader.loadSAMFile(file.getAbsolutePath());
+		AnnotationSet annotationSet = new AnnotationSet(index);
+		annotationSet.setSequenceDictionary(sequenceFile.getSequenceDictionary());
+		QCModule [][] parts = new QCModule[partitions][];
+		int partitionSize = (reads.size() + partitions - 1) / partitions;
+		for (int p=0; p<partitions; p++) {
+			parts[p] = ModuleFactory.getStandardModuleList();
+			for (int m=0; m<parts[p].length; m++) {
+				parts[p][m].reset();
+				parts[p][m].processFile(sequenceFile);
+			}
+			int start = Math.min(p * partitionSize, reads.size());
+			int end = Math.min(start + partitionSize, reads.size());
+			for (SAMRecord read : reads.subList(start, end)) {
+				for (int m=0; m<parts[p].length; m++) {
+					if (parts[p][m].needsToSeeSequences()) {
+						parts[p][m].processSequence(read);
+					}
+				}
+				annotationSet.processSequence(read);
+			}
+		}
+		sequenceFile.close();
+		annotationSet.flushCache();
+		QCModule [] modules = parts[0];
+		for (int m=0; m<modules.length; m++) {
+			for (int p=1; p<partitions; p++) {
+				((MergeableModule)modules[m]).merge(parts[p][m]);
+			}
+			modules[m].processAnnotationSet(annotationSet);
+		}
+		
+		File htmlFile = File.createTempFile("merge_test", ".html");
+		try {
+			return new HTMLReportArchive(sequenceFile, modules, htmlFile).dataDocument().toString();
+		}
+		finally {
+			htmlFile.delete();
+			new File(htmlFile.getAbsolutePath().replaceAll("\\.html$", "") + ".zip").delete();
+		}
+	}
+	
+	@Test
+	public void testReport() throws Exception {
+		System.out.println("Running test MergeTest.testReport");
+		log.info("Running test MergeTest.testReport");
+		
+		// the reports include the annotation modules, which read the shared AnnotationSet
+		File file = new File(new File("").getAbsolutePath() + "/test/resources/example_annot.sam");
+		AnnotationSet annotation = new AnnotationSet();
+		new GTFAnnotationParser().parseAnnotation(annotation, new File(new File("").getAbsolutePath() + "/test/resources/example_annot.gtf"));
+		AnnotationIndex index = annotation.index();
+		
+		String sequential = processReport(file, index, 1);
+		assertTrue(sequential.contains(">>Feature Read Counts"));
+		assertTrue(sequential.contains(">>Genome Coverage"));
+		assertEquals(sequential, processReport(file, index, PARTITIONS));
+	}
+	
+	/**
+	 * Run the whole analysis of a file with the standard modules and return the modules.
+	 */
+	private QCModule [] runAnalysis(File file) throws Exception {
+		final List<QCModule []> results = new ArrayList<QCModule []>();
+		final List<Exception> exceptions = new ArrayList<Exception>();
+		final CountDownLatch done = new CountDownLatch(1);
+		AnalysisRunner runner = new AnalysisRunner(file);
+		runner.addAnalysisListener(new AnalysisListener() {
+			@Override
+			public void analysisStarted(SequenceFile file) {}
+			@Override
+			public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {}
+			@Override
+			public void analysisComplete(SequenceFile file, QCModule[] modules) {
+				results.add(modules);
+				done.countDown();
+			}
+			@Override
+			public void analysisExceptionReceived(SequenceFile file, Exception e) {
+				exceptions.add(e);
+				done.countDown();
+			}
+		});
+		runner.startAnalysis(ModuleFactory.getStandardModuleList());
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		assertTrue(exceptions.toString(), exceptions.isEmpty());
+		return results.get(0);
+	}
+	
+	private String report(File file, QCModule [] modules) throws Exception {
+		File htmlFile = File.createTempFile("merge_test", ".html");
+		try {
+			return new HTMLReportArchive(SequenceFactory.getSequenceFile(file), modules, htmlFile).dataDocument().toString();
+		}
+		finally {
+			htmlFile.delete();
+			new File(htmlFile.getAbsolutePath().replaceAll("\\.html$", "") + ".zip").delete();
+		}
+	}
+	
+	private static <T extends QCModule> T module(QCModule [] modules, Class<T> moduleClass) {
+		for (QCModule module : modules) {
+			if (moduleClass.isInstance(module)) {
+				return moduleClass.cast(module);
+			}
+		}
+		fail("No module " + moduleClass.getSimpleName());
+		return null;
+	}
+	
+	@Test
+	public void testShardedAnalysis() throws Exception {
+		System.out.println("Running test MergeTest.testShardedAnalysis");
+		log.info("Running test MergeTest.testShardedAnalysis");
+		
+		// an indexed BAM file, whose reads are on several chromosomes and several shards of chromosome 1
+		File samFile = new File(new File("").getAbsolutePath() + "/test/resources/example_annot.sam");
+		SAMFileReader reader = new SAMFileReader(samFile);
+		SAMFileHeader header = reader.getFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		// the index needs the references of all the reads in the header
+		for (SAMRecord record : SAMRecordLoader.loadSAMFile(samFile.getAbsolutePath())) {
+			if (!record.getReadUnmappedFlag() && header.getSequence(record.getReferenceName()) == null) {
+				header.addSequence(new SAMSequenceRecord(record.getReferenceName(), 250000000));
+			}
+		}
+		File bamFile = File.createTempFile("merge_test", ".bam");
+		File indexFile = new File(bamFile.getAbsolutePath().replaceAll("\\.bam$", "") + ".bai");
+		BamQCConfig config = BamQCConfig.getInstance();
+		File savedGffFile = config.gff_file;
+		boolean savedAnnotationCache = config.annotation_cache;
+		int savedShardThreads = config.shard_threads;
+		try {
+			SAMFileWriterFactory factory = new SAMFileWriterFactory();
+			factory.setCreateIndex(true);
+			SAMFileWriter writer = factory.makeBAMWriter(header, false, bamFile);
+			for (SAMRecord record : reader) {
+				writer.addAlignment(record);
+			}
+			writer.close();
+			reader.close();
+			
+			assertEquals(indexFile, BAMFile.findIndexFile(bamFile));
+			config.gff_file = new File(new File("").getAbsolutePath() + "/test/resources/example_annot.gtf");
+			config.annotation_cache = false;
+			config.shard_threads = 0;
+			QCModule [] sequential = runAnalysis(bamFile);
+			config.shard_threads = 2;
+			QCModule [] sharded = runAnalysis(bamFile);
+			
+			assertArrayEquals(module(sequential, GenomeCoverage.class).getDepthHistogram(), 
+					module(sharded, GenomeCoverage.class).getDepthHistogram());
+			int [] readCounts = module(sequential, FeatureReadCounts.class).getReadCounts();
+			assertTrue(readCounts.length > 0);
+			assertArrayEquals(readCounts, module(sharded, FeatureReadCounts.class).getReadCounts());
+			String report = report(bamFile, sequential);
+			assertTrue(report.contains(">>Feature Read Counts"));
+			assertEquals(report, report(bamFile, sharded));
+		}
+		finally {
+			config.gff_file = savedGffFile;
+			config.annotation_cache = savedAnnotationCache;
+			config.shard_threads = savedShardThreads;
+			bamFile.delete();
+			indexFile.delete();
+		}
+	}
+	
+	@Test
+	public void testStandardModulesAreMergeable() {
+		System.out.println("Running test MergeTest.testStandardModulesAreMergeable");
+		log.info("Running test MergeTest.testStandardModulesAreMergeable");
+		
+		QCModule [] modules = ModuleFactory.getStandardModuleList();
+		for (int m=0; m<modules.length; m++) {
+			assertTrue(modules[m].name() + " is not mergeable", modules[m] instanceof MergeableModule);
+		}
+	}
+	
+	@Test
+	public void testVariantCallDetection() {
+		System.out.println("Running test MergeTest.testVariantCallDetection");
+		log.info("Running test MergeTest.testVariantCallDetection");
+		
+		VariantCallDetection sequential = new VariantCallDetection();
+		VariantCallDetection [] parts = new VariantCallDetection[PARTITIONS];
+		for (int p=0; p<PARTITIONS; p++) {
+			parts[p] = new VariantCallDetection();
+		}
+		processSequences(sequential, samRecords);
+		processPartitions(parts, samRecords);
+		VariantCallDetection merged = parts[0];
+		sequential.computeTotals();
+		merged.computeTotals();
+		
+		assertEquals(sequential.getTotalReads(), merged.getTotalReads());
+		assertEquals(sequential.getSkippedReads(), merged.getSkippedReads());
+		assertEquals(sequential.getReadWithoutMDString(), merged.getReadWithoutMDString());
+		assertEquals(sequential.getTotalSplicedReads(), merged.getTotalSplicedReads());
+		assertEquals(sequential.getTotal(), merged.getTotal());
+		assertEquals(sequential.getTotalMutations(), merged.getTotalMutations());
+		assertEquals(sequential.existPairedReads(), merged.existPairedReads());
+		assertEquals(sequential.getContributingReadsPerPos(), merged.getContributingReadsPerPos());
+		assertEquals(sequential.getFirstSNPs(), merged.getFirstSNPs());
+		assertEquals(sequential.getSecondSNPs(), merged.getSecondSNPs());
+		assertArrayEquals(sequential.getFirstSNPPos(), merged.getFirstSNPPos());
+		assertArrayEquals(sequential.getMatchPos(), merged.getMatchPos());
+		assertArrayEquals(sequential.getTotalPos(), merged.getTotalPos());
+	}
+	
+	@Test
+	public void testSoftClipDistribution() {
+		System.out.println("Running test MergeTest.testSoftClipDistribution");
+		log.info("Running test MergeTest.testSoftClipDistribution");
+		
+		SoftClipDistribution sequential = new SoftClipDistribution();
+		SoftClipDistribution [] parts = new SoftClipDistribution[PARTITIONS];
+		for (int p=0; p<PARTITIONS; p++) {
+			parts[p] = new SoftClipDistribution();
+		}
+		processSequences(sequential, samRecords);
+		processPartitions(parts, samRecords);
+		
+		assertArrayEquals(sequential.getLeftClipCounts(), parts[0].getLeftClipCounts());
+		assertArrayEquals(sequential.getRightClipCounts(), parts[0].getRightClipCounts());
+	}
+	
+	@Test
+	public void testMappingQualityDistribution() {
+		System.out.println("Running test MergeTest.testMappingQualityDistribution");
+		log.info("Running test MergeTest.testMappingQualityDistribution");
+		
+		MappingQualityDistribution sequential = new MappingQualityDistribution();
+		MappingQualityDistribution [] parts = new MappingQualityDistribution[PARTITIONS];
+		for (int p=0; p<PARTITIONS; p++) {
+			parts[p] = new MappingQualityDistribution();
+		}
+		processSequences(sequential, samRecords);
+		processPartitions(parts, samRecords);
+		
+		assertArrayEquals(sequential.getDistribution(), parts[0].getDistribution());
+		assertEquals(sequential.getMaxCount(), parts[0].getMaxCount());
+		assertEquals(sequential.getFraction(), parts[0].getFraction(), 0d);
+	}
+	
+	@Test
+	public void testInsertLengthDistribution() {
+		System.out.println("Running test MergeTest.testInsertLengthDistribution");
+		log.info("Running test MergeTest.testInsertLengthDistribution");
+		
+		InsertLengthDistribution sequential = new InsertLengthDistribution();
+		InsertLengthDistribution [] parts = new InsertLengthDistribution[PARTITIONS];
+		for (int p=0; p<PARTITIONS; p++) {
+			parts[p] = new InsertLengthDistribution();
+		}
+		processSequences(sequential, samRecords);
+		processPartitions(parts, samRecords);
+		
+		assertEquals(sequential.getInsertLengthCounts(), parts[0].getInsertLengthCounts());
+		assertEquals(sequential.getUnpairedReads(), parts[0].getUnpairedReads());
+	}
+	
+	@Test
+	public void testSequenceQualityDistribution() {
+		System.out.println("Running test MergeTest.testSequenceQualityDistribution");
+		log.info("Running test MergeTest.testSequenceQualityDistribution");
+		
+		SequenceQualityDistribution sequential = new SequenceQualityDistribution();
+		SequenceQualityDistribution [] parts = new SequenceQualityDistribution[PARTITIONS];
+		for (int p=0; p<PARTITIONS; p++) {
+			parts[p] = new SequenceQualityDistribution();
+		}
+		processSequences(sequential, samRecords);
+		processPartitions(parts, samRecords);
+		
+		assertEquals(sequential.getDistribution(), parts[0].getDistribution());
+	}
+	
+	@Test
+	public void testRpkmReference() {
+		System.out.println("Running test MergeTest.testRpkmReference");
+		log.info("Running test MergeTest.testRpkmReference");
+		
+		RpkmReference sequential = new RpkmReference();
+		RpkmReference [] parts = new RpkmReference[PARTITIONS];
+		for (int p=0; p<PARTITIONS; p++) {
+			parts[p] = new RpkmReference();
+		}
+		processSequences(sequential, samRecords);
+		processPartitions(parts, samRecords);
+		
+		// the partial sums are added in a different order
+		assertArrayEquals(sequential.getCoverage(), parts[0].getCoverage(), 1e-12);
+	}
+	
+	@Test
+	public void testBasicStatistics() {
+		System.out.println("Running test MergeTest.testBasicStatistics");
+		log.info("Running test MergeTest.testBasicStatistics");
+		
+		BasicStatistics sequential = new BasicStatistics(new VariantCallDetection());
+		BasicStatistics [] parts = new BasicStatistics[PARTITIONS];
+		for (int p=0; p<PARTITIONS; p++) {
+			parts[p] = new BasicStatistics(new VariantCallDetection());
+		}
+		processSequences(sequential, samRecords);
+		processPartitions(parts, samRecords);
+		BasicStatistics merged = parts[0];
+		
+		assertEquals(sequential.getCommand(), merged.getCommand());
+		assertEquals(sequential.getActualCount(), merged.getActualCount());
+		assertEquals(sequential.getPrimaryCount(), merged.getPrimaryCount());
+		assertEquals(sequential.getPairedCount(), merged.getPairedCount());
+		assertEquals(sequential.getProperPairCount(), merged.getProperPairCount());
+		assertEquals(sequential.getUnmappedCount(), merged.getUnmappedCount());
+		assertEquals(sequential.getDuplicateCount(), merged.getDuplicateCount());
+		assertEquals(sequential.getQcFailCount(), merged.getQcFailCount());
+		assertEquals(sequential.getSingletonCount(), merged.getSingletonCount());
+	}
+
+}
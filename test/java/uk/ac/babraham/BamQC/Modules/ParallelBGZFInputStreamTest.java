@@ -0,0 +1,332 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package test.java.uk.ac.babraham.BamQC.Modules;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordIterator;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
+import uk.ac.babraham.BamQC.Sequence.ParallelBGZFInputStream;
+import uk.ac.babraham.BamQC.Sequence.SequenceFactory;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Sequence.SequenceFormatException;
+
+/**
+ * Tests the decompression of BGZF files by the ParallelBGZFInputStream.
+ */
+public class ParallelBGZFInputStreamTest {
+
+	private static Logger log = Logger.getLogger(ParallelBGZFInputStreamTest.class);
+	
+	// the number of copies of the SAM records written in the BAM file. This makes 
+	// the compressed file larger than a single chunk of the parallel reader.
+	private static final int COPIES = 12;
+	
+	private List<SAMRecord> samRecords = null;
+	private File bamFile = null;
+	private int savedInflaterThreads;
+	
+	@Before
+	public void setUp() throws Exception {
+		String filename = new String(new File("").getAbsolutePath() + "/test/resources/rhod_plasmidA.sam");
+		samRecords = SAMRecordLoader.loadSAMFile(filename);
+		
+		// a BAM file needs the reference sequences in its header
+		SAMFileHeader header = new SAMFileHeader();
+		for (SAMRecord samRecord : samRecords) {
+			if (header.getSequence(samRecord.getReferenceName()) == null) {
+				header.addSequence(new SAMSequenceRecord(samRecord.getReferenceName(), 250000000));
+			}
+			if (header.getSequence(samRecord.getMateReferenceName()) == null) {
+				header.addSequence(new SAMSequenceRecord(samRecord.getMateReferenceName(), 250000000));
+			}
+		}
+		for (SAMRecord samRecord : samRecords) {
+			samRecord.setHeader(header);
+		}
+		
+		bamFile = File.createTempFile("bamqc_test", ".bam");
+		bamFile.deleteOnExit();
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bamFile);
+		for (int i=0; i<COPIES; i++) {
+			for (SAMRecord samRecord : samRecords) {
+				writer.addAlignment(samRecord);
+			}
+		}
+		writer.close();
+		savedInflaterThreads = BamQCConfig.getInstance().inflater_threads;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		BamQCConfig.getInstance().inflater_threads = savedInflaterThreads;
+		bamFile.delete();
+		bamFile = null;
+		samRecords = null;
+	}
+
+	@Test
+	public void testRecordsInOrder() throws Exception {
+		System.out.println("Running test ParallelBGZFInputStreamTest.testRecordsInOrder");	
+		log.info("Running test ParallelBGZFInputStreamTest.testRecordsInOrder");
+		
+		assertTrue(ParallelBGZFInputStream.isBGZFFile(bamFile));
+		
+		FileInputStream fis = new FileInputStream(bamFile);
+		ParallelBGZFInputStream bgzfStream = new ParallelBGZFInputStream(fis.getChannel(), 3);
+		BAMRecordIterator it = new BAMRecordIterator(bgzfStream, bamFile.getName());
+		assertEquals(samRecords.get(0).getHeader().getSequenceDictionary().size(), 
+				     it.getFileHeader().getSequenceDictionary().size());
+		
+		long lastPosition = 0;
+		int count = 0;
+		while (it.hasNext()) {
+			SAMRecord record = it.next();
+			assertEquals(samRecords.get(count % samRecords.size()).getSAMString(), record.getSAMString());
+			long position = bgzfStream.getCompressedPosition();
+			assertTrue(position >= lastPosition);
+			assertTrue(position <= bamFile.length());
+			lastPosition = position;
+			count++;
+		}
+		it.close();
+		assertEquals(samRecords.size() * COPIES, count);
+	}
+	
+	@Test
+	public void testSequenceFile() throws Exception {
+		System.out.println("Running test ParallelBGZFInputStreamTest.testSequenceFile");	
+		log.info("Running test ParallelBGZFInputStreamTest.testSequenceFile");
+		
+		BamQCConfig.getInstance().inflater_threads = 2;
+		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(bamFile);
+		int count = 0;
+		int lastPercent = 0;
+		while (sequenceFile.hasNext()) {
+			SAMRecord record = sequenceFile.next();
+			assertEquals(samRecords.get(count % samRecords.size()).getReadName(), record.getReadName());
+			int percent = sequenceFile.getPercentComplete();
+			assertTrue(percent >= lastPercent);
+			lastPercent = percent;
+			count++;
+		}
+		assertEquals(100, sequenceFile.getPercentComplete());
+		assertEquals(samRecords.size() * COPIES, count);
+	}
+	
+	@Test
+	public void testRecordViews() throws Exception {
+		System.out.println("Running test ParallelBGZFInputStreamTest.testRecordViews");	
+		log.info("Running test ParallelBGZFInputStreamTest.testRecordViews");
+		
+		assertRecordViews(bamFile, 2);
+	}
+	
+	@Test
+	public void testSingleThreadedRecordViews() throws Exception {
+		System.out.println("Running test ParallelBGZFInputStreamTest.testSingleThreadedRecordViews");	
+		log.info("Running test ParallelBGZFInputStreamTest.testSingleThreadedRecordViews");
+		
+		assertRecordViews(bamFile, 0);
+	}
+	
+	@Test
+	public void testSAMTextRecordViews() throws Exception {
+		System.out.println("Running test ParallelBGZFInputStreamTest.testSAMTextRecordViews");	
+		log.info("Running test ParallelBGZFInputStreamTest.testSAMTextRecordViews");
+		
+		BamQCConfig.getInstance().inflater_threads = 0;
+		File samFile = new File(new File("").getAbsolutePath() + "/test/resources/rhod_plasmidA.sam");
+		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(samFile);
+		assertFalse(sequenceFile.canReadRecordViews());
+		// views are still loaded, from the parsed records
+		BAMRecordView view = sequenceFile.createRecordView();
+		int count = 0;
+		while (sequenceFile.hasNext()) {
+			sequenceFile.nextView(view);
+			assertEquals(samRecords.get(count).getSAMString(), view.toSAMRecord().getSAMString());
+			count++;
+		}
+		assertEquals(samRecords.size(), count);
+	}
+	
+	private void assertRecordViews(File file, int inflaterThreads) throws Exception {
+		BamQCConfig.getInstance().inflater_threads = inflaterThreads;
+		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(file);
+		assertTrue(sequenceFile.canReadRecordViews());
+		BAMRecordView view = sequenceFile.createRecordView();
+		int count = 0;
+		while (sequenceFile.hasNext()) {
+			sequenceFile.nextView(view);
+			SAMRecord expected = samRecords.get(count % samRecords.size());
+			assertEquals(expected.getFlags(), view.getFlags());
+			assertEquals(expected.getReferenceName(), view.getReferenceName());
+			assertEquals(expected.getAlignmentStart(), view.getAlignmentStart());
+			assertEquals(expected.getAlignmentEnd(), view.getAlignmentEnd());
+			assertEquals(expected.getMappingQuality(), view.getMappingQuality());
+			assertEquals(expected.getInferredInsertSize(), view.getInferredInsertSize());
+			assertEquals(expected.getReadPairedFlag(), view.getReadPairedFlag());
+			assertEquals(expected.getProperPairFlag(), view.getProperPairFlag());
+			assertEquals(expected.isSecondaryOrSupplementary(), view.isSecondaryOrSupplementary());
+			// the full record is only decoded on request
+			assertEquals(expected.getSAMString(), view.toSAMRecord().getSAMString());
+			count++;
+		}
+		assertEquals(samRecords.size() * COPIES, count);
+	}
+	
+	@Test
+	public void testMemoryMapped() throws Exception {
+		System.out.println("Running test ParallelBGZFInputStreamTest.testMemoryMapped");	
+		log.info("Running test ParallelBGZFInputStreamTest.testMemoryMapped");
+		
+		RandomAccessFile raf = new RandomAccessFile(bamFile, "r");
+		ParallelBGZFInputStream bgzfStream = ParallelBGZFInputStream.memoryMapped(raf.getChannel(), 2);
+		BAMRecordIterator it = new BAMRecordIterator(bgzfStream, bamFile.getName());
+		int count = 0;
+		while (it.hasNext()) {
+			SAMRecord record = it.next();
+			assertEquals(samRecords.get(count % samRecords.size()).getSAMString(), record.getSAMString());
+			count++;
+		}
+		it.close();
+		raf.close();
+		assertEquals(samRecords.size() * COPIES, count);
+		
+		BamQCConfig.getInstance().memory_mapped = true;
+		try {
+			SequenceFile sequenceFile = SequenceFactory.getSequenceFile(bamFile);
+			count = 0;
+			while (sequenceFile.hasNext()) {
+				sequenceFile.next();
+				count++;
+			}
+			assertEquals(100, sequenceFile.getPercentComplete());
+			assertEquals(samRecords.size() * COPIES, count);
+		}
+		finally {
+			BamQCConfig.getInstance().memory_mapped = false;
+		}
+	}
+	
+	@Test
+	public void testTruncatedFile() throws Exception {
+		System.out.println("Running test ParallelBGZFInputStreamTest.testTruncatedFile");	
+		log.info("Running test ParallelBGZFInputStreamTest.testTruncatedFile");
+		
+		// cut the file in the middle of its last block
+		RandomAccessFile raf = new RandomAccessFile(bamFile, "rw");
+		raf.setLength(raf.length() - 10);
+		raf.close();
+		
+		FileInputStream fis = new FileInputStream(bamFile);
+		assertTruncated(new ParallelBGZFInputStream(fis.getChannel(), 2));
+		raf = new RandomAccessFile(bamFile, "r");
+		assertTruncated(ParallelBGZFInputStream.memoryMapped(raf.getChannel(), 2));
+		raf.close();
+	}
+	
+	/**
+	 * Return the running inflater threads.
+	 */
+	private Set<Thread> inflaterThreads() {
+		Set<Thread> threads = new HashSet<Thread>();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("BGZF inflater")) {
+				threads.add(thread);
+			}
+		}
+		return threads;
+	}
+	
+	@Test
+	public void testLazyOpening() throws Exception {
+		System.out.println("Running test ParallelBGZFInputStreamTest.testLazyOpening");	
+		log.info("Running test ParallelBGZFInputStreamTest.testLazyOpening");
+		
+		BamQCConfig.getInstance().inflater_threads = 2;
+		Set<Thread> previousThreads = inflaterThreads();
+		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(bamFile);
+		// opening the file does not start the inflaters
+		Set<Thread> threads = inflaterThreads();
+		threads.removeAll(previousThreads);
+		assertTrue(threads.isEmpty());
+		
+		assertTrue(sequenceFile.hasNext());
+		threads = inflaterThreads();
+		threads.removeAll(previousThreads);
+		assertFalse(threads.isEmpty());
+		sequenceFile.close();
+		
+		// a file which cannot be read fails on the first read, not when it is opened
+		RandomAccessFile raf = new RandomAccessFile(bamFile, "rw");
+		raf.setLength(100);
+		raf.close();
+		sequenceFile = SequenceFactory.getSequenceFile(bamFile);
+		assertTrue(sequenceFile.hasNext());
+		try {
+			sequenceFile.next();
+			fail("A truncated header must be reported");
+		}
+		catch (SequenceFormatException e) {
+			// the error is only reported once
+			assertFalse(sequenceFile.hasNext());
+		}
+	}
+	
+	private void assertTruncated(ParallelBGZFInputStream bgzfStream) throws Exception {
+		byte[] buffer = new byte[8192];
+		long inflated = 0;
+		try {
+			int n;
+			while ((n = bgzfStream.read(buffer, 0, buffer.length)) >= 0) {
+				inflated += n;
+			}
+			fail("A truncated block must not be ignored");
+		}
+		catch (IOException e) {
+			// all the complete blocks are returned before the error
+			assertTrue(inflated > 0);
+		}
+		finally {
+			bgzfStream.close();
+		}
+	}
+}
@@ -26,19 +26,33 @@ package test.java.uk.ac.babraham.BamQC.Modules;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
+import net.sf.samtools.SAMSequenceRecord;
 
 import org.apache.log4j.Logger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.DataTypes.Genome.IndexedFastaFile;
 import uk.ac.babraham.BamQC.Modules.VariantCallDetection;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
+import uk.ac.babraham.BamQC.Sequence.SequenceFactory;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
 
 
 /**
@@ -382,6 +396,283 @@ public class VariantCallDetectionTest {
 		}
 	}
 	
+	@Test
+	public void testRecordViews() throws Exception {
+		System.out.println("Running test VariantCallDetection.testRecordViews");	
+		log.info("Running test VariantCallDetection.testRecordViews");
+		
+		samRecords = new ArrayList<SAMRecord>();
+		String[] filenames = {"example_full.sam", "example_vc_errors.sam", "snp_examples.fastq_bowtie2.sam"};
+		for(String filename : filenames) {
+			for(SAMRecord samRecord : SAMRecordLoader.loadSAMFile(new File("").getAbsolutePath() + "/test/resources/" + filename)) {
+				// the bases which cannot be written in a BAM file are skipped
+				if(samRecord.getReadString().matches("[=ACMGRSVTWYHKDBN*]+")) {
+					samRecords.add(samRecord);
+				}
+			}
+		}
+		// the MD tag can be written in lower case
+		SAMRecord lowerCaseRecord = (SAMRecord)samRecords.get(6).clone();
+		lowerCaseRecord.setAttribute("MD", lowerCaseRecord.getStringAttribute("MD").toLowerCase());
+		samRecords.add(lowerCaseRecord);
+		
+		// a BAM file needs the reference sequences in its header
+		SAMFileHeader header = new SAMFileHeader();
+		for (SAMRecord samRecord : samRecords) {
+			String[] referenceNames = {samRecord.getReferenceName(), samRecord.getMateReferenceName()};
+			for (String referenceName : referenceNames) {
+				if (!SAMRecord.NO_ALIGNMENT_REFERENCE_NAME.equals(referenceName) && header.getSequence(referenceName) == null) {
+					header.addSequence(new SAMSequenceRecord(referenceName, 250000000));
+				}
+			}
+		}
+		for (SAMRecord samRecord : samRecords) {
+			// the reference indices of the records are resolved in the new header
+			samRecord.setHeader(header);
+			samRecord.setReferenceName(samRecord.getReferenceName());
+			samRecord.setMateReferenceName(samRecord.getMateReferenceName());
+		}
+		File bamFile = File.createTempFile("bamqc_test", ".bam");
+		bamFile.deleteOnExit();
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bamFile);
+		for (SAMRecord samRecord : samRecords) {
+			writer.addAlignment(samRecord);
+		}
+		writer.close();
+		
+		// the views are decoded without the SAMRecords, as the SAMRecords read from the same file.
+		// The record views are read by the parallel inflater.
+		VariantCallDetection recordVariantCallDetection = new VariantCallDetection();
+		int savedInflaterThreads = BamQCConfig.getInstance().inflater_threads;
+		BamQCConfig.getInstance().inflater_threads = 2;
+		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(bamFile);
+		BamQCConfig.getInstance().inflater_threads = savedInflaterThreads;
+		assertTrue(sequenceFile.canReadRecordViews());
+		BAMRecordView view = sequenceFile.createRecordView();
+		int count = 0;
+		while (sequenceFile.hasNext()) {
+			sequenceFile.nextView(view);
+			variantCallDetection.processRecordView(view);
+			recordVariantCallDetection.processSequence(view.toSAMRecord());
+			if(recordVariantCallDetection.getCigarMD() == null) {
+				assertNull(variantCallDetection.getCigarMD());
+			} else {
+				assertEquals(recordVariantCallDetection.getCigarMD().toString(), variantCallDetection.getCigarMD().toString());
+			}
+			count++;
+		}
+		bamFile.delete();
+		assertEquals(samRecords.size(), count);
+		assertEquals("14m1uCA1m1uCG8m1uTA16m1dT20m2uCTCT27m", variantCallDetection.getCigarMD().toString());
+		
+		assertEquals(recordVariantCallDetection.getTotalReads(), variantCallDetection.getTotalReads());
+		assertEquals(recordVariantCallDetection.getSkippedReads(), variantCallDetection.getSkippedReads());
+		assertEquals(recordVariantCallDetection.getInconsistentCigarMDStrings(), variantCallDetection.getInconsistentCigarMDStrings());
+		assertEquals(recordVariantCallDetection.getFirstSNPs(), variantCallDetection.getFirstSNPs());
+		assertEquals(recordVariantCallDetection.getSecondSNPs(), variantCallDetection.getSecondSNPs());
+		assertEquals(recordVariantCallDetection.getContributingReadsPerPos(), variantCallDetection.getContributingReadsPerPos());
+		assertTrue(Arrays.equals(recordVariantCallDetection.getFirstSNPPos(), variantCallDetection.getFirstSNPPos()));
+		assertTrue(Arrays.equals(recordVariantCallDetection.getSecondSNPPos(), variantCallDetection.getSecondSNPPos()));
+		assertTrue(Arrays.equals(recordVariantCallDetection.getFirstInsertionPos(), variantCallDetection.getFirstInsertionPos()));
+		assertTrue(Arrays.equals(recordVariantCallDetection.getFirstDeletionPos(), variantCallDetection.getFirstDeletionPos()));
+		assertTrue(Arrays.equals(recordVariantCallDetection.getMatchPos(), variantCallDetection.getMatchPos()));
+	}
+	
+	@Test
+	public void testReference() throws Exception {
+		System.out.println("Running test VariantCallDetection.testReference");	
+		log.info("Running test VariantCallDetection.testReference");
+		
+		// a random reference. The second sequence is in lower case.
+		Random random = new Random(11);
+		String[] referenceNames = {"chrA", "chrB"};
+		String[] referenceSequences = {randomBases(random, 2000), randomBases(random, 1501).toLowerCase()};
+		File fastaFile = File.createTempFile("bamqc_test", ".fa");
+		File indexFile = IndexedFastaFile.indexFile(fastaFile);
+		fastaFile.deleteOnExit();
+		indexFile.deleteOnExit();
+		writeIndexedFasta(fastaFile, indexFile, referenceNames, referenceSequences, 60);
+		
+		// the reads are sorted by coordinate, so that the reference sequences can be packed
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		for(int i=0; i<referenceNames.length; i++) {
+			header.addSequence(new SAMSequenceRecord(referenceNames[i], referenceSequences[i].length()));
+		}
+		samRecords = new ArrayList<SAMRecord>();
+		int[] flags = {0, 16, 65, 81, 129, 145};
+		for(int i=0; i<300; i++) {
+			int reference = random.nextInt(referenceNames.length);
+			SAMRecord samRecord = randomRead(random, header, referenceNames[reference], referenceSequences[reference].toUpperCase());
+			samRecord.setReadName("read" + i);
+			samRecord.setFlags(flags[random.nextInt(flags.length)]);
+			samRecords.add(samRecord);
+		}
+		Collections.sort(samRecords, new SAMRecordCoordinateComparator());
+		// the reads without MD string are the same reads without the MD attribute
+		List<SAMRecord> noMDRecords = new ArrayList<SAMRecord>();
+		for(SAMRecord samRecord : samRecords) {
+			SAMRecord noMDRecord = (SAMRecord)samRecord.clone();
+			noMDRecord.setAttribute("MD", null);
+			noMDRecords.add(noMDRecord);
+		}
+		
+		File bamFile = File.createTempFile("bamqc_test", ".bam");
+		bamFile.deleteOnExit();
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bamFile);
+		for (SAMRecord samRecord : noMDRecords) {
+			writer.addAlignment(samRecord);
+		}
+		writer.close();
+		
+		// the reference is read from the mapped file, or from the sequences packed for the sorted reads
+		VariantCallDetection mappedVariantCallDetection;
+		VariantCallDetection packedVariantCallDetection;
+		VariantCallDetection viewVariantCallDetection;
+		SequenceFile sequenceFile;
+		int savedInflaterThreads = BamQCConfig.getInstance().inflater_threads;
+		try {
+			BamQCConfig.getInstance().reference_file = fastaFile;
+			BamQCConfig.getInstance().inflater_threads = 2;
+			sequenceFile = SequenceFactory.getSequenceFile(bamFile);
+			assertTrue(sequenceFile.isCoordinateSorted());
+			mappedVariantCallDetection = new VariantCallDetection();
+			mappedVariantCallDetection.processFile(sequenceFile);
+			BamQCConfig.getInstance().reference_cache = true;
+			packedVariantCallDetection = new VariantCallDetection();
+			packedVariantCallDetection.processFile(sequenceFile);
+			viewVariantCallDetection = new VariantCallDetection();
+			viewVariantCallDetection.processFile(sequenceFile);
+		} finally {
+			BamQCConfig.getInstance().reference_file = null;
+			BamQCConfig.getInstance().reference_cache = false;
+			BamQCConfig.getInstance().inflater_threads = savedInflaterThreads;
+		}
+		
+		assertTrue(sequenceFile.canReadRecordViews());
+		BAMRecordView view = sequenceFile.createRecordView();
+		for(int i=0; i<samRecords.size(); i++) {
+			variantCallDetection.processSequence(samRecords.get(i));
+			mappedVariantCallDetection.processSequence(noMDRecords.get(i));
+			packedVariantCallDetection.processSequence(noMDRecords.get(i));
+			sequenceFile.nextView(view);
+			viewVariantCallDetection.processRecordView(view);
+			String cigarMD = variantCallDetection.getCigarMD().toString();
+			assertEquals(cigarMD, mappedVariantCallDetection.getCigarMD().toString());
+			assertEquals(cigarMD, packedVariantCallDetection.getCigarMD().toString());
+			assertEquals(cigarMD, viewVariantCallDetection.getCigarMD().toString());
+		}
+		bamFile.delete();
+		
+		assertEquals(0L, variantCallDetection.getReadWithoutMDString());
+		assertEquals(samRecords.size(), mappedVariantCallDetection.getReadWithoutMDString());
+		variantCallDetection.computeTotals();
+		assertTrue(variantCallDetection.getTotalMutations() > 0);
+		VariantCallDetection[] referenceVariantCallDetections = {mappedVariantCallDetection, packedVariantCallDetection, viewVariantCallDetection};
+		for(VariantCallDetection referenceVariantCallDetection : referenceVariantCallDetections) {
+			referenceVariantCallDetection.computeTotals();
+			assertEquals(variantCallDetection.getTotalMutations(), referenceVariantCallDetection.getTotalMutations());
+			assertEquals(variantCallDetection.getReadUnknownBases(), referenceVariantCallDetection.getReadUnknownBases());
+			assertEquals(variantCallDetection.getFirstSNPs(), referenceVariantCallDetection.getFirstSNPs());
+			assertEquals(variantCallDetection.getSecondSNPs(), referenceVariantCallDetection.getSecondSNPs());
+			assertTrue(Arrays.equals(variantCallDetection.getFirstSNPPos(), referenceVariantCallDetection.getFirstSNPPos()));
+			assertTrue(Arrays.equals(variantCallDetection.getSecondSNPPos(), referenceVariantCallDetection.getSecondSNPPos()));
+			assertTrue(Arrays.equals(variantCallDetection.getFirstDeletionPos(), referenceVariantCallDetection.getFirstDeletionPos()));
+			assertTrue(Arrays.equals(variantCallDetection.getSecondDeletionPos(), referenceVariantCallDetection.getSecondDeletionPos()));
+			assertTrue(Arrays.equals(variantCallDetection.getMatchPos(), referenceVariantCallDetection.getMatchPos()));
+		}
+	}
+	
+	private static String randomBases(Random random, int length) {
+		StringBuilder bases = new StringBuilder(length);
+		for(int i=0; i<length; i++) {
+			bases.append("ACGT".charAt(random.nextInt(4)));
+		}
+		return bases.toString();
+	}
+	
+	/**
+	 * Write a FASTA file and its index, as samtools faidx does.
+	 */
+	private static void writeIndexedFasta(File fastaFile, File indexFile, String[] names, String[] sequences, int lineBases) throws IOException {
+		StringBuilder fasta = new StringBuilder();
+		StringBuilder index = new StringBuilder();
+		for(int i=0; i<names.length; i++) {
+			fasta.append('>').append(names[i]).append(" random sequence\n");
+			index.append(names[i]).append('\t').append(sequences[i].length()).append('\t').append(fasta.length())
+				.append('\t').append(lineBases).append('\t').append(lineBases + 1).append('\n');
+			for(int j=0; j<sequences[i].length(); j+=lineBases) {
+				fasta.append(sequences[i], j, Math.min(j + lineBases, sequences[i].length())).append('\n');
+			}
+		}
+		FileWriter writer = new FileWriter(fastaFile);
+		writer.write(fasta.toString());
+		writer.close();
+		writer = new FileWriter(indexFile);
+		writer.write(index.toString());
+		writer.close();
+	}
+	
+	/**
+	 * Create a read aligned to a reference sequence, with mismatches, insertions, deletions, 
+	 * skipped regions and soft clips, and its MD string. The mismatches are not at the ends 
+	 * of the Cigar operators M.
+	 */
+	private static SAMRecord randomRead(Random random, SAMFileHeader header, String referenceName, String referenceSequence) {
+		StringBuilder cigar = new StringBuilder();
+		StringBuilder read = new StringBuilder();
+		StringBuilder md = new StringBuilder();
+		int start = random.nextInt(referenceSequence.length() - 400);
+		int referencePosition = start;
+		int matches = 0;
+		if(random.nextInt(4) == 0) {
+			cigar.append("3S");
+			read.append(randomBases(random, 3));
+		}
+		for(int block=0; block<4; block++) {
+			int length = 10 + random.nextInt(20);
+			cigar.append(length).append('M');
+			for(int i=0; i<length; i++) {
+				char referenceBase = referenceSequence.charAt(referencePosition++);
+				if(i > 0 && i < length-1 && random.nextInt(10) == 0) {
+					read.append("ACGTN".replace(String.valueOf(referenceBase), "").charAt(random.nextInt(4)));
+					md.append(matches).append(referenceBase);
+					matches = 0;
+				} else {
+					read.append(referenceBase);
+					matches++;
+				}
+			}
+			if(block == 3) break;
+			int operator = random.nextInt(4);
+			length = 1 + random.nextInt(3);
+			if(operator == 0) {
+				cigar.append(length).append('I');
+				read.append(randomBases(random, length));
+			} else if(operator == 1) {
+				cigar.append(length).append('D');
+				md.append(matches).append('^').append(referenceSequence, referencePosition, referencePosition + length);
+				matches = 0;
+				referencePosition = referencePosition + length;
+			} else if(operator == 2) {
+				length = 50 + random.nextInt(50);
+				cigar.append(length).append('N');
+				referencePosition = referencePosition + length;
+			}
+		}
+		md.append(matches);
+		
+		SAMRecord samRecord = new SAMRecord(header);
+		samRecord.setReferenceName(referenceName);
+		samRecord.setAlignmentStart(start + 1);
+		samRecord.setMappingQuality(60);
+		samRecord.setCigarString(cigar.toString());
+		samRecord.setReadString(read.toString());
+		samRecord.setBaseQualityString(SAMRecord.NULL_QUALS_STRING);
+		samRecord.setAttribute("MD", md.toString());
+		return samRecord;
+	}
+	
 	@Test
 	public void testBooleans() {
 		System.out.println("Running test VariantCallDetection.testBooleans");	
@@ -36,5 +36,11 @@ public interface AnalysisListener {
 	public void analysisStarted(SequenceFile file);
 	public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete);
 	public void analysisComplete(SequenceFile file, QCModule [] results);
+	/**
+	 * The analysis failed or was cancelled. 
+	 * @param file the file of the analysis, or null if the analysis was created from a File 
+	 * which could not be opened or was cancelled before it was opened
+	 * @param e the exception
+	 */
 	public void analysisExceptionReceived(SequenceFile file, Exception e);
 }
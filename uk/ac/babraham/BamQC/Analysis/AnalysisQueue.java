@@ -23,79 +23,155 @@
  */
 package uk.ac.babraham.BamQC.Analysis;
 
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import uk.ac.babraham.BamQC.BamQCConfig;
-import uk.ac.babraham.BamQC.Modules.QCModule;
-import uk.ac.babraham.BamQC.Sequence.SequenceFile;
 
 /**
- * 
+ * Runs the analyses on a fixed pool of BamQCConfig.threads threads. The queued 
+ * analyses are ordered by file size, the largest first, so that the small files 
+ * fill the gaps at the end of a batch. An analysis starts as soon as a thread 
+ * becomes available. As the idle threads take the analyses as soon as they are 
+ * queued, the files selected together are queued between startBatch() and endBatch(), 
+ * so that the first ones to start are the largest as well. The size is taken from the 
+ * file, so an analysis created from a File is ranked without opening the file.
  * @author Simon Andrews
  *
  */
-public class AnalysisQueue implements Runnable, AnalysisListener {
+public class AnalysisQueue {
 
 	private static AnalysisQueue instance = new AnalysisQueue();
 	
-	private LinkedBlockingDeque<AnalysisRunner>queue = new LinkedBlockingDeque<AnalysisRunner>();
+	private ThreadPoolExecutor pool;
 	
-	private AtomicInteger availableSlots = new AtomicInteger(1);
-	private AtomicInteger usedSlots = new AtomicInteger(0);
+	// The order in which the analyses were queued. This breaks the ties between files of the same size.
+	private AtomicLong queuedCount = new AtomicLong(0);
+	
+	// The analyses held until the end of the current batch, or null if no batch is being queued.
+	private List<QueuedAnalysis> batch = null;
 	
 	public static AnalysisQueue getInstance () {
 		return instance;
 	}
 	
 	private AnalysisQueue () {
-		
-		if (BamQCConfig.getInstance().threads != 1) {
-			availableSlots.set(BamQCConfig.getInstance().threads);			
+		int threads = BamQCConfig.getInstance().threads;
+		pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			private int threadCount = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "Analysis " + (++threadCount));
+			}
+		});
+		pool.prestartAllCoreThreads();
+	}
+	
+	public synchronized void addToQueue (AnalysisRunner runner) {
+		QueuedAnalysis analysis = new QueuedAnalysis(runner, queuedCount.getAndIncrement());
+		if (batch != null) {
+			batch.add(analysis);
+		}
+		else {
+			pool.execute(analysis);
 		}
-		
-		Thread t = new Thread(this);
-		t.start();
 	}
 	
-	public void addToQueue (AnalysisRunner runner) {
-		queue.add(runner);
+	/**
+	 * Holds the analyses queued from now on until endBatch() is called.
+	 */
+	public synchronized void startBatch () {
+		if (batch == null) {
+			batch = new ArrayList<QueuedAnalysis>();
+		}
 	}
-
-	@Override
-	public void run() {
-
-		while (true) {
-//			log.debug("Status available="+availableSlots+" used="+usedSlots+" queue="+queue.size());
-			if (availableSlots.intValue() > usedSlots.intValue() && queue.size() > 0) {
-				usedSlots.incrementAndGet();
-				AnalysisRunner currentRun = queue.removeFirst();
-				currentRun.addAnalysisListener(this);
-				Thread t = new Thread(currentRun);
-				t.start();
-			}
-			
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {}
+	
+	/**
+	 * Queues the analyses held since startBatch(), the largest files first.
+	 */
+	public synchronized void endBatch () {
+		if (batch == null) {
+			return;
+		}
+		Collections.sort(batch);
+		for (QueuedAnalysis analysis : batch) {
+			pool.execute(analysis);
 		}
+		batch = null;
 	}
-
-	@Override
-	public void analysisComplete(SequenceFile file, QCModule[] results) {
-		usedSlots.decrementAndGet();
+	
+	/**
+	 * Removes an analysis which has not started yet from the queue.
+	 * @param runner the analysis to remove
+	 * @return true if the analysis was removed, false if it had already started or was not queued.
+	 */
+	public synchronized boolean removeFromQueue (AnalysisRunner runner) {
+		if (batch != null) {
+			for (int i=0; i<batch.size(); i++) {
+				if (batch.get(i).runner == runner) {
+					batch.remove(i);
+					return true;
+				}
+			}
+		}
+		Iterator<Runnable> it = pool.getQueue().iterator();
+		while (it.hasNext()) {
+			Runnable task = it.next();
+			if (((QueuedAnalysis)task).runner == runner) {
+				return pool.remove(task);
+			}
+		}
+		return false;
 	}
-
-	@Override
-	public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {}
-
-	@Override
-	public void analysisExceptionReceived(SequenceFile file, Exception e) {
-		usedSlots.decrementAndGet();
+	
+	/**
+	 * Returns the number of analyses waiting for a thread.
+	 * @return the number of queued analyses
+	 */
+	public synchronized int queuedAnalyses () {
+		return pool.getQueue().size() + (batch != null ? batch.size() : 0);
 	}
-
-	@Override
-	public void analysisStarted(SequenceFile file) {}
 	
 	
+	/**
+	 * An analysis waiting in the queue. The larger files come first.
+	 */
+	private static class QueuedAnalysis implements Runnable, Comparable<QueuedAnalysis> {
+		
+		private final AnalysisRunner runner;
+		private final long size;
+		private final long order;
+		
+		QueuedAnalysis(AnalysisRunner runner, long order) {
+			this.runner = runner;
+			this.order = order;
+			File file = runner.sourceFile();
+			this.size = file != null ? file.length() : 0L;
+		}
+		
+		@Override
+		public void run() {
+			runner.run();
+		}
+		
+		@Override
+		public int compareTo(QueuedAnalysis other) {
+			if (size != other.size) {
+				return size > other.size ? -1 : 1;
+			}
+			if (order != other.order) {
+				return order < other.order ? -1 : 1;
+			}
+			return 0;
+		}
+	}
+	
 }
@@ -25,6 +25,8 @@
 package uk.ac.babraham.BamQC.Analysis;
 
 import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -34,13 +36,20 @@ import org.apache.log4j.Logger;
 import net.sf.samtools.SAMRecord;
 import uk.ac.babraham.BamQC.BamQCConfig;
 import uk.ac.babraham.BamQC.AnnotationParsers.AnnotationParser;
+import uk.ac.babraham.BamQC.AnnotationParsers.BiotypeMapping;
 import uk.ac.babraham.BamQC.AnnotationParsers.GFF3AnnotationParser;
 import uk.ac.babraham.BamQC.AnnotationParsers.GTFAnnotationParser;
 import uk.ac.babraham.BamQC.AnnotationParsers.GenomeParser;
 import uk.ac.babraham.BamQC.DataTypes.ProgressListener;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationIndex;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationIndexFile;
 import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
+import uk.ac.babraham.BamQC.Dialogs.Cancellable;
 import uk.ac.babraham.BamQC.Dialogs.ProgressTextDialog;
 import uk.ac.babraham.BamQC.Modules.QCModule;
+import uk.ac.babraham.BamQC.Modules.RecordViewProcessor;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
+import uk.ac.babraham.BamQC.Sequence.SequenceFactory;
 import uk.ac.babraham.BamQC.Sequence.SequenceFile;
 import uk.ac.babraham.BamQC.Sequence.SequenceFormatException;
 
@@ -49,11 +58,13 @@ import uk.ac.babraham.BamQC.Sequence.SequenceFormatException;
  * @author Piero Dalle Pezze
  *
  */
-public class AnalysisRunner implements Runnable {
+public class AnalysisRunner implements Runnable, Cancellable {
 	
 	private static Logger log = Logger.getLogger(AnalysisRunner.class);	
 
 	private SequenceFile file;
+	// The file to open when the analysis starts, if the analysis was created from a File.
+	private File sourceFile = null;
 	private QCModule [] modules;
 	// In the future this could be part of a hierarchy
 	// for the analysis
@@ -63,10 +74,27 @@ public class AnalysisRunner implements Runnable {
 	
 	private int percentComplete = 0;
 	
+	// The annotation shared by the analyses, parsed once for all the files. These are guarded by AnalysisRunner.class.
+	private static File sharedAnnotationFile = null;
+	private static long sharedAnnotationModified = 0L;
+	private static AnnotationIndex sharedAnnotationIndex = null;
+	
+	// The buffer between the thread reading the file and the modules, if any.
+	private RecordRingBuffer recordBuffer = null;
+	
 	public AnalysisRunner (SequenceFile file) {
 		this.file = file;
 	}
 	
+	/**
+	 * Creates the analysis of a file which is only opened when the analysis starts, so that 
+	 * the files waiting in the queue are not kept open.
+	 * @param file the file to analyse
+	 */
+	public AnalysisRunner (File file) {
+		this.sourceFile = file;
+	}
+	
 	public void addAnalysisListener (AnalysisListener l) {
 		if (l != null && !analysisListeners.contains(l)) {
 			analysisListeners.add(l);
@@ -99,83 +127,65 @@ public class AnalysisRunner implements Runnable {
 		}
 		AnalysisQueue.getInstance().addToQueue(this);
 	}
+	
+	/**
+	 * Return the file to analyse. This is known before the file is opened.
+	 */
+	File sourceFile() {
+		return file != null ? file.getFile() : sourceFile;
+	}
+	
+	/**
+	 * Cancels the analysis if it is still waiting in the queue. The listeners 
+	 * receive an exception, so that they stop waiting for the analysis. 
+	 * An analysis which has already started is not affected.
+	 */
+	@Override
+	public void cancel() {
+		if (AnalysisQueue.getInstance().removeFromQueue(this)) {
+			Exception e = new Exception("The analysis of " + sourceFile().getName() + " was cancelled");
+			Iterator<AnalysisListener> analysisListenerIter = analysisListeners.iterator();
+			while (analysisListenerIter.hasNext()) {
+				analysisListenerIter.next().analysisExceptionReceived(file, e);
+			}
+		}
+	}
 
 	@Override
 	public void run() {
 
-		
-		AnnotationSet annotationSet = null;
-
-		if(BamQCConfig.getInstance().genome != null) {
-			
-        	GenomeParser parser = new GenomeParser();
-        	
-        	
-			// SET UP THE ANNOTATION PROGRESS LISTENER
-			// This is used for reporting the annotation progress on a shell
-	        if(GraphicsEnvironment.isHeadless()) {
-	        	ProgressTextDialog ptd = new ProgressTextDialog("");
-	        	parser.addProgressListener(ptd);
-	        }
-			// This is the progress listener for the annotation
-			Iterator<ProgressListener> progressListenerIter = progressListeners.iterator();
-			while (progressListenerIter.hasNext()) {
-				parser.addProgressListener(progressListenerIter.next());
-			}
-
-			
+		if (file == null) {
 			try {
-				parser.parseGenome(BamQCConfig.getInstance().genome);
-			} catch (Exception e) {
-				log.error("The annotation genome " + BamQCConfig.getInstance().genome + " seems corrupted!", e);
-				Iterator<AnalysisListener> i2 = analysisListeners.iterator();
-				while (i2.hasNext()) {
-					i2.next().analysisExceptionReceived(file, e);
+				file = SequenceFactory.getSequenceFile(sourceFile);
+			}
+			catch (Exception e) {
+				log.error("Failed to open " + sourceFile, e);
+				Iterator<AnalysisListener> i1 = analysisListeners.iterator();
+				while (i1.hasNext()) {
+					i1.next().analysisExceptionReceived(null, e);
 				}
 				return;
 			}
-			annotationSet = parser.genome().annotationSet();
-
-		} else if (BamQCConfig.getInstance().gff_file != null) {	
+		}
+		
+		AnnotationSet annotationSet = null;
+		try {
+			AnnotationIndex annotationIndex = getAnnotationIndex();
+			if (annotationIndex != null) {
+				annotationSet = new AnnotationSet(annotationIndex);
+			}
+			else {
+				// use an empty AnnotationSet.
 				annotationSet = new AnnotationSet();
-				
-				AnnotationParser parser;
-				if (BamQCConfig.getInstance().gff_file.getName().toLowerCase().endsWith("gtf")) {
-					parser = new GTFAnnotationParser();
-				}
-				else {
-					parser = new GFF3AnnotationParser();
-				}
-				
-				
-				// SET UP THE ANNOTATION PROGRESS LISTENER
-				// This is used for reporting the annotation progress on a shell
-		        if(GraphicsEnvironment.isHeadless()) {
-		        	ProgressTextDialog ptd = new ProgressTextDialog("");
-		        	parser.addProgressListener(ptd);
-		        }
-				// This is the progress listener for the annotation
-				Iterator<ProgressListener> progressListenerIter = progressListeners.iterator();
-				while (progressListenerIter.hasNext()) {
-					parser.addProgressListener(progressListenerIter.next());
-				}
-				
-				
-				try {
-					parser.parseAnnotation(annotationSet, BamQCConfig.getInstance().gff_file);
-				}
-				catch (Exception e) {
-					log.error("The annotation file " + BamQCConfig.getInstance().gff_file.getName() + " seems corrupted!", e);
-					Iterator<AnalysisListener> i2 = analysisListeners.iterator();
-					while (i2.hasNext()) {
-						i2.next().analysisExceptionReceived(file, e);
-					}
-					return;
-				}
-		} else { 
-			// use an empty AnnotationSet.
-			annotationSet = new AnnotationSet();
-		}	
+			}
+		}
+		catch (Exception e) {
+			Iterator<AnalysisListener> i2 = analysisListeners.iterator();
+			while (i2.hasNext()) {
+				i2.next().analysisExceptionReceived(file, e);
+			}
+			return;
+		}
 		
 		
 //		// this is used to test the imported annotation set
@@ -204,49 +214,27 @@ public class AnalysisRunner implements Runnable {
 			modules[m].processFile(file);
 		}
 		
-		int seqCount = 0;
-		while (file.hasNext()) {
-			seqCount++;
-			SAMRecord seq;
-			try {
-				seq = file.next();
+		// the references of the file are matched once to the annotation chromosomes
+		annotationSet.setSequenceDictionary(file.getSequenceDictionary());
+		
+		try {
+			// An indexed BAM file can be split in shards processed in parallel.
+			ShardedAnalysis shardedAnalysis = ShardedAnalysis.create(file, modules, annotationSet);
+			if (shardedAnalysis != null) {
+				shardedAnalysis.process(this);
 			}
-			catch (SequenceFormatException e) {
-				analysisListenerIter = analysisListeners.iterator();
-				while (analysisListenerIter.hasNext()) {
-					analysisListenerIter.next().analysisExceptionReceived(file,e);
-				}
-				return;
+			else {
+				// reads sorted by coordinate are passed to the annotation set without caching
+				annotationSet.setCoordinateSorted(file.isCoordinateSorted());
+				processSequences(annotationSet);
 			}
-			
-			annotationSet.processSequence(seq);
-			
-			
-			for (int m=0;m<modules.length;m++) {
-				// This test is redundant and adds complexity. 
-				// If the module does not process the sequences, then just call the method processSequence anyway, and leave this method unimplemented. 
-				// In the worse case we are doing the same thing by calling the method needsToSeeSequences(). 
-				// If the k modules have to parse seq, then we avoid n*k calls of needsToSeeSequences().
-				// The parameter passing is by reference and needsToSeeSequences() returns a value anyway. So not a big deal in that direction either.
-				//if (modules[m].needsToSeeSequences()) {
-					modules[m].processSequence(seq);
-				//}
-			}
-			
-			if (seqCount % 1000 == 0) {
-				int percent = file.getPercentComplete();
-				if (percent >= percentComplete+5) {
-					percentComplete = percent;
-					analysisListenerIter = analysisListeners.iterator();
-					while (analysisListenerIter.hasNext()) {
-						analysisListenerIter.next().analysisUpdated(file, seqCount, percentComplete);
-					}
-					try {
-						Thread.sleep(10);
-					} 
-					catch (InterruptedException e) {}
-				}
+		}
+		catch (SequenceFormatException e) {
+			analysisListenerIter = analysisListeners.iterator();
+			while (analysisListenerIter.hasNext()) {
+				analysisListenerIter.next().analysisExceptionReceived(file,e);
 			}
+			return;
 		}
 		
 		// Let's flush the residual cache accumulated during the annotation set parsing. 
@@ -274,4 +262,387 @@ public class AnalysisRunner implements Runnable {
 
 	}
 	
+	/**
+	 * Return the index of the annotation of the configuration, or null if there is no annotation. 
+	 * The annotation is parsed by the first analysis and the index is shared with the 
+	 * following analyses, which wait for it if it is still being parsed.
+	 * @return the annotation index or null
+	 * @throws Exception if the annotation could not be parsed
+	 */
+	private AnnotationIndex getAnnotationIndex() throws Exception {
+		File annotationFile = BamQCConfig.getInstance().genome;
+		if (annotationFile == null) {
+			annotationFile = BamQCConfig.getInstance().gff_file;
+		}
+		if (annotationFile == null) {
+			return null;
+		}
+		synchronized (AnalysisRunner.class) {
+			if (annotationFile.equals(sharedAnnotationFile) && annotationFile.lastModified() == sharedAnnotationModified) {
+				return sharedAnnotationIndex;
+			}
+			// only one annotation is kept, so the previous one can be released before parsing. 
+			sharedAnnotationIndex = null;
+			sharedAnnotationFile = null;
+			
+			AnnotationIndex annotationIndex = null;
+			if (BamQCConfig.getInstance().annotation_cache) {
+				annotationIndex = readAnnotationIndex(annotationFile);
+			}
+			if (annotationIndex == null) {
+				AnnotationSet annotationSet;
+				if (BamQCConfig.getInstance().genome != null) {
+					annotationSet = parseGenome();
+				}
+				else {
+					annotationSet = parseAnnotationFile();
+				}
+				annotationIndex = annotationSet.index();
+				if (BamQCConfig.getInstance().annotation_cache) {
+					writeAnnotationIndex(annotationIndex, annotationFile);
+				}
+			}
+			sharedAnnotationIndex = annotationIndex;
+			sharedAnnotationFile = annotationFile;
+			sharedAnnotationModified = annotationFile.lastModified();
+			return sharedAnnotationIndex;
+		}
+	}
+	
+	/**
+	 * Read the compiled index of an annotation, if this was saved by a previous run.
+	 * @param annotationFile the annotation file or the genome directory
+	 * @return the index, or null if there is no up-to-date index
+	 */
+	private AnnotationIndex readAnnotationIndex(File annotationFile) {
+		try {
+			AnnotationIndex annotationIndex = AnnotationIndexFile.read(annotationFile, BiotypeMapping.getInstance().mappingHash());
+			if (annotationIndex != null) {
+				log.info("Read the annotation index " + AnnotationIndexFile.indexFile(annotationFile));
+			}
+			return annotationIndex;
+		}
+		catch (IOException e) {
+			log.warn("The annotation index " + AnnotationIndexFile.indexFile(annotationFile) + " couldn't be read, the annotation will be parsed", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Save the compiled index of an annotation for the following runs. The analysis 
+	 * continues if this cannot be written.
+	 * @param annotationIndex the index
+	 * @param annotationFile the annotation file or the genome directory
+	 */
+	private void writeAnnotationIndex(AnnotationIndex annotationIndex, File annotationFile) {
+		try {
+			AnnotationIndexFile.write(annotationIndex, annotationFile, BiotypeMapping.getInstance().mappingHash());
+		}
+		catch (IOException e) {
+			log.warn("The annotation index " + AnnotationIndexFile.indexFile(annotationFile) + " couldn't be written", e);
+		}
+	}
+	
+	private AnnotationSet parseGenome() throws Exception {
+		GenomeParser parser = new GenomeParser();
+		
+		// SET UP THE ANNOTATION PROGRESS LISTENER
+		// This is used for reporting the annotation progress on a shell
+		if(GraphicsEnvironment.isHeadless()) {
+			ProgressTextDialog ptd = new ProgressTextDialog("");
+			parser.addProgressListener(ptd);
+		}
+		// This is the progress listener for the annotation
+		Iterator<ProgressListener> progressListenerIter = progressListeners.iterator();
+		while (progressListenerIter.hasNext()) {
+			parser.addProgressListener(progressListenerIter.next());
+		}
+		
+		try {
+			parser.parseGenome(BamQCConfig.getInstance().genome);
+		} catch (Exception e) {
+			log.error("The annotation genome " + BamQCConfig.getInstance().genome + " seems corrupted!", e);
+			throw e;
+		}
+		return parser.genome().annotationSet();
+	}
+	
+	private AnnotationSet parseAnnotationFile() throws Exception {
+		AnnotationSet annotationSet = new AnnotationSet();
+		
+		AnnotationParser parser;
+		if (BamQCConfig.getInstance().gff_file.getName().toLowerCase().endsWith("gtf")) {
+			parser = new GTFAnnotationParser();
+		}
+		else {
+			parser = new GFF3AnnotationParser();
+		}
+		
+		// SET UP THE ANNOTATION PROGRESS LISTENER
+		// This is used for reporting the annotation progress on a shell
+		if(GraphicsEnvironment.isHeadless()) {
+			ProgressTextDialog ptd = new ProgressTextDialog("");
+			parser.addProgressListener(ptd);
+		}
+		// This is the progress listener for the annotation
+		Iterator<ProgressListener> progressListenerIter = progressListeners.iterator();
+		while (progressListenerIter.hasNext()) {
+			parser.addProgressListener(progressListenerIter.next());
+		}
+		
+		try {
+			parser.parseAnnotation(annotationSet, BamQCConfig.getInstance().gff_file);
+		}
+		catch (Exception e) {
+			log.error("The annotation file " + BamQCConfig.getInstance().gff_file.getName() + " seems corrupted!", e);
+			throw e;
+		}
+		return annotationSet;
+	}
+	
+	/**
+	 * Read all the sequences of the file and pass them to the annotation set and the modules.
+	 * @param annotationSet the annotation set
+	 * @throws SequenceFormatException
+	 */
+	private void processSequences(AnnotationSet annotationSet) throws SequenceFormatException {
+		if (BamQCConfig.getInstance().module_threads > 0) {
+			// the fan-out reads the file in this thread while the workers run the modules, 
+			// so the two options are exclusive.
+			if (BamQCConfig.getInstance().record_buffer_size > 0) {
+				log.warn("The record buffer is not used when the modules run in several threads");
+			}
+			processFanOutSequences(annotationSet);
+			return;
+		}
+		
+		// The modules which can work on the fixed fields of the BAM records receive a reusable 
+		// record view, so that the full SAMRecord is only decoded if another module needs it.
+		boolean useRecordViews = file.canReadRecordViews();
+		List<RecordViewProcessor> viewModules = new ArrayList<RecordViewProcessor>();
+		List<QCModule> recordModules = new ArrayList<QCModule>();
+		for (int m=0;m<modules.length;m++) {
+			if (useRecordViews && modules[m] instanceof RecordViewProcessor) {
+				viewModules.add((RecordViewProcessor)modules[m]);
+			}
+			else {
+				recordModules.add(modules[m]);
+			}
+		}
+		RecordViewProcessor [] viewModulesArray = viewModules.toArray(new RecordViewProcessor[0]);
+		QCModule [] recordModulesArray = recordModules.toArray(new QCModule[0]);
+		
+		// The records are passed to the modules in batches, so that each module 
+		// is called once per batch rather than once per record.
+		int batchSize = BamQCConfig.getInstance().batch_size;
+		SAMRecord [] records = new SAMRecord[batchSize];
+		BAMRecordView [] views = null;
+		
+		if (BamQCConfig.getInstance().record_buffer_size > 0) {
+			if (useRecordViews) {
+				views = new BAMRecordView[batchSize];
+			}
+			processBufferedSequences(annotationSet, views, records, viewModulesArray, recordModulesArray);
+			return;
+		}
+		
+		if (useRecordViews) {
+			views = new BAMRecordView[batchSize];
+			for (int i=0; i<batchSize; i++) {
+				views[i] = file.createRecordView();
+			}
+		}
+		
+		int seqCount = 0;
+		while (file.hasNext()) {
+			int count = 0;
+			while (count < batchSize && file.hasNext()) {
+				if (useRecordViews) {
+					file.nextView(views[count]);
+				}
+				else {
+					records[count] = file.next();
+				}
+				count++;
+			}
+			processBatch(annotationSet, views, records, count, viewModulesArray, recordModulesArray);
+			
+			int previousCount = seqCount;
+			seqCount += count;
+			if (seqCount / 1000 != previousCount / 1000) {
+				sequencesUpdated(seqCount, file.getPercentComplete());
+			}
+		}
+	}
+	
+	/**
+	 * Read the sequences in this thread and run the modules in several worker threads. 
+	 * Each batch is read once and processed by all the workers in parallel, while this 
+	 * thread passes it to the annotation set and reads the next one.
+	 */
+	private void processFanOutSequences(AnnotationSet annotationSet) throws SequenceFormatException {
+		boolean useRecordViews = file.canReadRecordViews();
+		int batchSize = BamQCConfig.getInstance().batch_size;
+		ModuleFanOut fanOut = new ModuleFanOut(file, modules, BamQCConfig.getInstance().module_threads, batchSize, useRecordViews);
+		boolean needsRecords = fanOut.needsRecords();
+		
+		int seqCount = 0;
+		try {
+			while (file.hasNext()) {
+				ModuleFanOut.Batch batch = fanOut.nextBatch();
+				int count = 0;
+				while (count < batchSize && file.hasNext()) {
+					if (useRecordViews) {
+						file.nextView(batch.views[count]);
+						annotationSet.processSequence(batch.views[count]);
+						if (needsRecords) {
+							batch.records[count] = batch.views[count].toSAMRecord();
+						}
+					}
+					else {
+						batch.records[count] = file.next();
+						annotationSet.processSequence(batch.records[count]);
+					}
+					if (needsRecords || !useRecordViews) {
+						ModuleFanOut.decodeRecord(batch.records[count]);
+					}
+					count++;
+				}
+				batch.count = count;
+				fanOut.publish();
+				
+				int previousCount = seqCount;
+				seqCount += count;
+				if (seqCount / 1000 != previousCount / 1000) {
+					sequencesUpdated(seqCount, file.getPercentComplete());
+				}
+			}
+			fanOut.finish();
+		}
+		finally {
+			// stop the workers if reading the file failed.
+			fanOut.abort();
+		}
+	}
+	
+	/**
+	 * Read the sequences in a separate thread, so that reading and decompressing the file 
+	 * overlaps with the computation of the modules. The records are passed through a 
+	 * bounded ring buffer.
+	 */
+	private void processBufferedSequences(AnnotationSet annotationSet, BAMRecordView [] views, SAMRecord [] records, 
+			RecordViewProcessor [] viewModulesArray, QCModule [] recordModulesArray) throws SequenceFormatException {
+		
+		RecordRingBuffer buffer = new RecordRingBuffer(file, BamQCConfig.getInstance().record_buffer_size, records.length, views != null);
+		recordBuffer = buffer;
+		buffer.start();
+		
+		int seqCount = 0;
+		try {
+			int count;
+			while ((count = buffer.awaitAvailable()) > 0) {
+				for (int i=0; i<count; i++) {
+					if (views != null) {
+						views[i] = buffer.view(i);
+					}
+					else {
+						records[i] = buffer.record(i);
+					}
+				}
+				processBatch(annotationSet, views, records, count, viewModulesArray, recordModulesArray);
+				buffer.release(count);
+				
+				int previousCount = seqCount;
+				seqCount += count;
+				if (seqCount / 1000 != previousCount / 1000) {
+					sequencesUpdated(seqCount, buffer.getPercentComplete());
+				}
+			}
+		}
+		finally {
+			// stop the reader if the modules failed.
+			buffer.abort();
+		}
+		log.debug(buffer);
+	}
+	
+	/**
+	 * Pass a batch of records to the annotation set and the modules.
+	 * @param views the record views, or null if the records are read as SAMRecords
+	 * @param records the records. If views are used, this is filled only if some modules need the SAMRecords
+	 * @param count the number of records in the batch
+	 */
+	static void processBatch(AnnotationSet annotationSet, BAMRecordView [] views, SAMRecord [] records, int count, 
+			RecordViewProcessor [] viewModulesArray, QCModule [] recordModulesArray) {
+		if (views != null) {
+			for (int i=0; i<count; i++) {
+				annotationSet.processSequence(views[i]);
+			}
+			for (int m=0;m<viewModulesArray.length;m++) {
+				viewModulesArray[m].processRecordViews(views, count);
+			}
+			if (recordModulesArray.length > 0) {
+				for (int i=0; i<count; i++) {
+					records[i] = views[i].toSAMRecord();
+				}
+			}
+		}
+		else {
+			for (int i=0; i<count; i++) {
+				annotationSet.processSequence(records[i]);
+			}
+		}
+		
+		for (int m=0;m<recordModulesArray.length;m++) {
+			// This test is redundant and adds complexity. 
+			// If the module does not process the sequences, then just call the method processBatch anyway, and leave this method unimplemented. 
+			// In the worse case we are doing the same thing by calling the method needsToSeeSequences(). 
+			// If the k modules have to parse seq, then we avoid n*k calls of needsToSeeSequences().
+			// The parameter passing is by reference and needsToSeeSequences() returns a value anyway. So not a big deal in that direction either.
+			//if (recordModulesArray[m].needsToSeeSequences()) {
+				recordModulesArray[m].processBatch(records, count);
+			//}
+		}
+	}
+	
+	/**
+	 * Notify the progress of the analysis every 5%.
+	 */
+	private void sequencesUpdated(int seqCount, int percent) {
+		if (percent >= percentComplete+5) {
+			percentComplete = percent;
+			Iterator<AnalysisListener> analysisListenerIter = analysisListeners.iterator();
+			while (analysisListenerIter.hasNext()) {
+				analysisListenerIter.next().analysisUpdated(file, seqCount, percentComplete);
+			}
+			try {
+				Thread.sleep(10);
+			} 
+			catch (InterruptedException e) {}
+		}
+	}
+	
+	/**
+	 * Returns the record buffer used by the last analysis, or null if the records 
+	 * were not buffered. This exposes the statistics of the buffer, which show 
+	 * whether reading the file or running the modules is the bottleneck.
+	 * @return the record buffer or null
+	 */
+	public RecordRingBuffer getRecordBuffer() {
+		return recordBuffer;
+	}
+	
+	/**
+	 * Notify the progress of a sharded analysis.
+	 */
+	void shardsUpdated(long seqCount, int percent) {
+		if (percent >= percentComplete+5) {
+			percentComplete = percent;
+			Iterator<AnalysisListener> analysisListenerIter = analysisListeners.iterator();
+			while (analysisListenerIter.hasNext()) {
+				analysisListenerIter.next().analysisUpdated(file, (int)seqCount, percentComplete);
+			}
+		}
+	}
+	
 }
@@ -0,0 +1,349 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Analysis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sf.samtools.SAMRecord;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.babraham.BamQC.Modules.DependentModule;
+import uk.ac.babraham.BamQC.Modules.QCModule;
+import uk.ac.babraham.BamQC.Modules.RecordViewProcessor;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Runs the modules of an analysis in parallel. Each batch of records is published 
+ * once and processed by several worker threads, each owning a group of modules. 
+ * A module and the modules depending on it (e.g. VariantCallDetection and SNPFrequencies) 
+ * are always in the same group. The batches are kept in a few slots, so that the 
+ * next batch can be read while the workers process the previous ones.
+ */
+class ModuleFanOut {
+
+	private static Logger log = Logger.getLogger(ModuleFanOut.class);
+	
+	// The number of batches which can be in use at the same time.
+	private static final int SLOTS = 4;
+	
+	/** A batch of records shared by the workers. */
+	static class Batch {
+		final BAMRecordView [] views;
+		final SAMRecord [] records;
+		int count = 0;
+		
+		Batch(BAMRecordView [] views, SAMRecord [] records) {
+			this.views = views;
+			this.records = records;
+		}
+	}
+	
+	private final Batch [] batches = new Batch[SLOTS];
+	private final Worker [] workers;
+	// true if some modules need the full SAMRecords.
+	private final boolean needsRecords;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition published = lock.newCondition();
+	private final Condition completed = lock.newCondition();
+	
+	// The number of published batches. This is guarded by the lock.
+	private long publishedCount = 0;
+	private boolean finished = false;
+	private Throwable failure = null;
+	
+	
+	/**
+	 * Creates the workers for the modules.
+	 * @param file the file to read
+	 * @param modules the modules of the analysis
+	 * @param threads the maximum number of worker threads
+	 * @param batchSize the maximum number of records in a batch
+	 * @param useRecordViews true if the records are read as record views
+	 */
+	ModuleFanOut(SequenceFile file, QCModule [] modules, int threads, int batchSize, boolean useRecordViews) {
+		
+		List<List<QCModule>> groups = groupModules(modules);
+		// Each worker gets at least one group. The groups are assigned in order, 
+		// so VariantCallDetection and its dependants, which come first, get a worker on their own.
+		int workerCount = Math.max(1, Math.min(threads, groups.size()));
+		List<List<QCModule>> workerModules = new ArrayList<List<QCModule>>(workerCount);
+		for (int w=0; w<workerCount; w++) {
+			workerModules.add(new ArrayList<QCModule>());
+		}
+		for (int g=0; g<groups.size(); g++) {
+			int w = (g == 0 || workerCount == 1) ? 0 : 1 + (g - 1) % (workerCount - 1);
+			workerModules.get(w).addAll(groups.get(g));
+		}
+		
+		boolean needsRecords = false;
+		workers = new Worker[workerCount];
+		for (int w=0; w<workerCount; w++) {
+			workers[w] = new Worker(workerModules.get(w), useRecordViews);
+			needsRecords = needsRecords || workers[w].recordModules.length > 0;
+		}
+		this.needsRecords = needsRecords;
+		
+		for (int s=0; s<SLOTS; s++) {
+			BAMRecordView [] views = null;
+			if (useRecordViews) {
+				views = new BAMRecordView[batchSize];
+				for (int i=0; i<batchSize; i++) {
+					views[i] = file.createRecordView();
+				}
+			}
+			batches[s] = new Batch(views, new SAMRecord[batchSize]);
+		}
+		
+		for (int w=0; w<workerCount; w++) {
+			Thread t = new Thread(workers[w], "Modules " + file.name() + "-" + (w+1));
+			t.setDaemon(true);
+			t.start();
+		}
+		log.debug("Processing " + modules.length + " modules with " + workerCount + " threads");
+	}
+	
+	/**
+	 * Group each module with the module it depends on. The group of the first module 
+	 * having dependants comes first, as it is normally the most expensive.
+	 */
+	private static List<List<QCModule>> groupModules(QCModule [] modules) {
+		Map<QCModule, List<QCModule>> groups = new LinkedHashMap<QCModule, List<QCModule>>();
+		for (int m=0; m<modules.length; m++) {
+			if (modules[m] instanceof DependentModule && ((DependentModule)modules[m]).getDependency() != null) {
+				QCModule dependency = ((DependentModule)modules[m]).getDependency();
+				if (!groups.containsKey(dependency)) {
+					groups.put(dependency, new ArrayList<QCModule>());
+				}
+				groups.get(dependency).add(modules[m]);
+			}
+			else {
+				if (!groups.containsKey(modules[m])) {
+					groups.put(modules[m], new ArrayList<QCModule>());
+				}
+				groups.get(modules[m]).add(0, modules[m]);
+			}
+		}
+		List<List<QCModule>> result = new ArrayList<List<QCModule>>();
+		for (List<QCModule> group : groups.values()) {
+			if (group.size() > 1) {
+				result.add(0, group);
+			}
+			else {
+				result.add(group);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Return true if some modules need the full SAMRecords.
+	 */
+	boolean needsRecords() {
+		return needsRecords;
+	}
+	
+	/**
+	 * Waits until a batch can be filled.
+	 * @return the batch to fill
+	 */
+	Batch nextBatch() {
+		lock.lock();
+		try {
+			// the slot is free when all the workers have completed the batch previously stored in it.
+			while (minCompleted() <= publishedCount - SLOTS && failure == null) {
+				completed.awaitUninterruptibly();
+			}
+			checkFailure();
+			return batches[(int)(publishedCount % SLOTS)];
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Decodes the lazily decoded fields of a record. The records are shared by the 
+	 * workers, so they must not be modified while the modules read them.
+	 */
+	static void decodeRecord(SAMRecord record) {
+		record.getReadName();
+		record.getCigar();
+		record.getReadBases();
+		record.getBaseQualities();
+		record.getAttribute("MD");
+		record.getAlignmentEnd();
+	}
+	
+	/**
+	 * Publishes the batch returned by nextBatch() to the workers.
+	 */
+	void publish() {
+		lock.lock();
+		try {
+			publishedCount++;
+			published.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits until the workers have processed all the published batches and stops them. 
+	 */
+	void finish() {
+		lock.lock();
+		try {
+			finished = true;
+			published.signalAll();
+			while (minCompleted() < publishedCount && failure == null) {
+				completed.awaitUninterruptibly();
+			}
+			checkFailure();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops the workers without waiting for them.
+	 */
+	void abort() {
+		lock.lock();
+		try {
+			finished = true;
+			if (failure == null) {
+				failure = new IllegalStateException("Analysis aborted");
+			}
+			published.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private long minCompleted() {
+		long min = Long.MAX_VALUE;
+		for (int w=0; w<workers.length; w++) {
+			if (workers[w].completedCount < min) {
+				min = workers[w].completedCount;
+			}
+		}
+		return min;
+	}
+	
+	private void checkFailure() {
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error)failure;
+		}
+	}
+	
+	
+	/**
+	 * A thread processing the batches with a group of modules.
+	 */
+	private class Worker implements Runnable {
+		
+		private final RecordViewProcessor [] viewModules;
+		private final QCModule [] recordModules;
+		// The number of batches processed by this worker. This is guarded by the lock.
+		private long completedCount = 0;
+		
+		Worker(List<QCModule> modules, boolean useRecordViews) {
+			List<RecordViewProcessor> viewModuleList = new ArrayList<RecordViewProcessor>();
+			List<QCModule> recordModuleList = new ArrayList<QCModule>();
+			for (QCModule module : modules) {
+				if (useRecordViews && module instanceof RecordViewProcessor) {
+					viewModuleList.add((RecordViewProcessor)module);
+				}
+				else {
+					recordModuleList.add(module);
+				}
+			}
+			viewModules = viewModuleList.toArray(new RecordViewProcessor[0]);
+			recordModules = recordModuleList.toArray(new QCModule[0]);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Batch batch;
+					lock.lock();
+					try {
+						while (completedCount == publishedCount && !finished) {
+							published.awaitUninterruptibly();
+						}
+						if (failure != null || completedCount == publishedCount) {
+							return;
+						}
+						batch = batches[(int)(completedCount % SLOTS)];
+					}
+					finally {
+						lock.unlock();
+					}
+					
+					for (int m=0; m<viewModules.length; m++) {
+						viewModules[m].processRecordViews(batch.views, batch.count);
+					}
+					for (int m=0; m<recordModules.length; m++) {
+						recordModules[m].processBatch(batch.records, batch.count);
+					}
+					
+					lock.lock();
+					try {
+						completedCount++;
+						completed.signalAll();
+					}
+					finally {
+						lock.unlock();
+					}
+				}
+			}
+			catch (Throwable t) {
+				log.error(t, t);
+				lock.lock();
+				try {
+					if (failure == null) {
+						failure = t;
+					}
+					completed.signalAll();
+					published.signalAll();
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+	
+}
@@ -35,9 +35,7 @@ import uk.ac.babraham.BamQC.BamQCConfig;
 import uk.ac.babraham.BamQC.Modules.ModuleFactory;
 import uk.ac.babraham.BamQC.Modules.QCModule;
 import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
-import uk.ac.babraham.BamQC.Sequence.SequenceFactory;
 import uk.ac.babraham.BamQC.Sequence.SequenceFile;
-import uk.ac.babraham.BamQC.Sequence.SequenceFormatException;
 
 /**
  * 
@@ -133,15 +131,14 @@ public class OfflineRunner implements AnalysisListener {
 		
 		filesRemaining = new AtomicInteger(files.size());
 		
+		// the analyses start once they are all queued, so that the largest files start first. 
+		// Each file is only opened when its analysis starts.
+		AnalysisQueue.getInstance().startBatch();
 		for (int i=0;i<files.size();i++) {
 
 			try {
 				processFile(files.elementAt(i));
 			}
-			catch (SequenceFormatException e) {
-				log.error("Format error in "+files.elementAt(i) + " : " + e.getLocalizedMessage(), e);
-				filesRemaining.decrementAndGet();
-			}
 			catch (IOException e) {
 				log.error("File "+files.elementAt(i) + " broken : "  + e.getLocalizedMessage(), e);
 				filesRemaining.decrementAndGet();
@@ -151,6 +148,7 @@ public class OfflineRunner implements AnalysisListener {
 				filesRemaining.decrementAndGet();
 			}
 		}
+		AnalysisQueue.getInstance().endBatch();
 		
 		// We need to hold this class open as otherwise the main method
 		// exits when it's finished.
@@ -164,13 +162,12 @@ public class OfflineRunner implements AnalysisListener {
 		
 	}
 	
-	public void processFile (File file) throws SequenceFormatException, IOException {
+	public void processFile (File file) throws IOException {
 		if (!file.getName().equals("stdin") && !file.exists()) {
 			throw new IOException(file.getName()+" doesn't exist");
 		}
-		SequenceFile sequenceFile = SequenceFactory.getSequenceFile(file);			
-						
-		AnalysisRunner runner = new AnalysisRunner(sequenceFile);
+		
+		AnalysisRunner runner = new AnalysisRunner(file);
 		
 		runner.addAnalysisListener(this);
 			
@@ -226,7 +223,10 @@ public class OfflineRunner implements AnalysisListener {
 
 	@Override
 	public void analysisExceptionReceived(SequenceFile file, Exception e) {
-		log.error("Failed to process file "+file.name(), e);
+		// a file which could not be opened has already been reported by its AnalysisRunner
+		if (file != null) {
+			log.error("Failed to process file "+file.name(), e);
+		}
 		filesRemaining.decrementAndGet();
 	}
 
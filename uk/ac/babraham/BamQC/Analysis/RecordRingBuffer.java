@@ -0,0 +1,366 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Analysis;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sf.samtools.SAMRecord;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Sequence.SequenceFormatException;
+
+/**
+ * A bounded ring buffer which decouples the decoding of the records of a file from 
+ * their analysis. A producer thread reads the records into preallocated slots, 
+ * while the analysis thread consumes them. Record views are reused, so the 
+ * buffer does not allocate once it has been created.
+ * The buffer keeps statistics about its depth and about the times in which either 
+ * side had to wait for the other one. A buffer which is often full means that the 
+ * modules are the bottleneck, whereas a buffer which is often empty means that 
+ * reading and decompressing the file is the bottleneck.
+ */
+public final class RecordRingBuffer implements Runnable {
+
+	private static Logger log = Logger.getLogger(RecordRingBuffer.class);
+	
+	// The maximum number of slots published at once. This reduces the 
+	// locking without delaying the consumer for too long.
+	private static final int MAX_BATCH = 64;
+	
+	private final SequenceFile file;
+	private final int capacity;
+	// The maximum number of records taken by the consumer at once.
+	private final int batchSize;
+	private final BAMRecordView [] views;
+	private final SAMRecord [] records;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	
+	// The number of records produced and consumed. These are guarded by the lock.
+	private long produced = 0;
+	private long consumed = 0;
+	private boolean finished = false;
+	private boolean aborted = false;
+	private SequenceFormatException exception = null;
+	
+	private volatile int percentComplete = 0;
+	
+	// Queue statistics, guarded by the lock.
+	private long producerStalls = 0;
+	private long consumerStalls = 0;
+	private long depthSum = 0;
+	private long depthSamples = 0;
+	private int maxDepth = 0;
+	
+	
+	/**
+	 * Creates a ring buffer for a file.
+	 * @param file the file to read
+	 * @param capacity the number of slots
+	 * @param batchSize the maximum number of records taken by the consumer at once
+	 * @param useRecordViews true if the records are read as record views, false if they are read as SAMRecords
+	 */
+	RecordRingBuffer(SequenceFile file, int capacity, int batchSize, boolean useRecordViews) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity of the record buffer must be >= 1");
+		}
+		this.file = file;
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		if (useRecordViews) {
+			views = new BAMRecordView[capacity];
+			for (int i=0; i<capacity; i++) {
+				views[i] = file.createRecordView();
+			}
+			records = null;
+		}
+		else {
+			views = null;
+			records = new SAMRecord[capacity];
+		}
+	}
+	
+	/**
+	 * Starts the producer thread.
+	 */
+	void start() {
+		Thread t = new Thread(this, "Record reader " + file.name());
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * The producer. This reads the file until the end or until the buffer is aborted.
+	 */
+	@Override
+	public void run() {
+		try {
+			// only the producer advances this index, so it does not need the lock.
+			long next = 0;
+			int count = 0;
+			while (file.hasNext()) {
+				int free = awaitFree();
+				if (free < 0) {
+					return;
+				}
+				free = Math.min(MAX_BATCH, free);
+				int n = 0;
+				for (; n<free && file.hasNext(); n++) {
+					int slot = (int)((next + n) % capacity);
+					if (views != null) {
+						file.nextView(views[slot]);
+					}
+					else {
+						records[slot] = file.next();
+					}
+				}
+				next += n;
+				count += n;
+				if (count >= 1000) {
+					count = 0;
+					percentComplete = file.getPercentComplete();
+				}
+				publish(n);
+			}
+			finish(null);
+		}
+		catch (SequenceFormatException e) {
+			finish(e);
+		}
+		catch (RuntimeException e) {
+			log.error(e, e);
+			finish(new SequenceFormatException(e.getMessage()));
+		}
+	}
+	
+	/**
+	 * Waits until at least one slot is free.
+	 * @return the number of free slots, or -1 if the buffer was aborted.
+	 */
+	private int awaitFree() {
+		lock.lock();
+		try {
+			if (produced - consumed == capacity && !aborted) {
+				producerStalls++;
+				do {
+					notFull.awaitUninterruptibly();
+				} while (produced - consumed == capacity && !aborted);
+			}
+			if (aborted) {
+				return -1;
+			}
+			return capacity - (int)(produced - consumed);
+		} 
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private void publish(int n) {
+		lock.lock();
+		try {
+			produced += n;
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private void finish(SequenceFormatException e) {
+		lock.lock();
+		try {
+			finished = true;
+			exception = e;
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits until some records are available.
+	 * @return the number of records which can be consumed, or 0 if all the records have been consumed.
+	 * @throws SequenceFormatException if the file could not be read or the thread was interrupted
+	 */
+	int awaitAvailable() throws SequenceFormatException {
+		lock.lock();
+		try {
+			if (produced == consumed && !finished) {
+				consumerStalls++;
+				do {
+					notEmpty.await();
+				} while (produced == consumed && !finished);
+			}
+			if (exception != null) {
+				throw exception;
+			}
+			int depth = (int)(produced - consumed);
+			depthSum += depth;
+			depthSamples++;
+			if (depth > maxDepth) {
+				maxDepth = depth;
+			}
+			return Math.min(batchSize, depth);
+		}
+		catch (InterruptedException e) {
+			throw new SequenceFormatException("Interrupted while reading " + file.name());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Releases consumed slots to the producer.
+	 * @param n the number of consumed records
+	 */
+	void release(int n) {
+		if (records != null) {
+			for (int i=0; i<n; i++) {
+				records[(int)((consumed + i) % capacity)] = null;
+			}
+		}
+		lock.lock();
+		try {
+			consumed += n;
+			notFull.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops the producer. This must be called if the consumer stops before the end of the file.
+	 */
+	void abort() {
+		lock.lock();
+		try {
+			aborted = true;
+			notFull.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the record view of the i-th available record. 
+	 */
+	BAMRecordView view(int i) {
+		return views[(int)((consumed + i) % capacity)];
+	}
+	
+	/**
+	 * Returns the i-th available record.
+	 */
+	SAMRecord record(int i) {
+		if (views != null) {
+			return view(i).toSAMRecord();
+		}
+		return records[(int)((consumed + i) % capacity)];
+	}
+	
+	/**
+	 * Returns the percentage of the file read by the producer.
+	 */
+	int getPercentComplete() {
+		return percentComplete;
+	}
+	
+	
+	/**
+	 * Returns the number of slots of this buffer.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Returns the number of times the producer waited because the buffer was full.
+	 */
+	public long getProducerStalls() {
+		lock.lock();
+		try {
+			return producerStalls;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of times the consumer waited because the buffer was empty.
+	 */
+	public long getConsumerStalls() {
+		lock.lock();
+		try {
+			return consumerStalls;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the mean number of records in the buffer when the consumer takes them.
+	 */
+	public double getMeanDepth() {
+		lock.lock();
+		try {
+			if (depthSamples == 0) return 0d;
+			return depthSum / (double)depthSamples;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the maximum number of records in the buffer when the consumer takes them.
+	 */
+	public int getMaxDepth() {
+		lock.lock();
+		try {
+			return maxDepth;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "Record buffer " + file.name() + ": capacity=" + capacity + 
+				", mean depth=" + String.format("%.1f", getMeanDepth()) + 
+				", max depth=" + getMaxDepth() + 
+				", producer stalls (modules are slower)=" + getProducerStalls() + 
+				", consumer stalls (reading is slower)=" + getConsumerStalls();
+	}
+	
+}
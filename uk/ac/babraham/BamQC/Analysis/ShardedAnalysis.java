@@ -0,0 +1,326 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Analysis;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFormatException;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.babraham.BamQC.BamQCConfig;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
+import uk.ac.babraham.BamQC.Modules.MergeableModule;
+import uk.ac.babraham.BamQC.Modules.ModuleFactory;
+import uk.ac.babraham.BamQC.Modules.QCModule;
+import uk.ac.babraham.BamQC.Modules.RecordViewProcessor;
+import uk.ac.babraham.BamQC.Sequence.BAMFile;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+import uk.ac.babraham.BamQC.Sequence.SequenceFormatException;
+
+/**
+ * Processes an indexed BAM file in parallel. The file is split in shards, 
+ * which are regions of the references plus one shard for the unplaced unmapped reads. 
+ * Each worker thread owns a copy of the modules and of the BAM reader, 
+ * and the copies are merged into the modules of the analysis at the end.
+ * The reads of a shard are passed in batches to the modules and to an annotation set 
+ * of the worker, as in a sequential analysis. The annotation set of the worker counts the 
+ * features with its own sweep line and keeps the depth of coverage of the shard region, 
+ * and it is merged into the annotation set of the analysis after each shard. 
+ * The reads are read as SAMRecords, as the index queries do not return record views.
+ */
+class ShardedAnalysis {
+
+	private static Logger log = Logger.getLogger(ShardedAnalysis.class);
+	
+	// The maximum length of a shard in bp. 
+	private static final int SHARD_LENGTH = 5000000;
+	
+	// The shards are read as SAMRecords, so all the modules receive the records.
+	private static final RecordViewProcessor [] NO_VIEW_MODULES = new RecordViewProcessor[0];
+	
+	private SequenceFile file;
+	private File indexFile;
+	private QCModule [] modules;
+	private AnnotationSet annotationSet;
+	
+	private AtomicLong seqCount = new AtomicLong(0);
+	// All the worker states, merged when the shards have been processed.
+	private List<Worker> workers = Collections.synchronizedList(new ArrayList<Worker>());
+	private ThreadLocal<Worker> worker = new ThreadLocal<Worker>();
+	
+	
+	private ShardedAnalysis(SequenceFile file, File indexFile, QCModule [] modules, AnnotationSet annotationSet) {
+		this.file = file;
+		this.indexFile = indexFile;
+		this.modules = modules;
+		this.annotationSet = annotationSet;
+	}
+	
+	/**
+	 * Return a sharded analysis if the file and the modules can be processed in parallel, 
+	 * or null otherwise. This requires shard threads, a BAM index and that all the modules 
+	 * processing the sequences can be merged.
+	 */
+	static ShardedAnalysis create(SequenceFile file, QCModule [] modules, AnnotationSet annotationSet) {
+		if (BamQCConfig.getInstance().shard_threads < 1) {
+			return null;
+		}
+		File indexFile = BAMFile.findIndexFile(file.getFile());
+		if (indexFile == null) {
+			log.info("No BAM index found for " + file.name() + ". The file will be processed sequentially.");
+			return null;
+		}
+		if (!sameModules(modules, ModuleFactory.getStandardModuleList())) {
+			log.info("The modules of this analysis cannot be replicated. The file will be processed sequentially.");
+			return null;
+		}
+		return new ShardedAnalysis(file, indexFile, modules, annotationSet);
+	}
+	
+	private static boolean sameModules(QCModule [] modules, QCModule [] copies) {
+		if (modules.length != copies.length) {
+			return false;
+		}
+		for (int m=0; m<modules.length; m++) {
+			if (modules[m].getClass() != copies[m].getClass()) {
+				return false;
+			}
+			if (modules[m].needsToSeeSequences() && !(modules[m] instanceof MergeableModule)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Process all the shards and merge the results into the modules.
+	 * @param runner the runner notified of the progress
+	 * @throws SequenceFormatException if a shard could not be read
+	 */
+	void process(AnalysisRunner runner) throws SequenceFormatException {
+		
+		// The file reader is not used as the shards are read from their own readers.
+		file.close();
+		
+		List<Shard> shards = createShards();
+		long totalLength = 0;
+		for (Shard shard : shards) {
+			totalLength += shard.length();
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(BamQCConfig.getInstance().shard_threads, new ThreadFactory() {
+			private int threadCount = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Shard " + file.name() + "-" + (++threadCount));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		try {
+			List<Future<Shard>> futures = new ArrayList<Future<Shard>>(shards.size());
+			for (Shard shard : shards) {
+				futures.add(pool.submit(shard, shard));
+			}
+			
+			long processedLength = 0;
+			for (Future<Shard> future : futures) {
+				Shard shard = null;
+				while (shard == null) {
+					try {
+						shard = future.get(500, TimeUnit.MILLISECONDS);
+					}
+					catch (TimeoutException e) {
+						runner.shardsUpdated(seqCount.get(), percent(processedLength, totalLength));
+					}
+				}
+				processedLength += shard.length();
+				runner.shardsUpdated(seqCount.get(), percent(processedLength, totalLength));
+			}
+		}
+		catch (InterruptedException e) {
+			throw new SequenceFormatException("Interrupted while processing " + file.name());
+		}
+		catch (ExecutionException e) {
+			log.error(e.getCause(), e.getCause());
+			throw new SequenceFormatException(e.getCause().getMessage());
+		}
+		finally {
+			pool.shutdownNow();
+			for (Worker w : workers) {
+				w.reader.close();
+			}
+		}
+		
+		// merge the module copies of each worker into the modules of the analysis
+		for (Worker w : workers) {
+			for (int m=0; m<modules.length; m++) {
+				if (modules[m].needsToSeeSequences()) {
+					((MergeableModule)modules[m]).merge(w.modules[m]);
+				}
+			}
+		}
+	}
+	
+	private static int percent(long processed, long total) {
+		if (total == 0) return 100;
+		return (int)((processed * 100) / total);
+	}
+	
+	private List<Shard> createShards() {
+		List<Shard> shards = new ArrayList<Shard>();
+		SAMFileReader reader = new SAMFileReader(file.getFile(), indexFile);
+		List<SAMSequenceRecord> sequences = reader.getFileHeader().getSequenceDictionary().getSequences();
+		reader.close();
+		for (SAMSequenceRecord sequence : sequences) {
+			int length = sequence.getSequenceLength();
+			if (length <= 0) {
+				// the length is unknown, so the whole reference is one shard
+				shards.add(new Shard(sequence.getSequenceName(), 1, Integer.MAX_VALUE, 1));
+				continue;
+			}
+			for (int start = 1; start <= length; start += SHARD_LENGTH) {
+				// the last shard of a reference also includes the reads after its declared end
+				int end = start + SHARD_LENGTH - 1 >= length ? Integer.MAX_VALUE : start + SHARD_LENGTH - 1;
+				shards.add(new Shard(sequence.getSequenceName(), start, end, Math.min(SHARD_LENGTH, length - start + 1)));
+			}
+		}
+		// the unplaced unmapped reads
+		shards.add(new Shard(null, 0, 0, 1));
+		return shards;
+	}
+	
+	private Worker getWorker() {
+		Worker w = worker.get();
+		if (w == null) {
+			w = new Worker();
+			worker.set(w);
+			workers.add(w);
+		}
+		return w;
+	}
+	
+	
+	/** The state of a worker thread. */
+	private class Worker {
+		private SAMFileReader reader;
+		private QCModule [] modules;
+		// The reads of the current shard, merged into the annotation set of the analysis after each shard.
+		private AnnotationSet annotationSet;
+		private SAMRecord [] records;
+		
+		public Worker() {
+			reader = new SAMFileReader(file.getFile(), indexFile);
+			reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+			modules = ModuleFactory.getStandardModuleList();
+			for (int m=0; m<modules.length; m++) {
+				modules[m].reset();
+				modules[m].processFile(file);
+			}
+			annotationSet = new AnnotationSet(ShardedAnalysis.this.annotationSet.index());
+			annotationSet.setSequenceDictionary(file.getSequenceDictionary());
+			records = new SAMRecord[BamQCConfig.getInstance().batch_size];
+		}
+	}
+	
+	/** A region of a reference, or the unplaced unmapped reads if the reference is null. */
+	private class Shard implements Runnable {
+		private String reference;
+		private int start;
+		private int end;
+		private int length;
+		
+		public Shard(String reference, int start, int end, int length) {
+			this.reference = reference;
+			this.start = start;
+			this.end = end;
+			this.length = length;
+		}
+		
+		public int length() {
+			return length;
+		}
+		
+		@Override
+		public void run() throws SAMFormatException {
+			Worker w = getWorker();
+			AnnotationSet shardAnnotationSet = w.annotationSet;
+			SAMRecord [] records = w.records;
+			
+			SAMRecordIterator it;
+			if (reference == null) {
+				it = w.reader.queryUnmapped();
+				shardAnnotationSet.setRegion(1, Integer.MAX_VALUE);
+			}
+			else {
+				it = w.reader.queryOverlapping(reference, start, end == Integer.MAX_VALUE ? 0 : end);
+				shardAnnotationSet.setRegion(start, end);
+			}
+			try {
+				int count = 0;
+				while (it.hasNext()) {
+					SAMRecord record = it.next();
+					// A read overlapping more shards is only processed by the shard containing its start. 
+					// The reads starting before the shard still cover its bases.
+					if (reference != null && record.getAlignmentStart() < start) {
+						shardAnnotationSet.processOverlappingSequence(record);
+						continue;
+					}
+					if (reference != null && record.getAlignmentStart() > end) {
+						continue;
+					}
+					records[count++] = record;
+					if (count == records.length) {
+						AnalysisRunner.processBatch(shardAnnotationSet, null, records, count, NO_VIEW_MODULES, w.modules);
+						seqCount.addAndGet(count);
+						count = 0;
+					}
+				}
+				if (count > 0) {
+					AnalysisRunner.processBatch(shardAnnotationSet, null, records, count, NO_VIEW_MODULES, w.modules);
+					seqCount.addAndGet(count);
+				}
+			}
+			finally {
+				it.close();
+			}
+			annotationSet.merge(shardAnnotationSet);
+		}
+	}
+	
+}
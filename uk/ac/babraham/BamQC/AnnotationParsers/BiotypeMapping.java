@@ -83,6 +83,14 @@ public class BiotypeMapping {
 
 	}
 	
+	/**
+	 * Return a hash of the mappings, so that the annotations parsed with different mappings can be told apart.
+	 * @return the hash of the mappings
+	 */
+	public int mappingHash () {
+		return mappings.hashCode();
+	}
+	
 	public String getEffectiveBiotype (String biotype) {
 		if (mappings.containsKey(biotype)) {
 			return mappings.get(biotype);
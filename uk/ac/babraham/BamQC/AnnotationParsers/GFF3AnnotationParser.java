@@ -246,6 +246,7 @@ public class GFF3AnnotationParser extends AnnotationParser {
 							if (!groupedFeatures.containsKey(sections[2]+"_"+parents[p])) {
 								// Make a new feature to which we can add this
 								Feature feature = new Feature(sections[2],c);
+								feature.setName(parents[p]);
 								groupedFeatures.put(sections[2]+"_"+parents[p], new FeatureGroup(feature));
 							}	
 							groupedFeatures.get(sections[2]+"_"+parents[p]).addSublocation(new Location(start, end, strand));
@@ -264,6 +265,7 @@ public class GFF3AnnotationParser extends AnnotationParser {
 
 						if (! groupedFeatures.containsKey(sections[2]+"_"+keyValuePairs.get("transcript_id").get(0))) {
 							Feature feature = new Feature(sections[2],c);
+							feature.setName(keyValuePairs.get("transcript_id").get(0));
 							groupedFeatures.put(sections[2]+"_"+keyValuePairs.get("transcript_id").get(0), new FeatureGroup(feature));
 						}						
 						groupedFeatures.get(sections[2]+"_"+keyValuePairs.get("transcript_id").get(0)).addSublocation(new Location(start, end, strand));
@@ -274,6 +276,7 @@ public class GFF3AnnotationParser extends AnnotationParser {
 						if (keyValuePairs.containsKey("ID")) {
 							// This is a feature which may end up having subfeatures
 							Feature feature = new Feature(sections[2],c);
+							feature.setName(keyValuePairs.get("ID").get(0));
 							groupedFeatures.put(sections[2]+"_"+keyValuePairs.get("ID").get(0), new FeatureGroup(feature));
 						}
 						groupedFeatures.get(sections[2]+"_"+keyValuePairs.get("ID").get(0)).addSublocation(new Location(start,end,strand));
@@ -194,6 +194,10 @@ public class GTFAnnotationParser extends AnnotationParser {
 
 				if (sections[2].equals("gene")) {
 					Feature feature = new Feature(sections[2],sections[1],c);
+					String geneID = getGeneIDFromAttributes(sections[8]);
+					if (geneID != null) {
+						feature.setName(geneID);
+					}
 					feature.setLocation(new Location(start,end,strand));
 					annotationSet.addFeature(feature);
 				}
@@ -207,6 +211,7 @@ public class GTFAnnotationParser extends AnnotationParser {
 
 					// We need to get the transcript id.
 					String transcriptID = getTranscriptIDFromAttributes(sections[8]);
+					feature.setName(unquote(transcriptID));
 					groupedFeatures.put(transcriptID, transcript);
 				}
 
@@ -329,6 +334,29 @@ public class GTFAnnotationParser extends AnnotationParser {
 		throw new Exception("Coudn't find transcript_id from within "+attribString);
 
 	}
+	
+	/**
+	 * Return the gene id of a gene, without quotes.
+	 * @param attribString the attributes of the gene
+	 * @return the gene id, or null if the gene has no gene_id attribute
+	 */
+	private String getGeneIDFromAttributes (String attribString) {
+		String [] attributes = attribString.split(" *; *");
+		for (int a=0;a<attributes.length;a++) {
+			String [] keyValue = attributes[a].trim().split(" +", 2);
+			if (keyValue.length == 2 && keyValue[0].equals("gene_id")) {
+				return unquote(keyValue[1]);
+			}
+		}
+		return null;
+	}
+	
+	private String unquote (String value) {
+		if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+			return value.substring(1, value.length()-1);
+		}
+		return value;
+	}
 
 
 }
@@ -408,6 +408,11 @@ public class GenomeParser extends AnnotationParser {
 
 			feature.setLocation(new SplitLocation(nameValue[1],currentOffset));
 		}
+		
+		// name the feature by its gene
+		else if (nameValue.length == 2 && nameValue[0].equals("/gene")) {
+			feature.setName(nameValue[1].replaceAll("\"", ""));
+		}
 
 		return false;
 	}
@@ -43,6 +43,7 @@ import javax.swing.filechooser.FileFilter;
 
 import org.apache.log4j.Logger;
 
+import uk.ac.babraham.BamQC.Analysis.AnalysisQueue;
 import uk.ac.babraham.BamQC.Analysis.AnalysisRunner;
 import uk.ac.babraham.BamQC.Analysis.OfflineRunner;
 import uk.ac.babraham.BamQC.Dialogs.ProgressTextDialog;
@@ -176,6 +177,8 @@ public class BamQCApplication extends JFrame implements ProgressListener {
 		
 		File [] files = chooser.getSelectedFiles();		
 			
+		// the analyses start once they are all queued, so that the largest files start first
+		AnalysisQueue.getInstance().startBatch();
 		for (int i=0;i<files.length;i++) {
 			lastUsedDir = files[i].getParentFile();
 			SequenceFile sequenceFile;
@@ -214,6 +217,7 @@ public class BamQCApplication extends JFrame implements ProgressListener {
 				continue;
 			}
 		}
+		AnalysisQueue.getInstance().endBatch();
 		return true;
 	}
 	
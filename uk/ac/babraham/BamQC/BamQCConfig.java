@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import uk.ac.babraham.BamQC.DataTypes.Genome.IndexedFastaFile;
 import uk.ac.babraham.BamQC.Dialogs.ProgressTextDialog;
 import uk.ac.babraham.BamQC.Network.GenomeDownloader;
 import uk.ac.babraham.BamQC.Network.DownloadableGenomes.DownloadableGenomeSet;
@@ -54,6 +55,15 @@ public class BamQCConfig {
 	public String species = null;
 	public String assembly = null;
 	public int threads = 1;
+	public int inflater_threads = 0;
+	public int shard_threads = 0;
+	public boolean memory_mapped = false;
+	public int record_buffer_size = 0;
+	public int batch_size = 64;
+	public int module_threads = 0;
+	public boolean annotation_cache = true;
+	public String strandedness = "none";
+	public boolean splice_aware = false;
 	public boolean showUpdates = true;
 	public File output_dir = null;
 	public boolean do_unzip = false;
@@ -61,6 +71,8 @@ public class BamQCConfig {
 	public String sequence_format = null;
 	public File limits_file = null;
 	public File biotype_mapping_file = null;
+	public File reference_file = null;
+	public boolean reference_cache = false;
 
 	private BamQCConfig () {
 		
@@ -189,6 +201,23 @@ public class BamQCConfig {
 			}
 		}
 
+		// Reference FASTA file, for the reads without MD string
+		if (System.getProperty("bamqc.reference") != null) {
+			reference_file = new File(System.getProperty("bamqc.reference"));
+			if (!(reference_file.exists() && reference_file.canRead())) {
+				throw new IllegalArgumentException("Reference file "+reference_file+" does not exist or cannot be read");
+			}
+			File referenceIndex = IndexedFastaFile.indexFile(reference_file);
+			if (!(referenceIndex.exists() && referenceIndex.canRead())) {
+				throw new IllegalArgumentException("Reference index "+referenceIndex+" does not exist or cannot be read. It can be created with 'samtools faidx'");
+			}
+		}
+		
+		// The bases of the current reference sequence packed in memory, if the reads are sorted by coordinate
+		if (System.getProperty("bamqc.reference_cache") != null && System.getProperty("bamqc.reference_cache").equals("true")) {
+			reference_cache = true;
+		}
+		
 		
 		// Threads
 		if (System.getProperty("bamqc.threads") != null) {
@@ -198,6 +227,69 @@ public class BamQCConfig {
 			}
 		}
 		
+		// BGZF inflater threads (0 means using the standard single threaded SAM reader)
+		if (System.getProperty("bamqc.inflater_threads") != null) {
+			inflater_threads = Integer.parseInt(System.getProperty("bamqc.inflater_threads"));
+			if (inflater_threads < 0) {
+				throw new IllegalArgumentException("Number of inflater threads must be >= 0");
+			}
+		}
+		
+		// Threads processing the regions of an indexed BAM file (0 means processing each file sequentially)
+		if (System.getProperty("bamqc.shard_threads") != null) {
+			shard_threads = Integer.parseInt(System.getProperty("bamqc.shard_threads"));
+			if (shard_threads < 0) {
+				throw new IllegalArgumentException("Number of shard threads must be >= 0");
+			}
+		}
+		
+		// Memory mapped BAM files
+		if (System.getProperty("bamqc.memory_mapped") != null && System.getProperty("bamqc.memory_mapped").equals("true")) {
+			memory_mapped = true;
+		}
+		
+		// Records buffered between the thread reading the file and the modules (0 means reading the file in the analysis thread)
+		if (System.getProperty("bamqc.record_buffer_size") != null) {
+			record_buffer_size = Integer.parseInt(System.getProperty("bamqc.record_buffer_size"));
+			if (record_buffer_size < 0) {
+				throw new IllegalArgumentException("Size of the record buffer must be >= 0");
+			}
+		}
+		
+		// Records passed to the modules at once
+		if (System.getProperty("bamqc.batch_size") != null) {
+			batch_size = Integer.parseInt(System.getProperty("bamqc.batch_size"));
+			if (batch_size < 1) {
+				throw new IllegalArgumentException("Size of the record batches must be >= 1");
+			}
+		}
+		
+		// Threads running the modules (0 means running the modules in the analysis thread)
+		if (System.getProperty("bamqc.module_threads") != null) {
+			module_threads = Integer.parseInt(System.getProperty("bamqc.module_threads"));
+			if (module_threads < 0) {
+				throw new IllegalArgumentException("Number of module threads must be >= 0");
+			}
+		}
+		
+		// Compiled annotation index saved next to the annotation
+		if (System.getProperty("bamqc.annotation_cache") != null && System.getProperty("bamqc.annotation_cache").equals("false")) {
+			annotation_cache = false;
+		}
+		
+		// Strand of the reads compared to the strand of the features in the feature read counts
+		if (System.getProperty("bamqc.strandedness") != null) {
+			strandedness = System.getProperty("bamqc.strandedness");
+			if (!(strandedness.equals("none") || strandedness.equals("forward") || strandedness.equals("reverse"))) {
+				throw new IllegalArgumentException("Strandedness must be none, forward or reverse");
+			}
+		}
+		
+		// Features overlapped by the aligned blocks of the reads, rather than by their whole span
+		if (System.getProperty("bamqc.splice_aware") != null && System.getProperty("bamqc.splice_aware").equals("true")) {
+			splice_aware = true;
+		}
+		
 		// Quiet
 		if (System.getProperty("bamqc.quiet") != null && System.getProperty("bamqc.quiet").equals("true")) {
 			quiet = true;
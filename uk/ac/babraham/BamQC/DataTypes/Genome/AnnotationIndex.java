@@ -0,0 +1,426 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+
+/**
+ * The features of a parsed annotation, indexed for the overlap queries. An index is 
+ * not modified after its creation, so the same index can be shared by the analyses 
+ * of several files, also at the same time. Each analysis counts its reads in its 
+ * own AnnotationSet created with AnnotationSet(AnnotationIndex).
+ * The features of all the types and subclasses are kept in a single interval index 
+ * for each chromosome, in which each feature is tagged with the id of its subclass. 
+ * The features are stored in primitive columns (start, end, strand, subclass, name, sub-locations), 
+ * so only one Feature object per type is kept, for AnnotationSet.getAllFeatures(). 
+ * So a read is searched once, however many feature types the annotation has.
+ * The features are also numbered from 0 to featureCount()-1, chromosome after chromosome, 
+ * and the reads of each feature are counted by this number.
+ */
+public final class AnnotationIndex {
+
+	private final File file;
+	
+	private final HashMap<String, FeatureClass> features;
+	
+	private final Feature [] allFeatures;
+	
+	// All the subclasses, with their types and names, by id.
+	private final FeatureSubclass [] subclasses;
+	private final String [] subclassTypes;
+	private final String [] subclassNames;
+	
+	// The features of all the subclasses, by chromosome name.
+	private final HashMap<String, ChromosomeFeatures> chromosomeFeatures;
+	
+	// The chromosomes with features, in order of feature number.
+	private final String [] featureChromosomeNames;
+	private final ChromosomeFeatures [] featureChromosomes;
+	private final int featureCount;
+	
+	// The chromosomes of the annotation, with their lengths.
+	private final String [] chromosomeNames;
+	private final int [] chromosomeLengths;
+	
+	// The annotation chromosomes by name and by normalised name (without "chr" prefix, upper case, MT for M).
+	private HashMap<String, String> chromosomeAliases;
+	
+	
+	/**
+	 * Index the features of an annotation set. 
+	 * @param file the annotation file
+	 * @param features the feature classes by type, with their subclasses
+	 * @param allFeatures the features returned by AnnotationSet.getAllFeatures()
+	 * @param featureColumns the features of each chromosome, by chromosome name
+	 * @param chromosomes the chromosomes of the annotation
+	 */
+	AnnotationIndex(File file, HashMap<String, FeatureClass> features, Feature [] allFeatures, 
+			HashMap<String, FeatureColumns> featureColumns, Chromosome [] chromosomes) {
+		this(file, features, allFeatures, sortFeatures(featureColumns), chromosomeNames(chromosomes), chromosomeLengths(chromosomes));
+	}
+	
+	private static HashMap<String, ChromosomeFeatures> sortFeatures(HashMap<String, FeatureColumns> featureColumns) {
+		HashMap<String, ChromosomeFeatures> chromosomeFeatures = new HashMap<String, ChromosomeFeatures>();
+		for(Entry<String, FeatureColumns> entry : featureColumns.entrySet()) {
+			chromosomeFeatures.put(entry.getKey(), entry.getValue().toChromosomeFeatures());
+		}
+		return chromosomeFeatures;
+	}
+	
+	private static String [] chromosomeNames(Chromosome [] chromosomes) {
+		String [] chromosomeNames = new String[chromosomes.length];
+		for(int i=0; i<chromosomes.length; i++) {
+			chromosomeNames[i] = chromosomes[i].name();
+		}
+		return chromosomeNames;
+	}
+	
+	private static int [] chromosomeLengths(Chromosome [] chromosomes) {
+		int [] chromosomeLengths = new int[chromosomes.length];
+		for(int i=0; i<chromosomes.length; i++) {
+			chromosomeLengths[i] = chromosomes[i].length();
+		}
+		return chromosomeLengths;
+	}
+	
+	/**
+	 * Creates an index from its parts, which are sorted or read from an AnnotationIndexFile.
+	 * @param file the annotation file
+	 * @param features the feature classes by type, with their indexed subclasses
+	 * @param allFeatures the features returned by AnnotationSet.getAllFeatures()
+	 * @param chromosomeFeatures the features of each chromosome
+	 * @param chromosomeNames the chromosomes of the annotation
+	 * @param chromosomeLengths the lengths of the chromosomes
+	 */
+	AnnotationIndex(File file, HashMap<String, FeatureClass> features, Feature [] allFeatures, 
+			HashMap<String, ChromosomeFeatures> chromosomeFeatures, String [] chromosomeNames, int [] chromosomeLengths) {
+		this.file = file;
+		this.features = features;
+		this.allFeatures = allFeatures;
+		this.chromosomeFeatures = chromosomeFeatures;
+		this.chromosomeNames = chromosomeNames;
+		this.chromosomeLengths = chromosomeLengths;
+		
+		int subclassNumber = 0;
+		for(FeatureClass featureClass : features.values()) {
+			subclassNumber += featureClass.getSubclassNames().length;
+		}
+		subclasses = new FeatureSubclass[subclassNumber];
+		subclassTypes = new String[subclassNumber];
+		subclassNames = new String[subclassNumber];
+		for(Entry<String, FeatureClass> entry : features.entrySet()) {
+			for(String name : entry.getValue().getSubclassNames()) {
+				FeatureSubclass subclass = entry.getValue().getSubclassForName(name);
+				subclasses[subclass.id()] = subclass;
+				subclassTypes[subclass.id()] = entry.getKey();
+				subclassNames[subclass.id()] = name;
+			}
+		}
+		
+		// number the features by chromosome name, so that the numbers do not depend on the hash order
+		featureChromosomeNames = chromosomeFeatures.keySet().toArray(new String[0]);
+		Arrays.sort(featureChromosomeNames);
+		featureChromosomes = new ChromosomeFeatures[featureChromosomeNames.length];
+		int firstFeature = 0;
+		for(int i=0; i<featureChromosomeNames.length; i++) {
+			featureChromosomes[i] = chromosomeFeatures.get(featureChromosomeNames[i]);
+			featureChromosomes[i].firstFeature = firstFeature;
+			firstFeature += featureChromosomes[i].intervals.size();
+		}
+		featureCount = firstFeature;
+		
+		indexChromosomeAliases();
+	}
+	
+	private void indexChromosomeAliases() {
+		chromosomeAliases = new HashMap<String, String>();
+		List<String> names = new ArrayList<String>(Arrays.asList(chromosomeNames));
+		names.addAll(chromosomeFeatures.keySet());
+		// the exact names come first, so that they are preferred to the aliases
+		for(String name : names) {
+			chromosomeAliases.put(name, name);
+		}
+		for(String name : names) {
+			if (!chromosomeAliases.containsKey(normaliseChromosomeName(name))) {
+				chromosomeAliases.put(normaliseChromosomeName(name), name);
+			}
+		}
+	}
+	
+	private static String normaliseChromosomeName(String name) {
+		if (name.length() > 3 && name.regionMatches(true, 0, "chr", 0, 3)) {
+			name = name.substring(3);
+		}
+		name = name.toUpperCase(Locale.ENGLISH);
+		if (name.equals("M")) {
+			return "MT";
+		}
+		return name;
+	}
+	
+	/**
+	 * Return the annotation chromosome of a reference of the reads. The names are matched 
+	 * exactly, or else ignoring a "chr" prefix and the case, with M and MT being the same.
+	 * @param referenceName the name of a reference in the BAM header
+	 * @return the name of the annotation chromosome, or null if the annotation does not have it
+	 */
+	String annotationChromosomeName(String referenceName) {
+		String name = chromosomeAliases.get(referenceName);
+		if (name == null) {
+			name = chromosomeAliases.get(normaliseChromosomeName(referenceName));
+		}
+		return name;
+	}
+	
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public boolean hasFeatures () {
+		return !features.isEmpty();
+	}
+	
+	public int subclassCount() {
+		return subclasses.length;
+	}
+	
+	/**
+	 * Return the number of features, which are numbered from 0 to featureCount()-1.
+	 */
+	public int featureCount() {
+		return featureCount;
+	}
+	
+	/**
+	 * Return the name of a feature, such as its gene or transcript id.
+	 * @param feature the number of the feature
+	 */
+	public String featureName(int feature) {
+		int c = featureChromosome(feature);
+		return featureChromosomes[c].name(feature - featureChromosomes[c].firstFeature);
+	}
+	
+	/**
+	 * Return the type of a feature.
+	 * @param feature the number of the feature
+	 */
+	public String featureType(int feature) {
+		int c = featureChromosome(feature);
+		return subclassTypes[featureChromosomes[c].subclassIds[feature - featureChromosomes[c].firstFeature]];
+	}
+	
+	/**
+	 * Return the subclass (e.g. the biotype) of a feature.
+	 * @param feature the number of the feature
+	 */
+	public String featureSubclass(int feature) {
+		int c = featureChromosome(feature);
+		return subclassNames[featureChromosomes[c].subclassIds[feature - featureChromosomes[c].firstFeature]];
+	}
+	
+	/**
+	 * Return the chromosome name of a feature.
+	 * @param feature the number of the feature
+	 */
+	public String featureChromosomeName(int feature) {
+		return featureChromosomeNames[featureChromosome(feature)];
+	}
+	
+	/**
+	 * Return the location of a feature. For a split feature, this spans its sub-locations.
+	 * @param feature the number of the feature
+	 */
+	public Location featureLocation(int feature) {
+		ChromosomeFeatures cf = featureChromosomes[featureChromosome(feature)];
+		int i = feature - cf.firstFeature;
+		return new Location(cf.intervals.start(i), cf.intervals.end(i), cf.strands[i]);
+	}
+	
+	/**
+	 * Return the position in featureChromosomes of the chromosome of a feature.
+	 */
+	private int featureChromosome(int feature) {
+		if (feature < 0 || feature >= featureCount) {
+			throw new IndexOutOfBoundsException("No feature number " + feature);
+		}
+		int low = 0;
+		int high = featureChromosomes.length - 1;
+		// find the last chromosome whose first feature is not after the feature
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (featureChromosomes[middle].firstFeature <= feature) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+	
+	HashMap<String, FeatureClass> features() {
+		return features;
+	}
+	
+	Feature [] allFeatures() {
+		return allFeatures;
+	}
+	
+	String [] chromosomeNames() {
+		return chromosomeNames;
+	}
+	
+	int [] chromosomeLengths() {
+		return chromosomeLengths;
+	}
+	
+	/**
+	 * Return the features of a chromosome, or null if the chromosome has no features.
+	 */
+	ChromosomeFeatures chromosomeFeatures(String chromosomeName) {
+		return chromosomeFeatures.get(chromosomeName);
+	}
+	
+	/**
+	 * Return the features of all the chromosomes, by chromosome name.
+	 */
+	HashMap<String, ChromosomeFeatures> chromosomeFeatures() {
+		return chromosomeFeatures;
+	}
+	
+	
+	/**
+	 * The features of a chromosome, stored in columns sorted by start. The features of all the 
+	 * subclasses are in a single interval index, and each of them is tagged with its subclass id. 
+	 * The sub-locations of the i-th feature (e.g. the exons of a transcript) are at the positions 
+	 * from subLocationOffsets[i] to subLocationOffsets[i+1] of the sub-location arrays, and the 
+ * names are addressed in the same way in a block of UTF-8 bytes, as they are only read for the reports.
+	 * For the splice aware overlaps, the exons of all the features (the sub-locations of the split 
+	 * features, and the whole location of the others) are flattened in a second interval index, 
+	 * which is only created when it is first used.
+	 */
+	static final class ChromosomeFeatures {
+		
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+		
+		final FeatureIntervals intervals;
+		// The subclass id of each feature, in order of start.
+		final short [] subclassIds;
+		// The strand of each feature (Location.FORWARD, REVERSE or UNKNOWN), in order of start.
+		final byte [] strands;
+		// The UTF-8 name of the i-th feature (in order of start) is at the positions from nameOffsets[i] to nameOffsets[i+1].
+		final int [] nameOffsets;
+		final byte [] nameBytes;
+		final int [] subLocationOffsets;
+		final int [] subLocationStarts;
+		final int [] subLocationEnds;
+		
+		// The number of the first feature of the chromosome. This is assigned by the AnnotationIndex.
+		int firstFeature = 0;
+		
+		// The exons of all the features, and the position of the feature of each exon in order of start.
+		private volatile FeatureIntervals exons = null;
+		private int [] exonFeatures = null;
+		
+		ChromosomeFeatures(FeatureIntervals intervals, short [] subclassIds, byte [] strands, int [] nameOffsets, byte [] nameBytes,
+				int [] subLocationOffsets, int [] subLocationStarts, int [] subLocationEnds) {
+			this.intervals = intervals;
+			this.subclassIds = subclassIds;
+			this.strands = strands;
+			this.nameOffsets = nameOffsets;
+			this.nameBytes = nameBytes;
+			this.subLocationOffsets = subLocationOffsets;
+			this.subLocationStarts = subLocationStarts;
+			this.subLocationEnds = subLocationEnds;
+		}
+		
+		/**
+		 * Return the name of a feature.
+		 * @param i the position of the feature in order of start
+		 */
+		String name(int i) {
+			return new String(nameBytes, nameOffsets[i], nameOffsets[i+1] - nameOffsets[i], UTF8);
+		}
+		
+		/**
+		 * Return the index of the exons of the features. This is created the first time, 
+		 * and it can then be shared by several threads.
+		 */
+		FeatureIntervals exons() {
+			FeatureIntervals e = exons;
+			if (e == null) {
+				e = indexExons();
+			}
+			return e;
+		}
+		
+		/**
+		 * Return the position (in order of start) of the feature of an exon.
+		 * @param exon the position of the exon in exons()
+		 */
+		int exonFeature(int exon) {
+			return exonFeatures[exon];
+		}
+		
+		private synchronized FeatureIntervals indexExons() {
+			if (exons != null) {
+				return exons;
+			}
+			int size = intervals.size();
+			int exonNumber = 0;
+			for (int i=0; i<size; i++) {
+				exonNumber += Math.max(1, subLocationOffsets[i+1] - subLocationOffsets[i]);
+			}
+			int [] exonStarts = new int[exonNumber];
+			int [] exonEnds = new int[exonNumber];
+			int [] features = new int[exonNumber];
+			int e = 0;
+			for (int i=0; i<size; i++) {
+				if (subLocationOffsets[i+1] == subLocationOffsets[i]) {
+					exonStarts[e] = intervals.start(i);
+					exonEnds[e] = intervals.end(i);
+					features[e++] = i;
+				}
+				for (int s=subLocationOffsets[i]; s<subLocationOffsets[i+1]; s++) {
+					exonStarts[e] = subLocationStarts[s];
+					exonEnds[e] = subLocationEnds[s];
+					features[e++] = i;
+				}
+			}
+			FeatureIntervals sortedExons = new FeatureIntervals(exonStarts, exonEnds);
+			exonFeatures = new int[exonNumber];
+			for (int x=0; x<exonNumber; x++) {
+				exonFeatures[x] = features[sortedExons.id(x)];
+			}
+			// the exon features are published by the volatile write
+			exons = sortedExons;
+			return sortedExons;
+		}
+	}
+	
+}
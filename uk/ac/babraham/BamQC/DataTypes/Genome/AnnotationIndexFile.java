@@ -0,0 +1,351 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+/**
+ * A compiled AnnotationIndex saved in a binary file, so that an annotation is only parsed once. 
+ * The file holds the chromosome table, the feature types with their subclasses, and the 
+ * feature columns of each chromosome. It is memory-mapped when it is read, and the interval 
+ * columns are copied in bulk.
+ * The file is stored next to the annotation file, or in the genome directory, and it is ignored 
+ * if the annotation (its size, modification time and a sample of its content) or the biotype 
+ * mapping have changed since it was written.
+ */
+public final class AnnotationIndexFile {
+
+	/** The extension of the index files. */
+	public static final String EXTENSION = ".bqidx";
+	
+	// The name of the index file in a genome directory.
+	private static final String GENOME_INDEX_NAME = "annotation" + EXTENSION;
+	
+	private static final int MAGIC = 0x42514958;  // "BQIX"
+	private static final int VERSION = 4;
+	
+	// The bytes read from the beginning and the end of each annotation file for its hash.
+	private static final int SAMPLE_SIZE = 1 << 20;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	
+	private AnnotationIndexFile() { }
+	
+	/**
+	 * Return the index file of an annotation.
+	 * @param source an annotation file or a genome directory
+	 * @return the index file
+	 */
+	public static File indexFile(File source) {
+		if (source.isDirectory()) {
+			return new File(source, GENOME_INDEX_NAME);
+		}
+		return new File(source.getPath() + EXTENSION);
+	}
+	
+	/**
+	 * Read the index of an annotation.
+	 * @param source an annotation file or a genome directory
+	 * @param biotypeMapping the hash of the biotype mapping in use
+	 * @return the index, or null if there is no index file or if it is out of date
+	 * @throws IOException if the index file could not be read
+	 */
+	public static AnnotationIndex read(File source, int biotypeMapping) throws IOException {
+		File indexFile = indexFile(source);
+		if (!indexFile.isFile()) {
+			return null;
+		}
+		long [] fingerprint = fingerprint(source);
+		
+		ByteBuffer buffer;
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			file.close();
+		}
+		
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			for (int i=0; i<fingerprint.length; i++) {
+				if (buffer.getLong() != fingerprint[i]) {
+					return null;
+				}
+			}
+			if (buffer.getInt() != biotypeMapping) {
+				return null;
+			}
+			
+			int chromosomeNumber = buffer.getInt();
+			String [] chromosomeNames = new String[chromosomeNumber];
+			int [] chromosomeLengths = new int[chromosomeNumber];
+			for (int i=0; i<chromosomeNumber; i++) {
+				chromosomeNames[i] = readString(buffer);
+				chromosomeLengths[i] = buffer.getInt();
+			}
+			
+			HashMap<String, FeatureClass> features = new HashMap<String, FeatureClass>();
+			int typeNumber = buffer.getInt();
+			for (int i=0; i<typeNumber; i++) {
+				FeatureClass featureClass = new FeatureClass();
+				features.put(readString(buffer), featureClass);
+				int subclassNumber = buffer.getInt();
+				for (int s=0; s<subclassNumber; s++) {
+					String name = readString(buffer);
+					featureClass.addSubclass(name, new FeatureSubclass(buffer.getInt()));
+				}
+			}
+			
+			ChromosomeFactory factory = new ChromosomeFactory();
+			Feature [] allFeatures = new Feature[buffer.getInt()];
+			for (int i=0; i<allFeatures.length; i++) {
+				String type = readString(buffer);
+				String subclass = readString(buffer);
+				allFeatures[i] = new Feature(type, subclass, factory.getChromosome(readString(buffer)));
+				if (buffer.get() != 0) {
+					allFeatures[i].setLocation(new Location(buffer.getLong()));
+				}
+			}
+			
+			HashMap<String, AnnotationIndex.ChromosomeFeatures> chromosomeFeatures = new HashMap<String, AnnotationIndex.ChromosomeFeatures>();
+			int chromosomeFeaturesNumber = buffer.getInt();
+			for (int i=0; i<chromosomeFeaturesNumber; i++) {
+				String name = readString(buffer);
+				int size = buffer.getInt();
+				int [] starts = readInts(buffer, size);
+				int [] ends = readInts(buffer, size);
+				short [] subclassIds = readShorts(buffer, size);
+				byte [] strands = new byte[size];
+				buffer.get(strands);
+				int [] nameOffsets = readInts(buffer, size + 1);
+				byte [] nameBytes = new byte[nameOffsets[size]];
+				buffer.get(nameBytes);
+				int [] subLocationOffsets = readInts(buffer, size + 1);
+				int subLocationNumber = subLocationOffsets[size];
+				int [] subLocationStarts = readInts(buffer, subLocationNumber);
+				int [] subLocationEnds = readInts(buffer, subLocationNumber);
+				chromosomeFeatures.put(name, new AnnotationIndex.ChromosomeFeatures(FeatureIntervals.sortedIntervals(starts, ends), 
+						subclassIds, strands, nameOffsets, nameBytes, subLocationOffsets, subLocationStarts, subLocationEnds));
+			}
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("The annotation index " + indexFile + " is truncated");
+			}
+			
+			return new AnnotationIndex(source, features, allFeatures, chromosomeFeatures, chromosomeNames, chromosomeLengths);
+		}
+		catch (RuntimeException e) {
+			throw new IOException("The annotation index " + indexFile + " is corrupted", e);
+		}
+	}
+	
+	/**
+	 * Write the index of an annotation. The index is written to a temporary file which then 
+	 * replaces the index file, so that a concurrent run never reads a partial index.
+	 * @param index the index of the annotation
+	 * @param source the annotation file or the genome directory
+	 * @param biotypeMapping the hash of the biotype mapping in use
+	 * @throws IOException if the index file could not be written
+	 */
+	public static void write(AnnotationIndex index, File source, int biotypeMapping) throws IOException {
+		File indexFile = indexFile(source);
+		File tempFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (long value : fingerprint(source)) {
+				out.writeLong(value);
+			}
+			out.writeInt(biotypeMapping);
+			
+			String [] chromosomeNames = index.chromosomeNames();
+			int [] chromosomeLengths = index.chromosomeLengths();
+			out.writeInt(chromosomeNames.length);
+			for (int i=0; i<chromosomeNames.length; i++) {
+				writeString(out, chromosomeNames[i]);
+				out.writeInt(chromosomeLengths[i]);
+			}
+			
+			out.writeInt(index.features().size());
+			for (Entry<String, FeatureClass> entry : index.features().entrySet()) {
+				writeString(out, entry.getKey());
+				String [] subclassNames = entry.getValue().getSubclassNames();
+				out.writeInt(subclassNames.length);
+				for (String name : subclassNames) {
+					writeString(out, name);
+					out.writeInt(entry.getValue().getSubclassForName(name).id());
+				}
+			}
+			
+			Feature [] allFeatures = index.allFeatures();
+			out.writeInt(allFeatures.length);
+			for (Feature feature : allFeatures) {
+				writeString(out, feature.type());
+				writeString(out, feature.subclass());
+				writeString(out, feature.chr().name());
+				out.writeByte(feature.location() == null ? 0 : 1);
+				if (feature.location() != null) {
+					out.writeLong(feature.location().packedPosition());
+				}
+			}
+			
+			out.writeInt(index.chromosomeFeatures().size());
+			for (Entry<String, AnnotationIndex.ChromosomeFeatures> entry : index.chromosomeFeatures().entrySet()) {
+				AnnotationIndex.ChromosomeFeatures columns = entry.getValue();
+				FeatureIntervals intervals = columns.intervals;
+				writeString(out, entry.getKey());
+				out.writeInt(intervals.size());
+				for (int i=0; i<intervals.size(); i++) {
+					out.writeInt(intervals.start(i));
+				}
+				for (int i=0; i<intervals.size(); i++) {
+					out.writeInt(intervals.end(i));
+				}
+				for (short id : columns.subclassIds) {
+					out.writeShort(id);
+				}
+				out.write(columns.strands);
+				writeInts(out, columns.nameOffsets);
+				out.write(columns.nameBytes);
+				writeInts(out, columns.subLocationOffsets);
+				writeInts(out, columns.subLocationStarts);
+				writeInts(out, columns.subLocationEnds);
+			}
+			out.writeInt(MAGIC);
+		}
+		catch (IOException e) {
+			out.close();
+			tempFile.delete();
+			throw e;
+		}
+		out.close();
+		
+		// the index file must be deleted first on some platforms
+		if (!tempFile.renameTo(indexFile) && !(indexFile.delete() && tempFile.renameTo(indexFile))) {
+			tempFile.delete();
+			throw new IOException("Couldn't write the annotation index " + indexFile);
+		}
+	}
+	
+	/**
+	 * Compute the size, the last modification time and a hash of an annotation. The hash 
+	 * covers the beginning and the end of each file, so that it is fast on large annotations.
+	 * @param source an annotation file or a genome directory
+	 * @return the size, the modification time and the hash
+	 */
+	private static long [] fingerprint(File source) throws IOException {
+		File [] files;
+		if (source.isDirectory()) {
+			files = source.listFiles();
+			Arrays.sort(files);
+		}
+		else {
+			files = new File [] {source};
+		}
+		long length = 0;
+		long modified = 0;
+		CRC32 crc = new CRC32();
+		byte [] sample = new byte[SAMPLE_SIZE];
+		for (File file : files) {
+			if (!file.isFile() || file.getName().endsWith(EXTENSION) || file.getName().startsWith(GENOME_INDEX_NAME)) {
+				continue;
+			}
+			length += file.length();
+			modified = Math.max(modified, file.lastModified());
+			crc.update(file.getName().getBytes(UTF8));
+			FileInputStream in = new FileInputStream(file);
+			try {
+				crc.update(sample, 0, readFully(in, sample));
+				// skip to the last bytes, unless they follow the first ones
+				long skip = file.length() - 2L * SAMPLE_SIZE;
+				while (skip > 0) {
+					long skipped = in.skip(skip);
+					if (skipped <= 0) break;
+					skip -= skipped;
+				}
+				crc.update(sample, 0, readFully(in, sample));
+			}
+			finally {
+				in.close();
+			}
+		}
+		return new long [] {length, modified, crc.getValue()};
+	}
+	
+	private static int readFully(FileInputStream in, byte [] buffer) throws IOException {
+		int count = 0;
+		int read;
+		while (count < buffer.length && (read = in.read(buffer, count, buffer.length - count)) > 0) {
+			count += read;
+		}
+		return count;
+	}
+	
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte [] bytes = string.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(ByteBuffer buffer) {
+		byte [] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	private static void writeInts(DataOutputStream out, int [] values) throws IOException {
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+	
+	private static short [] readShorts(ByteBuffer buffer, int size) {
+		short [] values = new short[size];
+		buffer.asShortBuffer().get(values);
+		buffer.position(buffer.position() + size * 2);
+		return values;
+	}
+	
+	private static int [] readInts(ByteBuffer buffer, int size) {
+		int [] values = new int[size];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + size * 4);
+		return values;
+	}
+	
+}
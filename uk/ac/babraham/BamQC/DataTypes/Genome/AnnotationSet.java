@@ -26,14 +26,16 @@
 package uk.ac.babraham.BamQC.DataTypes.Genome;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 
+import uk.ac.babraham.BamQC.BamQCConfig;
 import uk.ac.babraham.BamQC.Modules.ModuleConfig;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
 
 /**
  * 
@@ -52,12 +54,74 @@ public class AnnotationSet {
 	
 	private HashSet<Feature> allFeatures = new HashSet<Feature>();
 	
+	// The features of each chromosome, by chromosome name, until they are indexed.
+	private HashMap<String, FeatureColumns> featureColumns = new HashMap<String, FeatureColumns>();
+	private int subclassNumber = 0;
+	
+	// The indexed features. Once this is created, no features can be added.
+	private AnnotationIndex index = null;
+	
+	// The number of reads overlapping each feature subclass.
+	private FeatureCounter featureCounter = null;
+	
+	// The SAM flags of the read strand.
+	private static final int READ_PAIRED_FLAG = 0x1;
+	private static final int READ_NEGATIVE_STRAND_FLAG = 0x10;
+	private static final int SECOND_OF_PAIR_FLAG = 0x80;
+	
+	// The strand of the features counted for a forward read (or the first read of a pair), 
+	// or Location.UNKNOWN if the reads of each feature are counted on both strands.
+	private final int strandedness = strandedness(BamQCConfig.getInstance().strandedness);
+	
+	// If true, the features are overlapped by the aligned blocks of the reads (split at the 
+	// skipped regions and the deletions of the CIGAR, as for the depth of coverage) instead 
+	// of their whole span, and only within their exons.
+	private final boolean spliceAware = BamQCConfig.getInstance().splice_aware;
+	
 	private final int cacheCapacity = ModuleConfig.getParam("AnnotationSet_annotation_cache_capacity", "ignore").intValue();
-	private List<ShortRead> readCache = new ArrayList<ShortRead>(cacheCapacity);
+	private ReadCache readCache = null;
+	
+	// If the reads are sorted by coordinate, they are not cached. This is reset if a read is out of order.
+	private boolean coordinateSorted = false;
+	private SweepLineCounter sweepLineCounter = null;
+	
+	// The references of the reads, by reference id. A reference is matched to the annotation 
+	// chromosomes once, when it is first seen, and the reads are then processed by id.
+	private HashMap<String, Integer> referenceIds = new HashMap<String, Integer>();
+	// The names of the chromosomes of the references, which are the annotation names if the annotation has them.
+	private String [] referenceChromosomeNames = new String[16];
+	// The chromosomes of the references. These are created by the first read on them.
+	private Chromosome [] referenceChromosomes = new Chromosome[16];
+	// The annotation features of the references, or null if the annotation has no features on them.
+	private AnnotationIndex.ChromosomeFeatures [] referenceFeatures = new AnnotationIndex.ChromosomeFeatures[16];
+	
+	// The region of the reads of a partition of an analysis. The chromosomes of a partition 
+	// are not listed by the factory, as they are merged into another set after each region.
+	private boolean partition = false;
+	private int regionStart = 1;
+	private int regionEnd = Integer.MAX_VALUE;
 
 	
 	public AnnotationSet() { }
 	
+	/**
+	 * Creates an annotation set for a new analysis. The features are shared with 
+	 * the index, whereas the chromosomes and the read counts belong to this set.
+	 * @param index the features of a parsed annotation
+	 */
+	public AnnotationSet(AnnotationIndex index) {
+		this.index = index;
+		featureColumns = null;
+		file = index.getFile();
+		features = index.features();
+		featureCounter = new FeatureCounter(index, spliceAware);
+		String [] chromosomeNames = index.chromosomeNames();
+		int [] chromosomeLengths = index.chromosomeLengths();
+		for(int i=0; i<chromosomeNames.length; i++) {
+			factory.getChromosome(chromosomeNames[i]).setLength(chromosomeLengths[i]);
+		}
+	}
+	
 	
 	public File getFile() {
 		return file;
@@ -72,19 +136,50 @@ public class AnnotationSet {
 	}
 	
 	public void addFeature (Feature f) {
+		if (index != null) throw new IllegalStateException("Can't add more features after sending data");
 
-		if (!features.containsKey(f.type())) {
-			features.put(f.type(), new FeatureClass(this));
+		FeatureClass featureClass = features.get(f.type());
+		if (featureClass == null) {
+			featureClass = new FeatureClass();
+			features.put(f.type(), featureClass);
 			allFeatures.add(f);
-		}	
-		features.get(f.type()).addFeature(f);
+		}
+		FeatureSubclass subclass = featureClass.getSubclassForName(f.subclass());
+		if (subclass == null) {
+			subclass = new FeatureSubclass(subclassNumber++);
+			featureClass.addSubclass(f.subclass(), subclass);
+		}
+		// only the location of the feature is kept
+		FeatureColumns columns = featureColumns.get(f.chr().name());
+		if (columns == null) {
+			columns = new FeatureColumns();
+			featureColumns.put(f.chr().name(), columns);
+		}
+		columns.add(f.location(), subclass.id(), f.name());
 	}
 	
 	
 	public Feature[] getAllFeatures() {
+		if (index != null) {
+			return index.allFeatures().clone();
+		}
 		return allFeatures.toArray(new Feature[0]);
 	}
 	
+	/**
+	 * Index the features of this annotation set, so that they can be shared by 
+	 * other annotation sets. No features can be added after this.
+	 * @return the index of the features
+	 */
+	public synchronized AnnotationIndex index() {
+		if (index == null) {
+			index = new AnnotationIndex(file, features, allFeatures.toArray(new Feature[0]), featureColumns, factory.getAllChromosomes());
+			featureColumns = null;
+			featureCounter = new FeatureCounter(index, spliceAware);
+		}
+		return index;
+	}
+	
 	
 	
 	public boolean hasFeatures () {
@@ -101,50 +196,281 @@ public class AnnotationSet {
 		return features.get(type);
 	}
 	
+	/**
+	 * Return the number of reads overlapping a feature.
+	 * @param feature the number of the feature in the AnnotationIndex
+	 * @return the number of reads
+	 */
+	public int getFeatureReadCount (int feature) {
+		if (featureCounter == null) {
+			return 0;
+		}
+		return featureCounter.featureCount(feature);
+	}
+	
+	/**
+	 * Return the number of reads overlapping a feature of a subclass.
+	 * @param subclass a subclass of this annotation set
+	 * @return the number of reads
+	 */
+	public int getFeatureCount (FeatureSubclass subclass) {
+		if (featureCounter == null) {
+			return 0;
+		}
+		return featureCounter.count(subclass.id());
+	}
+	
 	
 	public void processSequenceNoCache(SAMRecord r) {
-		// implementation using ShortRead
-		processCachedSequence(new ShortRead(r.getReferenceName(), r.getAlignmentStart(), r.getAlignmentEnd()));
+		int referenceId = readCache().referenceId(r);
+		if (referenceId >= 0) {
+			int blockCount = readCache.alignmentBlocks(r);
+			referenceChromosome(referenceId).processSequence(r.getAlignmentStart(), r.getAlignmentEnd(), readCache.readBlockStarts(), readCache.readBlockEnds(), 0, blockCount);
+			if (referenceFeatures[referenceId] != null) {
+				if (spliceAware && blockCount > 1) {
+					featureCounter.processBlocks(referenceFeatures[referenceId], readCache.readBlockStarts(), readCache.readBlockEnds(), 0, blockCount, readStrand(r.getFlags()));
+				}
+				else {
+					featureCounter.processSequence(referenceFeatures[referenceId], r.getAlignmentStart(), r.getAlignmentEnd(), readStrand(r.getFlags()));
+				}
+			}
+		}
 	}
 	
+	private static int strandedness(String strandedness) {
+		if (strandedness.equals("forward")) {
+			return Location.FORWARD;
+		}
+		if (strandedness.equals("reverse")) {
+			return Location.REVERSE;
+		}
+		return Location.UNKNOWN;
+	}
+	
+	/**
+	 * Return the strand of the features on which a read is counted. The second read of a pair 
+	 * is on the opposite strand of the fragment.
+	 * @param flags the SAM flags of the read
+	 * @return the strand, or Location.UNKNOWN if the reads are counted on both strands
+	 */
+	int readStrand(int flags) {
+		if (strandedness == Location.UNKNOWN) {
+			return Location.UNKNOWN;
+		}
+		boolean reverse = (flags & READ_NEGATIVE_STRAND_FLAG) != 0;
+		if ((flags & (READ_PAIRED_FLAG | SECOND_OF_PAIR_FLAG)) == (READ_PAIRED_FLAG | SECOND_OF_PAIR_FLAG)) {
+			reverse = !reverse;
+		}
+		return reverse ? -strandedness : strandedness;
+	}
+	
+	/**
+	 * Match the references of the reads to the annotation chromosomes before the reads are processed.
+	 * @param dictionary the sequence dictionary of the reads
+	 */
+	public synchronized void setSequenceDictionary(SAMSequenceDictionary dictionary) {
+		for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+			referenceId(sequence.getSequenceName());
+		}
+	}
+	
+	/**
+	 * Return the id of a reference of the reads, matching the reference to the annotation 
+	 * chromosomes the first time it is seen. A "chr" prefix and the case are ignored if the 
+	 * annotation does not have the exact name.
+	 * @param referenceName the name of the reference
+	 * @return the reference id
+	 */
+	synchronized int referenceId(String referenceName) {
+		Integer id = referenceIds.get(referenceName);
+		if (id != null) {
+			return id;
+		}
+		if (index == null) {
+			index();
+		}
+		id = referenceIds.size();
+		referenceIds.put(referenceName, id);
+		if (id == referenceChromosomeNames.length) {
+			referenceChromosomeNames = Arrays.copyOf(referenceChromosomeNames, id * 2);
+			referenceChromosomes = Arrays.copyOf(referenceChromosomes, id * 2);
+			referenceFeatures = Arrays.copyOf(referenceFeatures, id * 2);
+		}
+		String annotationName = index.annotationChromosomeName(referenceName);
+		if (annotationName != null) {
+			referenceChromosomeNames[id] = annotationName;
+			referenceFeatures[id] = index.chromosomeFeatures(annotationName);
+		}
+		else {
+			referenceChromosomeNames[id] = referenceName;
+		}
+		return id;
+	}
+	
+	private Chromosome referenceChromosome(int referenceId) {
+		Chromosome c = referenceChromosomes[referenceId];
+		if (c == null) {
+			if (partition) {
+				c = referenceChromosomes[referenceId] = new Chromosome(referenceChromosomeNames[referenceId]);
+				c.setCoverageRegion(regionStart, regionEnd);
+			}
+			else {
+				c = referenceChromosomes[referenceId] = factory.getChromosome(referenceChromosomeNames[referenceId]);
+			}
+		}
+		return c;
+	}
+	
+	/**
+	 * Use this set for the reads of a region of a reference, which are then merged into the 
+	 * set of the analysis by merge(). The reads must be sorted by coordinate. Each region 
+	 * has its own sweep line and the depth of coverage is restricted to the region, so 
+	 * the regions can be processed in parallel without losing the base resolution. 
+	 * @param regionStart the first base of the region
+	 * @param regionEnd the last base of the region
+	 */
+	public void setRegion(int regionStart, int regionEnd) {
+		partition = true;
+		this.regionStart = regionStart;
+		this.regionEnd = regionEnd;
+		sweepLineCounter = null;
+		setCoordinateSorted(true);
+	}
+	
+	/**
+	 * Add a read starting before the region to the depth of coverage of the region. The 
+	 * read is counted by the region containing its start.
+	 * @param r the read
+	 */
+	public void processOverlappingSequence(SAMRecord r) {
+		int referenceId = readCache().referenceId(r);
+		if (referenceId >= 0) {
+			int blockCount = readCache.alignmentBlocks(r);
+			referenceChromosome(referenceId).addCoverage(r.getAlignmentStart(), r.getAlignmentEnd(), readCache.readBlockStarts(), readCache.readBlockEnds(), 0, blockCount);
+		}
+	}
+	
+	/**
+	 * Merge the reads of the region of a partition into this set. The chromosomes and the 
+	 * feature counts of the partition are cleared, so it can be used for another region. 
+	 * This can be called by multiple threads.
+	 * @param other the annotation set of the partition, with the same index as this set
+	 */
+	public synchronized void merge(AnnotationSet other) {
+		other.flushCache();
+		for (int i=0; i<other.referenceChromosomes.length; i++) {
+			Chromosome c = other.referenceChromosomes[i];
+			if (c != null) {
+				factory.getChromosome(c.name()).merge(c);
+				other.referenceChromosomes[i] = null;
+			}
+		}
+		if (featureCounter != null && other.featureCounter != null) {
+			featureCounter.mergeAndClear(other.featureCounter);
+		}
+	}
+	
+	
+	/**
+	 * Declare whether the reads are sorted by coordinate. In this case each read is passed 
+	 * to a sweep line over the features instead of being cached and sorted. If a read turns 
+	 * out to be out of order, this and the following reads are cached. The splice aware 
+	 * overlaps always cache the reads, as the sweep line only follows the spans of the reads.
+	 * The aligned blocks of the reads are computed in both cases for the depth of coverage.
+	 * @param coordinateSorted true if the reads are sorted by coordinate
+	 */
+	public void setCoordinateSorted(boolean coordinateSorted) {
+		this.coordinateSorted = coordinateSorted && !spliceAware;
+	}
 	
 	public void processSequence (SAMRecord r) {
-		// implementation using ShortRead
-	    if(readCache.size() < cacheCapacity) {
-	    	readCache.add(new ShortRead(r.getReferenceName(), r.getAlignmentStart(), r.getAlignmentEnd()));
-	    } else {
-	    	flushCache();
-	    }       
+		int referenceId = readCache().referenceId(r);
+		int strand = readStrand(r.getFlags());
+		int blockCount = readCache.alignmentBlocks(r);
+		if (coordinateSorted && processSortedSequence(referenceId, r.getAlignmentStart(), r.getAlignmentEnd(), strand, blockCount)) {
+			return;
+		}
+		readCache.add(referenceId, r.getAlignmentStart(), r.getAlignmentEnd(), strand, blockCount);
 	}
 	
 
-	public void flushCache() {
-    	// sort the cache
-    	Collections.sort(readCache);
-    	// now parse the sorted cache
-    	for(int i=0; i < readCache.size(); i++) {
-    		processCachedSequence(readCache.get(i));
-    	}
-    	// let's clear and reuse the array for now, instead of reallocating a new one every time.
-    	// Tricky to say what's the best is.. an O(n)remove vs allocation+GC ... 
-    	readCache.clear();
-	}	
-
+	public void processSequence (BAMRecordView r) {
+		int referenceId = readCache().referenceId(r);
+		int strand = readStrand(r.getFlags());
+		int blockCount = readCache.alignmentBlocks(r);
+		if (coordinateSorted && processSortedSequence(referenceId, r.getAlignmentStart(), r.getAlignmentEnd(), strand, blockCount)) {
+			return;
+		}
+		readCache.add(referenceId, r.getAlignmentStart(), r.getAlignmentEnd(), strand, blockCount);
+	}
 	
-	private void processCachedSequence(ShortRead r) {	
-		if (!r.getReferenceName().equals("*")) {
-			Chromosome c = factory.getChromosome(r.getReferenceName());
-			c.processSequence(r);
+	/**
+	 * Process a read sorted by coordinate, with the aligned blocks computed by the read cache.
+	 * @return false if the read is out of order and was not processed
+	 */
+	private synchronized boolean processSortedSequence(int referenceId, int alignmentStart, int alignmentEnd, int strand, int blockCount) {
+		if (referenceId < 0) {
+			return true;
+		}
+		if (sweepLineCounter == null) {
+			sweepLineCounter = new SweepLineCounter(featureCounter);
 		}
-		for(FeatureClass value : features.values()) {
-			value.processSequence(r);
+		if (!sweepLineCounter.processSequence(referenceId, referenceFeatures[referenceId], alignmentStart, alignmentEnd, strand)) {
+			coordinateSorted = false;
+			return false;
 		}
+		referenceChromosome(referenceId).processSequence(alignmentStart, alignmentEnd, readCache.readBlockStarts(), readCache.readBlockEnds(), 0, blockCount);
+		return true;
 	}
+	
 
+	public void flushCache() {
+		if (readCache != null) {
+			readCache.flushCache();
+		}
+	}	
 
+	private ReadCache readCache() {
+		if (readCache == null) {
+			readCache = new ReadCache(this);
+		}
+		return readCache;
+	}
+	
+	int cacheCapacity() {
+		return cacheCapacity;
+	}
 	
+	/**
+	 * Process a sorted batch of reads collected by a ReadCache. This can be called by 
+	 * multiple threads.
+	 * @param reads the sorted reads
+	 */
+	synchronized void processCachedSequences(ReadCache reads) {
+		int lastReferenceId = -1;
+		Chromosome c = null;
+		AnnotationIndex.ChromosomeFeatures features = null;
+		for(int i=0; i < reads.size(); i++) {
+			int referenceId = reads.referenceId(i);
+			// unplaced reads
+			if (referenceId < 0) continue;
+			// the reads are sorted, so the chromosome only changes between runs of reads
+			if (referenceId != lastReferenceId) {
+				lastReferenceId = referenceId;
+				c = referenceChromosome(referenceId);
+				features = referenceFeatures[referenceId];
+			}
+			int blockCount = reads.blockCount(i);
+			c.processSequence(reads.start(i), reads.end(i), reads.blockStarts(), reads.blockEnds(), reads.blockOffset(i), blockCount);
+			if (features != null) {
+				if (spliceAware && blockCount > 1) {
+					featureCounter.processBlocks(features, reads.blockStarts(), reads.blockEnds(), reads.blockOffset(i), blockCount, reads.strand(i));
+				}
+				else {
+					featureCounter.processSequence(features, reads.start(i), reads.end(i), reads.strand(i));
+				}
+			}
+		}
+	}
 
-		
 }
-
-
@@ -0,0 +1,336 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Accumulates the depth of coverage of the bases of a chromosome. Only the aligned blocks of
+ * the reads cover bases, not their deletions and skipped regions.
+ * While the reads arrive sorted by start, the starts and ends of their blocks are added to a
+ * difference array covering only the
+ * bases which can still change (from the start of the last read to the furthest end), and
+ * the bases before the start of each read are emitted as runs of equal depth. The runs are
+ * folded into a histogram of the depths as they are emitted, so the memory does not depend
+ * on the length of the chromosome or on the number of reads.
+ * If a read arrives out of order, the base resolution is dropped and the depths are estimated
+ * from the aligned bases of windows of WINDOW_SIZE bases, which are counted for every read.
+ * The coverage is completed by finish(), after which no more reads can be added.
+ * The reads of a chromosome can also be split in regions, whose coverages are computed 
+ * separately, each restricted to the bases of its region, and then merged.
+ */
+public final class BaseCoverage implements Serializable {
+
+	private static final long serialVersionUID = -2906359385612938418L;
+
+	/** The size of the windows of the aligned bases. */
+	public static final int WINDOW_SIZE = 1000;
+
+	/** The highest depth of the histogram. Higher depths are counted as this depth. */
+	public static final int MAX_DEPTH = 1000;
+
+	// The bases counted by this coverage. The blocks of the reads are clipped to this region.
+	private int regionStart = 1;
+	private int regionEnd = Integer.MAX_VALUE;
+
+	// The aligned bases of each window.
+	private int [] windowBases = new int[16];
+	private long alignedBases = 0;
+
+	private boolean baseResolution = true;
+	private boolean finished = false;
+
+	// The difference array of the bases from emitted to pendingEnd+1, by position modulo its length.
+	private int [] diff = new int[1024];
+	// The next base to emit. The bases before this have a final depth.
+	private int emitted = 1;
+	// The furthest end of the reads.
+	private int pendingEnd = 0;
+	private int lastStart = 0;
+	private int depth = 0;
+
+	// The current run of bases with the same depth.
+	private int runDepth = 0;
+	private long runLength = 0;
+
+	// The number of bases of each depth, up to MAX_DEPTH.
+	private long [] depthHistogram = new long[MAX_DEPTH+1];
+	// The furthest end of the reads of the merged coverages.
+	private int mergedEnd = 0;
+
+
+	/**
+	 * Creates the coverage of a whole chromosome.
+	 */
+	public BaseCoverage() { }
+
+	/**
+	 * Creates the coverage of a region of a chromosome, which can be merged with the 
+	 * coverages of the other regions. The reads overlapping the region are added in 
+	 * order of start, including those starting before the region.
+	 * @param regionStart the first base of the region
+	 * @param regionEnd the last base of the region
+	 */
+	public BaseCoverage(int regionStart, int regionEnd) {
+		this.regionStart = Math.max(1, regionStart);
+		this.regionEnd = regionEnd;
+		emitted = this.regionStart;
+	}
+
+	/**
+	 * Add a read aligned in a single block.
+	 * @param alignmentStart the first base of the read (1-based)
+	 * @param alignmentEnd the last base of the read
+	 */
+	public void add(int alignmentStart, int alignmentEnd) {
+		if (alignmentStart < 1 || alignmentEnd < alignmentStart) {
+			return;
+		}
+		startRead(alignmentStart);
+		addBlock(Math.max(alignmentStart, regionStart), Math.min(alignmentEnd, regionEnd));
+	}
+
+	/**
+	 * Add the aligned blocks of a read.
+	 * @param blockStarts the first bases of the blocks (1-based)
+	 * @param blockEnds the last bases of the blocks
+	 * @param offset the position of the first block of the read
+	 * @param blockCount the number of blocks of the read
+	 */
+	public void add(int [] blockStarts, int [] blockEnds, int offset, int blockCount) {
+		if (blockCount == 0 || blockStarts[offset] < 1) {
+			return;
+		}
+		startRead(blockStarts[offset]);
+		for (int b = offset; b < offset + blockCount; b++) {
+			addBlock(Math.max(blockStarts[b], regionStart), Math.min(blockEnds[b], regionEnd));
+		}
+	}
+
+	/**
+	 * Emit the bases before the start of a read, or drop the base resolution if the read is out of order.
+	 */
+	private void startRead(int alignmentStart) {
+		if (!baseResolution) {
+			return;
+		}
+		if (finished || alignmentStart < lastStart) {
+			dropBaseResolution();
+			return;
+		}
+		lastStart = alignmentStart;
+		emit(alignmentStart);
+	}
+
+	/**
+	 * Add a block of a read, clipped to the region.
+	 */
+	private void addBlock(int blockStart, int blockEnd) {
+		if (blockEnd < blockStart) {
+			return;
+		}
+		addWindowBases(blockStart, blockEnd);
+
+		if (!baseResolution) {
+			return;
+		}
+		if (blockEnd + 1 - emitted >= diff.length) {
+			growDiff(blockEnd + 2 - emitted);
+		}
+		int mask = diff.length - 1;
+		diff[blockStart & mask]++;
+		diff[(blockEnd + 1) & mask]--;
+		if (blockEnd > pendingEnd) {
+			pendingEnd = blockEnd;
+		}
+	}
+
+	private void addWindowBases(int alignmentStart, int alignmentEnd) {
+		alignedBases += alignmentEnd - alignmentStart + 1;
+		int lastWindow = (alignmentEnd - 1) / WINDOW_SIZE;
+		if (lastWindow >= windowBases.length) {
+			windowBases = Arrays.copyOf(windowBases, Math.max(lastWindow + 1, windowBases.length * 2));
+		}
+		for (int w = (alignmentStart - 1) / WINDOW_SIZE; w <= lastWindow; w++) {
+			int start = Math.max(alignmentStart, w * WINDOW_SIZE + 1);
+			int end = Math.min(alignmentEnd, (w + 1) * WINDOW_SIZE);
+			windowBases[w] += end - start + 1;
+		}
+	}
+
+	/**
+	 * Emit the depths of the bases before a position.
+	 * @param position the first base not to emit
+	 */
+	private void emit(int position) {
+		int mask = diff.length - 1;
+		while (emitted < position) {
+			if (emitted > pendingEnd + 1) {
+				// no reads are pending, so the depth is 0 up to the position
+				extendRun(0, position - emitted);
+				emitted = position;
+				return;
+			}
+			int i = emitted & mask;
+			depth += diff[i];
+			diff[i] = 0;
+			extendRun(depth, 1);
+			emitted++;
+		}
+	}
+
+	private void extendRun(int depth, long length) {
+		if (depth != runDepth) {
+			addRun(runDepth, runLength);
+			runDepth = depth;
+			runLength = 0;
+		}
+		runLength += length;
+	}
+
+	private void addRun(int depth, long length) {
+		depthHistogram[Math.min(depth, MAX_DEPTH)] += length;
+	}
+
+	/**
+	 * Grow the difference array, keeping the pending bases at their positions modulo the new length.
+	 */
+	private void growDiff(int minLength) {
+		int length = diff.length;
+		while (length < minLength) {
+			length *= 2;
+		}
+		int [] newDiff = new int[length];
+		int oldMask = diff.length - 1;
+		int newMask = length - 1;
+		for (int p = emitted; p <= pendingEnd + 1; p++) {
+			newDiff[p & newMask] = diff[p & oldMask];
+		}
+		diff = newDiff;
+	}
+
+	private void dropBaseResolution() {
+		baseResolution = false;
+		diff = null;
+		depthHistogram = null;
+	}
+
+	/**
+	 * Add the coverage of another region of the chromosome. The regions must not overlap, 
+	 * and this coverage must not receive reads. The bases which are not covered by any 
+	 * region have depth 0 when this coverage is finished.
+	 * @param other the finished coverage of the region
+	 */
+	public void merge(BaseCoverage other) {
+		if (!other.finished) {
+			throw new IllegalStateException("The merged coverage is not finished");
+		}
+		if (other.windowBases.length > windowBases.length) {
+			windowBases = Arrays.copyOf(windowBases, other.windowBases.length);
+		}
+		for (int w = 0; w < other.windowBases.length; w++) {
+			windowBases[w] += other.windowBases[w];
+		}
+		alignedBases += other.alignedBases;
+		mergedEnd = Math.max(mergedEnd, Math.max(other.pendingEnd, other.mergedEnd));
+
+		if (!other.baseResolution) {
+			if (baseResolution) {
+				dropBaseResolution();
+			}
+			return;
+		}
+		if (baseResolution) {
+			// the bases of depth 0 are counted by finish()
+			for (int d = 1; d <= MAX_DEPTH; d++) {
+				depthHistogram[d] += other.depthHistogram[d];
+			}
+		}
+	}
+
+	/**
+	 * Complete the coverage of the chromosome. The bases after the last read have depth 0.
+	 * @param length the length of the chromosome
+	 */
+	public void finish(int length) {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		if (baseResolution) {
+			emit(Math.max(length, pendingEnd) + 1);
+			addRun(runDepth, runLength);
+			runLength = 0;
+			diff = null;
+			// the bases which are not covered, including those of the merged regions
+			long coveredBases = 0;
+			for (int d = 1; d <= MAX_DEPTH; d++) {
+				coveredBases += depthHistogram[d];
+			}
+			long bases = Math.max(0, Math.max(Math.max(length, pendingEnd), mergedEnd) - (regionStart - 1));
+			depthHistogram[0] = Math.max(0, bases - coveredBases);
+		}
+		else {
+			// the depth of each base is estimated as the mean depth of its window
+			depthHistogram = new long[MAX_DEPTH+1];
+			int windows = Math.max(1 + (length - 1) / WINDOW_SIZE, windowBases.length);
+			for (int w = 0; w < windows; w++) {
+				int windowLength = Math.min(WINDOW_SIZE, length - w * WINDOW_SIZE);
+				if (windowLength <= 0) {
+					break;
+				}
+				int bases = w < windowBases.length ? windowBases[w] : 0;
+				int meanDepth = (int)Math.round(bases / (double)windowLength);
+				depthHistogram[Math.min(meanDepth, MAX_DEPTH)] += windowLength;
+			}
+		}
+	}
+
+	/**
+	 * Return true if the depths are counted for each base, or false if they are
+	 * estimated from the windows because the reads were not sorted.
+	 */
+	public boolean isBaseResolution() {
+		return baseResolution;
+	}
+
+	/** Return the total number of aligned bases. */
+	public long alignedBases() {
+		return alignedBases;
+	}
+
+	/** Return the number of aligned bases of each window of WINDOW_SIZE bases. */
+	public int [] windowBases() {
+		return windowBases;
+	}
+
+	/**
+	 * Return the number of bases of each depth, up to MAX_DEPTH. This is only available
+	 * after finish().
+	 */
+	public long [] depthHistogram() {
+		if (!finished) {
+			throw new IllegalStateException("The coverage is not finished");
+		}
+		return depthHistogram;
+	}
+
+}
@@ -44,6 +44,12 @@ public class Chromosome implements Comparable<Chromosome>, Serializable {
 	
 	private long [] coverageBins = new long[0];
 	
+	// The depth of coverage of the bases. This is created by the first read.
+	private BaseCoverage baseCoverage = null;
+	// The region covered by the reads, if the reads of the chromosome are split in regions.
+	private int regionStart = 1;
+	private int regionEnd = Integer.MAX_VALUE;
+	
 	// These are values we're going to store for a specific analysis
 	private int seqCount = 0;
 	
@@ -72,22 +78,75 @@ public class Chromosome implements Comparable<Chromosome>, Serializable {
 		return coverageBins;
 	}
 	
+	/**
+	 * Return the number of aligned bases of each bin of COVERAGE_BIN_SIZE bases, 
+	 * with as many bins as getBinCountData().
+	 */
+	public long [] getBaseCountData () {
+		long [] baseBins = new long[coverageBins.length];
+		if (baseCoverage == null || baseBins.length == 0) {
+			return baseBins;
+		}
+		int [] windowBases = baseCoverage.windowBases();
+		for (int w=0; w<windowBases.length; w++) {
+			int bin = (int)((long)w * BaseCoverage.WINDOW_SIZE / COVERAGE_BIN_SIZE);
+			baseBins[Math.min(bin, baseBins.length-1)] += windowBases[w];
+		}
+		return baseBins;
+	}
+	
+	/**
+	 * Return the depth of coverage of the bases, or null if the chromosome has no reads. 
+	 * The coverage is completed at the length of the chromosome, so no more reads 
+	 * should be processed after this.
+	 */
+	public BaseCoverage getBaseCoverage () {
+		if (baseCoverage != null) {
+			baseCoverage.finish(length);
+		}
+		return baseCoverage;
+	}
+	
 	public int length () {
 		return length;
 	}
+	
+	/**
+	 * Restrict the depth of coverage to a region, when the reads of the chromosome are 
+	 * split in regions processed separately and then merged. This must be called before 
+	 * the first read.
+	 * @param regionStart the first base of the region
+	 * @param regionEnd the last base of the region
+	 */
+	public void setCoverageRegion (int regionStart, int regionEnd) {
+		this.regionStart = regionStart;
+		this.regionEnd = regionEnd;
+	}
 		
 	public int seqCount() {
 		return seqCount;
 	}
 	
-	public void processSequence (ShortRead record) {
+	public void processSequence (int alignmentStart, int alignmentEnd) {
+		processSequence(alignmentStart, alignmentEnd, null, null, 0, 0);
+	}
+	
+	/**
+	 * Process a read aligned in several blocks. Only the blocks are covered, not the 
+	 * deletions and the skipped regions between them.
+	 * @param blockStarts the starts of the aligned blocks
+	 * @param blockEnds the ends of the aligned blocks
+	 * @param blockOffset the position of the first block of the read
+	 * @param blockCount the number of blocks. If this is less than 2, the whole read is covered.
+	 */
+	public void processSequence (int alignmentStart, int alignmentEnd, int [] blockStarts, int [] blockEnds, int blockOffset, int blockCount) {
 		seqCount++;
 		
-		if (record.getAlignmentEnd() > length) {
-			length = record.getAlignmentEnd();
+		if (alignmentEnd > length) {
+			length = alignmentEnd;
 		}
 		
-		int maxBin = record.getAlignmentStart()/COVERAGE_BIN_SIZE;
+		int maxBin = alignmentStart/COVERAGE_BIN_SIZE;
 		
 		if (coverageBins.length<=maxBin) {
 			long[] oldCoverageBins = coverageBins;
@@ -96,6 +155,56 @@ public class Chromosome implements Comparable<Chromosome>, Serializable {
 		}
 		coverageBins[maxBin]++;
 		
+		addCoverage(alignmentStart, alignmentEnd, blockStarts, blockEnds, blockOffset, blockCount);
+		
+	}
+	
+	/**
+	 * Add a read to the depth of coverage only. This is used for the reads which start before 
+	 * the coverage region and are counted by the region containing their start.
+	 * @param blockCount the number of aligned blocks. If this is less than 2, the whole read is covered.
+	 */
+	public void addCoverage (int alignmentStart, int alignmentEnd, int [] blockStarts, int [] blockEnds, int blockOffset, int blockCount) {
+		if (baseCoverage == null) {
+			if (regionStart > 1 || regionEnd < Integer.MAX_VALUE) {
+				baseCoverage = new BaseCoverage(regionStart, regionEnd);
+			}
+			else {
+				baseCoverage = new BaseCoverage();
+			}
+		}
+		if (blockCount > 1) {
+			baseCoverage.add(blockStarts, blockEnds, blockOffset, blockCount);
+		}
+		else {
+			baseCoverage.add(alignmentStart, alignmentEnd);
+		}
+	}
+	
+	/**
+	 * Add the reads and the coverage of another region of this chromosome, processed separately.
+	 * @param other the chromosome of the other region
+	 */
+	public void merge (Chromosome other) {
+		seqCount += other.seqCount;
+		if (other.length > length) {
+			length = other.length;
+		}
+		if (other.coverageBins.length > coverageBins.length) {
+			long[] oldCoverageBins = coverageBins;
+			coverageBins = new long[other.coverageBins.length];
+			System.arraycopy(oldCoverageBins, 0, coverageBins, 0, oldCoverageBins.length);
+		}
+		for (int i=0; i<other.coverageBins.length; i++) {
+			coverageBins[i] += other.coverageBins[i];
+		}
+		BaseCoverage otherCoverage = other.getBaseCoverage();
+		if (otherCoverage != null) {
+			if (baseCoverage == null) {
+				baseCoverage = new BaseCoverage();
+			}
+			baseCoverage.merge(otherCoverage);
+		}
 	}
 	
 	@Override
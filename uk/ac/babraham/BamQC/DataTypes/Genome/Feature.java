@@ -58,7 +58,7 @@ public class Feature implements Comparable<Feature>, Serializable {
 	//Constants to store source type
 	/** The Constant MANUAL. */
 //	private static final int MANUAL = 1;
-//	private static final int NAME = 2;
+	private static final int NAME = 2;
 //	private static final int DB_XREF = 3;
 //	private static final int GENE = 4;
 //	private static final int EXON_ID = 5;
@@ -100,6 +100,25 @@ public class Feature implements Comparable<Feature>, Serializable {
 		}	
 	}
 		
+	/**
+	 * Set the name of the feature, such as its gene or transcript id. This replaces 
+	 * the default name, which is the location of the feature.
+	 * @param name the name
+	 */
+	public void setName (String name) {
+		this.name = name;
+		source = NAME;
+	}
+	
+	/**
+	 * Name.
+	 * 
+	 * @return the name, or the location of the feature if it has no name
+	 */
+	public String name () {
+		return name;
+	}
+	
 	/**
 	 * Type.
 	 * 
@@ -128,11 +147,6 @@ public class Feature implements Comparable<Feature>, Serializable {
 		return chr;
 	}
 		
-	public void processSequence (ShortRead r) {
-		//TODO: Placeholder in case we want to record something for every feature.
-	}
-	
-		
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -36,28 +36,18 @@ import java.util.HashMap;
  */
 public class FeatureClass {
 
-	private AnnotationSet annotationSet;
-
 	private HashMap<String, FeatureSubclass> subClasses = new HashMap<String, FeatureSubclass>();
 	
 	
-	public FeatureClass (AnnotationSet a) {
-			annotationSet = a;
-	}
-
-	public void addFeature (Feature f) {
-		if (! subClasses.containsKey(f.subclass())) {
-			subClasses.put(f.subclass(), new FeatureSubclass(annotationSet));
-		}
-		
-		subClasses.get(f.subclass()).addFeature(f);
-		
-	}
-	
-	public void processSequence (ShortRead r) {
-		for(FeatureSubclass fsc : subClasses.values()) {
-			fsc.processSequence(r);
-		}
+	public FeatureClass () { }
+
+	/**
+	 * Add a subclass.
+	 * @param name the name of the subclass
+	 * @param subclass the subclass
+	 */
+	void addSubclass (String name, FeatureSubclass subclass) {
+		subClasses.put(name, subclass);
 	}
 	
 	public String [] getSubclassNames () {
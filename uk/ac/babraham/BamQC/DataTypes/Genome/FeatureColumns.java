@@ -0,0 +1,134 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Collects the features of a chromosome in columns of primitive arrays while an annotation 
+ * is parsed, so that the Feature objects are not kept. The sub-locations of the split features 
+ * (e.g. the exons of a transcript) are stored in shared arrays, addressed by offsets, and so 
+ * are the UTF-8 bytes of the feature names, which are only decoded for the reports.
+ * Once the annotation is parsed, the columns are sorted by start into a ChromosomeFeatures.
+ */
+final class FeatureColumns {
+
+	/** The largest subclass id, as the ids are stored as shorts. */
+	static final int MAX_SUBCLASS_ID = Short.MAX_VALUE;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private int size = 0;
+	private int [] starts = new int[16];
+	private int [] ends = new int[16];
+	private byte [] strands = new byte[16];
+	private short [] subclassIds = new short[16];
+	
+	// The name of the i-th feature is at the positions from nameOffsets[i] to nameOffsets[i+1].
+	private int [] nameOffsets = new int[17];
+	private byte [] nameBytes = new byte[256];
+	
+	// The sub-locations of the i-th feature are at the positions from subLocationOffsets[i] to subLocationOffsets[i+1].
+	private int [] subLocationOffsets = new int[17];
+	private int subLocationNumber = 0;
+	private int [] subLocationStarts = new int[16];
+	private int [] subLocationEnds = new int[16];
+	
+	
+	/**
+	 * Add a feature.
+	 * @param location the location of the feature
+	 * @param subclassId the id of the subclass of the feature
+	 * @param name the name of the feature
+	 */
+	void add(Location location, int subclassId, String name) {
+		if (subclassId < 0 || subclassId > MAX_SUBCLASS_ID) {
+			throw new IllegalArgumentException("Too many feature subclasses: at most " + (MAX_SUBCLASS_ID + 1) + " are supported");
+		}
+		if (size == starts.length) {
+			int length = size * 2;
+			starts = Arrays.copyOf(starts, length);
+			ends = Arrays.copyOf(ends, length);
+			strands = Arrays.copyOf(strands, length);
+			subclassIds = Arrays.copyOf(subclassIds, length);
+			nameOffsets = Arrays.copyOf(nameOffsets, length + 1);
+			subLocationOffsets = Arrays.copyOf(subLocationOffsets, length + 1);
+		}
+		starts[size] = location.start();
+		ends[size] = location.end();
+		strands[size] = (byte)location.strand();
+		subclassIds[size] = (short)subclassId;
+		byte [] bytes = name.getBytes(UTF8);
+		int nameEnd = nameOffsets[size] + bytes.length;
+		if (nameEnd > nameBytes.length) {
+			nameBytes = Arrays.copyOf(nameBytes, Math.max(nameEnd, nameBytes.length * 2));
+		}
+		System.arraycopy(bytes, 0, nameBytes, nameOffsets[size], bytes.length);
+		if (location instanceof SplitLocation) {
+			Location [] subLocations = ((SplitLocation)location).subLocations();
+			if (subLocationNumber + subLocations.length > subLocationStarts.length) {
+				int length = Math.max(subLocationNumber + subLocations.length, subLocationStarts.length * 2);
+				subLocationStarts = Arrays.copyOf(subLocationStarts, length);
+				subLocationEnds = Arrays.copyOf(subLocationEnds, length);
+			}
+			for (Location subLocation : subLocations) {
+				subLocationStarts[subLocationNumber] = subLocation.start();
+				subLocationEnds[subLocationNumber] = subLocation.end();
+				subLocationNumber++;
+			}
+		}
+		size++;
+		subLocationOffsets[size] = subLocationNumber;
+		nameOffsets[size] = nameEnd;
+	}
+	
+	/**
+	 * Sort the features by start.
+	 * @return the sorted features
+	 */
+	AnnotationIndex.ChromosomeFeatures toChromosomeFeatures() {
+		FeatureIntervals intervals = new FeatureIntervals(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size));
+		byte [] sortedStrands = new byte[size];
+		short [] sortedSubclassIds = new short[size];
+		int [] sortedNameOffsets = new int[size + 1];
+		byte [] sortedNameBytes = new byte[nameOffsets[size]];
+		int [] sortedOffsets = new int[size + 1];
+		int [] sortedSubLocationStarts = new int[subLocationNumber];
+		int [] sortedSubLocationEnds = new int[subLocationNumber];
+		int position = 0;
+		for (int i=0; i<size; i++) {
+			int id = intervals.id(i);
+			sortedStrands[i] = strands[id];
+			sortedSubclassIds[i] = subclassIds[id];
+			int nameLength = nameOffsets[id+1] - nameOffsets[id];
+			System.arraycopy(nameBytes, nameOffsets[id], sortedNameBytes, sortedNameOffsets[i], nameLength);
+			sortedNameOffsets[i+1] = sortedNameOffsets[i] + nameLength;
+			int length = subLocationOffsets[id+1] - subLocationOffsets[id];
+			System.arraycopy(subLocationStarts, subLocationOffsets[id], sortedSubLocationStarts, position, length);
+			System.arraycopy(subLocationEnds, subLocationOffsets[id], sortedSubLocationEnds, position, length);
+			position += length;
+			sortedOffsets[i+1] = position;
+		}
+		return new AnnotationIndex.ChromosomeFeatures(intervals, sortedSubclassIds, sortedStrands, sortedNameOffsets, sortedNameBytes,
+				sortedOffsets, sortedSubLocationStarts, sortedSubLocationEnds);
+	}
+	
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+import java.util.Arrays;
+
+/**
+ * Counts the reads overlapping the feature subclasses of an AnnotationIndex for one analysis. 
+ * The overlapping features of a read are found with one query, their subclasses are 
+ * marked in a bitset and each marked subclass is counted once. 
+ * The read is also counted once for each overlapping feature, in an array indexed by the 
+ * feature number, if the feature is on the strand of the read. 
+ * If the counter is splice aware, a read overlaps a feature only if one of its aligned blocks 
+ * overlaps one of the exons of the feature. The exons of all the features are searched in one 
+ * interval index, and the features found by several blocks or exons are counted once.
+ */
+final class FeatureCounter {
+
+	// The number of reads overlapping each subclass, by subclass id.
+	private final int [] counts;
+	
+	// The number of reads overlapping each feature, by feature number.
+	private final int [] featureCounts;
+	
+	// The subclasses hit by the current read. This is cleared after each read.
+	private final long [] hitSubclasses;
+	
+	// The positions of the overlapping intervals of the current read.
+	private int [] hits = new int[64];
+	
+	// Whether the reads are overlapped with the exons of the features, and the features of the overlapping exons.
+	private final boolean spliceAware;
+	private int [] exonHits = new int[64];
+	
+	
+	FeatureCounter(AnnotationIndex index, boolean spliceAware) {
+		this.spliceAware = spliceAware;
+		counts = new int[index.subclassCount()];
+		hitSubclasses = new long[(index.subclassCount() + 63) >>> 6];
+		featureCounts = new int[index.featureCount()];
+	}
+	
+	int count(int subclassId) {
+		return counts[subclassId];
+	}
+	
+	int featureCount(int feature) {
+		return featureCounts[feature];
+	}
+	
+	/**
+	 * Add the counts of another counter of the same index, and clear them from the other counter.
+	 * @param other the other counter
+	 */
+	void mergeAndClear(FeatureCounter other) {
+		for (int i=0; i<counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		for (int i=0; i<featureCounts.length; i++) {
+			featureCounts[i] += other.featureCounts[i];
+		}
+		Arrays.fill(other.counts, 0);
+		Arrays.fill(other.featureCounts, 0);
+	}
+	
+	/**
+	 * Count the subclasses of the features overlapping a read.
+	 * @param chromosomeFeatures the features of the chromosome of the read
+	 * @param alignmentStart the start of the read
+	 * @param alignmentEnd the end of the read
+	 * @param strand the strand of the read, or Location.UNKNOWN to count the features of both strands
+	 */
+	void processSequence(AnnotationIndex.ChromosomeFeatures chromosomeFeatures, int alignmentStart, int alignmentEnd, int strand) {
+		if (spliceAware) {
+			int hitNumber = findExonHits(chromosomeFeatures, alignmentStart, alignmentEnd, 0);
+			if (hitNumber > 0) {
+				countHits(chromosomeFeatures, exonHits, uniqueHits(hitNumber), strand);
+			}
+			return;
+		}
+		int hitNumber = chromosomeFeatures.intervals.overlaps(alignmentStart, alignmentEnd, hits);
+		if (hitNumber == 0) return;
+		if (hitNumber > hits.length) {
+			hits = new int[Math.max(hitNumber, hits.length * 2)];
+			hitNumber = chromosomeFeatures.intervals.overlaps(alignmentStart, alignmentEnd, hits);
+		}
+		
+		countHits(chromosomeFeatures, hits, hitNumber, strand);
+	}
+	
+	/**
+	 * Count the subclasses of the features overlapping the aligned blocks of a spliced read. 
+	 * @param chromosomeFeatures the features of the chromosome of the read
+	 * @param blockStarts the starts of the blocks
+	 * @param blockEnds the ends of the blocks
+	 * @param offset the position of the first block of the read
+	 * @param blockCount the number of blocks of the read
+	 * @param strand the strand of the read, or Location.UNKNOWN to count the features of both strands
+	 */
+	void processBlocks(AnnotationIndex.ChromosomeFeatures chromosomeFeatures, int [] blockStarts, int [] blockEnds, int offset, int blockCount, int strand) {
+		int hitNumber = 0;
+		for (int b=offset; b<offset+blockCount; b++) {
+			hitNumber = findExonHits(chromosomeFeatures, blockStarts[b], blockEnds[b], hitNumber);
+		}
+		if (hitNumber > 0) {
+			countHits(chromosomeFeatures, exonHits, uniqueHits(hitNumber), strand);
+		}
+	}
+	
+	/**
+	 * Add the features of the exons overlapping an aligned block to exonHits.
+	 * @param hitNumber the number of features in exonHits
+	 * @return the new number of features in exonHits
+	 */
+	private int findExonHits(AnnotationIndex.ChromosomeFeatures chromosomeFeatures, int blockStart, int blockEnd, int hitNumber) {
+		FeatureIntervals exons = chromosomeFeatures.exons();
+		int exonNumber = exons.overlaps(blockStart, blockEnd, hits);
+		if (exonNumber > hits.length) {
+			hits = new int[Math.max(exonNumber, hits.length * 2)];
+			exonNumber = exons.overlaps(blockStart, blockEnd, hits);
+		}
+		if (hitNumber + exonNumber > exonHits.length) {
+			exonHits = Arrays.copyOf(exonHits, Math.max(hitNumber + exonNumber, exonHits.length * 2));
+		}
+		for (int i=0; i<exonNumber; i++) {
+			exonHits[hitNumber++] = chromosomeFeatures.exonFeature(hits[i]);
+		}
+		return hitNumber;
+	}
+	
+	/**
+	 * Remove the features found more than once (by several exons or blocks) from exonHits.
+	 * @return the number of distinct features
+	 */
+	private int uniqueHits(int hitNumber) {
+		if (hitNumber < 2) {
+			return hitNumber;
+		}
+		Arrays.sort(exonHits, 0, hitNumber);
+		int unique = 1;
+		for (int i=1; i<hitNumber; i++) {
+			if (exonHits[i] != exonHits[unique-1]) {
+				exonHits[unique++] = exonHits[i];
+			}
+		}
+		return unique;
+	}
+	
+	/**
+	 * Count one read for each subclass of the overlapping features of a read.
+	 * @param chromosomeFeatures the features of the chromosome of the read
+	 * @param hits the positions (in order of start) of the overlapping features, in any order
+	 * @param hitNumber the number of overlapping features
+	 * @param strand the strand of the read, or Location.UNKNOWN to count the features of both strands
+	 */
+	void countHits(AnnotationIndex.ChromosomeFeatures chromosomeFeatures, int [] hits, int hitNumber, int strand) {
+		short [] subclassIds = chromosomeFeatures.subclassIds;
+		byte [] strands = chromosomeFeatures.strands;
+		int firstFeature = chromosomeFeatures.firstFeature;
+		for (int i=0; i<hitNumber; i++) {
+			int id = subclassIds[hits[i]];
+			hitSubclasses[id >>> 6] |= 1L << id;
+			if (strand == Location.UNKNOWN || strands[hits[i]] == Location.UNKNOWN || strands[hits[i]] == strand) {
+				featureCounts[firstFeature + hits[i]]++;
+			}
+		}
+		// count the marked subclasses, clearing the words as they are visited
+		for (int i=0; i<hitNumber; i++) {
+			int word = subclassIds[hits[i]] >>> 6;
+			long bits = hitSubclasses[word];
+			while (bits != 0) {
+				counts[(word << 6) + Long.numberOfTrailingZeros(bits)]++;
+				bits &= bits - 1;
+			}
+			hitSubclasses[word] = 0L;
+		}
+	}
+	
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+import java.util.Arrays;
+
+/**
+ * An interval index of the features of a chromosome, stored in primitive arrays. 
+ * The intervals are sorted by start and each of them is a node of an implicit 
+ * binary tree augmented with the maximum end of its subtree (as in cgranges). 
+ * An overlap query costs O(log n + k) for k overlapping intervals. 
+ * The index is not modified after its creation, so it can be queried by several threads.
+ * An interval [start, end] overlaps a query [qStart, qEnd] if start < qEnd and end > qStart.
+ */
+public final class FeatureIntervals {
+
+	// The subtrees with up to this level are scanned linearly.
+	private static final int LINEAR_SCAN_LEVEL = 3;
+	
+	private final int [] starts;
+	private final int [] ends;
+	// The maximum end of the subtree rooted at each interval.
+	private final int [] maxEnds;
+	// The position of each interval in the arrays given to the constructor.
+	private final int [] ids;
+	private final int size;
+	// The level of the root of the tree, or -1 if there are no intervals.
+	private final int rootLevel;
+	
+	
+	/**
+	 * Creates the index of a set of intervals.
+	 * @param starts the interval starts
+	 * @param ends the interval ends
+	 */
+	public FeatureIntervals(int [] starts, int [] ends) {
+		this(sortByStart(starts, ends));
+	}
+	
+	/**
+	 * Creates the index of intervals already sorted by start, as written by AnnotationIndexFile. 
+	 * The arrays are not copied.
+	 * @param starts the interval starts, in ascending order
+	 * @param ends the interval ends
+	 * @return the index
+	 */
+	static FeatureIntervals sortedIntervals(int [] starts, int [] ends) {
+		int [] ids = new int[starts.length];
+		for (int i=0; i<ids.length; i++) {
+			ids[i] = i;
+		}
+		return new FeatureIntervals(new int [][] {starts, ends, ids});
+	}
+	
+	/**
+	 * Sort the intervals by start, keeping the sort on primitives.
+	 * @return the sorted starts, the sorted ends and the original positions
+	 */
+	private static int [][] sortByStart(int [] starts, int [] ends) {
+		int size = starts.length;
+		long [] order = new long[size];
+		for (int i=0; i<size; i++) {
+			order[i] = ((long)starts[i] << 32) | i;
+		}
+		Arrays.sort(order);
+		int [][] sorted = new int[3][size];
+		for (int i=0; i<size; i++) {
+			int id = (int)order[i];
+			sorted[0][i] = starts[id];
+			sorted[1][i] = ends[id];
+			sorted[2][i] = id;
+		}
+		return sorted;
+	}
+	
+	private FeatureIntervals(int [][] sorted) {
+		starts = sorted[0];
+		ends = sorted[1];
+		ids = sorted[2];
+		size = starts.length;
+		maxEnds = new int[size];
+		rootLevel = index();
+	}
+	
+	/**
+	 * Computes the maximum ends of the subtrees. The leaves are at the even positions, 
+	 * and the nodes of level k are at the positions whose lowest k bits are set.
+	 * @return the level of the root
+	 */
+	private int index() {
+		if (size == 0) {
+			return -1;
+		}
+		int lastIndex = 0;
+		int last = 0;
+		for (int i=0; i<size; i+=2) {
+			lastIndex = i;
+			last = maxEnds[i] = ends[i];
+		}
+		int k;
+		for (k=1; (1L << k) <= size; k++) {
+			int x = 1 << (k-1);
+			long step = (long)x << 2;
+			for (long i=(x << 1) - 1; i<size; i+=step) {
+				int node = (int)i;
+				int e = ends[node];
+				int leftEnd = maxEnds[node - x];
+				int rightEnd = node + x < size ? maxEnds[node + x] : last;
+				if (leftEnd > e) e = leftEnd;
+				if (rightEnd > e) e = rightEnd;
+				maxEnds[node] = e;
+			}
+			// the ancestor of the last interval, whose right subtree is missing
+			lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+			if (lastIndex < size && maxEnds[lastIndex] > last) {
+				last = maxEnds[lastIndex];
+			}
+		}
+		return k - 1;
+	}
+	
+	/**
+	 * Return the number of intervals.
+	 * @return the number of intervals
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Return the start of the i-th interval, in order of start.
+	 */
+	public int start(int i) {
+		return starts[i];
+	}
+	
+	/**
+	 * Return the end of the i-th interval, in order of start.
+	 */
+	public int end(int i) {
+		return ends[i];
+	}
+	
+	/**
+	 * Return the position of the i-th interval, in order of start, in the arrays given to the constructor.
+	 */
+	public int id(int i) {
+		return ids[i];
+	}
+	
+	/**
+	 * Finds the intervals overlapping the query, in order of start. 
+	 * @param queryStart the start of the query
+	 * @param queryEnd the end of the query
+	 * @param hits the array receiving the positions (in order of start) of the overlapping intervals. 
+	 * If this is too short, only the first hits are stored.
+	 * @return the number of overlapping intervals, which can be larger than hits.length
+	 */
+	public int overlaps(int queryStart, int queryEnd, int [] hits) {
+		if (rootLevel < 0) {
+			return 0;
+		}
+		return overlaps((1 << rootLevel) - 1, rootLevel, queryStart, queryEnd, hits, 0);
+	}
+	
+	private int overlaps(int x, int k, int queryStart, int queryEnd, int [] hits, int count) {
+		if (k <= LINEAR_SCAN_LEVEL) {
+			int i0 = x >> k << k;
+			int i1 = (int)Math.min((long)i0 + (1L << (k+1)) - 1, size);
+			for (int i=i0; i<i1 && starts[i] < queryEnd; i++) {
+				if (ends[i] > queryStart) {
+					if (count < hits.length) hits[count] = i;
+					count++;
+				}
+			}
+			return count;
+		}
+		int left = x - (1 << (k-1));
+		if (left >= size || maxEnds[left] > queryStart) {
+			count = overlaps(left, k-1, queryStart, queryEnd, hits, count);
+		}
+		if (x < size && starts[x] < queryEnd) {
+			if (ends[x] > queryStart) {
+				if (count < hits.length) hits[count] = x;
+				count++;
+			}
+			count = overlaps(x + (1 << (k-1)), k-1, queryStart, queryEnd, hits, count);
+		}
+		return count;
+	}
+	
+}
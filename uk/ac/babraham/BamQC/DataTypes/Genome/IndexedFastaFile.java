@@ -0,0 +1,255 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A FASTA file of reference sequences, read through its index (.fai, as written by 
+ * samtools faidx). The bases of each sequence are memory mapped when the sequence is 
+ * first requested, so the file is only read through the page cache of the system. 
+ * The sequences are read only, so an IndexedFastaFile can be shared by concurrent analyses, 
+ * each of which can pack the sequence it is reading in a PackedSequence of its own. 
+ */
+public final class IndexedFastaFile {
+
+	/** The extension of the index files. */
+	public static final String INDEX_EXTENSION = ".fai";
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	// The upper case of A, C, G and T by byte, or N for the other bytes.
+	private static final byte [] BASES = new byte[256];
+	static {
+		for (int i=0; i<BASES.length; i++) {
+			BASES[i] = 'N';
+		}
+		String bases = "ACGT";
+		for (int i=0; i<bases.length(); i++) {
+			BASES[bases.charAt(i)] = (byte)bases.charAt(i);
+			BASES[Character.toLowerCase(bases.charAt(i))] = (byte)bases.charAt(i);
+		}
+	}
+	
+	// The file shared by the analyses.
+	private static IndexedFastaFile sharedFile = null;
+	private static long sharedFileModified = 0;
+	
+	private final File file;
+	
+	// The columns of the index by sequence.
+	private final HashMap<String, Integer> sequenceIds = new HashMap<String, Integer>();
+	private final String [] names;
+	private final int [] lengths;
+	private final long [] offsets;
+	private final int [] lineBases;
+	private final int [] lineWidths;
+	
+	// The sequences mapped so far.
+	private final MappedSequence [] mappedSequences;
+	
+	
+	/**
+	 * Open a FASTA file and read its index.
+	 * @param file the FASTA file. Its index is the file with the same name followed by .fai
+	 * @throws IOException if the index could not be read
+	 */
+	public IndexedFastaFile(File file) throws IOException {
+		this.file = file;
+		
+		File indexFile = indexFile(file);
+		List<String []> lines = new ArrayList<String []>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0) {
+					continue;
+				}
+				String [] columns = line.split("\t");
+				if (columns.length < 5) {
+					throw new IOException("The line " + (lines.size() + 1) + " of the index " + indexFile + " has less than 5 columns");
+				}
+				lines.add(columns);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		
+		int sequenceNumber = lines.size();
+		names = new String[sequenceNumber];
+		lengths = new int[sequenceNumber];
+		offsets = new long[sequenceNumber];
+		lineBases = new int[sequenceNumber];
+		lineWidths = new int[sequenceNumber];
+		mappedSequences = new MappedSequence[sequenceNumber];
+		for (int i=0; i<sequenceNumber; i++) {
+			String [] columns = lines.get(i);
+			try {
+				names[i] = columns[0];
+				lengths[i] = Integer.parseInt(columns[1]);
+				offsets[i] = Long.parseLong(columns[2]);
+				lineBases[i] = Integer.parseInt(columns[3]);
+				lineWidths[i] = Integer.parseInt(columns[4]);
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("The line " + (i + 1) + " of the index " + indexFile + " is not valid", e);
+			}
+			if (lengths[i] > 0 && (lineBases[i] <= 0 || lineWidths[i] < lineBases[i])) {
+				throw new IOException("The line " + (i + 1) + " of the index " + indexFile + " is not valid");
+			}
+			sequenceIds.put(names[i], i);
+		}
+	}
+	
+	/**
+	 * Return the index file of a FASTA file.
+	 * @param file the FASTA file
+	 * @return the index file
+	 */
+	public static File indexFile(File file) {
+		return new File(file.getPath() + INDEX_EXTENSION);
+	}
+	
+	/**
+	 * Return the FASTA file shared by the analyses. The file is opened by the first 
+	 * analysis and the following analyses share its mapped sequences.
+	 * @param file the FASTA file
+	 * @return the shared FASTA file
+	 * @throws IOException if the index could not be read
+	 */
+	public static synchronized IndexedFastaFile getSharedFile(File file) throws IOException {
+		if (sharedFile == null || !sharedFile.file.equals(file) || file.lastModified() != sharedFileModified) {
+			// only one reference is kept
+			sharedFile = null;
+			sharedFile = new IndexedFastaFile(file);
+			sharedFileModified = file.lastModified();
+		}
+		return sharedFile;
+	}
+	
+	/** Return the FASTA file. */
+	public File file() {
+		return file;
+	}
+	
+	/** Return the names of the sequences, in the order of the index. */
+	public String [] sequenceNames() {
+		return names.clone();
+	}
+	
+	/**
+	 * Return a sequence of the file. The sequence is mapped the first time it is requested, 
+	 * and it stays mapped for the following requests.
+	 * @param name the name of the sequence
+	 * @return the sequence, or null if the file does not have this sequence
+	 * @throws IOException if the sequence could not be mapped
+	 */
+	public synchronized ReferenceSequence sequence(String name) throws IOException {
+		Integer id = sequenceIds.get(name);
+		if (id == null) {
+			return null;
+		}
+		if (mappedSequences[id] == null) {
+			mappedSequences[id] = map(id);
+		}
+		return mappedSequences[id];
+	}
+	
+	private MappedSequence map(int id) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			long size = 0;
+			if (lengths[id] > 0) {
+				size = (long)(lengths[id] / lineBases[id]) * lineWidths[id] + lengths[id] % lineBases[id];
+			}
+			// the last line of the file might not end with a new line
+			size = Math.min(size, channel.size() - offsets[id]);
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("The sequence " + names[id] + " of " + file + " is too long to be mapped");
+			}
+			if (size < 0 || (lengths[id] > 0 && position(id, lengths[id] - 1) >= size)) {
+				throw new IOException("The sequence " + names[id] + " of " + file + " is shorter than its index");
+			}
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offsets[id], size);
+			return new MappedSequence(names[id], lengths[id], buffer, lineBases[id], lineWidths[id]);
+		}
+		finally {
+			randomAccessFile.close();
+		}
+	}
+	
+	private long position(int id, int base) {
+		return (long)(base / lineBases[id]) * lineWidths[id] + base % lineBases[id];
+	}
+	
+	
+	/**
+	 * A sequence read from its mapped lines. The bases are only read with absolute gets, 
+	 * so the buffer can be read by several threads.
+	 */
+	private static final class MappedSequence implements ReferenceSequence {
+		
+		private final String name;
+		private final int length;
+		private final ByteBuffer buffer;
+		private final int lineBases;
+		private final int lineWidth;
+		
+		MappedSequence(String name, int length, ByteBuffer buffer, int lineBases, int lineWidth) {
+			this.name = name;
+			this.length = length;
+			this.buffer = buffer;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+		}
+		
+		@Override
+		public String name() {
+			return name;
+		}
+		
+		@Override
+		public int length() {
+			return length;
+		}
+		
+		@Override
+		public byte base(int position) {
+			int line = position / lineBases;
+			return BASES[buffer.get(line * lineWidth + position - line * lineBases) & 0xff];
+		}
+		
+	}
+	
+}
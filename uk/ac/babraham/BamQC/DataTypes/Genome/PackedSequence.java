@@ -0,0 +1,88 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+/**
+ * A reference sequence held in memory with 2 bits per base, plus 1 bit per base marking 
+ * the unknown bases (N), so that a chromosome of 250 Mbp takes about 94 MB. 
+ * A packed sequence is immutable and can be read by several threads.
+ */
+public final class PackedSequence implements ReferenceSequence {
+
+	private static final byte [] BASES = {'A', 'C', 'G', 'T'};
+	
+	// The 2-bit code of each upper case base, or -1 for the unknown bases.
+	private static final int [] CODES = new int[256];
+	static {
+		for (int i=0; i<CODES.length; i++) {
+			CODES[i] = -1;
+		}
+		for (int i=0; i<BASES.length; i++) {
+			CODES[BASES[i]] = i;
+		}
+	}
+	
+	private final String name;
+	private final int length;
+	// 32 bases per long, the first base in the lowest bits.
+	private final long [] bases;
+	// 64 bases per long. A set bit marks an unknown base.
+	private final long [] unknownBases;
+	
+	
+	/**
+	 * Pack a sequence. Every base of the sequence is read once.
+	 * @param sequence the sequence to pack
+	 */
+	public PackedSequence(ReferenceSequence sequence) {
+		name = sequence.name();
+		length = sequence.length();
+		bases = new long[(length + 31) >>> 5];
+		unknownBases = new long[(length + 63) >>> 6];
+		for (int i=0; i<length; i++) {
+			int code = CODES[sequence.base(i) & 0xff];
+			if (code < 0) {
+				unknownBases[i >>> 6] |= 1L << (i & 63);
+			}
+			else {
+				bases[i >>> 5] |= (long)code << ((i & 31) << 1);
+			}
+		}
+	}
+	
+	@Override
+	public String name() {
+		return name;
+	}
+	
+	@Override
+	public int length() {
+		return length;
+	}
+	
+	@Override
+	public byte base(int position) {
+		if ((unknownBases[position >>> 6] & (1L << (position & 63))) != 0) {
+			return 'N';
+		}
+		return BASES[(int)(bases[position >>> 5] >>> ((position & 31) << 1)) & 3];
+	}
+	
+}
@@ -0,0 +1,349 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
+
+/**
+ * A read cache owned by a single thread. Reads are collected locally and 
+ * passed to the AnnotationSet in sorted batches, so that the threads 
+ * only need to synchronise once per batch.
+ * The reads are stored as reference id, start, end and strand in primitive arrays, 
+ * so no objects are allocated per read. They are sorted by reference id and 
+ * start with an LSD radix sort on a packed long key. The reference ids are 
+ * assigned by the AnnotationSet and are looked up by the reference index of the reads.
+ * The aligned blocks of the reads with deletions or skipped regions are also stored, 
+ * in shared arrays addressed by offsets, and they are not moved by the sort.
+ */
+public class ReadCache {
+
+	// The bits of the key sorted by each pass of the radix sort.
+	private static final int RADIX_BITS = 16;
+	private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+	
+	private AnnotationSet annotationSet;
+	private int cacheCapacity;
+	private int size = 0;
+	
+	private int [] referenceIds;
+	private int [] starts;
+	private int [] ends;
+	private byte [] strands;
+	
+	// The aligned blocks of the spliced reads. The blocks of the i-th read are at the positions 
+	// from blockOffsets[i] to blockOffsets[i+1], and an unspliced read has no blocks.
+	private int [] blockOffsets;
+	private int blockNumber = 0;
+	private int [] blockStarts = new int[16];
+	private int [] blockEnds = new int[16];
+	
+	// The aligned blocks of the last read.
+	private int [] readBlockStarts = new int[16];
+	private int [] readBlockEnds = new int[16];
+	
+	// The reference ids of the AnnotationSet, by index in the sequence dictionary of the reads, or -1 if not known yet.
+	private int [] dictionaryReferenceIds = new int[0];
+	// The reference ids of the references missing from the sequence dictionary, by reference name.
+	private HashMap<String, Integer> unlistedReferenceIds = null;
+	
+	// The sort keys and the positions of the reads in sorted order, with their buffers.
+	private long [] keys;
+	private long [] keyBuffer;
+	private int [] order;
+	private int [] orderBuffer;
+	private int [] radixCounts = new int[1 << RADIX_BITS];
+	
+	public ReadCache(AnnotationSet annotationSet) {
+		this.annotationSet = annotationSet;
+		cacheCapacity = Math.max(1, annotationSet.cacheCapacity());
+		referenceIds = new int[cacheCapacity];
+		starts = new int[cacheCapacity];
+		ends = new int[cacheCapacity];
+		strands = new byte[cacheCapacity];
+		blockOffsets = new int[cacheCapacity + 1];
+		keys = new long[cacheCapacity];
+		keyBuffer = new long[cacheCapacity];
+		order = new int[cacheCapacity];
+		orderBuffer = new int[cacheCapacity];
+	}
+	
+	public void processSequence(SAMRecord r) {
+		add(referenceId(r), r.getAlignmentStart(), r.getAlignmentEnd(), annotationSet.readStrand(r.getFlags()), alignmentBlocks(r));
+	}
+	
+	public void processSequence(BAMRecordView r) {
+		// The alignment end and the blocks are computed from the raw CIGAR operations, without decoding the record.
+		add(referenceId(r), r.getAlignmentStart(), r.getAlignmentEnd(), annotationSet.readStrand(r.getFlags()), alignmentBlocks(r));
+	}
+	
+	void add(int referenceId, int start, int end, int strand) {
+		referenceIds[size] = referenceId;
+		starts[size] = start;
+		ends[size] = end;
+		strands[size] = (byte)strand;
+		size++;
+		blockOffsets[size] = blockNumber;
+		if (size >= cacheCapacity) {
+			flushCache();
+		}
+	}
+	
+	/**
+	 * Add a read with the aligned blocks computed by the last call of alignmentBlocks().
+	 * @param blockCount the number of aligned blocks. The blocks are only stored if there are more than one.
+	 */
+	void add(int referenceId, int start, int end, int strand, int blockCount) {
+		if (blockCount > 1) {
+			if (blockNumber + blockCount > blockStarts.length) {
+				int length = Math.max(blockNumber + blockCount, blockStarts.length * 2);
+				blockStarts = Arrays.copyOf(blockStarts, length);
+				blockEnds = Arrays.copyOf(blockEnds, length);
+			}
+			System.arraycopy(readBlockStarts, 0, blockStarts, blockNumber, blockCount);
+			System.arraycopy(readBlockEnds, 0, blockEnds, blockNumber, blockCount);
+			blockNumber += blockCount;
+		}
+		add(referenceId, start, end, strand);
+	}
+	
+	/**
+	 * Split the alignment of a read at the deletions (D) and the skipped regions (N) of its 
+	 * CIGAR. The blocks are stored in readBlockStarts() and readBlockEnds() until the next read.
+	 * @param r the read
+	 * @return the number of aligned blocks
+	 */
+	int alignmentBlocks(SAMRecord r) {
+		int blockCount = 0;
+		int position = r.getAlignmentStart();
+		int blockStart = position;
+		for (CigarElement element : r.getCigar().getCigarElements()) {
+			if (element.getOperator() == CigarOperator.N || element.getOperator() == CigarOperator.D) {
+				if (position > blockStart) {
+					blockCount = addReadBlock(blockCount, blockStart, position - 1);
+				}
+				position += element.getLength();
+				blockStart = position;
+			}
+			else if (element.getOperator().consumesReferenceBases()) {
+				position += element.getLength();
+			}
+		}
+		if (position > blockStart) {
+			blockCount = addReadBlock(blockCount, blockStart, position - 1);
+		}
+		return blockCount;
+	}
+	
+	/**
+	 * Split the alignment of a read at the deletions (D) and the skipped regions (N) of its 
+	 * CIGAR. The blocks are stored in readBlockStarts() and readBlockEnds() until the next read.
+	 * @param r the read
+	 * @return the number of aligned blocks
+	 */
+	int alignmentBlocks(BAMRecordView r) {
+		int blockCount = r.getAlignmentBlocks(readBlockStarts, readBlockEnds);
+		if (blockCount > readBlockStarts.length) {
+			readBlockStarts = new int[blockCount * 2];
+			readBlockEnds = new int[blockCount * 2];
+			r.getAlignmentBlocks(readBlockStarts, readBlockEnds);
+		}
+		return blockCount;
+	}
+	
+	private int addReadBlock(int blockCount, int blockStart, int blockEnd) {
+		if (blockCount == readBlockStarts.length) {
+			readBlockStarts = Arrays.copyOf(readBlockStarts, blockCount * 2);
+			readBlockEnds = Arrays.copyOf(readBlockEnds, blockCount * 2);
+		}
+		readBlockStarts[blockCount] = blockStart;
+		readBlockEnds[blockCount] = blockEnd;
+		return blockCount + 1;
+	}
+	
+	int [] readBlockStarts() {
+		return readBlockStarts;
+	}
+	
+	int [] readBlockEnds() {
+		return readBlockEnds;
+	}
+	
+	/**
+	 * Return the reference id of a read in the AnnotationSet. After the first read on a reference, 
+	 * this is an array lookup by the reference index of the read.
+	 * @param r the read
+	 * @return the reference id, or -1 if the read is not placed
+	 */
+	int referenceId(SAMRecord r) {
+		if (r.getHeader() != null) {
+			Integer index = r.getReferenceIndex();
+			if (index != null && index.intValue() >= 0) {
+				return dictionaryReferenceId(index.intValue(), r.getReferenceName());
+			}
+		}
+		// the reference is not in the sequence dictionary, or there is no header
+		return unlistedReferenceId(r.getReferenceName());
+	}
+	
+	/**
+	 * Return the reference id of a read in the AnnotationSet.
+	 * @param r the read
+	 * @return the reference id, or -1 if the read is not placed
+	 */
+	int referenceId(BAMRecordView r) {
+		int index = r.getReferenceIndex();
+		if (index < 0) {
+			return -1;
+		}
+		if (index < dictionaryReferenceIds.length && dictionaryReferenceIds[index] >= 0) {
+			return dictionaryReferenceIds[index];
+		}
+		// the name is only resolved for the first read on a reference
+		return dictionaryReferenceId(index, r.getReferenceName());
+	}
+	
+	private int dictionaryReferenceId(int index, String referenceName) {
+		if (index < dictionaryReferenceIds.length) {
+			int id = dictionaryReferenceIds[index];
+			if (id >= 0) {
+				return id;
+			}
+		}
+		else {
+			int oldLength = dictionaryReferenceIds.length;
+			dictionaryReferenceIds = Arrays.copyOf(dictionaryReferenceIds, Math.max(index + 1, oldLength * 2));
+			Arrays.fill(dictionaryReferenceIds, oldLength, dictionaryReferenceIds.length, -1);
+		}
+		dictionaryReferenceIds[index] = annotationSet.referenceId(referenceName);
+		return dictionaryReferenceIds[index];
+	}
+	
+	private int unlistedReferenceId(String referenceName) {
+		if (referenceName.equals(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME)) {
+			return -1;
+		}
+		if (unlistedReferenceIds == null) {
+			unlistedReferenceIds = new HashMap<String, Integer>();
+		}
+		Integer id = unlistedReferenceIds.get(referenceName);
+		if (id == null) {
+			id = annotationSet.referenceId(referenceName);
+			unlistedReferenceIds.put(referenceName, id);
+		}
+		return id;
+	}
+	
+	public void flushCache() {
+		if (size == 0) {
+			return;
+		}
+		sort();
+		annotationSet.processCachedSequences(this);
+		size = 0;
+		blockNumber = 0;
+	}
+	
+	/**
+	 * Sort the reads by reference id and start. The unplaced reads come first.
+	 */
+	private void sort() {
+		for (int i=0; i<size; i++) {
+			keys[i] = ((long)(referenceIds[i] + 1) << 32) | (starts[i] & 0xffffffffL);
+			order[i] = i;
+		}
+		for (int shift=0; shift<64; shift+=RADIX_BITS) {
+			Arrays.fill(radixCounts, 0);
+			for (int i=0; i<size; i++) {
+				radixCounts[(int)(keys[i] >>> shift) & RADIX_MASK]++;
+			}
+			// skip the digits which are the same for all the reads
+			if (radixCounts[(int)(keys[0] >>> shift) & RADIX_MASK] == size) {
+				continue;
+			}
+			int position = 0;
+			for (int d=0; d<radixCounts.length; d++) {
+				int count = radixCounts[d];
+				radixCounts[d] = position;
+				position += count;
+			}
+			for (int i=0; i<size; i++) {
+				int p = radixCounts[(int)(keys[i] >>> shift) & RADIX_MASK]++;
+				keyBuffer[p] = keys[i];
+				orderBuffer[p] = order[i];
+			}
+			long [] swapKeys = keys;
+			keys = keyBuffer;
+			keyBuffer = swapKeys;
+			int [] swapOrder = order;
+			order = orderBuffer;
+			orderBuffer = swapOrder;
+		}
+	}
+	
+	/** Return the number of cached reads. */
+	int size() {
+		return size;
+	}
+	
+	/** Return the reference id of the i-th read in sorted order, or -1 if the read is not placed. */
+	int referenceId(int i) {
+		return referenceIds[order[i]];
+	}
+	
+	/** Return the start of the i-th read in sorted order. */
+	int start(int i) {
+		return starts[order[i]];
+	}
+	
+	/** Return the end of the i-th read in sorted order. */
+	int end(int i) {
+		return ends[order[i]];
+	}
+	
+	/** Return the strand of the i-th read in sorted order. */
+	int strand(int i) {
+		return strands[order[i]];
+	}
+	
+	/** Return the number of aligned blocks of the i-th read in sorted order, or 0 if the read has a single block. */
+	int blockCount(int i) {
+		return blockOffsets[order[i] + 1] - blockOffsets[order[i]];
+	}
+	
+	/** Return the position in blockStarts() and blockEnds() of the first block of the i-th read in sorted order. */
+	int blockOffset(int i) {
+		return blockOffsets[order[i]];
+	}
+	
+	int [] blockStarts() {
+		return blockStarts;
+	}
+	
+	int [] blockEnds() {
+		return blockEnds;
+	}
+	
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+/**
+ * The bases of a reference sequence (a chromosome), as read from an IndexedFastaFile.
+ * The bases are upper case A, C, G and T, and any other base is N.
+ */
+public interface ReferenceSequence {
+
+	/** Return the name of the sequence. */
+	public String name();
+
+	/** Return the number of bases of the sequence. */
+	public int length();
+
+	/**
+	 * Return a base of the sequence.
+	 * @param position the 0-based position of the base, lower than length()
+	 * @return A, C, G, T or N
+	 */
+	public byte base(int position);
+
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.DataTypes.Genome;
+
+import java.util.BitSet;
+
+/**
+ * Finds the features overlapping reads sorted by coordinate, without caching or sorting them. 
+ * The features of the current chromosome are visited in order of start: a feature enters 
+ * the window of active features when a read ends after its start, and it is retired once 
+ * the reads start after its end. The window stays in order of start, so a read only scans 
+ * the features starting before its end: these either overlap the read or are retired. As the 
+ * read starts only move forward, each feature enters and leaves the window once, and the cost 
+ * of a read is O(1 + k) amortised for k overlapping features. The features entered for a longer 
+ * previous read and starting after the end of the read are only moved when features are retired.
+ * If a read arrives out of order, it is rejected so that the caller can fall back to a ReadCache.
+ */
+final class SweepLineCounter {
+
+	private final FeatureCounter featureCounter;
+	
+	// The references already swept, by reference id. A read on one of these is out of order.
+	private final BitSet sweptReferences = new BitSet();
+	private int referenceId = -1;
+	private AnnotationIndex.ChromosomeFeatures chromosomeFeatures = null;
+	private int lastStart = Integer.MIN_VALUE;
+	
+	// The next feature, in order of start, to enter the window.
+	private int next = 0;
+	// The positions (in order of start) of the active features.
+	private int [] active = new int[64];
+	private int activeNumber = 0;
+	// The positions of the active features overlapping the current read.
+	private int [] hits = new int[64];
+	
+	
+	SweepLineCounter(FeatureCounter featureCounter) {
+		this.featureCounter = featureCounter;
+	}
+	
+	/**
+	 * Count the features overlapping a read.
+	 * @param referenceId the reference id of the read
+	 * @param chromosomeFeatures the features of the reference, or null if it has no features
+	 * @param alignmentStart the start of the read
+	 * @param alignmentEnd the end of the read
+	 * @param strand the strand of the read, or Location.UNKNOWN
+	 * @return false if the read is out of order. In this case the read is not counted.
+	 */
+	boolean processSequence(int referenceId, AnnotationIndex.ChromosomeFeatures chromosomeFeatures, int alignmentStart, int alignmentEnd, int strand) {
+		if (referenceId != this.referenceId) {
+			if (sweptReferences.get(referenceId)) {
+				return false;
+			}
+			if (this.referenceId >= 0) {
+				sweptReferences.set(this.referenceId);
+			}
+			this.referenceId = referenceId;
+			this.chromosomeFeatures = chromosomeFeatures;
+			lastStart = Integer.MIN_VALUE;
+			next = 0;
+			activeNumber = 0;
+		}
+		else if (alignmentStart < lastStart) {
+			return false;
+		}
+		lastStart = alignmentStart;
+		if (chromosomeFeatures == null) {
+			return true;
+		}
+		
+		FeatureIntervals intervals = chromosomeFeatures.intervals;
+		// the features starting before the end of the read enter the window
+		int size = intervals.size();
+		while (next < size && intervals.start(next) < alignmentEnd) {
+			if (activeNumber == active.length) {
+				int [] newActive = new int[active.length * 2];
+				System.arraycopy(active, 0, newActive, 0, activeNumber);
+				active = newActive;
+			}
+			active[activeNumber++] = next++;
+		}
+		if (hits.length < activeNumber) {
+			hits = new int[active.length];
+		}
+		
+		// retire the features ending before the start of the read, and collect the overlapping ones. 
+		// A feature in the window can start after the end of a read shorter than a previous one: 
+		// the scan stops there, as these features and the following ones cannot overlap the read.
+		int kept = 0;
+		int hitNumber = 0;
+		int i = 0;
+		for (; i<activeNumber; i++) {
+			int feature = active[i];
+			if (intervals.start(feature) >= alignmentEnd) {
+				break;
+			}
+			if (intervals.end(feature) > alignmentStart) {
+				active[kept++] = feature;
+				hits[hitNumber++] = feature;
+			}
+		}
+		if (kept < i) {
+			System.arraycopy(active, i, active, kept, activeNumber - i);
+		}
+		activeNumber = kept + activeNumber - i;
+		
+		if (hitNumber > 0) {
+			featureCounter.countHits(chromosomeFeatures, hits, hitNumber, strand);
+		}
+		return true;
+	}
+	
+}
@@ -35,6 +35,8 @@ import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 import javax.swing.table.TableModel;
 
+import net.sf.samtools.SAMRecord;
+
 import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
 import uk.ac.babraham.BamQC.Utilities.ImageToBase64;
 
@@ -45,6 +47,17 @@ import uk.ac.babraham.BamQC.Utilities.ImageToBase64;
  */
 public abstract class AbstractQCModule implements QCModule {
 
+	/**
+	 * Process a batch of SAMRecords by calling processSequence() on each of them. 
+	 * Modules can override this method with a more efficient implementation.
+	 */
+	@Override
+	public void processBatch(SAMRecord[] reads, int count) {
+		for (int i=0; i<count; i++) {
+			processSequence(reads[i]);
+		}
+	}
+
 	protected void simpleXhtmlReport(HTMLReportArchive report,BufferedImage img,String alt) throws XMLStreamException {
 		XMLStreamWriter xhtml = report.xhtmlStream();
 		xhtml.writeStartElement("p");
@@ -36,11 +36,13 @@ import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableModel;
 import javax.xml.stream.XMLStreamException;
 
+import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMRecord;
 import uk.ac.babraham.BamQC.BamQCConfig;
 import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
 import uk.ac.babraham.BamQC.DataTypes.Genome.Chromosome;
 import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
 import uk.ac.babraham.BamQC.Sequence.SequenceFile;
 import uk.ac.babraham.BamQC.Utilities.MultiLineTableCellRenderer;
 
@@ -49,7 +51,7 @@ import uk.ac.babraham.BamQC.Utilities.MultiLineTableCellRenderer;
  * @author Piero Dalle Pezze
  *
  */
-public class BasicStatistics extends AbstractQCModule {
+public class BasicStatistics extends AbstractQCModule implements RecordViewProcessor, MergeableModule, DependentModule {
 
 	private String filename = "";
 	private boolean headerParsed = false;
@@ -66,6 +68,8 @@ public class BasicStatistics extends AbstractQCModule {
 	private long duplicateCount = 0;
 	private long qcFailCount = 0;
 	private long singletonCount = 0;
+	// the flags of the current batch of reads.
+	private int[] batchFlags = new int[0];
 	
 	private long totalSplicedReads = 0;
 	private long totalSkippedReads = 0;
@@ -156,10 +160,72 @@ public class BasicStatistics extends AbstractQCModule {
 
 	@Override
 	public void processSequence(SAMRecord sequence) {
-		
+		processFlags(sequence.getHeader(), sequence.getFlags());
+	}
+	
+	@Override
+	public void processRecordView(BAMRecordView sequence) {
+		processFlags(sequence.getHeader(), sequence.getFlags());
+	}
+	
+	@Override
+	public void processBatch(SAMRecord[] sequences, int count) {
+		if (count == 0) return;
+		parseHeader(sequences[0].getHeader());
+		int[] flags = batchFlags(count);
+		for (int i=0; i<count; i++) {
+			flags[i] = sequences[i].getFlags();
+		}
+		processFlagBatch(flags, count);
+	}
+	
+	@Override
+	public void processRecordViews(BAMRecordView[] sequences, int count) {
+		if (count == 0) return;
+		parseHeader(sequences[0].getHeader());
+		int[] flags = batchFlags(count);
+		for (int i=0; i<count; i++) {
+			flags[i] = sequences[i].getFlags();
+		}
+		processFlagBatch(flags, count);
+	}
+	
+	private int[] batchFlags(int count) {
+		if (batchFlags.length < count) {
+			batchFlags = new int[count];
+		}
+		return batchFlags;
+	}
+	
+	private void processFlagBatch(int[] flags, int count) {
+		long primary = 0, paired = 0, properPair = 0, singleton = 0, unmapped = 0, qcFail = 0, duplicate = 0;
+		for (int i=0; i<count; i++) {
+			int f = flags[i];
+			if ((f & (BAMRecordView.NOT_PRIMARY_ALIGNMENT | BAMRecordView.SUPPLEMENTARY_ALIGNMENT)) == 0) primary++;
+			boolean isUnmapped = (f & BAMRecordView.READ_UNMAPPED) != 0;
+			if ((f & BAMRecordView.READ_PAIRED) != 0) {
+				paired++;
+				if ((f & BAMRecordView.PROPER_PAIR) != 0) properPair++;
+				if ((f & BAMRecordView.MATE_UNMAPPED) != 0 && !isUnmapped) singleton++;
+			}
+			if (isUnmapped) unmapped++;
+			if ((f & BAMRecordView.READ_FAILS_VENDOR_QUALITY_CHECK) != 0) qcFail++;
+			if ((f & BAMRecordView.DUPLICATE_READ) != 0) duplicate++;
+		}
+		actualCount += count;
+		primaryCount += primary;
+		pairedCount += paired;
+		properPairCount += properPair;
+		singletonCount += singleton;
+		unmappedCount += unmapped;
+		qcFailCount += qcFail;
+		duplicateCount += duplicate;
+	}
+	
+	private void parseHeader(SAMFileHeader header) {
 		// extract the method used for generating the SAM/BAM file if present in the header file.
 		if(!headerParsed) {
-			String fullHeader = sequence.getHeader().getTextHeader();
+			String fullHeader = header.getTextHeader();
 			if(fullHeader != null) {
 				String[] headerLines = fullHeader.split("@");
 				for(int i=0; i<headerLines.length; i++) {
@@ -170,25 +236,56 @@ public class BasicStatistics extends AbstractQCModule {
 			}
 			headerParsed = true;
 		}
+	}
+	
+	private void processFlags(SAMFileHeader header, int flags) {
 		
+		parseHeader(header);
 		
 		actualCount++;
-		if (!sequence.isSecondaryOrSupplementary()) {
+		if ((flags & (BAMRecordView.NOT_PRIMARY_ALIGNMENT | BAMRecordView.SUPPLEMENTARY_ALIGNMENT)) == 0) {
 			++primaryCount;
 		}
 		
-		if (sequence.getReadPairedFlag()) {
+		boolean unmapped = (flags & BAMRecordView.READ_UNMAPPED) != 0;
+		if ((flags & BAMRecordView.READ_PAIRED) != 0) {
 			pairedCount++;
-			if (sequence.getProperPairFlag()) properPairCount++;
-			if (sequence.getMateUnmappedFlag() && ! sequence.getReadUnmappedFlag()) singletonCount++;
+			if ((flags & BAMRecordView.PROPER_PAIR) != 0) properPairCount++;
+			if ((flags & BAMRecordView.MATE_UNMAPPED) != 0 && !unmapped) singletonCount++;
 		}
 		
-		if (sequence.getReadUnmappedFlag()) unmappedCount++;
-		if (sequence.getReadFailsVendorQualityCheckFlag()) qcFailCount++;
-		if (sequence.getDuplicateReadFlag()) duplicateCount++;
+		if (unmapped) unmappedCount++;
+		if ((flags & BAMRecordView.READ_FAILS_VENDOR_QUALITY_CHECK) != 0) qcFailCount++;
+		if ((flags & BAMRecordView.DUPLICATE_READ) != 0) duplicateCount++;
 		
 	}
 	
+	/**
+	 * Merge the read counters. The variant call statistics are taken from the 
+	 * VariantCallDetection module, which must be merged separately.
+	 */
+	@Override
+	public void merge(QCModule other) {
+		BasicStatistics basicStatistics = (BasicStatistics)other;
+		if(!headerParsed && basicStatistics.headerParsed) {
+			command = basicStatistics.command;
+			headerParsed = true;
+		}
+		actualCount += basicStatistics.actualCount;
+		primaryCount += basicStatistics.primaryCount;
+		pairedCount += basicStatistics.pairedCount;
+		properPairCount += basicStatistics.properPairCount;
+		unmappedCount += basicStatistics.unmappedCount;
+		duplicateCount += basicStatistics.duplicateCount;
+		qcFailCount += basicStatistics.qcFailCount;
+		singletonCount += basicStatistics.singletonCount;
+	}
+	
+	@Override
+	public QCModule getDependency() {
+		return vcd;
+	}
+	
 	@Override
 	public void processFile (SequenceFile file) {
 		this.filename = file.name();
@@ -47,7 +47,7 @@ import uk.ac.babraham.BamQC.Sequence.SequenceFile;
  * @author Piero Dalle Pezze
  *
  */
-public class ChromosomeReadDensity extends AbstractQCModule {
+public class ChromosomeReadDensity extends AbstractQCModule implements MergeableModule {
 
 	private String [] chromosomeNames;
 	private double [] readNumber;
@@ -56,6 +56,11 @@ public class ChromosomeReadDensity extends AbstractQCModule {
 	@Override
 	public void processSequence(SAMRecord read) {}
 
+	@Override
+	public void merge(QCModule other) {
+		// The results are computed from the AnnotationSet, which collects the reads of all the partitions.
+	}
+	
 	@Override
 	public void processFile(SequenceFile file) {}
 	
@@ -42,7 +42,7 @@ import uk.ac.babraham.BamQC.Sequence.SequenceFile;
  * @author Piero Dalle Pezze
  *
  */
-public class FeatureCoverage extends AbstractQCModule {
+public class FeatureCoverage extends AbstractQCModule implements MergeableModule {
 
 	private String [] featureNames = null;
 	
@@ -53,6 +53,11 @@ public class FeatureCoverage extends AbstractQCModule {
 	@Override
 	public void processSequence(SAMRecord read) {}
 
+	@Override
+	public void merge(QCModule other) {
+		// The results are computed from the AnnotationSet, which collects the reads of all the partitions.
+	}
+	
 	@Override
 	public void processFile(SequenceFile file) {}
 
@@ -77,7 +82,7 @@ public class FeatureCoverage extends AbstractQCModule {
 				else {
 					names.add(""+featureNames[i]+"_"+subclasses[s]);
 				}
-				values.add((float)annotation.getFeatureClassForType(featureNames[i]).getSubclassForName(subclasses[s]).count());
+				values.add((float)annotation.getFeatureCount(fc.getSubclassForName(subclasses[s])));
 			}			
 		}
 		
@@ -0,0 +1,314 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
+import javax.xml.stream.XMLStreamException;
+
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationIndex;
+import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
+import uk.ac.babraham.BamQC.DataTypes.Genome.Location;
+import uk.ac.babraham.BamQC.Graphs.HorizontalBarGraph;
+import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.SequenceFile;
+
+/**
+ * Reports the number of reads of each annotation feature (e.g. each gene and transcript).
+ * The reads are counted by the AnnotationSet in the same pass as the feature types, so this
+ * module only collects the counts. The counts of all the features are exported to the file
+ * feature_read_counts.txt of the report, whereas the report shows the number of detected genes
+ * and the share of the reads of the top genes. If the annotation has no features of type "gene",
+ * all the features are considered as genes.
+ */
+public class FeatureReadCounts extends AbstractQCModule implements MergeableModule {
+
+	private static final String GENE_TYPE = "gene";
+
+	private static final String COUNTS_FILE_NAME = "feature_read_counts.txt";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int topGeneNumber = ModuleConfig.getParam("FeatureReadCounts_top_genes", "ignore").intValue();
+
+	private AnnotationIndex index = null;
+
+	// The number of reads of each feature, by feature number.
+	private int [] readCounts = null;
+
+	private int geneNumber = 0;
+	private int detectedGeneNumber = 0;
+	private long geneReadNumber = 0;
+
+	// The genes with most reads, in decreasing order of reads.
+	private int [] topGenes = new int[0];
+
+
+	@Override
+	public void processSequence(SAMRecord read) {}
+
+	@Override
+	public void merge(QCModule other) {
+		// The results are computed from the AnnotationSet, which collects the reads of all the partitions.
+	}
+
+	@Override
+	public void processFile(SequenceFile file) {}
+
+	@Override
+	public void processAnnotationSet(AnnotationSet annotation) {
+		if (!annotation.hasFeatures()) {
+			return;
+		}
+		index = annotation.index();
+		readCounts = new int[index.featureCount()];
+		boolean hasGenes = false;
+		for (int i=0; i<readCounts.length; i++) {
+			readCounts[i] = annotation.getFeatureReadCount(i);
+			if (!hasGenes && index.featureType(i).equals(GENE_TYPE)) {
+				hasGenes = true;
+			}
+		}
+
+		// keep the top genes sorted by insertion, as they are few
+		int [] top = new int[Math.max(0, topGeneNumber)];
+		int topNumber = 0;
+		for (int i=0; i<readCounts.length; i++) {
+			if (hasGenes && !index.featureType(i).equals(GENE_TYPE)) {
+				continue;
+			}
+			geneNumber++;
+			geneReadNumber += readCounts[i];
+			if (readCounts[i] == 0) {
+				continue;
+			}
+			detectedGeneNumber++;
+			if (topNumber < top.length || (top.length > 0 && readCounts[i] > readCounts[top[topNumber-1]])) {
+				int p = topNumber < top.length ? topNumber++ : topNumber-1;
+				while (p > 0 && readCounts[top[p-1]] < readCounts[i]) {
+					top[p] = top[p-1];
+					p--;
+				}
+				top[p] = i;
+			}
+		}
+		topGenes = new int[topNumber];
+		System.arraycopy(top, 0, topGenes, 0, topNumber);
+	}
+
+	@Override
+	public JPanel getResultsPanel() {
+		String [] names = new String[topGenes.length];
+		double [] counts = new double[topGenes.length];
+		for (int i=0; i<topGenes.length; i++) {
+			names[i] = index.featureName(topGenes[i]);
+			counts[i] = readCounts[topGenes[i]];
+		}
+		return new HorizontalBarGraph(names, counts, "Number of Reads", "Top Gene Read Counts");
+	}
+
+	@Override
+	public String name() {
+		return "Feature Read Counts";
+	}
+
+	@Override
+	public String description() {
+		return "Tells how many reads each gene and transcript has";
+	}
+
+	@Override
+	public void reset() {
+		index = null;
+		readCounts = null;
+		geneNumber = 0;
+		detectedGeneNumber = 0;
+		geneReadNumber = 0;
+		topGenes = new int[0];
+	}
+
+	@Override
+	public boolean raisesError() {
+		return false;
+	}
+
+	@Override
+	public boolean raisesWarning() {
+		return detectedGeneNumber == 0;
+	}
+
+	@Override
+	public boolean needsToSeeSequences() {
+		return false;
+	}
+
+	@Override
+	public boolean needsToSeeAnnotation() {
+		return true;
+	}
+
+	@Override
+	public boolean ignoreInReport() {
+		if(ModuleConfig.getParam("FeatureReadCounts", "ignore") > 0 || readCounts == null || readCounts.length == 0) {
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void makeReport(HTMLReportArchive report) throws XMLStreamException, IOException {
+		if(readCounts == null) { return; }
+
+		// note: the following method generates both the HTML code and the text report.
+		super.writeTable(report, new ResultsTable());
+		if(topGenes.length > 0) {
+			super.writeDefaultImage(report, "feature_read_counts.png", "Top Gene Read Counts", 800, 600);
+		}
+
+		// the counts of all the features are exported as a separate table
+		ZipOutputStream zip = report.zipFile();
+		zip.putNextEntry(new ZipEntry(report.folderName()+"/"+COUNTS_FILE_NAME));
+		StringBuilder sb = new StringBuilder();
+		sb.append("Feature_name\tFeature_type\tFeature_subclass\tChromosome\tStart\tEnd\tStrand\tRead_count\n");
+		for (int i=0; i<readCounts.length; i++) {
+			Location location = index.featureLocation(i);
+			sb.append(index.featureName(i)).append('\t');
+			sb.append(index.featureType(i)).append('\t');
+			sb.append(index.featureSubclass(i)).append('\t');
+			sb.append(index.featureChromosomeName(i)).append('\t');
+			sb.append(location.start()).append('\t');
+			sb.append(location.end()).append('\t');
+			sb.append(location.strand() == Location.FORWARD ? '+' : location.strand() == Location.REVERSE ? '-' : '.').append('\t');
+			sb.append(readCounts[i]).append('\n');
+			// write the table in chunks, as it can be large
+			if (sb.length() > 1 << 16) {
+				zip.write(sb.toString().getBytes(UTF8));
+				sb.setLength(0);
+			}
+		}
+		zip.write(sb.toString().getBytes(UTF8));
+		zip.closeEntry();
+	}
+
+	/** Return the number of genes (or of features, if the annotation has no genes). */
+	public int getGeneNumber() {
+		return geneNumber;
+	}
+
+	/** Return the number of genes with at least one read. */
+	public int getDetectedGeneNumber() {
+		return detectedGeneNumber;
+	}
+
+	/** Return the percentage of the gene reads which are on the top genes. */
+	public double getTopGeneReadPercentage() {
+		if (geneReadNumber == 0) {
+			return 0d;
+		}
+		long topGeneReadNumber = 0;
+		for (int i=0; i<topGenes.length; i++) {
+			topGeneReadNumber += readCounts[topGenes[i]];
+		}
+		return 100d * topGeneReadNumber / geneReadNumber;
+	}
+
+	/** Return the names of the genes with most reads, in decreasing order of reads. */
+	public String[] getTopGeneNames() {
+		String [] names = new String[topGenes.length];
+		for (int i=0; i<topGenes.length; i++) {
+			names[i] = index.featureName(topGenes[i]);
+		}
+		return names;
+	}
+
+	/** Return the number of reads of each feature, by feature number in the AnnotationIndex. */
+	public int[] getReadCounts() {
+		return readCounts;
+	}
+
+
+	/**
+	 * The table of the summary statistics of the feature read counts.
+	 */
+	private class ResultsTable extends AbstractTableModel {
+		private static final long serialVersionUID = -4370620453728195071L;
+
+		private ArrayList<String> rowNames = new ArrayList<String>();
+		private ArrayList<String> rowValues = new ArrayList<String>();
+
+		public ResultsTable() {
+			super();
+			rowNames.add("Features");
+			rowValues.add(String.valueOf(readCounts.length));
+			rowNames.add("Genes");
+			rowValues.add(String.valueOf(geneNumber));
+			rowNames.add("Detected genes");
+			rowValues.add(String.valueOf(detectedGeneNumber));
+			rowNames.add("Gene read counts");
+			rowValues.add(String.valueOf(geneReadNumber));
+			rowNames.add("Top " + topGenes.length + " genes read share (%)");
+			rowValues.add(String.format("%.3f", getTopGeneReadPercentage()));
+			rowNames.add("Feature read counts file");
+			rowValues.add(COUNTS_FILE_NAME);
+		}
+
+		@Override
+		public int getColumnCount() {
+			return 2;
+		}
+
+		@Override
+		public int getRowCount() {
+			return rowNames.size();
+		}
+
+		@Override
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			if(columnIndex == 0)
+				return rowNames.get(rowIndex);
+			else if(columnIndex == 1)
+				return rowValues.get(rowIndex);
+			else
+				return null;
+		}
+
+		@Override
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Measure";
+				case 1: return "Value";
+			}
+			return null;
+		}
+
+		@Override
+		public Class<?> getColumnClass (int columnIndex) {
+			return String.class;
+		}
+	}
+
+}
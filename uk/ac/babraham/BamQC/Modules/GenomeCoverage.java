@@ -25,15 +25,20 @@
 package uk.ac.babraham.BamQC.Modules;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.swing.JPanel;
+import javax.swing.table.AbstractTableModel;
 import javax.xml.stream.XMLStreamException;
 
 import net.sf.samtools.SAMRecord;
 
 import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
+import uk.ac.babraham.BamQC.DataTypes.Genome.BaseCoverage;
 import uk.ac.babraham.BamQC.DataTypes.Genome.Chromosome;
 import uk.ac.babraham.BamQC.Graphs.LineWithHorizontalBarGraph;
 import uk.ac.babraham.BamQC.Graphs.SeparateLineGraph;
@@ -42,8 +47,13 @@ import uk.ac.babraham.BamQC.Sequence.SequenceFile;
 import uk.ac.babraham.BamQC.Statistics.SimpleStats;
 import uk.ac.babraham.BamQC.Modules.ModuleConfig;
 
-public class GenomeCoverage extends AbstractQCModule {
+public class GenomeCoverage extends AbstractQCModule implements MergeableModule {
 
+	// The depths of the breadth of coverage
+	private static final int [] BREADTH_DEPTHS = {1, 10, 30};
+	
+	private static final String DEPTH_FILE_NAME = "depth_histogram.txt";
+	
 	private int plotTypeChromosomesThreshold = ModuleConfig.getParam("GenomeCoverage_plot_type_chromosomes_threshold", "ignore").intValue();
 
 	private String [] chromosomeNames = null;
@@ -53,11 +63,22 @@ public class GenomeCoverage extends AbstractQCModule {
 	
 	private int maxBins = 1;
 	
+	// The depth of coverage of the bases of all the chromosomes
+	private long [] depthHistogram = null;
+	private long genomeLength = 0;
+	private long alignedBases = 0;
+	private boolean baseResolution = true;
+	
 
 
 	@Override
 	public void processSequence(SAMRecord read) { }
 
+	@Override
+	public void merge(QCModule other) {
+		// The results are computed from the AnnotationSet, which collects the reads of all the partitions.
+	}
+	
 	@Override
 	public void processFile(SequenceFile file) { }
 
@@ -76,6 +97,10 @@ public class GenomeCoverage extends AbstractQCModule {
 		chromosomeNames = null;
 		binCounts = null;
 		coverage = null;
+		depthHistogram = null;
+		genomeLength = 0;
+		alignedBases = 0;
+		baseResolution = true;
 	}
 
 	@Override
@@ -148,7 +173,7 @@ public class GenomeCoverage extends AbstractQCModule {
 		for (int c=0;c<chromosomes.length;c++) {
 			chromosomeNames[c] = chromosomes[c].name();
 //			System.out.println("Chromosome is " + chromosomes[c].name());
-			coverage = chromosomes[c].getBinCountData();
+			coverage = chromosomes[c].getBaseCountData();
 			binCounts[c] = new double[binsToUse];
 			
 			int [] replicateCounts = new int[binsToUse];
@@ -201,6 +226,33 @@ public class GenomeCoverage extends AbstractQCModule {
 			}
 			
 		}
+		
+		computeDepthHistogram(chromosomes);
+	}
+	
+	/**
+	 * Sum the depths of coverage of the bases of the chromosomes. The chromosomes without reads 
+	 * have depth 0.
+	 */
+	private void computeDepthHistogram(Chromosome [] chromosomes) {
+		depthHistogram = new long[BaseCoverage.MAX_DEPTH+1];
+		genomeLength = 0;
+		alignedBases = 0;
+		baseResolution = true;
+		for (int c=0;c<chromosomes.length;c++) {
+			genomeLength += chromosomes[c].length();
+			BaseCoverage baseCoverage = chromosomes[c].getBaseCoverage();
+			if (baseCoverage == null) {
+				depthHistogram[0] += chromosomes[c].length();
+				continue;
+			}
+			alignedBases += baseCoverage.alignedBases();
+			baseResolution = baseResolution && baseCoverage.isBaseResolution();
+			long [] chromosomeHistogram = baseCoverage.depthHistogram();
+			for (int d=0;d<chromosomeHistogram.length;d++) {
+				depthHistogram[d] += chromosomeHistogram[d];
+			}
+		}
 	}
 
 	@Override
@@ -298,6 +350,24 @@ public class GenomeCoverage extends AbstractQCModule {
 
 		if(chromosomeNames == null || chromosomeNames.length == 0 || maxBins == 1) { return; }
 	
+		// note: the following method generates both the HTML code and the text report.
+		super.writeTable(report, new ResultsTable());
+		
+		// the depth histogram is exported as a separate table
+		ZipOutputStream zip = report.zipFile();
+		zip.putNextEntry(new ZipEntry(report.folderName()+"/"+DEPTH_FILE_NAME));
+		StringBuilder depths = new StringBuilder();
+		depths.append("Depth\tBases\n");
+		int maxDepth = depthHistogram.length - 1;
+		while (maxDepth > 0 && depthHistogram[maxDepth] == 0) {
+			maxDepth--;
+		}
+		for (int d=0;d<=maxDepth;d++) {
+			depths.append(d == BaseCoverage.MAX_DEPTH ? ">=" + d : String.valueOf(d)).append("\t").append(depthHistogram[d]).append("\n");
+		}
+		zip.write(depths.toString().getBytes());
+		zip.closeEntry();
+		
 		StringBuffer sb = report.dataDocument();
 		sb.append("Chromosome_name\tGenome_position\n");
 		sb.append("Name\t");
@@ -324,4 +394,110 @@ public class GenomeCoverage extends AbstractQCModule {
 		return coverage;
 	}
 	
+	/** Return the number of bases of each depth of coverage, up to BaseCoverage.MAX_DEPTH. */
+	public long[] getDepthHistogram() {
+		return depthHistogram;
+	}
+	
+	/** 
+	 * Return true if the depths of coverage were counted for each base, or false if they were 
+	 * estimated from windows of bases because the reads were not sorted. 
+	 */
+	public boolean isBaseResolution() {
+		return baseResolution;
+	}
+	
+	/** Return the mean depth of coverage of the bases. */
+	public double getMeanDepth() {
+		if (genomeLength == 0) {
+			return 0d;
+		}
+		return alignedBases / (double)genomeLength;
+	}
+	
+	/** Return the median depth of coverage of the bases. */
+	public int getMedianDepth() {
+		long bases = 0;
+		for (int d=0;d<depthHistogram.length;d++) {
+			bases += depthHistogram[d];
+			if (bases * 2 >= genomeLength) {
+				return d;
+			}
+		}
+		return depthHistogram.length - 1;
+	}
+	
+	/** Return the percentage of the bases covered by at least minDepth reads. */
+	public double getBreadth(int minDepth) {
+		if (genomeLength == 0) {
+			return 0d;
+		}
+		long bases = 0;
+		for (int d=Math.min(minDepth, depthHistogram.length-1);d<depthHistogram.length;d++) {
+			bases += depthHistogram[d];
+		}
+		return 100d * bases / genomeLength;
+	}
+	
+	
+	/**
+	 * The table of the statistics of the depth of coverage.
+	 */
+	private class ResultsTable extends AbstractTableModel {
+		private static final long serialVersionUID = 3140853627309541870L;
+
+		private ArrayList<String> rowNames = new ArrayList<String>();
+		private ArrayList<String> rowValues = new ArrayList<String>();
+
+		public ResultsTable() {
+			super();
+			rowNames.add("Mean depth");
+			rowValues.add(String.format("%.3f", getMeanDepth()));
+			rowNames.add("Median depth");
+			rowValues.add(String.valueOf(getMedianDepth()));
+			for (int i=0;i<BREADTH_DEPTHS.length;i++) {
+				rowNames.add("Bases covered at " + BREADTH_DEPTHS[i] + "x (%)");
+				rowValues.add(String.format("%.3f", getBreadth(BREADTH_DEPTHS[i])));
+			}
+			rowNames.add("Depth resolution");
+			rowValues.add(baseResolution ? "base" : BaseCoverage.WINDOW_SIZE + " bp windows (unsorted reads)");
+			rowNames.add("Depth histogram file");
+			rowValues.add(DEPTH_FILE_NAME);
+		}
+
+		@Override
+		public int getColumnCount() {
+			return 2;
+		}
+
+		@Override
+		public int getRowCount() {
+			return rowNames.size();
+		}
+
+		@Override
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			if(columnIndex == 0)
+				return rowNames.get(rowIndex);
+			else if(columnIndex == 1)
+				return rowValues.get(rowIndex);
+			else
+				return null;
+		}
+
+		@Override
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Measure";
+				case 1: return "Value";
+			}
+			return null;
+		}
+
+		@Override
+		public Class<?> getColumnClass (int columnIndex) {
+			return String.class;
+		}
+	}
+	
 }
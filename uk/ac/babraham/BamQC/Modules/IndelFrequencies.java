@@ -45,7 +45,7 @@ import uk.ac.babraham.BamQC.Graphs.LineGraph;
  * and plots the Indel Frequencies.
  * @author Piero Dalle Pezze
  */
-public class IndelFrequencies extends AbstractQCModule {
+public class IndelFrequencies extends AbstractQCModule implements DependentModule, MergeableModule {
 
 	private static Logger log = Logger.getLogger(IndelFrequencies.class);	
 	
@@ -118,6 +118,16 @@ public class IndelFrequencies extends AbstractQCModule {
 	public void processSequence(SAMRecord read) { }
 	
 	
+	@Override
+	public QCModule getDependency() {
+		return variantCallDetection;
+	}
+	
+	@Override
+	public void merge(QCModule other) {
+		// The results are computed from VariantCallDetection, which is merged on its own.
+	}
+	
 	@Override	
 	public void processFile(SequenceFile file) { }
 
@@ -38,6 +38,7 @@ import org.apache.log4j.Logger;
 import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
 import uk.ac.babraham.BamQC.Graphs.BarGraph;
 import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
 import uk.ac.babraham.BamQC.Sequence.SequenceFile;
 import uk.ac.babraham.BamQC.Utilities.CalculateDistribution;
 
@@ -46,7 +47,7 @@ import uk.ac.babraham.BamQC.Utilities.CalculateDistribution;
  * @author Piero Dalle Pezze
  *
  */
-public class InsertLengthDistribution extends AbstractQCModule {
+public class InsertLengthDistribution extends AbstractQCModule implements RecordViewProcessor, MergeableModule {
 
 	public final static int MAX_INSERT_SIZE = ModuleConfig.getParam("InsertLengthDistribution_max_insert_size", "ignore").intValue();
 	public final static int BIN_SIZE = ModuleConfig.getParam("InsertLengthDistribution_bin_size", "ignore").intValue();
@@ -56,6 +57,8 @@ public class InsertLengthDistribution extends AbstractQCModule {
 	private static Logger log = Logger.getLogger(InsertLengthDistribution.class);
 
 	private ArrayList<Long> insertLengthCounts = new ArrayList<Long>();
+	// the insert sizes of the current batch of reads.
+	private int[] batchInsertSizes = new int[0];
 	private double[] distributionDouble = null;
 	private double aboveMaxInsertLengthCount = 0L;
 	private double [] graphCounts = null;
@@ -74,34 +77,99 @@ public class InsertLengthDistribution extends AbstractQCModule {
 	
 	@Override
 	public void processFile(SequenceFile file) { }
+	
+	@Override
+	public void merge(QCModule other) {
+		InsertLengthDistribution insertLengthDistribution = (InsertLengthDistribution)other;
+		ArrayList<Long> otherCounts = insertLengthDistribution.insertLengthCounts;
+		for (int i = 0; i < otherCounts.size(); i++) {
+			if (i < insertLengthCounts.size()) {
+				insertLengthCounts.set(i, insertLengthCounts.get(i) + otherCounts.get(i));
+			}
+			else {
+				insertLengthCounts.add(otherCounts.get(i));
+			}
+		}
+		aboveMaxInsertLengthCount += insertLengthDistribution.aboveMaxInsertLengthCount;
+		unpairedReads += insertLengthDistribution.unpairedReads;
+		reads += insertLengthDistribution.reads;
+	}
 
 	@Override
 	public void processAnnotationSet(AnnotationSet annotation) { }	
 	
 	@Override
 	public void processSequence(SAMRecord read) {
+		processInsertSize(read.getInferredInsertSize(), read.getReadPairedFlag() && read.getProperPairFlag());
+	}
+	
+	@Override
+	public void processRecordView(BAMRecordView read) {
+		processInsertSize(read.getInferredInsertSize(), read.getReadPairedFlag() && read.getProperPairFlag());
+	}
+	
+	@Override
+	public void processBatch(SAMRecord[] reads, int count) {
+		int[] insertSizes = batchInsertSizes(count);
+		for (int i=0; i<count; i++) {
+			insertSizes[i] = reads[i].getReadPairedFlag() && reads[i].getProperPairFlag() ? Math.abs(reads[i].getInferredInsertSize()) : -1;
+		}
+		processInsertSizes(insertSizes, count);
+	}
+	
+	@Override
+	public void processRecordViews(BAMRecordView[] reads, int count) {
+		int[] insertSizes = batchInsertSizes(count);
+		for (int i=0; i<count; i++) {
+			insertSizes[i] = reads[i].getReadPairedFlag() && reads[i].getProperPairFlag() ? Math.abs(reads[i].getInferredInsertSize()) : -1;
+		}
+		processInsertSizes(insertSizes, count);
+	}
+	
+	private int[] batchInsertSizes(int count) {
+		if (batchInsertSizes.length < count) {
+			batchInsertSizes = new int[count];
+		}
+		return batchInsertSizes;
+	}
+	
+	/**
+	 * Process the insert sizes of a batch of reads. The insert size is -1 if the read is not a proper pair.
+	 */
+	private void processInsertSizes(int[] insertSizes, int count) {
+		int unpaired = 0;
+		int aboveMax = 0;
+		for (int i=0; i<count; i++) {
+			int inferredInsertSize = insertSizes[i];
+			if (inferredInsertSize < 0) {
+				unpaired++;
+			}
+			else if (inferredInsertSize > MAX_INSERT_SIZE) {
+				log.debug("inferredInsertSize = " + inferredInsertSize);
+				aboveMax++;
+			}
+			else {
+				addInsertLength(inferredInsertSize);
+			}
+		}
+		reads += count;
+		unpairedReads += unpaired;
+		aboveMaxInsertLengthCount += aboveMax;
+	}
+	
+	private void processInsertSize(int insertSize, boolean properPair) {
 
-		int inferredInsertSize = Math.abs(read.getInferredInsertSize());
+		int inferredInsertSize = Math.abs(insertSize);
 
 		reads++;
 
-		if (read.getReadPairedFlag() && read.getProperPairFlag()) {
+		if (properPair) {
 			if (inferredInsertSize > MAX_INSERT_SIZE) {
 				log.debug("inferredInsertSize = " + inferredInsertSize);
 				aboveMaxInsertLengthCount++;
 			}
 			else {
-				if (inferredInsertSize >= insertLengthCounts.size()) {
-					for (long i = insertLengthCounts.size(); i < inferredInsertSize; i++) {
-						insertLengthCounts.add(0L);
-					}
-					insertLengthCounts.add(1L);
-				}
-				else {
-					long existingValue = insertLengthCounts.get(inferredInsertSize);
-
-					insertLengthCounts.set(inferredInsertSize, ++existingValue);
-				}
+				addInsertLength(inferredInsertSize);
 			}
 		}
 		else {
@@ -109,6 +177,20 @@ public class InsertLengthDistribution extends AbstractQCModule {
 		}
 	}
 	
+	private void addInsertLength(int inferredInsertSize) {
+		if (inferredInsertSize >= insertLengthCounts.size()) {
+			for (long i = insertLengthCounts.size(); i < inferredInsertSize; i++) {
+				insertLengthCounts.add(0L);
+			}
+			insertLengthCounts.add(1L);
+		}
+		else {
+			long existingValue = insertLengthCounts.get(inferredInsertSize);
+
+			insertLengthCounts.set(inferredInsertSize, ++existingValue);
+		}
+	}
+	
 	
 	@Override
 	public JPanel getResultsPanel() {
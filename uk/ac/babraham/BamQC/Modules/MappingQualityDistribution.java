@@ -37,6 +37,7 @@ import net.sf.samtools.SAMRecord;
 import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
 import uk.ac.babraham.BamQC.Graphs.BarGraph;
 import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
 import uk.ac.babraham.BamQC.Sequence.SequenceFile;
 
 /**
@@ -44,7 +45,7 @@ import uk.ac.babraham.BamQC.Sequence.SequenceFile;
  * @author Piero Dalle Pezze
  *
  */
-public class MappingQualityDistribution extends AbstractQCModule {
+public class MappingQualityDistribution extends AbstractQCModule implements RecordViewProcessor, MergeableModule {
 
 	//private static Logger log = Logger.getLogger(MappingQualityDistribution.class);
 
@@ -56,6 +57,8 @@ public class MappingQualityDistribution extends AbstractQCModule {
 	private int readNumber = 0; 
 
 	private int[] distribution = new int[QUALITY_MAP_SIZE];
+	// the mapping qualities of the current batch of reads.
+	private int[] batchQualities = new int[0];
 	private String[] label = new String[QUALITY_MAP_SIZE];
 
 	public MappingQualityDistribution() {
@@ -66,8 +69,53 @@ public class MappingQualityDistribution extends AbstractQCModule {
 
 	@Override
 	public void processSequence(SAMRecord read) {
-		int quality = read.getMappingQuality();
-
+		processMappingQuality(read.getMappingQuality());
+	}
+	
+	@Override
+	public void processRecordView(BAMRecordView read) {
+		processMappingQuality(read.getMappingQuality());
+	}
+	
+	@Override
+	public void processBatch(SAMRecord[] reads, int count) {
+		int[] qualities = batchQualities(count);
+		for (int i=0; i<count; i++) {
+			qualities[i] = reads[i].getMappingQuality();
+		}
+		processMappingQualities(qualities, count);
+	}
+	
+	@Override
+	public void processRecordViews(BAMRecordView[] reads, int count) {
+		int[] qualities = batchQualities(count);
+		for (int i=0; i<count; i++) {
+			qualities[i] = reads[i].getMappingQuality();
+		}
+		processMappingQualities(qualities, count);
+	}
+	
+	private int[] batchQualities(int count) {
+		if (batchQualities.length < count) {
+			batchQualities = new int[count];
+		}
+		return batchQualities;
+	}
+	
+	private void processMappingQualities(int[] qualities, int count) {
+		int[] counts = distribution;
+		int max = maxCount;
+		for (int i=0; i<count; i++) {
+			int c = ++counts[qualities[i]];
+			if (c > max) {
+				max = c;
+			}
+		}
+		maxCount = max;
+		readNumber += count;
+	}
+	
+	private void processMappingQuality(int quality) {
 		//log.debug("quality = " + quality);
 
 		distribution[quality]++;
@@ -80,6 +128,18 @@ public class MappingQualityDistribution extends AbstractQCModule {
 		}
 	}
 
+	@Override
+	public void merge(QCModule other) {
+		MappingQualityDistribution mappingQualityDistribution = (MappingQualityDistribution)other;
+		for (int i = 0; i < QUALITY_MAP_SIZE; i++) {
+			distribution[i] += mappingQualityDistribution.distribution[i];
+			if (distribution[i] > maxCount) {
+				maxCount = distribution[i];
+			}
+		}
+		readNumber += mappingQualityDistribution.readNumber;
+	}
+	
 	@Override
 	public void processFile(SequenceFile file) {}
 
@@ -0,0 +1,41 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+/**
+ * An interface for the modules whose results can be combined. This allows 
+ * separate instances of a module to process distinct parts of the same file 
+ * (e.g. in parallel) and to be merged into one module before the report is generated.
+ * <p>
+ * The modules computing their results from the AnnotationSet (ChromosomeReadDensity, 
+ * FeatureCoverage, GenomeCoverage and FeatureReadCounts) do not collect anything from 
+ * the reads, so their merge() does nothing. The reads of all the partitions must then 
+ * be added to one AnnotationSet (or to partition sets merged into it with 
+ * AnnotationSet.merge()), which is passed to the merged modules.
+ */
+public interface MergeableModule {
+
+	/**
+	 * Add the statistics collected by another instance of the same module to this one.
+	 * @param other a module of the same class as this one
+	 */
+	public void merge(QCModule other);
+	
+}
@@ -74,12 +74,15 @@ public class ModuleConfig {
 		params.put("RpkmReference_max_size:ignore", 5000.0d);
 		params.put("RpkmReference_bin_size:ignore", 400.0d);
 		
+		params.put("FeatureReadCounts_top_genes:ignore", 10d);
+		
 		params.put("MappingQualityDistribution_fraction:error", 0.50d);
 		params.put("MappingQualityDistribution_fraction:warn", 0.75d);
 			
 
 		params.put("ChromosomeReadDensity:ignore",0d);
 		params.put("FeatureCoverage:ignore",0d);
+		params.put("FeatureReadCounts:ignore",0d);
 		params.put("GenomeCoverage:ignore",0d);
 		params.put("IndelFrequencies:ignore",0d);
 		params.put("InsertLengthDistribution:ignore",0d);
@@ -62,6 +62,9 @@ public class ModuleFactory {
 		if(ModuleConfig.getParam("FeatureCoverage", "ignore") == 0) {
 			selectedModules.add(new FeatureCoverage());
 		}
+		if(ModuleConfig.getParam("FeatureReadCounts", "ignore") == 0) {
+			selectedModules.add(new FeatureReadCounts());
+		}
 		// TODO: this could also reuse varianCallDetection
 		if(ModuleConfig.getParam("SoftClipDistribution", "ignore") == 0) {
 			selectedModules.add(new SoftClipDistribution());
@@ -45,6 +45,14 @@ public interface QCModule {
 	 */
 	public void processSequence(SAMRecord read);
 	
+	/**
+	 * Process a batch of SAMRecords. This is equivalent to calling processSequence() 
+	 * on each record, but it reduces the number of calls per record.
+	 * @param reads the array containing the reads to process
+	 * @param count the number of reads to process, starting from the first element of reads
+	 */
+	public void processBatch(SAMRecord[] reads, int count);
+	
 	/**
 	 * Process a sequence file
 	 * @param file to process
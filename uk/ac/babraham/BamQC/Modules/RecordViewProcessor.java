@@ -0,0 +1,47 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Modules;
+
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
+
+/**
+ * An interface for the modules which can compute their statistics from the 
+ * fixed fields of a BAM record. When the sequence file supports record views, 
+ * these modules receive a reusable BAMRecordView instead of a SAMRecord, so that 
+ * no record object needs to be decoded for them.
+ */
+public interface RecordViewProcessor {
+
+	/**
+	 * Process a record view. This is called instead of processSequence(SAMRecord).
+	 * The view is reused for the next record, so it must not be stored.
+	 * @param read to process
+	 */
+	public void processRecordView(BAMRecordView read);
+	
+	/**
+	 * Process a batch of record views. This is called instead of processBatch(SAMRecord[], int).
+	 * The views are reused for the next batch, so they must not be stored.
+	 * @param reads the array containing the views to process
+	 * @param count the number of views to process, starting from the first element of reads
+	 */
+	public void processRecordViews(BAMRecordView[] reads, int count);
+	
+}
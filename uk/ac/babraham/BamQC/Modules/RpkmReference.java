@@ -29,7 +29,7 @@ import uk.ac.babraham.BamQC.Utilities.CalculateDistribution;
  * @author Piero Dalle Pezze
  *
  */
-public class RpkmReference extends AbstractQCModule {
+public class RpkmReference extends AbstractQCModule implements MergeableModule {
 
 	public final static int BIN_SIZE = ModuleConfig.getParam("RpkmReference_bin_size", "ignore").intValue();
 	
@@ -153,6 +153,26 @@ public class RpkmReference extends AbstractQCModule {
 		}
 	}
 
+	@Override
+	public void merge(QCModule other) {
+		RpkmReference rpkmReference = (RpkmReference) other;
+		readNumber += rpkmReference.readNumber;
+		errorReads += rpkmReference.errorReads;
+		if (!rpkmReference.isBinNucleotidesSet) {
+			return;
+		}
+		if (!isBinNucleotidesSet) {
+			sequenceStarts = new ArrayList<Long>(rpkmReference.sequenceStarts);
+			binNumber = rpkmReference.binNumber;
+			coverage = new double[binNumber];
+			isBinNucleotidesSet = true;
+		}
+		for (int i = 0; i < coverage.length; i++) {
+			coverage[i] += rpkmReference.coverage[i];
+			if (coverage[i] > maxCoverage) maxCoverage = coverage[i];
+		}
+	}
+
 	public double[] getCoverage() {
 		return coverage;
 	}
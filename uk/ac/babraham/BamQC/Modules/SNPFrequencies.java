@@ -45,7 +45,7 @@ import uk.ac.babraham.BamQC.Sequence.SequenceFile;
  * and plots the SNP Frequencies.
  * @author Piero Dalle Pezze
  */
-public class SNPFrequencies extends AbstractQCModule {
+public class SNPFrequencies extends AbstractQCModule implements DependentModule, MergeableModule {
 
 	private static Logger log = Logger.getLogger(SNPFrequencies.class);	
 	
@@ -114,6 +114,16 @@ public class SNPFrequencies extends AbstractQCModule {
 	@Override
 	public void processSequence(SAMRecord read) { }
 
+	@Override
+	public QCModule getDependency() {
+		return variantCallDetection;
+	}
+	
+	@Override
+	public void merge(QCModule other) {
+		// The results are computed from VariantCallDetection, which is merged on its own.
+	}
+	
 	@Override	
 	public void processFile(SequenceFile file) { }
 
@@ -53,7 +53,7 @@ import uk.ac.babraham.BamQC.Sequence.SequenceFile;
  * and plots the SNP Frequencies by type.
  * @author Piero Dalle Pezze
  */
-public class SNPFrequenciesByType extends AbstractQCModule {
+public class SNPFrequenciesByType extends AbstractQCModule implements DependentModule, MergeableModule {
 
 	//private static Logger log = Logger.getLogger(SNPFrequenciesByType.class);
 	
@@ -90,6 +90,16 @@ public class SNPFrequenciesByType extends AbstractQCModule {
 	@Override
 	public void processSequence(SAMRecord read) { }
 
+	@Override
+	public QCModule getDependency() {
+		return variantCallDetection;
+	}
+	
+	@Override
+	public void merge(QCModule other) {
+		// The results are computed from VariantCallDetection, which is merged on its own.
+	}
+	
 	@Override	
 	public void processFile(SequenceFile file) { }
 
@@ -26,7 +26,7 @@ import uk.ac.babraham.BamQC.Sequence.SequenceFile;
  * @author Piero Dalle Pezze
  *
  */
-public class SequenceQualityDistribution extends AbstractQCModule {
+public class SequenceQualityDistribution extends AbstractQCModule implements MergeableModule {
 
 	private static Logger log = Logger.getLogger(SequenceQualityDistribution.class);
 
@@ -97,6 +97,19 @@ public class SequenceQualityDistribution extends AbstractQCModule {
 		return new BarGraph(distributionDouble, 0.0D, maxVaule, xLabel, yLabel, label, title);
 	}
 	
+	@Override
+	public void merge(QCModule other) {
+		List<Integer> otherDistribution = ((SequenceQualityDistribution)other).distribution;
+		for (int i = 0; i < otherDistribution.size(); i++) {
+			if (i < distribution.size()) {
+				distribution.set(i, distribution.get(i) + otherDistribution.get(i));
+			}
+			else {
+				distribution.add(otherDistribution.get(i));
+			}
+		}
+	}
+	
 	@Override
 	public void processFile(SequenceFile file) {}
 
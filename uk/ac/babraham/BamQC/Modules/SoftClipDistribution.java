@@ -47,7 +47,7 @@ import uk.ac.babraham.BamQC.Sequence.SequenceFile;
  * @author Piero Dalle Pezze
  *
  */
-public class SoftClipDistribution extends AbstractQCModule {
+public class SoftClipDistribution extends AbstractQCModule implements MergeableModule {
 
 	// logger
 	private static Logger log = Logger.getLogger(SoftClipDistribution.class);
@@ -55,20 +55,75 @@ public class SoftClipDistribution extends AbstractQCModule {
 	private long [] leftClipCounts = new long[1];
 	private long [] rightClipCounts = new long[1];
 	
+	// the clip lengths computed by computeClips().
+	private int leftClip = 0;
+	private int rightClip = 0;
+	
+	// the clip lengths of the current batch of reads.
+	private int [] batchLeftClips = new int[0];
+	private int [] batchRightClips = new int[0];
+	
 	@Override
 	public void processSequence(SAMRecord read) {
 		
-		if (read.getReadUnmappedFlag()) return;
+		if (!computeClips(read)) return;
+
+		int max=leftClip;
+		if (rightClip>leftClip)max=rightClip;
 		
-		int leftClip = 0;
-		int rightClip = 0;
+		if (max+1 > leftClipCounts.length) expandCounts(max+1);
+		
+		leftClipCounts[leftClip]++;
+		rightClipCounts[rightClip]++;
+		
+	}
+	
+	@Override
+	public void processBatch(SAMRecord[] reads, int count) {
+		if (batchLeftClips.length < count) {
+			batchLeftClips = new int[count];
+			batchRightClips = new int[count];
+		}
+		
+		// compute the clips first, so that the counts are only expanded once per batch.
+		int clipped = 0;
+		int max = 0;
+		for (int i=0; i<count; i++) {
+			if (!computeClips(reads[i])) continue;
+			batchLeftClips[clipped] = leftClip;
+			batchRightClips[clipped] = rightClip;
+			clipped++;
+			if (leftClip > max) max = leftClip;
+			if (rightClip > max) max = rightClip;
+		}
+		
+		if (max+1 > leftClipCounts.length) expandCounts(max+1);
+		
+		long [] leftCounts = leftClipCounts;
+		long [] rightCounts = rightClipCounts;
+		for (int i=0; i<clipped; i++) {
+			leftCounts[batchLeftClips[i]]++;
+			rightCounts[batchRightClips[i]]++;
+		}
+	}
+	
+	/**
+	 * Compute the left and right clip of a read. 
+	 * @return false if the read is unmapped or does not have a Cigar string.
+	 */
+	private boolean computeClips(SAMRecord read) {
+		
+		if (read.getReadUnmappedFlag()) return false;
+		
+		leftClip = 0;
+		rightClip = 0;
 		
 		
 		// Get the CIGAR list
 		Cigar cigar = read.getCigar();
 		if (cigar == null || read.getCigarLength() == 0) {
 			log.debug("Read " + read.getReadString() + " does not have Cigar string.");
-			return;
+			return false;
 		}
 		
 		
@@ -93,15 +148,8 @@ public class SoftClipDistribution extends AbstractQCModule {
 				rightClip = last.getLength();
 			}			
 		}
-
-		int max=leftClip;
-		if (rightClip>leftClip)max=rightClip;
-		
-		if (max+1 > leftClipCounts.length) expandCounts(max+1);
-		
-		leftClipCounts[leftClip]++;
-		rightClipCounts[rightClip]++;
 		
+		return true;
 	}
 
 	private void expandCounts (int newLen) {
@@ -118,6 +166,16 @@ public class SoftClipDistribution extends AbstractQCModule {
 		rightClipCounts = temp;
 	}
 	
+	@Override
+	public void merge(QCModule other) {
+		SoftClipDistribution softClipDistribution = (SoftClipDistribution)other;
+		if (softClipDistribution.leftClipCounts.length > leftClipCounts.length) expandCounts(softClipDistribution.leftClipCounts.length);
+		for (int i=0;i<softClipDistribution.leftClipCounts.length;i++) {
+			leftClipCounts[i] += softClipDistribution.leftClipCounts[i];
+			rightClipCounts[i] += softClipDistribution.rightClipCounts[i];
+		}
+	}
+	
 	@Override
 	public void processFile(SequenceFile file) {}
 
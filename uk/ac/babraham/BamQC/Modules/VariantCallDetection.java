@@ -23,9 +23,10 @@
  */
 package uk.ac.babraham.BamQC.Modules;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 
 import javax.swing.JPanel;
 import javax.xml.stream.XMLStreamException;
@@ -33,12 +34,14 @@ import javax.xml.stream.XMLStreamException;
 import org.apache.log4j.Logger;
 
 import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.BamQCConfig;
 import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
+import uk.ac.babraham.BamQC.DataTypes.Genome.IndexedFastaFile;
 import uk.ac.babraham.BamQC.Report.HTMLReportArchive;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
 import uk.ac.babraham.BamQC.Sequence.SequenceFile;
 import uk.ac.babraham.BamQC.Utilities.CigarMD.CigarMD;
-import uk.ac.babraham.BamQC.Utilities.CigarMD.CigarMDElement;
-import uk.ac.babraham.BamQC.Utilities.CigarMD.CigarMDGenerator;
+import uk.ac.babraham.BamQC.Utilities.CigarMD.CigarMDDecoder;
 import uk.ac.babraham.BamQC.Utilities.CigarMD.CigarMDOperator;
 
 
@@ -47,18 +50,35 @@ import uk.ac.babraham.BamQC.Utilities.CigarMD.CigarMDOperator;
  * This module is used for computing the statistics for all the variant calls.
  * @author Piero Dalle Pezze
  */
-public class VariantCallDetection extends AbstractQCModule {
+public class VariantCallDetection extends AbstractQCModule implements RecordViewProcessor, MergeableModule {
 
 	// logger
 	private static Logger log = Logger.getLogger(VariantCallDetection.class);
 	
+	// The bases of the SNP matrices. The unknown bases are counted as N.
+	private static final String BASES = "ACGTN";
+	private static final int N_CODE = 4;
+	// The code of the bases A, C, G, T by ASCII code, or N_CODE for the other bases.
+	private static final int[] BASE_CODE = new int[128];
+	// The code of the complement of the bases by ASCII code, for the reverse reads.
+	private static final int[] COMPLEMENT_BASE_CODE = new int[128];
+	static {
+		Arrays.fill(BASE_CODE, N_CODE);
+		Arrays.fill(COMPLEMENT_BASE_CODE, N_CODE);
+		for(int i=0; i<N_CODE; i++) {
+			BASE_CODE[BASES.charAt(i)] = i;
+			COMPLEMENT_BASE_CODE[BASES.charAt(i)] = N_CODE - 1 - i;
+		}
+	}
+	
 	
 	// data fields for statistics
     // first or second indicate whether the read is the first or second segment. If the read is not paired, 
     // it is treated as a first.
 	
-	private HashMap<String, Long> firstSNPs = new HashMap<String, Long>();
-	private HashMap<String, Long> secondSNPs = new HashMap<String, Long>();
+	// The number of SNPs by reference and read base code. The maps of the getters are built from these.
+	private long[][] firstSNPs = new long[BASES.length()][BASES.length()];
+	private long[][] secondSNPs = new long[BASES.length()][BASES.length()];
 	// To reduce computational time let's not collect data regarding indel type.
 	//private HashMap<String, Long> insertions = new HashMap<String, Long>();
 	//private HashMap<String, Long> deletions = new HashMap<String, Long>();
@@ -75,9 +95,6 @@ public class VariantCallDetection extends AbstractQCModule {
 	private long totalPaddings = 0;
 	private long total = 0;
 	
-	private long readUnknownBases = 0;
-	private long referenceUnknownBases = 0;
-	
     private long skippedReads = 0;
 	private long readWithoutMDString = 0;
 	private long readWithoutCigarString = 0;
@@ -99,25 +116,25 @@ public class VariantCallDetection extends AbstractQCModule {
 
 
     // currentPosition is the current position used to record changes in the arrays above. This class processes 
-    // the CigarMD string, not the read, which is instead processed by class CigarMDGenerator.
+    // the Cigar and MD elements, not the read, which is instead processed by class CigarMDDecoder.
 	private int currentPosition = 0;
+	// The elements of a reverse read are processed in the order of the alignment, while its positions 
+	// are counted backwards from alignedLength, the number of aligned bases (matches, mismatches and indels).
+	private boolean isReadReverse = false;
+	private int alignedLength = 0;
     // This array reports how many reads are included for computing the statistics for each position. It is used for filtering 
     // statistics for positions having less then a defined percentage of reads.
-    // key: the read lengths, value: the number of reads with that length.
-    private HashMap<Integer, Long> contributingReadsPerPos = new HashMap<Integer, Long>();	
+    // index: the read lengths, value: the number of reads with that length.
+    private long[] contributingReadsPerLength = new long[VC_POSITION_ARRAY_SIZE];	
     
     
     private int readLength = 0;
     // temporary variable created here to limit variable declarations. 
     // these are initialised inside the method processSequence()
     private boolean isReadSpliced = false;
-    private int cigarMDElementsSize = 0;
     
-	// Used for computing the statistics 
-	private CigarMDGenerator cigarMDGenerator = new CigarMDGenerator();
-
-	private CigarMD cigarMD = new CigarMD();
-	private CigarMDElement currentCigarMDElement = null;
+	// Used for computing the statistics. The decoder reuses its arrays for every read.
+	private CigarMDDecoder cigarMDDecoder = newCigarMDDecoder();
 	
 	
 	private boolean existPairedReads = false;
@@ -129,32 +146,6 @@ public class VariantCallDetection extends AbstractQCModule {
 	 * Default constructor
 	 */
 	public VariantCallDetection() { 
-		firstSNPs.put("AC", 0L);
-		firstSNPs.put("AG", 0L);
-		firstSNPs.put("AT", 0L);
-		firstSNPs.put("CA", 0L);
-		firstSNPs.put("CG", 0L);
-		firstSNPs.put("CT", 0L);
-		firstSNPs.put("GA", 0L);
-		firstSNPs.put("GC", 0L);
-		firstSNPs.put("GT", 0L);
-		firstSNPs.put("TA", 0L);
-		firstSNPs.put("TC", 0L);
-		firstSNPs.put("TG", 0L);
-		
-		secondSNPs.put("AC", 0L);
-		secondSNPs.put("AG", 0L);
-		secondSNPs.put("AT", 0L);
-		secondSNPs.put("CA", 0L);
-		secondSNPs.put("CG", 0L);
-		secondSNPs.put("CT", 0L);
-		secondSNPs.put("GA", 0L);
-		secondSNPs.put("GC", 0L);
-		secondSNPs.put("GT", 0L);
-		secondSNPs.put("TA", 0L);
-		secondSNPs.put("TC", 0L);
-		secondSNPs.put("TG", 0L);
-		
 		// To reduce computational time let's not collect data regarding indel type.
 //		insertions.put("A", 0L);
 //		insertions.put("C", 0L);
@@ -216,99 +207,204 @@ public class VariantCallDetection extends AbstractQCModule {
 	// @Override methods
 	@Override
 	public void processSequence(SAMRecord read) {
+		if(processRead(read)) {
+			addContributingRead(readLength);
+		}
+	}
+	
+	/**
+	 * Process a record view. The Cigar, MD tag and bases are read from the raw record, 
+	 * so the SAMRecord is not decoded.
+	 */
+	@Override
+	public void processRecordView(BAMRecordView read) {
+		if(processRead(read)) {
+			addContributingRead(readLength);
+		}
+	}
+	
+	@Override
+	public void processRecordViews(BAMRecordView[] reads, int count) {
+		for(int i=0; i<count; i++) {
+			processRecordView(reads[i]);
+		}
+	}
+	
+	private void addContributingRead(int length) {
+		if(length >= contributingReadsPerLength.length) {
+			contributingReadsPerLength = Arrays.copyOf(contributingReadsPerLength, 
+					Math.max(length+1, contributingReadsPerLength.length*2));
+		}
+		contributingReadsPerLength[length]++;
+	}
+	
+	/**
+	 * Collect the statistics of a read. 
+	 * @return true if the read contributes to the statistics per read position.
+	 */
+	private boolean processRead(SAMRecord read) {
+		// Decode the elements combining the strings Cigar and MD tag
+		cigarMDDecoder.decode(read);
+		return processDecodedRead(read.getReadLength());
+	}
+	
+	/**
+	 * Collect the statistics of a record view. 
+	 * @return true if the read contributes to the statistics per read position.
+	 */
+	private boolean processRead(BAMRecordView read) {
+		cigarMDDecoder.decode(read);
+		return processDecodedRead(read.getReadLength());
+	}
+	
+	/**
+	 * Collect the statistics of the read decoded by the cigarMDDecoder. 
+	 * @param length the length of the read
+	 * @return true if the read contributes to the statistics per read position.
+	 */
+	private boolean processDecodedRead(int length) {
 
 		isReadSpliced = false;
 		totalReads++;
 		
-		// Compute and get the CigarMD object combining the strings Cigar and MD tag
-		cigarMDGenerator.generateCigarMD(read);
-		cigarMD = cigarMDGenerator.getCigarMD();
-		int errorType = cigarMDGenerator.getErrorType();
+		int errorType = cigarMDDecoder.getErrorType();
 		switch(errorType) {
 			//case 0: // no error
-			case 1: skippedReads++; return; // unmapped read. we cannot carry on here.. The number of unmapped reads is already calculated in the BasicStatistics module
-			case 2: readWithoutMDString++; break; // we won't have SNPs, but we compute statistics for the other operators.
-			case 3: readWithoutCigarString++; skippedReads++; return; // we cannot carry on here.. 
-			case 4: inconsistentCigarMDStrings++; skippedReads++; return; // we cannot carry on here.. 
+			case 1: skippedReads++; return false; // unmapped read. we cannot carry on here.. The number of unmapped reads is already calculated in the BasicStatistics module
+			case 2: readWithoutMDString++; break; // we won't have SNPs unless a reference is given, but we compute statistics for the other operators.
+			case 3: readWithoutCigarString++; skippedReads++; return false; // we cannot carry on here.. 
+			case 4: inconsistentCigarMDStrings++; skippedReads++; return false; // we cannot carry on here.. 
 		}
 
-		readLength = read.getReadLength();
+		readLength = length;
 		
-		// Iterate the CigarMDElements list to collect statistics
-		List<CigarMDElement> cigarMDElements = cigarMD.getCigarMDElements();
-
 		CigarMDOperator currentCigarMDElementOperator;
+		int currentCigarMDElementLength;
+		int currentCigarMDElementOffset;
 		
 		// restart the counter for computing SNP/Indels per read position.
 		currentPosition = 0;
-
-		// Use the old c-style for loop for memory (garbage collector) and CPU efficiency
-		cigarMDElementsSize = cigarMDElements.size();
+		isReadReverse = cigarMDDecoder.isReverse();
+		int cigarMDElementsSize = cigarMDDecoder.size();
+		alignedLength = 0;
 		for(int i=0; i<cigarMDElementsSize; i++) {
-			
-			currentCigarMDElement = cigarMDElements.get(i);
+			currentCigarMDElementOperator = cigarMDDecoder.operator(i);
+			if(currentCigarMDElementOperator == CigarMDOperator.MATCH || currentCigarMDElementOperator == CigarMDOperator.MISMATCH || 
+			   currentCigarMDElementOperator == CigarMDOperator.INSERTION || currentCigarMDElementOperator == CigarMDOperator.DELETION) {
+				alignedLength = alignedLength + cigarMDDecoder.length(i);
+			}
+		}
+		// if the read.length is longer than what we supposed to be, here we increase the length of our *Pos arrays.
+		extendDensityArrays(alignedLength);
 
-			currentCigarMDElementOperator = currentCigarMDElement.getOperator();
+		// Iterate the decoded elements to collect statistics
+		for(int i=0; i<cigarMDElementsSize; i++) {
 			
-			//log.debug("Parsing CigarMDElement: " + currentCigarMDElement.toString());
+			currentCigarMDElementOperator = cigarMDDecoder.operator(i);
+			currentCigarMDElementLength = cigarMDDecoder.length(i);
+			currentCigarMDElementOffset = cigarMDDecoder.baseOffset(i);
 
 			if(currentCigarMDElementOperator == CigarMDOperator.MATCH) {
-				processMDtagCigarOperatorM();
+				processMDtagCigarOperatorM(currentCigarMDElementLength);
 				
 			} else if(currentCigarMDElementOperator == CigarMDOperator.MISMATCH) {
-				processMDtagCigarOperatorU();
+				processMDtagCigarOperatorU(currentCigarMDElementLength, currentCigarMDElementOffset);
 				
 			} else if(currentCigarMDElementOperator == CigarMDOperator.INSERTION) {
-				processMDtagCigarOperatorI();
+				processMDtagCigarOperatorI(currentCigarMDElementLength, currentCigarMDElementOffset);
 				
 			} else if(currentCigarMDElementOperator == CigarMDOperator.DELETION) {
-				processMDtagCigarOperatorD();
+				processMDtagCigarOperatorD(currentCigarMDElementLength, currentCigarMDElementOffset, 
+						cigarMDDecoder.baseOffset(i+1) - currentCigarMDElementOffset);
 				
 			} else if(currentCigarMDElementOperator == CigarMDOperator.SKIPPED_REGION) {
-				processMDtagCigarOperatorN();
+				processMDtagCigarOperatorN(currentCigarMDElementLength);
 				if(!isReadSpliced) {
 					isReadSpliced = true;
 					splicedReads++;
 				}
 				
 			} else if(currentCigarMDElementOperator == CigarMDOperator.SOFT_CLIP) {
-				processMDtagCigarOperatorS();
+				processMDtagCigarOperatorS(currentCigarMDElementLength);
 				
 			} else if(currentCigarMDElementOperator == CigarMDOperator.HARD_CLIP) {
-				processMDtagCigarOperatorH();
+				processMDtagCigarOperatorH(currentCigarMDElementLength);
 				
 			} else if(currentCigarMDElementOperator == CigarMDOperator.PADDING) {
-				processMDtagCigarOperatorP();
+				processMDtagCigarOperatorP(currentCigarMDElementLength);
 				
 			} else if(currentCigarMDElementOperator == CigarMDOperator.eq) {
 				log.debug("Extended CIGAR element = is not currently supported.");
 				skippedReads++;
-				return;	
+				return false;	
 				
 			} else if(currentCigarMDElementOperator == CigarMDOperator.x) {
 				log.debug("Extended CIGAR element X is not currently supported.");
 				skippedReads++;
-				return;
+				return false;
 				
 			} else {
 				log.debug("Unknown operator in the CIGAR string.");
 				skippedReads++;
-				return;	
+				return false;	
 			}		
 		}
 		
-		if(contributingReadsPerPos.containsKey(readLength)) {
-			contributingReadsPerPos.put(readLength, contributingReadsPerPos.get(readLength) + 1L);
-		} else {
-			contributingReadsPerPos.put(readLength, 1L);
+		return true;
+	}
+	
+	@Override
+	public void merge(QCModule other) {
+		VariantCallDetection vcd = (VariantCallDetection)other;
+		
+		for(int i=0; i<BASES.length(); i++) {
+			for(int j=0; j<BASES.length(); j++) {
+				firstSNPs[i][j] = firstSNPs[i][j] + vcd.firstSNPs[i][j];
+				secondSNPs[i][j] = secondSNPs[i][j] + vcd.secondSNPs[i][j];
+			}
 		}
-		//log.debug("key, value:" + readLength + ", " + contributingReadsPerPos.get(readLength));
-		//log.debug("Combined Cigar MDtag: " + cigarMD.toString());
-
+		
+		totalMatches = totalMatches + vcd.totalMatches;
+		totalSkippedRegions = totalSkippedRegions + vcd.totalSkippedRegions;
+		totalSoftClips = totalSoftClips + vcd.totalSoftClips;
+		totalHardClips = totalHardClips + vcd.totalHardClips;
+		totalPaddings = totalPaddings + vcd.totalPaddings;
+		skippedReads = skippedReads + vcd.skippedReads;
+		readWithoutMDString = readWithoutMDString + vcd.readWithoutMDString;
+		readWithoutCigarString = readWithoutCigarString + vcd.readWithoutCigarString;
+		inconsistentCigarMDStrings = inconsistentCigarMDStrings + vcd.inconsistentCigarMDStrings;
+		totalReads = totalReads + vcd.totalReads;
+		splicedReads = splicedReads + vcd.splicedReads;
+		
+		if(vcd.totalPos.length > totalPos.length) {
+			extendDensityArrays(vcd.totalPos.length);
+		}
+		for(int i=0; i<vcd.totalPos.length; i++) {
+			firstSNPPos[i] = firstSNPPos[i] + vcd.firstSNPPos[i];
+			firstInsertionPos[i] = firstInsertionPos[i] + vcd.firstInsertionPos[i];
+			firstDeletionPos[i] = firstDeletionPos[i] + vcd.firstDeletionPos[i];
+			secondSNPPos[i] = secondSNPPos[i] + vcd.secondSNPPos[i];
+			secondInsertionPos[i] = secondInsertionPos[i] + vcd.secondInsertionPos[i];
+			secondDeletionPos[i] = secondDeletionPos[i] + vcd.secondDeletionPos[i];
+			matchPos[i] = matchPos[i] + vcd.matchPos[i];
+		}
+		
+		if(vcd.contributingReadsPerLength.length > contributingReadsPerLength.length) {
+			contributingReadsPerLength = Arrays.copyOf(contributingReadsPerLength, vcd.contributingReadsPerLength.length);
+		}
+		for(int i=0; i<vcd.contributingReadsPerLength.length; i++) {
+			contributingReadsPerLength[i] = contributingReadsPerLength[i] + vcd.contributingReadsPerLength[i];
+		}
+		
+		// the totals must be computed again.
+		totalsComputed = false;
 	}
 	
 	@Override	
-	public void processFile(SequenceFile file) {}
+	public void processFile(SequenceFile file) {
+		// the reference sequences are packed one after the other if the reads are sorted
+		cigarMDDecoder.setPackedReference(BamQCConfig.getInstance().reference_cache && file.isCoordinateSorted());
+	}
 	
 	@Override	
 	public void processAnnotationSet(AnnotationSet annotation) { }	
@@ -331,31 +427,8 @@ public class VariantCallDetection extends AbstractQCModule {
 	@Override	
 	public void reset() {
 				
-		firstSNPs.put("AC", 0L);
-		firstSNPs.put("AG", 0L);
-		firstSNPs.put("AT", 0L);
-		firstSNPs.put("CA", 0L);
-		firstSNPs.put("CG", 0L);
-		firstSNPs.put("CT", 0L);
-		firstSNPs.put("GA", 0L);
-		firstSNPs.put("GC", 0L);
-		firstSNPs.put("GT", 0L);
-		firstSNPs.put("TA", 0L);
-		firstSNPs.put("TC", 0L);
-		firstSNPs.put("TG", 0L);
-		
-		secondSNPs.put("AC", 0L);
-		secondSNPs.put("AG", 0L);
-		secondSNPs.put("AT", 0L);
-		secondSNPs.put("CA", 0L);
-		secondSNPs.put("CG", 0L);
-		secondSNPs.put("CT", 0L);
-		secondSNPs.put("GA", 0L);
-		secondSNPs.put("GC", 0L);
-		secondSNPs.put("GT", 0L);
-		secondSNPs.put("TA", 0L);
-		secondSNPs.put("TC", 0L);
-		secondSNPs.put("TG", 0L);
+		firstSNPs = new long[BASES.length()][BASES.length()];
+		secondSNPs = new long[BASES.length()][BASES.length()];
 	
 		totalMutations = 0;
 		// To reduce computational time let's not collect data regarding indel type.
@@ -382,9 +455,6 @@ public class VariantCallDetection extends AbstractQCModule {
 		skippedReads = 0;
 		totalReads = 0;
 		splicedReads = 0;
-
-		readUnknownBases = 0;
-		referenceUnknownBases = 0;
 		
 		
 	    firstSNPPos = new long[VC_POSITION_ARRAY_SIZE];
@@ -396,10 +466,12 @@ public class VariantCallDetection extends AbstractQCModule {
 	    matchPos = new long[VC_POSITION_ARRAY_SIZE];
 	    totalPos = new long[VC_POSITION_ARRAY_SIZE];	  	    
 	    currentPosition = 0;
-	    contributingReadsPerPos = new HashMap<Integer, Long>();
+	    isReadReverse = false;
+	    alignedLength = 0;
+	    contributingReadsPerLength = new long[VC_POSITION_ARRAY_SIZE];
 
 	    readLength = 0;
-		cigarMD = new CigarMD();
+		cigarMDDecoder = newCigarMDDecoder();
 	}
 
 	@Override	
@@ -435,6 +507,24 @@ public class VariantCallDetection extends AbstractQCModule {
 	
 	// Private methods here
 	
+	/**
+	 * Create a CigarMDDecoder. If a reference is given, the decoder finds the mismatches of the 
+	 * reads without MD string with the reference, which is shared by all the analyses.
+	 * @return the decoder
+	 */
+	private static CigarMDDecoder newCigarMDDecoder() {
+		CigarMDDecoder decoder = new CigarMDDecoder();
+		File referenceFile = BamQCConfig.getInstance().reference_file;
+		if(referenceFile != null) {
+			try {
+				decoder.setReference(IndexedFastaFile.getSharedFile(referenceFile));
+			} catch(IOException e) {
+				log.error("The reference " + referenceFile + " could not be read. The reads without MD string will not have SNPs.", e);
+			}
+		}
+		return decoder;
+	}
+	
 	/**
 	 * Extend the density arrays storing the positions for SNPs, Indels, matches and totals if and only if newSize is greater or equal than the 
 	 * current size of these arrays. As this method can be time consuming, if newSize is < than two times the current size of a density array, 
@@ -484,20 +574,32 @@ public class VariantCallDetection extends AbstractQCModule {
 	}
 	
 	
-	// These methods process the combined CigarMD object.
+	// These methods process the elements of the CigarMDDecoder. The bases of an element 
+	// start at the offset of the decoder base arrays.
+	
+	/**
+	 * Return the read position of the first read cycle of the element starting at currentPosition. 
+	 * The positions of the element are this one and the following length-1 positions. For a reverse 
+	 * read, the first read cycle is the last base of the element.
+	 * @param length the length of the element
+	 * @return the first read position of the element
+	 */
+	private int firstPosition(int length) {
+		if(isReadReverse) {
+			return alignedLength - currentPosition - length;
+		}
+		return currentPosition;
+	}
 	
 
 	
 	/** Process the MD string once found the CigarMD operator m (match). */
-	private void processMDtagCigarOperatorM() {
-		int numMatches = currentCigarMDElement.getLength();
+	private void processMDtagCigarOperatorM(int numMatches) {
 		totalMatches = totalMatches + numMatches;
 		
-		// if the read.length is longer than what we supposed to be, here we increase the length of our *Pos arrays.
-		extendDensityArrays(currentPosition+numMatches);			
-	    
+		int position = firstPosition(numMatches);
 		for(int i=0; i<numMatches; i++) {
-			matchPos[currentPosition+i]++;
+			matchPos[position+i]++;
 		}
 		currentPosition = currentPosition + numMatches;
 	}
@@ -509,123 +611,122 @@ public class VariantCallDetection extends AbstractQCModule {
 	 * e.g. 3uACGTAT will indicate that the substring AGA on the reference has been 
 	 * mutated in CTT.
 	 */
-	private void processMDtagCigarOperatorU() {
-		int numMutations = currentCigarMDElement.getLength();
-		String mutatedBases = currentCigarMDElement.getBases();
-		String basePair;
-
-		if(mutatedBases.length() == 0) {
-			log.error("Mutated bases not reported. currentCigarMDElement: " + currentCigarMDElement + ", cigarMD: " + cigarMD.toString() + 
-					 ", mutatedBases: " + mutatedBases);
-			// if we are in this case, the following for loop will cause a java.lang.StringIndexOutOfBoundsException . 
-			// This would be a bug in the computation of the CigarMD string. mutatedBases should never be empty.
-			// For now, leave this test as it is useful.
+	private void processMDtagCigarOperatorU(int numMutations, int offset) {
+		byte[] referenceBases = cigarMDDecoder.referenceBases();
+		byte[] readBases = cigarMDDecoder.readBases();
+		
+		// the bases of a reverse read are taken backwards and complemented.
+		int position = firstPosition(numMutations);
+		int base = offset;
+		int step = 1;
+		int[] baseCode = BASE_CODE;
+		if(isReadReverse) {
+			base = offset + numMutations - 1;
+			step = -1;
+			baseCode = COMPLEMENT_BASE_CODE;
 		}
 		
-		// if the read.length is longer than what we supposed to be, here we increase the length of our *Pos arrays.
-		extendDensityArrays(currentPosition+numMutations);			
+		long[][] snps = secondSNPs;
+		long[] snpPos = secondSNPPos;
+		if(cigarMDDecoder.isFirst()) {
+			snps = firstSNPs;
+			snpPos = firstSNPPos;
+		}
 	    
-		if(cigarMDGenerator.isFirst()) {
-			for(int i = 0; i < numMutations; i++) {
-				basePair = mutatedBases.substring(i*2, i*2+2);
-				if(basePair.charAt(0) == 'N') { 
-					referenceUnknownBases++; 
-					if(basePair.charAt(1) == 'N') { readUnknownBases++;  }
-				}
-				else if(basePair.charAt(1) == 'N') { readUnknownBases++;  }
-				else {
-					firstSNPs.put(basePair, firstSNPs.get(basePair) + 1L);
-					firstSNPPos[currentPosition+i]++; 
-				}
+		// the unknown bases are counted in the row and column N, but not per position.
+		for(int i = 0; i < numMutations; i++, base += step) {
+			int referenceCode = baseCode[referenceBases[base] & 0x7f];
+			int readCode = baseCode[readBases[base] & 0x7f];
+			snps[referenceCode][readCode]++;
+			if(referenceCode != N_CODE && readCode != N_CODE) {
+				snpPos[position+i]++; 
 			}
-		} else {
-			for(int i = 0; i < numMutations; i++) {
-				basePair = mutatedBases.substring(i*2, i*2+2);
-				if(basePair.charAt(0) == 'N') { 
-					referenceUnknownBases++;  
-					if(basePair.charAt(1) == 'N') { readUnknownBases++;  }
-				}
-				else if(basePair.charAt(1) == 'N') { readUnknownBases++;  }
-				else {
-					secondSNPs.put(basePair, secondSNPs.get(basePair) + 1L);
-					secondSNPPos[currentPosition+i]++; 
-				}
-			}			
 		}
 		currentPosition = currentPosition + numMutations;
 	}	
 	
 	/** Process the MD string once found the CigarMD operator i (insertion). */	
-	private void processMDtagCigarOperatorI() {
-		int numInsertions = currentCigarMDElement.getLength();
-		String insertedBases = currentCigarMDElement.getBases();
+	private void processMDtagCigarOperatorI(int numInsertions, int offset) {
+		byte[] insertedBases = cigarMDDecoder.readBases();
 		// To reduce computational time let's not collect data regarding indel type.
 //		String base;
 		
-		// if the read.length is longer than what we supposed to be, here we increase the length of our *Pos arrays..
-		extendDensityArrays(currentPosition+numInsertions);
+		// the bases of a reverse read are taken backwards. Their complement does not change N.
+		int position = firstPosition(numInsertions);
+		int base = offset;
+		int step = 1;
+		if(isReadReverse) {
+			base = offset + numInsertions - 1;
+			step = -1;
+		}
 	    
-		if(cigarMDGenerator.isFirst()) {
-			for(int i = 0; i < numInsertions; i++) {
+		if(cigarMDDecoder.isFirst()) {
+			for(int i = 0; i < numInsertions; i++, base += step) {
 				// To reduce computational time let's not collect data regarding indel type.
 //				base = insertedBases.substring(i, i+1);
 //				insertions.put(base, insertions.get(base) + 1L);
-				if(insertedBases.charAt(i) != 'N') { 
-					firstInsertionPos[currentPosition+i]++; 
+				if(insertedBases[base] != 'N') { 
+					firstInsertionPos[position+i]++; 
 				}
 			}
 		} else {
-			for(int i = 0; i < numInsertions; i++) {
+			for(int i = 0; i < numInsertions; i++, base += step) {
 				// To reduce computational time let's not collect data regarding indel type.
 //				base = insertedBases.substring(i, i+1);
 //				insertions.put(base, insertions.get(base) + 1L);
-				if(insertedBases.charAt(i) != 'N') { 
-					secondInsertionPos[currentPosition+i]++; 
+				if(insertedBases[base] != 'N') { 
+					secondInsertionPos[position+i]++; 
 				}
 			}			
 		}
 		currentPosition = currentPosition + numInsertions;
 	}
 	
-	/** Process the MD string once found the CigarMD operator d (deletion). */	
-	private void processMDtagCigarOperatorD() {
-		int numDeletions = currentCigarMDElement.getLength();
-		String deletedBases = currentCigarMDElement.getBases();
+	/** Process the MD string once found the CigarMD operator d (deletion). The deleted bases 
+	 * are not known (numBases is 0) if the read does not have the MD string. */	
+	private void processMDtagCigarOperatorD(int numDeletions, int offset, int numBases) {
+		byte[] deletedBases = cigarMDDecoder.referenceBases();
 		
-		// if the read.length is longer than what we supposed to be, here we increase the length of our *Pos arrays..
-		extendDensityArrays(currentPosition+numDeletions);		
+		// the bases of a reverse read are taken backwards. Their complement does not change N.
+		int position = firstPosition(numDeletions);
+		int base = offset;
+		int step = 1;
+		if(isReadReverse) {
+			base = offset + numDeletions - 1;
+			step = -1;
+		}
 	    
-		if(!deletedBases.isEmpty()) {
+		if(numBases > 0) {
 			// To reduce computational time let's not collect data regarding indel type.			
 //			String base;
-			if(cigarMDGenerator.isFirst()) {
-				for(int i = 0; i < numDeletions; i++) {
+			if(cigarMDDecoder.isFirst()) {
+				for(int i = 0; i < numDeletions; i++, base += step) {
 					// To reduce computational time let's not collect data regarding indel type.
 //					base = deletedBases.substring(i, i+1);
 //					deletions.put(base, deletions.get(base) + 1L);
-					if(deletedBases.charAt(i) != 'N') { 
-						firstDeletionPos[currentPosition+i]++; 
+					if(deletedBases[base] != 'N') { 
+						firstDeletionPos[position+i]++; 
 					}
 				}
 			} else {
-				for(int i = 0; i < numDeletions; i++) {
+				for(int i = 0; i < numDeletions; i++, base += step) {
 					// To reduce computational time let's not collect data regarding indel type.
 //					base = deletedBases.substring(i, i+1);
 //					deletions.put(base, deletions.get(base) + 1L);
-					if(deletedBases.charAt(i) != 'N') { 
-						secondDeletionPos[currentPosition+i]++; 
+					if(deletedBases[base] != 'N') { 
+						secondDeletionPos[position+i]++; 
 					}
 				}			
 			}
 		} else {
 			// we do not have deleted bases because we do not have the mdString for this read! 
-			if(cigarMDGenerator.isFirst()) {
+			if(cigarMDDecoder.isFirst()) {
 				for(int i = 0; i < numDeletions; i++) {
-					firstDeletionPos[currentPosition+i]++; 
+					firstDeletionPos[position+i]++; 
 				}
 			} else {
 				for(int i = 0; i < numDeletions; i++) {
-					secondDeletionPos[currentPosition+i]++; 
+					secondDeletionPos[position+i]++; 
 				}			
 			}
 		}
@@ -636,8 +737,7 @@ public class VariantCallDetection extends AbstractQCModule {
 	// Have to test the following code.
 	
 	/** Process the MD string once found the CigarMD operator n. */	
-	private void processMDtagCigarOperatorN() {
-		int numSkipped = currentCigarMDElement.getLength();		
+	private void processMDtagCigarOperatorN(int numSkipped) {		
 		totalSkippedRegions = totalSkippedRegions + numSkipped;
 //		currentPosition = currentPosition + numSkipped;
 //		// if the read.length is longer than what we supposed to be, here we increase the length of our *Pos arrays.
@@ -646,8 +746,7 @@ public class VariantCallDetection extends AbstractQCModule {
 	}
 	
 	/** Process the MD string once found the CigarMD operator s. */	
-	private void processMDtagCigarOperatorS() {
-		int numSoftClips = currentCigarMDElement.getLength();
+	private void processMDtagCigarOperatorS(int numSoftClips) {
 		totalSoftClips = totalSoftClips + numSoftClips;
 //		currentPosition = currentPosition + numSoftClips;
 //		// if the read.length is longer than what we supposed to be, here we increase the length of our *Pos arrays.
@@ -656,8 +755,7 @@ public class VariantCallDetection extends AbstractQCModule {
 	}
 	
 	/** Process the MD string once found the CigarMD operator h. */	
-	private void processMDtagCigarOperatorH() {
-		int numHardClips = currentCigarMDElement.getLength();		
+	private void processMDtagCigarOperatorH(int numHardClips) {		
 		totalHardClips = totalHardClips + numHardClips;
 //		currentPosition = currentPosition + numHardClips;
 //		// if the read.length is longer than what we supposed to be, here we increase the length of our *Pos arrays.
@@ -666,8 +764,7 @@ public class VariantCallDetection extends AbstractQCModule {
 	}
 	
 	/** Process the MD string once found the CigarMD operator p. */
-	private void processMDtagCigarOperatorP() {
-		int numPaddings = currentCigarMDElement.getLength();		
+	private void processMDtagCigarOperatorP(int numPaddings) {		
 		totalPaddings = totalPaddings + numPaddings;
 //		currentPosition = currentPosition + numPaddings;
 //		// if the read.length is longer than what we supposed to be, here we increase the length of our *Pos arrays.
@@ -696,11 +793,12 @@ public class VariantCallDetection extends AbstractQCModule {
 	// Getter methods
 	
 	/** 
-	 * Return the calculated CigarMD or null if this is empty 
+	 * Return the CigarMD of the last processed read or null if this could not be computed. 
+	 * The CigarMD is built on request from the decoded elements.
 	 * @return CigarMD or null
 	 */
 	public CigarMD getCigarMD() {
-		return cigarMD;
+		return cigarMDDecoder.getCigarMD();
 	}
 	
 	/**
@@ -708,6 +806,12 @@ public class VariantCallDetection extends AbstractQCModule {
 	 * @return the number of contributing reads per position.
 	 */
     public HashMap<Integer, Long> getContributingReadsPerPos() {
+		HashMap<Integer, Long> contributingReadsPerPos = new HashMap<Integer, Long>();
+		for(int i=0; i<contributingReadsPerLength.length; i++) {
+			if(contributingReadsPerLength[i] > 0) {
+				contributingReadsPerPos.put(i, contributingReadsPerLength[i]);
+			}
+		}
 		return contributingReadsPerPos;
 	}
 	
@@ -724,7 +828,7 @@ public class VariantCallDetection extends AbstractQCModule {
 	 * @return SNPs for the first reads.
 	 */
 	public HashMap<String, Long> getFirstSNPs() {
-		return firstSNPs;
+		return toSNPMap(firstSNPs);
 	}
 	
 	/**
@@ -732,7 +836,24 @@ public class VariantCallDetection extends AbstractQCModule {
 	 * @return SNPs for the second reads.
 	 */
 	public HashMap<String, Long> getSecondSNPs() {
-		return secondSNPs;
+		return toSNPMap(secondSNPs);
+	}
+	
+	/**
+	 * Build the map of the SNPs between the known bases of a SNP matrix.
+	 * @param snps the number of SNPs by reference and read base code.
+	 * @return the map of the SNPs, whose keys are the reference and read bases (e.g. "AC").
+	 */
+	private HashMap<String, Long> toSNPMap(long[][] snps) {
+		HashMap<String, Long> snpMap = new HashMap<String, Long>();
+		for(int i=0; i<N_CODE; i++) {
+			for(int j=0; j<N_CODE; j++) {
+				if(i != j) {
+					snpMap.put("" + BASES.charAt(i) + BASES.charAt(j), snps[i][j]);
+				}
+			}
+		}
+		return snpMap;
 	}
 	
 	// To reduce computational time let's not collect data regarding indel type.
@@ -829,6 +950,10 @@ public class VariantCallDetection extends AbstractQCModule {
 	 * @return The number of unknown bases.
 	 */		
 	public long getReadUnknownBases() {
+		long readUnknownBases = 0;
+		for(int i=0; i<BASES.length(); i++) {
+			readUnknownBases = readUnknownBases + firstSNPs[i][N_CODE] + secondSNPs[i][N_CODE];
+		}
 		return readUnknownBases;
 	}	
 	
@@ -837,6 +962,10 @@ public class VariantCallDetection extends AbstractQCModule {
 	 * @return The number of unknown bases.
 	 */		
 	public long getReferenceUnknownBases() {
+		long referenceUnknownBases = 0;
+		for(int i=0; i<BASES.length(); i++) {
+			referenceUnknownBases = referenceUnknownBases + firstSNPs[N_CODE][i] + secondSNPs[N_CODE][i];
+		}
 		return referenceUnknownBases;
 	}	
 
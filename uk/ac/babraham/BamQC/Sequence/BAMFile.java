@@ -23,22 +23,28 @@
  */
 package uk.ac.babraham.BamQC.Sequence;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import uk.ac.babraham.BamQC.BamQCConfig;
 import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
 import uk.ac.babraham.BamQC.DataTypes.Genome.Chromosome;
+import net.sf.samtools.BAMRecordCodec;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFormatException;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMSequenceDictionary;
 import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.BlockCompressedInputStream;
 
 /**
  * 
@@ -61,7 +67,22 @@ public class BAMFile implements SequenceFile {
 	// only way to access the file pointer.
 	private FileInputStream fis;
 
-	private SAMFileReader br;
+	private SAMFileReader br = null;
+	// Used instead of the SAMFileReader for the BGZF compressed files.
+	private BAMRecordIterator bamIterator = null;
+	// The stream inflating the file, when the BGZF blocks are inflated by multiple threads.
+	private ParallelBGZFInputStream bgzfStream = null;
+	// The inflated content of a BGZF compressed file, until the BAMRecordIterator is opened.
+	private InputStream inflatedStream = null;
+	// The header and the first record are read when the file is first used.
+	private boolean opened = false;
+	// The failure to open the file, which is thrown by the next read.
+	private SequenceFormatException openException = null;
+	// Used to load the records of a SAM text file into views. The header of the 
+	// views also lists the references which are missing from the file header.
+	private SAMFileHeader viewHeader = null;
+	private BAMRecordCodec recordCodec = null;
+	private ByteArrayOutputStream encodedRecord = null;
 	private String name;
 	private SAMRecord nextSequence = null;
 	Iterator<SAMRecord> it;
@@ -76,12 +97,95 @@ public class BAMFile implements SequenceFile {
 
 		fis = new FileInputStream(file);
 		
-		br = new SAMFileReader(fis);
-		
-		header = br.getFileHeader();
-		
-		it = br.iterator();
-		readNext();
+		int inflaterThreads = BamQCConfig.getInstance().inflater_threads;
+		if (ParallelBGZFInputStream.isBGZFFile(file)) {
+			if (inflaterThreads > 0) {
+				bgzfStream = new ParallelBGZFInputStream(fis.getChannel(), inflaterThreads);
+				inflatedStream = bgzfStream;
+			}
+			else {
+				inflatedStream = new BlockCompressedInputStream(fis);
+			}
+		}
+	}
+	
+	/**
+	 * Constructor for the subclasses providing their own source of inflated BAM data.
+	 * @param file the BAM file
+	 * @param onlyMapped true if the unmapped reads must be skipped
+	 * @param bgzfStream the stream inflating the file
+	 */
+	protected BAMFile (File file, boolean onlyMapped, ParallelBGZFInputStream bgzfStream) throws SequenceFormatException, IOException {
+		this.file = file;
+		fileSize = file.length();
+		name = file.getName();
+		this.onlyMapped = onlyMapped;
+		fis = null;
+		this.bgzfStream = bgzfStream;
+		inflatedStream = bgzfStream;
+	}
+	
+	/**
+	 * Read the header and the first record when the file is first used, so that creating 
+	 * a BAMFile does not read it and the inflater threads are started by the thread of 
+	 * the analysis. If the file cannot be read, hasNext() returns true and the exception 
+	 * is thrown by the following call to next() or nextView().
+	 */
+	private void open() {
+		if (opened) return;
+		opened = true;
+		try {
+			if (inflatedStream != null) {
+				openBAMRecordIterator(inflatedStream);
+			}
+			else {
+				br = new SAMFileReader(fis);
+				header = br.getFileHeader();
+				it = br.iterator();
+				readNext();
+			}
+		}
+		catch (SequenceFormatException sfe) {
+			openException = sfe;
+		}
+		catch (IOException ioe) {
+			openException = new SequenceFormatException(ioe.getMessage());
+		}
+		catch (RuntimeException re) {
+			// a SAMFormatException, or an IOException of the inflaters wrapped by the BinaryCodec
+			openException = new SequenceFormatException(re.getMessage());
+		}
+		if (openException != null) {
+			header = new SAMFileHeader();
+			close();
+		}
+	}
+	
+	/**
+	 * Throw the failure to open the file, once.
+	 */
+	private void checkOpened() throws SequenceFormatException {
+		open();
+		if (openException != null) {
+			SequenceFormatException sfe = openException;
+			openException = null;
+			throw sfe;
+		}
+	}
+	
+	private void openBAMRecordIterator(InputStream inflatedStream) throws SequenceFormatException, IOException {
+		try {
+			bamIterator = new BAMRecordIterator(inflatedStream, name);
+			bamIterator.setOnlyMapped(onlyMapped);
+		}
+		catch (SAMFormatException sfe) {
+			inflatedStream.close();
+			throw new SequenceFormatException(sfe.getMessage());
+		}
+		header = bamIterator.getFileHeader();
+		if (!bamIterator.hasNext()) {
+			close();
+		}
 	}
 	
 	@Override
@@ -89,13 +193,27 @@ public class BAMFile implements SequenceFile {
 		return name;
 	}
 		
+	@Override
+	public boolean isCoordinateSorted() {
+		open();
+		return header.getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+	}
+	
+	@Override
+	public SAMSequenceDictionary getSequenceDictionary() {
+		open();
+		return header.getSequenceDictionary();
+	}
+	
 	@Override
 	public boolean canListChromosomes() {
+		open();
 		return !header.getSequenceDictionary().isEmpty();
 	}
 
 	@Override
 	public Chromosome[] listChromosomes() {
+		open();
 		SAMSequenceDictionary dict = header.getSequenceDictionary();
 		List<SAMSequenceRecord> records = dict.getSequences();
 		int recordsSize = records.size(); 
@@ -116,6 +234,12 @@ public class BAMFile implements SequenceFile {
 	public int getPercentComplete() {
 		if (!hasNext()) return 100;
 		
+		if (bgzfStream != null) {
+			// The channel is read well ahead of the inflated data, so we use the 
+			// offset of the block currently being decoded.
+			return (int) (((double)bgzfStream.getCompressedPosition()/ fileSize)*100);
+		}
+		
 		try {
 			int percent = (int) (((double)fis.getChannel().position()/ fileSize)*100);
 			return percent;
@@ -133,16 +257,132 @@ public class BAMFile implements SequenceFile {
 		
 	@Override
 	public boolean hasNext() {
+		open();
+		if (openException != null) {
+			return true;
+		}
+		if (bamIterator != null) {
+			return bamIterator.hasNext();
+		}
 		return nextSequence != null;
 	}
 
 	@Override
 	public SAMRecord next () throws SequenceFormatException {
+		checkOpened();
+		if (bamIterator != null) {
+			try {
+				SAMRecord returnSeq = bamIterator.next();
+				if (!bamIterator.hasNext()) {
+					close();
+				}
+				return returnSeq;
+			}
+			catch (SAMFormatException sfe) {
+				throw new SequenceFormatException(sfe.getMessage());
+			}
+		}
 		SAMRecord returnSeq = nextSequence;
 		readNext();
 		return returnSeq;
 	}
 	
+	@Override
+	public boolean canReadRecordViews() {
+		open();
+		return bamIterator != null;
+	}
+	
+	@Override
+	public BAMRecordView createRecordView() {
+		open();
+		if (bamIterator == null) {
+			return new BAMRecordView(getViewHeader());
+		}
+		return new BAMRecordView(header);
+	}
+	
+	private SAMFileHeader getViewHeader() {
+		if (viewHeader == null) {
+			viewHeader = new SAMFileHeader();
+			viewHeader.setSortOrder(header.getSortOrder());
+			for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+				viewHeader.addSequence(new SAMSequenceRecord(sequence.getSequenceName(), sequence.getSequenceLength()));
+			}
+			recordCodec = new BAMRecordCodec(viewHeader);
+			encodedRecord = new ByteArrayOutputStream();
+			recordCodec.setOutputStream(encodedRecord);
+		}
+		return viewHeader;
+	}
+	
+	private void addViewReference(String referenceName) {
+		if (!referenceName.equals(SAMRecord.NO_ALIGNMENT_REFERENCE_NAME) && viewHeader.getSequence(referenceName) == null) {
+			viewHeader.addSequence(new SAMSequenceRecord(referenceName, 0));
+		}
+	}
+	
+	@Override
+	public void nextView(BAMRecordView view) throws SequenceFormatException {
+		checkOpened();
+		if (bamIterator == null) {
+			// The records of a SAM text file are parsed anyway, so they are 
+			// simply encoded into the view.
+			SAMRecord record = next();
+			String referenceName = record.getReferenceName();
+			String mateReferenceName = record.getMateReferenceName();
+			getViewHeader();
+			addViewReference(referenceName);
+			addViewReference(mateReferenceName);
+			// the reference indices are resolved against the header of the views
+			record.setHeader(viewHeader);
+			record.setReferenceName(referenceName);
+			record.setMateReferenceName(mateReferenceName);
+			encodedRecord.reset();
+			recordCodec.encode(record);
+			// skip the block_size field
+			byte[] buffer = Arrays.copyOfRange(encodedRecord.toByteArray(), 4, encodedRecord.size());
+			view.swapBuffer(buffer, buffer.length);
+			return;
+		}
+		try {
+			bamIterator.nextView(view);
+			if (!bamIterator.hasNext()) {
+				close();
+			}
+		}
+		catch (SAMFormatException sfe) {
+			throw new SequenceFormatException(sfe.getMessage());
+		}
+	}
+	
+	@Override
+	public void close() {
+		nextSequence = null;
+		if (!opened) {
+			// the file is closed without having been read.
+			opened = true;
+			header = new SAMFileHeader();
+		}
+		try {
+			if (bamIterator != null) {
+				bamIterator.close();
+			}
+			else if (br != null) {
+				br.close();
+			}
+			else if (inflatedStream != null) {
+				inflatedStream.close();
+			}
+			if (fis != null) {
+				fis.close();
+			}
+		}
+		catch (IOException ioe) {
+			log.error(ioe, ioe);
+		}
+	}
+	
 	private void readNext() throws SequenceFormatException {
 		
 		SAMRecord record;
@@ -151,13 +391,7 @@ public class BAMFile implements SequenceFile {
 			
 			if (!it.hasNext()) {
 				nextSequence = null;
-				try {
-					br.close();
-					fis.close();
-				}
-				catch (IOException ioe) {
-					log.error(ioe, ioe);
-				}
+				close();
 				return;
 			}
 		
@@ -187,6 +421,26 @@ public class BAMFile implements SequenceFile {
 
 	}
 
+	/**
+	 * Return the BAM index (.bai) of a BAM file if this exists.
+	 * @param bamFile the BAM file
+	 * @return the index file or null.
+	 */
+	public static File findIndexFile(File bamFile) {
+		File indexFile = new File(bamFile.getPath() + ".bai");
+		if (indexFile.exists()) {
+			return indexFile;
+		}
+		String path = bamFile.getPath();
+		if (path.toLowerCase().endsWith(".bam")) {
+			indexFile = new File(path.substring(0, path.length() - 4) + ".bai");
+			if (indexFile.exists()) {
+				return indexFile;
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public File getFile() {
 		return file;
@@ -0,0 +1,218 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Sequence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFormatException;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.RuntimeEOFException;
+import net.sf.samtools.util.StringLineReader;
+
+/**
+ * Decodes the header and the records of a BAM file from an already inflated stream, 
+ * such as the one returned by ParallelBGZFInputStream. Records can either be returned 
+ * as SAMRecord objects or loaded into a reusable BAMRecordView.
+ */
+public class BAMRecordIterator implements Iterator<SAMRecord>, Closeable {
+
+	private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+	
+	private InputStream inflatedStream;
+	private BinaryCodec binaryCodec;
+	private SAMFileHeader header;
+	private String source;
+	private boolean onlyMapped = false;
+	
+	// The raw bytes of the next record. This buffer is swapped with the one of 
+	// the view when the record is loaded into a view.
+	private byte[] nextBuffer = new byte[1024];
+	private int nextLength = -1;
+	// Used for decoding the records which are not read as a view.
+	private BAMRecordView recordView;
+	
+	/**
+	 * Constructor. The BAM header is read immediately.
+	 * @param inflatedStream the uncompressed BAM content
+	 * @param source the name of the source, used in error messages
+	 * @throws SAMFormatException if the header cannot be read
+	 */
+	public BAMRecordIterator(InputStream inflatedStream, String source) throws SAMFormatException {
+		this.inflatedStream = inflatedStream;
+		this.source = source;
+		binaryCodec = new BinaryCodec(inflatedStream);
+		header = readHeader(binaryCodec, source);
+		recordView = new BAMRecordView(header);
+		advance();
+	}
+	
+	/**
+	 * Skips over the unmapped records. This only applies to the records 
+	 * which have not been read yet.
+	 * @param onlyMapped true if the unmapped records must be skipped.
+	 */
+	public void setOnlyMapped(boolean onlyMapped) throws SAMFormatException {
+		this.onlyMapped = onlyMapped;
+		if (onlyMapped && hasNext() && isNextUnmapped()) {
+			advance();
+		}
+	}
+	
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+	
+	@Override
+	public boolean hasNext() {
+		return nextLength >= 0;
+	}
+
+	@Override
+	public SAMRecord next() throws SAMFormatException {
+		nextView(recordView);
+		return recordView.toSAMRecord();
+	}
+	
+	/**
+	 * Loads the next record into the view. No record object is created.
+	 * @param view the view to load the record into
+	 * @throws SAMFormatException
+	 */
+	public void nextView(BAMRecordView view) throws SAMFormatException {
+		if (nextLength < 0) {
+			throw new NoSuchElementException();
+		}
+		nextBuffer = view.swapBuffer(nextBuffer, nextLength);
+		advance();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("Cannot remove records from a BAM file");
+	}
+
+	@Override
+	public void close() throws IOException {
+		nextLength = -1;
+		inflatedStream.close();
+	}
+	
+	private boolean isNextUnmapped() {
+		// flag is the high unsigned short of the 4th field.
+		return (nextBuffer[14] & 0x4) != 0;
+	}
+	
+	/**
+	 * Reads the raw bytes of the next record.
+	 */
+	private void advance() throws SAMFormatException {
+		try {
+			do {
+				int blockSize;
+				try {
+					blockSize = binaryCodec.readInt();
+				}
+				catch (RuntimeEOFException e) {
+					// clean end of file
+					nextLength = -1;
+					return;
+				}
+				if (blockSize < BAMRecordView.FIXED_BLOCK_SIZE) {
+					throw new SAMFormatException("Invalid record length: " + blockSize + " in " + source);
+				}
+				if (blockSize > nextBuffer.length) {
+					nextBuffer = new byte[Math.max(blockSize, nextBuffer.length * 2)];
+				}
+				binaryCodec.readBytes(nextBuffer, 0, blockSize);
+				nextLength = blockSize;
+			} while (onlyMapped && isNextUnmapped());
+		}
+		catch (RuntimeEOFException e) {
+			throw new SAMFormatException("Truncated BAM record in " + source);
+		}
+		catch (SAMFormatException e) {
+			throw e;
+		}
+		catch (RuntimeException e) {
+			// The BinaryCodec wraps the IOExceptions coming from the inflater threads.
+			throw new SAMFormatException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Reads the BAM header. The sequence dictionary is always taken from the binary
+	 * reference list, which is the one the records' reference indices refer to.
+	 */
+	private static SAMFileHeader readHeader(BinaryCodec binaryCodec, String source) throws SAMFormatException {
+		try {
+			byte[] magic = new byte[BAM_MAGIC.length];
+			binaryCodec.readBytes(magic);
+			if (!Arrays.equals(magic, BAM_MAGIC)) {
+				throw new SAMFormatException("Invalid BAM file header in " + source);
+			}
+			
+			int textLength = binaryCodec.readInt();
+			String text = binaryCodec.readString(textLength);
+			// The text can be padded with NULs
+			int nul = text.indexOf('\0');
+			if (nul >= 0) {
+				text = text.substring(0, nul);
+			}
+			SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+			headerCodec.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+			SAMFileHeader header = headerCodec.decode(new StringLineReader(text), source);
+			
+			int referenceCount = binaryCodec.readInt();
+			List<SAMSequenceRecord> sequences = new ArrayList<SAMSequenceRecord>(referenceCount);
+			for (int i=0; i<referenceCount; i++) {
+				int nameLength = binaryCodec.readInt();
+				String name = binaryCodec.readString(nameLength - 1);
+				binaryCodec.readByte(); // terminating NUL
+				int length = binaryCodec.readInt();
+				SAMSequenceRecord sequence = new SAMSequenceRecord(name, length);
+				SAMSequenceRecord textSequence = header.getSequence(name);
+				if (textSequence != null && textSequence.getSequenceLength() == length) {
+					// keep the additional attributes from the text header
+					sequence = textSequence;
+				}
+				sequences.add(sequence);
+			}
+			header.setSequenceDictionary(new SAMSequenceDictionary(sequences));
+			return header;
+		}
+		catch (RuntimeEOFException e) {
+			throw new SAMFormatException("Truncated BAM header in " + source);
+		}
+	}
+
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Sequence;
+
+import net.sf.samtools.DefaultSAMRecordFactory;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * A reusable view over the raw bytes of a BAM record. The fixed-width fields 
+ * (flag, reference index, position, mapping quality, insert size) are read straight 
+ * from the buffer. Read name, sequence, qualities, CIGAR and tags are only decoded 
+ * when the full SAMRecord is requested with toSAMRecord(), although the CIGAR operations, 
+ * the bases and the string tags can also be read from the buffer without decoding them. 
+ * The content of a view is replaced every time the next record is read, so a view 
+ * (or its values) must not be stored by the modules.
+ */
+public final class BAMRecordView {
+
+	// The SAM flag bits
+	public static final int READ_PAIRED = 0x1;
+	public static final int PROPER_PAIR = 0x2;
+	public static final int READ_UNMAPPED = 0x4;
+	public static final int MATE_UNMAPPED = 0x8;
+	public static final int READ_REVERSE_STRAND = 0x10;
+	public static final int NOT_PRIMARY_ALIGNMENT = 0x100;
+	public static final int READ_FAILS_VENDOR_QUALITY_CHECK = 0x200;
+	public static final int DUPLICATE_READ = 0x400;
+	public static final int SUPPLEMENTARY_ALIGNMENT = 0x800;
+	
+	// the size of the fixed part of a BAM record, excluding the block_size field.
+	static final int FIXED_BLOCK_SIZE = 32;
+	
+	private static final DefaultSAMRecordFactory recordFactory = new DefaultSAMRecordFactory();
+	
+	// Whether each CIGAR operation (M, I, D, N, S, H, P, =, X) consumes the reference.
+	private static final boolean [] CONSUMES_REFERENCE = {true, false, true, true, false, false, false, true, true};
+	// The codes of the deletion (D) and skipped region (N) CIGAR operations.
+	private static final int DELETION = 2;
+	private static final int SKIPPED_REGION = 3;
+	// The bases of the 4-bit codes of the packed sequence.
+	private static final byte [] BASES = "=ACMGRSVTWYHKDBN".getBytes();
+
+	private SAMFileHeader header;
+	private byte[] buffer = new byte[1024];
+	private int length = 0;
+	
+	// The fully decoded record, created on demand.
+	private SAMRecord record = null;
+	// The alignment end, computed on demand.
+	private int alignmentEnd = -1;
+	
+	/**
+	 * Constructor.
+	 * @param header the header of the BAM file the records are read from.
+	 */
+	public BAMRecordView(SAMFileHeader header) {
+		this.header = header;
+	}
+	
+	/**
+	 * Replaces the record of this view. The current buffer is returned so that it 
+	 * can be reused for reading a following record.
+	 * @param newBuffer the buffer containing the record (excluding the block_size field)
+	 * @param newLength the length of the record
+	 * @return the previous buffer
+	 */
+	byte[] swapBuffer(byte[] newBuffer, int newLength) {
+		byte[] oldBuffer = buffer;
+		buffer = newBuffer;
+		length = newLength;
+		record = null;
+		alignmentEnd = -1;
+		return oldBuffer;
+	}
+	
+	public SAMFileHeader getHeader() {
+		return header;
+	}
+	
+	public int getReferenceIndex() {
+		return readInt(0);
+	}
+	
+	/**
+	 * @return the reference name or "*" if the record is not placed on a reference.
+	 */
+	public String getReferenceName() {
+		int referenceIndex = getReferenceIndex();
+		if (referenceIndex < 0) {
+			return SAMRecord.NO_ALIGNMENT_REFERENCE_NAME;
+		}
+		return header.getSequence(referenceIndex).getSequenceName();
+	}
+	
+	/**
+	 * @return the 1-based alignment start.
+	 */
+	public int getAlignmentStart() {
+		return readInt(4) + 1;
+	}
+	
+	/**
+	 * @return the 1-based inclusive alignment end, computed from the CIGAR operations without decoding them, 
+	 * or 0 if the read is unmapped.
+	 */
+	public int getAlignmentEnd() {
+		if (getReadUnmappedFlag()) {
+			return SAMRecord.NO_ALIGNMENT_START;
+		}
+		if (alignmentEnd < 0) {
+			int referenceLength = 0;
+			int cigarStart = FIXED_BLOCK_SIZE + getReadNameLength();
+			int cigarEnd = cigarStart + getCigarLength() * 4;
+			for (int i = cigarStart; i < cigarEnd; i += 4) {
+				int op = readInt(i);
+				int opCode = op & 0xf;
+				if (opCode < CONSUMES_REFERENCE.length && CONSUMES_REFERENCE[opCode]) {
+					referenceLength += op >>> 4;
+				}
+			}
+			alignmentEnd = getAlignmentStart() + referenceLength - 1;
+		}
+		return alignmentEnd;
+	}
+	
+	/**
+	 * Split the alignment into the blocks of aligned bases (M, = and X operations), at the 
+	 * deletions (D) and the skipped regions (N) of the CIGAR, such as the introns of a 
+	 * spliced read. The CIGAR operations are not decoded.
+	 * @param blockStarts the array receiving the 1-based starts of the aligned blocks
+	 * @param blockEnds the array receiving the 1-based inclusive ends of the aligned blocks
+	 * @return the number of blocks, which can be larger than the arrays. In this case only the 
+	 * first blocks are stored.
+	 */
+	public int getAlignmentBlocks(int [] blockStarts, int [] blockEnds) {
+		if (getReadUnmappedFlag()) {
+			return 0;
+		}
+		int blockNumber = 0;
+		int position = getAlignmentStart();
+		int blockStart = position;
+		int cigarStart = FIXED_BLOCK_SIZE + getReadNameLength();
+		int cigarEnd = cigarStart + getCigarLength() * 4;
+		for (int i = cigarStart; i < cigarEnd; i += 4) {
+			int op = readInt(i);
+			int opCode = op & 0xf;
+			if (opCode == SKIPPED_REGION || opCode == DELETION) {
+				if (position > blockStart) {
+					if (blockNumber < blockStarts.length) {
+						blockStarts[blockNumber] = blockStart;
+						blockEnds[blockNumber] = position - 1;
+					}
+					blockNumber++;
+				}
+				position += op >>> 4;
+				blockStart = position;
+			}
+			else if (opCode < CONSUMES_REFERENCE.length && CONSUMES_REFERENCE[opCode]) {
+				position += op >>> 4;
+			}
+		}
+		if (position > blockStart) {
+			if (blockNumber < blockStarts.length) {
+				blockStarts[blockNumber] = blockStart;
+				blockEnds[blockNumber] = position - 1;
+			}
+			blockNumber++;
+		}
+		return blockNumber;
+	}
+	
+	/**
+	 * @return the read name, decoded from the buffer.
+	 */
+	public String getReadName() {
+		StringBuilder readName = new StringBuilder(getReadNameLength());
+		// the read name is terminated by a NUL character
+		for (int i = FIXED_BLOCK_SIZE; i < FIXED_BLOCK_SIZE + getReadNameLength() - 1; i++) {
+			readName.append((char)buffer[i]);
+		}
+		return readName.toString();
+	}
+	
+	/**
+	 * Return a raw CIGAR operation, without decoding it. 
+	 * @param index the index of the operation, lower than getCigarLength()
+	 * @return the length of the operation shifted left by 4 bits, plus the code of 
+	 * the operator (0-8 for M, I, D, N, S, H, P, =, X).
+	 */
+	public int getCigarOperation(int index) {
+		return readInt(FIXED_BLOCK_SIZE + getReadNameLength() + index * 4);
+	}
+	
+	/**
+	 * Return a base of the read, from the sequence packed with 4 bits per base.
+	 * @param position the position of the base, lower than getReadLength()
+	 * @return the upper case ASCII code of the base.
+	 */
+	public byte getReadBase(int position) {
+		int packedBases = buffer[getSequenceOffset() + (position >> 1)];
+		// the first base of each byte is in the high 4 bits
+		return BASES[(packedBases >> ((~position & 1) << 2)) & 0xf];
+	}
+	
+	/**
+	 * Returns the raw bytes of the record, excluding the block_size field. These 
+	 * must not be modified, and they are replaced by the next record.
+	 * @return the buffer of the record.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * Find a string (type Z) tag, without decoding the tags.
+	 * @param tag the name of the tag (e.g. "MD")
+	 * @return the position of the value of the tag in getBuffer(), or -1 if the record does not 
+	 * have the tag as a string. The value is terminated by a NUL character.
+	 */
+	public int findStringAttribute(String tag) {
+		byte tag1 = (byte)tag.charAt(0);
+		byte tag2 = (byte)tag.charAt(1);
+		int readLength = getReadLength();
+		int position = getSequenceOffset() + (readLength + 1) / 2 + readLength;
+		while (position + 3 <= length) {
+			byte type = buffer[position + 2];
+			boolean found = buffer[position] == tag1 && buffer[position + 1] == tag2;
+			position += 3;
+			switch (type) {
+				case 'A': case 'c': case 'C': 
+					position += 1; 
+					break;
+				case 's': case 'S': 
+					position += 2; 
+					break;
+				case 'i': case 'I': case 'f': 
+					position += 4; 
+					break;
+				case 'Z': case 'H':
+					if (found) {
+						return type == 'Z' ? position : -1;
+					}
+					while (position < length && buffer[position] != 0) {
+						position++;
+					}
+					position++;
+					break;
+				case 'B':
+					int valueSize = buffer[position] == 'c' || buffer[position] == 'C' ? 1 : 
+						            buffer[position] == 's' || buffer[position] == 'S' ? 2 : 4;
+					position += 5 + readInt(position + 1) * valueSize;
+					break;
+				default:
+					// the tags cannot be parsed any further.
+					return -1;
+			}
+			if (found) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+	
+	private int getSequenceOffset() {
+		return FIXED_BLOCK_SIZE + getReadNameLength() + getCigarLength() * 4;
+	}
+	
+	public int getReadNameLength() {
+		return buffer[8] & 0xff;
+	}
+	
+	public int getMappingQuality() {
+		return buffer[9] & 0xff;
+	}
+	
+	public int getCigarLength() {
+		return readUShort(12);
+	}
+	
+	public int getFlags() {
+		return readUShort(14);
+	}
+	
+	public int getReadLength() {
+		return readInt(16);
+	}
+	
+	public int getMateReferenceIndex() {
+		return readInt(20);
+	}
+	
+	public int getMateAlignmentStart() {
+		return readInt(24) + 1;
+	}
+	
+	public int getInferredInsertSize() {
+		return readInt(28);
+	}
+	
+	public boolean getReadPairedFlag() {
+		return (getFlags() & READ_PAIRED) != 0;
+	}
+	
+	public boolean getProperPairFlag() {
+		return (getFlags() & PROPER_PAIR) != 0;
+	}
+	
+	public boolean getReadUnmappedFlag() {
+		return (getFlags() & READ_UNMAPPED) != 0;
+	}
+	
+	public boolean getMateUnmappedFlag() {
+		return (getFlags() & MATE_UNMAPPED) != 0;
+	}
+	
+	public boolean getReadNegativeStrandFlag() {
+		return (getFlags() & READ_REVERSE_STRAND) != 0;
+	}
+	
+	public boolean isSecondaryOrSupplementary() {
+		return (getFlags() & (NOT_PRIMARY_ALIGNMENT | SUPPLEMENTARY_ALIGNMENT)) != 0;
+	}
+	
+	public boolean getReadFailsVendorQualityCheckFlag() {
+		return (getFlags() & READ_FAILS_VENDOR_QUALITY_CHECK) != 0;
+	}
+	
+	public boolean getDuplicateReadFlag() {
+		return (getFlags() & DUPLICATE_READ) != 0;
+	}
+	
+	/**
+	 * Returns the fully decoded record. This is created once per record, and only
+	 * when it is requested, so that modules only reading the fixed fields do not 
+	 * need any allocation. 
+	 * @return the SAMRecord for the current record.
+	 */
+	public SAMRecord toSAMRecord() {
+		if (record == null) {
+			byte[] restOfData = new byte[length - FIXED_BLOCK_SIZE];
+			System.arraycopy(buffer, FIXED_BLOCK_SIZE, restOfData, 0, restOfData.length);
+			record = recordFactory.createBAMRecord(header, 
+					getReferenceIndex(), 
+					getAlignmentStart(), 
+					(short)getReadNameLength(), 
+					(short)getMappingQuality(), 
+					readUShort(10), 
+					getCigarLength(), 
+					getFlags(), 
+					getReadLength(), 
+					getMateReferenceIndex(), 
+					getMateAlignmentStart(), 
+					getInferredInsertSize(), 
+					restOfData);
+			record.setHeader(header);
+		}
+		return record;
+	}
+	
+	private int readUShort(int position) {
+		return (buffer[position] & 0xff) | ((buffer[position+1] & 0xff) << 8);
+	}
+	
+	private int readInt(int position) {
+		return (buffer[position] & 0xff) | ((buffer[position+1] & 0xff) << 8) | 
+			   ((buffer[position+2] & 0xff) << 16) | ((buffer[position+3] & 0xff) << 24);
+	}
+	
+}
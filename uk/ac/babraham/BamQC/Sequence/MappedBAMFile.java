@@ -0,0 +1,43 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Sequence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import uk.ac.babraham.BamQC.BamQCConfig;
+
+/**
+ * A local BAM file read through memory mapped windows instead of a FileInputStream. 
+ * The mapped windows are sliced into chunks which are inflated by the BGZF inflater 
+ * threads (at least one), so no read system calls or intermediate copies of the 
+ * compressed data are needed. The progress is computed from the mapped position 
+ * of the block being decoded.
+ */
+public class MappedBAMFile extends BAMFile {
+
+	protected MappedBAMFile (File file, boolean onlyMapped) throws SequenceFormatException, IOException {
+		super(file, onlyMapped, ParallelBGZFInputStream.memoryMapped(
+				new RandomAccessFile(file, "r").getChannel(), 
+				Math.max(1, BamQCConfig.getInstance().inflater_threads)));
+	}
+	
+}
@@ -0,0 +1,596 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Sequence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An InputStream returning the inflated content of a BGZF compressed file (e.g. BAM).
+ * The compressed blocks are read in large sequential chunks and each chunk is 
+ * inflated by a pool of worker threads. Inflated chunks are returned in file order, 
+ * so the record decoder sees exactly the same byte stream it would see from a 
+ * single threaded BlockCompressedInputStream.
+ * The chunks are either read from a channel into recycled buffers, or are slices 
+ * of large memory mapped windows of the file.
+ */
+public class ParallelBGZFInputStream extends InputStream {
+
+	private static Logger log = Logger.getLogger(ParallelBGZFInputStream.class);
+	
+	// BGZF block layout, see the SAM/BAM format specification.
+	private static final int BLOCK_HEADER_LENGTH = 18;
+	private static final int BLOCK_FOOTER_LENGTH = 8;
+	private static final int MAX_BLOCK_SIZE = 65536;
+	
+	// The size of each sequential read from the compressed file. A chunk typically 
+	// contains a few dozen BGZF blocks and is inflated by one worker thread.
+	private static final int CHUNK_SIZE = 1 << 20;
+	
+	// The size of the memory mapped windows of the file.
+	private static final int MAP_WINDOW_SIZE = 64 << 20;
+	
+	// One inflater for each worker thread, reset for every block.
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	
+	// The Inflater only accepts arrays, so the blocks of a mapped chunk are copied 
+	// here one at a time.
+	private static final ThreadLocal<byte[]> blockBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[MAX_BLOCK_SIZE];
+		}
+	};
+	
+	private static final AtomicInteger poolCount = new AtomicInteger(0);
+	
+	private ReadableByteChannel channel;
+	private int threads;
+	// The pool is started by the first read, so that opening a stream does not start any thread.
+	private ExecutorService inflaterPool = null;
+	
+	// The chunks submitted for inflation, in file order. 
+	private LinkedList<Future<InflatedChunk>> pendingChunks = new LinkedList<Future<InflatedChunk>>();
+	private int maxPendingChunks;
+	// The compressed buffers are recycled once their chunk has been inflated.
+	private ArrayBlockingQueue<byte[]> compressedBuffers;
+	
+	// The tail of the last chunk read which did not contain a complete block.
+	private byte[] leftover = new byte[MAX_BLOCK_SIZE];
+	private int leftoverLength = 0;
+	// The compressed offset of the first byte of the next chunk.
+	private long nextChunkOffset = 0;
+	private boolean channelExhausted = false;
+	
+	// The memory mapped window and the file size, when the file is memory mapped.
+	private boolean memoryMapped = false;
+	private ByteBuffer mappedWindow = null;
+	private long mappedWindowOffset = 0;
+	private long fileSize = 0;
+	
+	// The message describing a truncated trailing block. This is only reported 
+	// once all the complete blocks before it have been read.
+	private String truncationError = null;
+	
+	private InflatedChunk currentChunk = null;
+	private int currentPosition = 0;
+	// The compressed position of the data read so far, published for the 
+	// threads reporting the progress.
+	private volatile long compressedPosition = 0;
+	private boolean closed = false;
+	
+	
+	/**
+	 * Constructor.
+	 * @param channel the channel providing the compressed data. This is read sequentially from its current position.
+	 * @param threads the number of threads inflating the blocks
+	 */
+	public ParallelBGZFInputStream(ReadableByteChannel channel, int threads) {
+		this.channel = channel;
+		if (threads < 1) threads = 1;
+		this.threads = threads;
+		// Keep all the inflaters busy while the consumer is still processing the current chunk.
+		maxPendingChunks = threads + 2;
+		compressedBuffers = new ArrayBlockingQueue<byte[]>(maxPendingChunks + 1);
+	}
+	
+	/**
+	 * Starts the threads inflating the chunks.
+	 */
+	private void startInflaterPool() {
+		final int poolId = poolCount.incrementAndGet();
+		inflaterPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int threadCount = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BGZF inflater " + poolId + "-" + (++threadCount));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * Returns a stream for a memory mapped file. The file is mapped in large windows and 
+	 * the chunks given to the inflaters are slices of these windows, so the compressed 
+	 * data is never read into intermediate buffers.
+	 * @param channel the channel of the file to map. This is read from its current position.
+	 * @param threads the number of threads inflating the blocks
+	 * @return the stream
+	 * @throws IOException
+	 */
+	public static ParallelBGZFInputStream memoryMapped(FileChannel channel, int threads) throws IOException {
+		ParallelBGZFInputStream stream = new ParallelBGZFInputStream(channel, threads);
+		stream.memoryMapped = true;
+		stream.fileSize = channel.size();
+		stream.nextChunkOffset = channel.position();
+		stream.mappedWindowOffset = stream.nextChunkOffset;
+		return stream;
+	}
+	
+	/**
+	 * Returns true if the file starts with a BGZF block header.
+	 * @param file the file to test
+	 * @return true if the file is BGZF compressed.
+	 */
+	public static boolean isBGZFFile(File file) {
+		byte[] header = new byte[BLOCK_HEADER_LENGTH];
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			int read = 0;
+			while (read < header.length) {
+				int n = fis.read(header, read, header.length - read);
+				if (n < 0) return false;
+				read += n;
+			}
+			return blockSize(ByteBuffer.wrap(header), 0, header.length) > 0;
+		} 
+		catch (IOException e) {
+			return false;
+		}
+		finally {
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException e) {
+					log.error(e, e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the position in the compressed file of the data currently being read. 
+	 * The position is interpolated within the current chunk. This can be called 
+	 * from any thread.
+	 * @return the compressed offset.
+	 */
+	public long getCompressedPosition() {
+		return compressedPosition;
+	}
+	
+	/**
+	 * Publishes the compressed position of the data read so far.
+	 */
+	private void updateCompressedPosition() {
+		InflatedChunk chunk = currentChunk;
+		if (chunk == null) {
+			return;
+		}
+		if (chunk.length == 0) {
+			compressedPosition = chunk.offset;
+		}
+		else {
+			compressedPosition = chunk.offset + (long)(chunk.compressedLength * ((double)currentPosition / chunk.length));
+		}
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (!ensureData()) {
+			return -1;
+		}
+		return currentChunk.data[currentPosition++] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int copied = 0;
+		while (copied < len && ensureData()) {
+			int n = Math.min(len - copied, currentChunk.length - currentPosition);
+			System.arraycopy(currentChunk.data, currentPosition, b, off + copied, n);
+			currentPosition += n;
+			copied += n;
+		}
+		updateCompressedPosition();
+		if (copied == 0) {
+			return -1;
+		}
+		return copied;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && ensureData()) {
+			int k = (int)Math.min(n - skipped, currentChunk.length - currentPosition);
+			currentPosition += k;
+			skipped += k;
+		}
+		updateCompressedPosition();
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		if (currentChunk == null) return 0;
+		return currentChunk.length - currentPosition;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		for (Future<InflatedChunk> f : pendingChunks) {
+			f.cancel(true);
+		}
+		pendingChunks.clear();
+		if (inflaterPool != null) {
+			inflaterPool.shutdownNow();
+		}
+		currentChunk = null;
+		mappedWindow = null;
+		channel.close();
+	}
+	
+	
+	/**
+	 * Makes sure there is some inflated data to read.
+	 * @return false if the end of the stream has been reached.
+	 * @throws IOException if the stream ends with a truncated block
+	 */
+	private boolean ensureData() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		while (currentChunk == null || currentPosition >= currentChunk.length) {
+			submitChunks();
+			if (pendingChunks.isEmpty()) {
+				if (truncationError != null) {
+					throw new IOException(truncationError);
+				}
+				return false;
+			}
+			currentChunk = waitFor(pendingChunks.removeFirst());
+			currentPosition = 0;
+			updateCompressedPosition();
+			// keep the inflaters busy while this chunk is consumed.
+			submitChunks();
+		}
+		return true;
+	}
+	
+	private InflatedChunk waitFor(Future<InflatedChunk> future) throws IOException {
+		try {
+			return future.get();
+		} 
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for BGZF inflater");
+		} 
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	private void submitChunks() throws IOException {
+		// the leftover of an exhausted channel is read once more to report a truncated block
+		while ((!channelExhausted || (!memoryMapped && leftoverLength > 0)) && pendingChunks.size() < maxPendingChunks) {
+			CompressedChunk chunk = memoryMapped ? readMappedChunk() : readChunk();
+			if (chunk == null) {
+				break;
+			}
+			if (inflaterPool == null) {
+				startInflaterPool();
+			}
+			pendingChunks.add(inflaterPool.submit(new InflateTask(chunk)));
+		}
+	}
+	
+	/**
+	 * Reads the next chunk of complete BGZF blocks from the channel.
+	 * @return the chunk or null if no more blocks are available.
+	 * @throws IOException
+	 */
+	private CompressedChunk readChunk() throws IOException {
+		byte[] buffer = compressedBuffers.poll();
+		if (buffer == null) {
+			buffer = new byte[CHUNK_SIZE];
+		}
+		System.arraycopy(leftover, 0, buffer, 0, leftoverLength);
+		long chunkOffset = nextChunkOffset;
+		
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, leftoverLength, buffer.length - leftoverLength);
+		while (byteBuffer.hasRemaining()) {
+			if (channel.read(byteBuffer) < 0) {
+				channelExhausted = true;
+				break;
+			}
+		}
+		int length = byteBuffer.position();
+		
+		CompressedChunk chunk = splitBlocks(ByteBuffer.wrap(buffer), 0, length, chunkOffset);
+		int position = chunk == null ? 0 : chunk.blockStarts[chunk.blockCount];
+		
+		leftoverLength = length - position;
+		System.arraycopy(buffer, position, leftover, 0, leftoverLength);
+		nextChunkOffset = chunkOffset + position;
+		
+		if (channelExhausted && leftoverLength > 0 && chunk == null) {
+			truncationError = truncationMessage(nextChunkOffset, leftoverLength);
+			leftoverLength = 0;
+		}
+		if (chunk == null) {
+			compressedBuffers.offer(buffer);
+			return null;
+		}
+		chunk.recycledBuffer = buffer;
+		return chunk;
+	}
+	
+	/**
+	 * Returns the next chunk of complete BGZF blocks of the memory mapped file. A new 
+	 * window is mapped when the current one does not contain a complete block any more.
+	 * @return the chunk or null if no more blocks are available.
+	 * @throws IOException
+	 */
+	private CompressedChunk readMappedChunk() throws IOException {
+		for (int attempt = 0; attempt < 2; attempt++) {
+			if (mappedWindow != null) {
+				int position = (int)(nextChunkOffset - mappedWindowOffset);
+				int length = Math.min(position + CHUNK_SIZE, mappedWindow.capacity());
+				CompressedChunk chunk = splitBlocks(mappedWindow, position, length, nextChunkOffset);
+				if (chunk != null) {
+					nextChunkOffset = mappedWindowOffset + chunk.blockStarts[chunk.blockCount];
+					return chunk;
+				}
+			}
+			// map the next window starting from the first block not read yet
+			long windowLength = Math.min(MAP_WINDOW_SIZE, fileSize - nextChunkOffset);
+			if (windowLength <= 0 || (mappedWindow != null && nextChunkOffset + windowLength == mappedWindowOffset + mappedWindow.capacity())) {
+				// the end of the file
+				break;
+			}
+			mappedWindowOffset = nextChunkOffset;
+			mappedWindow = ((FileChannel)channel).map(FileChannel.MapMode.READ_ONLY, mappedWindowOffset, windowLength);
+		}
+		if (nextChunkOffset < fileSize) {
+			truncationError = truncationMessage(nextChunkOffset, fileSize - nextChunkOffset);
+		}
+		channelExhausted = true;
+		mappedWindow = null;
+		return null;
+	}
+	
+	private static String truncationMessage(long offset, long length) {
+		return "Premature end of file: truncated BGZF block of " + length + " bytes at compressed offset " + offset;
+	}
+	
+	/**
+	 * Splits the data between position and length into complete BGZF blocks. 
+	 * @return the chunk of complete blocks, or null if there is no complete block.
+	 * @throws IOException if the data is not BGZF compressed
+	 */
+	private static CompressedChunk splitBlocks(ByteBuffer data, int position, int length, long offset) throws IOException {
+		int chunkStart = position;
+		int [] blockStarts = new int[64];
+		int blockCount = 0;
+		while (length - position >= BLOCK_HEADER_LENGTH) {
+			int blockSize = blockSize(data, position, length);
+			if (blockSize < 0) {
+				throw new IOException("Invalid BGZF block header at compressed offset " + (offset + position - chunkStart));
+			}
+			if (blockSize == 0 || length - position < blockSize) {
+				// incomplete block, this goes to the next chunk.
+				break;
+			}
+			if (blockCount + 1 >= blockStarts.length) {
+				int [] oldBlockStarts = blockStarts;
+				blockStarts = new int[oldBlockStarts.length * 2];
+				System.arraycopy(oldBlockStarts, 0, blockStarts, 0, blockCount);
+			}
+			blockStarts[blockCount++] = position;
+			position += blockSize;
+		}
+		if (blockCount == 0) {
+			return null;
+		}
+		blockStarts[blockCount] = position;
+		return new CompressedChunk(data, blockStarts, blockCount, offset);
+	}
+	
+	/**
+	 * Returns the total size of the BGZF block starting at position, 0 if the header 
+	 * is not complete within length, or -1 if this is not a BGZF block.
+	 */
+	private static int blockSize(ByteBuffer buffer, int position, int length) {
+		if ((buffer.get(position) & 0xff) != 31 || (buffer.get(position+1) & 0xff) != 139 || 
+			buffer.get(position+2) != 8 || (buffer.get(position+3) & 4) == 0) {
+			return -1;
+		}
+		int extraLength = readUShort(buffer, position+10);
+		if (length - position < 12 + extraLength) {
+			return 0;
+		}
+		// look for the BC subfield containing the block size.
+		int subfield = position + 12;
+		int extraEnd = subfield + extraLength;
+		while (subfield + 4 <= extraEnd) {
+			int subfieldLength = readUShort(buffer, subfield+2);
+			if (buffer.get(subfield) == 'B' && buffer.get(subfield+1) == 'C' && subfieldLength == 2) {
+				return readUShort(buffer, subfield+4) + 1;
+			}
+			subfield += 4 + subfieldLength;
+		}
+		return -1;
+	}
+	
+	private static int readUShort(ByteBuffer buffer, int position) {
+		return (buffer.get(position) & 0xff) | ((buffer.get(position+1) & 0xff) << 8);
+	}
+	
+	private static int readInt(ByteBuffer buffer, int position) {
+		return (buffer.get(position) & 0xff) | ((buffer.get(position+1) & 0xff) << 8) | 
+			   ((buffer.get(position+2) & 0xff) << 16) | ((buffer.get(position+3) & 0xff) << 24);
+	}
+	
+	
+	/** A chunk of complete compressed blocks. */
+	private static class CompressedChunk {
+		private ByteBuffer data;
+		// blockStarts[blockCount] is the end of the last block.
+		private int[] blockStarts;
+		private int blockCount;
+		private long offset;
+		// the buffer to recycle once the chunk has been inflated, if any.
+		private byte[] recycledBuffer = null;
+		
+		public CompressedChunk(ByteBuffer data, int[] blockStarts, int blockCount, long offset) {
+			this.data = data;
+			this.blockStarts = blockStarts;
+			this.blockCount = blockCount;
+			this.offset = offset;
+		}
+	}
+	
+	/** The inflated content of a chunk. */
+	private static class InflatedChunk {
+		private byte[] data;
+		private int length;
+		private long offset;
+		private int compressedLength;
+		
+		public InflatedChunk(byte[] data, int length, long offset, int compressedLength) {
+			this.data = data;
+			this.length = length;
+			this.offset = offset;
+			this.compressedLength = compressedLength;
+		}
+	}
+	
+	/** Inflates all the blocks of a compressed chunk. */
+	private class InflateTask implements Callable<InflatedChunk> {
+		
+		private CompressedChunk chunk;
+		
+		public InflateTask(CompressedChunk chunk) {
+			this.chunk = chunk;
+		}
+
+		@Override
+		public InflatedChunk call() throws IOException {
+			ByteBuffer compressed = chunk.data;
+			int[] blockStarts = chunk.blockStarts;
+			
+			int inflatedLength = 0;
+			for (int b=0; b<chunk.blockCount; b++) {
+				inflatedLength += readInt(compressed, blockStarts[b+1] - 4);
+			}
+			byte[] inflated = new byte[inflatedLength];
+			
+			Inflater inflater = inflaters.get();
+			byte[] blockBuffer = compressed.hasArray() ? compressed.array() : blockBuffers.get();
+			ByteBuffer source = compressed.hasArray() ? null : compressed.duplicate();
+			int inflatedPosition = 0;
+			for (int b=0; b<chunk.blockCount; b++) {
+				int blockStart = blockStarts[b];
+				int blockEnd = blockStarts[b+1];
+				int dataStart = blockStart + 12 + readUShort(compressed, blockStart+10);
+				int dataLength = blockEnd - BLOCK_FOOTER_LENGTH - dataStart;
+				int blockInflatedLength = readInt(compressed, blockEnd - 4);
+				
+				inflater.reset();
+				if (source == null) {
+					inflater.setInput(blockBuffer, compressed.arrayOffset() + dataStart, dataLength);
+				}
+				else {
+					source.position(dataStart);
+					source.get(blockBuffer, 0, dataLength);
+					inflater.setInput(blockBuffer, 0, dataLength);
+				}
+				try {
+					int n = 0;
+					while (n < blockInflatedLength) {
+						int k = inflater.inflate(inflated, inflatedPosition + n, blockInflatedLength - n);
+						if (k == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+							break;
+						}
+						n += k;
+					}
+					if (n != blockInflatedLength) {
+						throw new IOException("BGZF block at compressed offset " + (chunk.offset + blockStart - blockStarts[0]) + 
+								" inflated to " + n + " bytes instead of " + blockInflatedLength);
+					}
+				} 
+				catch (DataFormatException e) {
+					throw new IOException("Corrupted BGZF block at compressed offset " + (chunk.offset + blockStart - blockStarts[0]), e);
+				}
+				inflatedPosition += blockInflatedLength;
+			}
+			
+			int compressedLength = blockStarts[chunk.blockCount] - blockStarts[0];
+			if (chunk.recycledBuffer != null) {
+				compressedBuffers.offer(chunk.recycledBuffer);
+			}
+			return new InflatedChunk(inflated, inflatedLength, chunk.offset, compressedLength);
+		}
+	}
+
+}
@@ -26,6 +26,8 @@ package uk.ac.babraham.BamQC.Sequence;
 import java.io.File;
 import java.io.IOException;
 
+import uk.ac.babraham.BamQC.BamQCConfig;
+
 /**
  * 
  * @author Simon Andrews
@@ -34,7 +36,10 @@ import java.io.IOException;
 public class SequenceFactory {
 	
 	public static SequenceFile getSequenceFile(File file) throws SequenceFormatException, IOException {
-				
+		
+		if (BamQCConfig.getInstance().memory_mapped && ParallelBGZFInputStream.isBGZFFile(file)) {
+			return new MappedBAMFile(file,false);
+		}
 		return new BAMFile(file,false);
 
 		
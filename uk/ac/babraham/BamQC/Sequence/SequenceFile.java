@@ -28,6 +28,7 @@ import java.io.File;
 import uk.ac.babraham.BamQC.DataTypes.Genome.AnnotationSet;
 import uk.ac.babraham.BamQC.DataTypes.Genome.Chromosome;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
 
 /**
  * 
@@ -46,4 +47,41 @@ public interface SequenceFile {
 	public Chromosome [] listChromosomes();
 	public AnnotationSet annotationSet();
 	
+	/**
+	 * Return true if the records can be read into a reusable BAMRecordView using nextView().
+	 * @return true if record views are supported.
+	 */
+	public boolean canReadRecordViews();
+	
+	/**
+	 * Create a view which can be used with nextView().
+	 * @return a new record view
+	 */
+	public BAMRecordView createRecordView();
+	
+	/**
+	 * Load the next record into the view. This is an alternative to next() 
+	 * which does not decode the whole record. 
+	 * @param view the view to load the record into
+	 * @throws SequenceFormatException
+	 */
+	public void nextView(BAMRecordView view) throws SequenceFormatException;
+	
+	/**
+	 * Return true if the header declares that the records are sorted by coordinate.
+	 * @return true if the file is sorted by coordinate
+	 */
+	public boolean isCoordinateSorted();
+	
+	/**
+	 * Return the sequence dictionary of the header, which lists the references by reference index.
+	 * @return the sequence dictionary
+	 */
+	public SAMSequenceDictionary getSequenceDictionary();
+	
+	/**
+	 * Close the file before all the records have been read.
+	 */
+	public void close();
+	
 }
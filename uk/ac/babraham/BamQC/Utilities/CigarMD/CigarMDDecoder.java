@@ -0,0 +1,908 @@
+/**
+ * Copyright Copyright 2015 Simon Andrews
+ *
+ *    This file is part of BamQC.
+ *
+ *    BamQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    BamQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with BamQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.babraham.BamQC.Utilities.CigarMD;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.Cigar;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+import net.sf.samtools.SAMRecord;
+import uk.ac.babraham.BamQC.DataTypes.Genome.IndexedFastaFile;
+import uk.ac.babraham.BamQC.DataTypes.Genome.PackedSequence;
+import uk.ac.babraham.BamQC.DataTypes.Genome.ReferenceSequence;
+import uk.ac.babraham.BamQC.Sequence.BAMRecordView;
+
+
+/**
+ * Decodes the CIGAR and MD tag of a read into the same elements as the CigarMDGenerator,
+ * but stores them in reusable primitive arrays instead of CigarMDElement objects and strings,
+ * so that decoding a read does not allocate memory once the arrays are large enough for the
+ * longest read. The i-th element has operator operator(i) and length length(i). Its bases
+ * are at the positions from baseOffset(i) to baseOffset(i+1) of the arrays referenceBases()
+ * (mismatched and deleted reference bases) and readBases() (mismatched and inserted read bases).
+ * The bases are stored as upper case ASCII codes.
+ * The MD tag is tokenised from its bytes. A BAMRecordView is decoded from the raw CIGAR
+ * operations, MD tag and 4-bit packed sequence of the record, without decoding a SAMRecord.
+ * Unlike the CigarMDGenerator, the elements of reverse reads (first reads on the reverse strand
+ * and second reads on the forward strand) are not reversed and complemented. The elements always
+ * follow the alignment and isReverse() tells whether the read cycles run from the last aligned
+ * base to the first, on the complementary strand. Only getCigarMD() returns the reversed and
+ * complemented elements, as the CigarMDGenerator does.
+ * If a reference is set, the matches and mismatches of the reads without MD tag are found by 
+ * comparing their bases with the reference along the Cigar, and their deleted bases are read 
+ * from the reference. These reads are still reported with error type 2.
+ * A decoder is not thread safe and its content is replaced by every call to decode().
+ */
+public class CigarMDDecoder {
+
+	private static Logger log = Logger.getLogger(CigarMDDecoder.class);
+
+	// The read bases of a record without sequence, which SAMRecord.getReadString() reports as "*".
+	private static final byte[] NULL_SEQUENCE = {'*'};
+
+	// The SAM flag bits used for the segment and the strand.
+	private static final int READ_PAIRED = 0x1;
+	private static final int READ_UNMAPPED = 0x4;
+	private static final int READ_REVERSE_STRAND = 0x10;
+	private static final int FIRST_OF_PAIR = 0x40;
+	private static final int SECOND_OF_PAIR = 0x80;
+
+	// The codes of the BAM CIGAR operators.
+	private static final int OPERATOR_M = 0;
+	private static final int OPERATOR_I = 1;
+	private static final int OPERATOR_D = 2;
+	private static final int OPERATOR_N = 3;
+	private static final int OPERATOR_S = 4;
+	private static final int OPERATOR_H = 5;
+	private static final int OPERATOR_P = 6;
+	private static final int OPERATOR_EQ = 7;
+	private static final int OPERATOR_X = 8;
+	private static final String OPERATORS = "MIDNSHP=X?";
+
+	// The upper case of each byte of the MD tag. The bytes other than letters are not changed.
+	private static final byte[] UPPER_CASE = new byte[256];
+	// The complement of each ASCII base. The bases other than A, C, G and T are not changed.
+	private static final byte[] COMPLEMENT = new byte[128];
+	static {
+		for(int i=0; i<UPPER_CASE.length; i++) {
+			UPPER_CASE[i] = (byte)(i >= 'a' && i <= 'z' ? i - 'a' + 'A' : i);
+		}
+		for(int i=0; i<COMPLEMENT.length; i++) {
+			COMPLEMENT[i] = (byte)i;
+		}
+		COMPLEMENT['A'] = 'T';
+		COMPLEMENT['C'] = 'G';
+		COMPLEMENT['G'] = 'C';
+		COMPLEMENT['T'] = 'A';
+	}
+
+	// The decoded elements.
+	private int elementNumber = 0;
+	private CigarMDOperator[] operators = new CigarMDOperator[16];
+	private int[] lengths = new int[16];
+	// The bases of the i-th element are at the positions from baseOffsets[i] to baseOffsets[i+1].
+	private int[] baseOffsets = new int[17];
+	private int baseNumber = 0;
+	private byte[] referenceBases = new byte[64];
+	private byte[] readBases = new byte[64];
+
+	// 0: no error, 1: unmapped read, 2: read without MD string, 3: read without Cigar, 4: Cigar/MD/read inconsistencies
+	private int errorType = 0;
+	// If the read is a first or second segment.
+	private boolean isFirst = true;
+	// If the read cycles run against the elements.
+	private boolean isReverse = false;
+
+	// The read being decoded, either as a SAMRecord or as a BAMRecordView.
+	private SAMRecord record = null;
+	private BAMRecordView view = null;
+	// The bases of a SAMRecord. If packedBases is true, the bases are read from the packed sequence of the view.
+	private byte[] bases = null;
+	private boolean packedBases = false;
+	private int basesLength = 0;
+	// The raw Cigar operations (length << 4 | operator code)
+	private int[] cigar = new int[16];
+	private int cigarLength = 0;
+	// The bytes of the MD tag, from mdStart (inclusive) to mdEnd (exclusive), or null if the read does not have it.
+	private byte[] md = null;
+	private int mdStart = 0;
+	private int mdEnd = 0;
+	// The buffer of the MD tags of the SAMRecords
+	private byte[] mdBuffer = new byte[64];
+
+	// The reference of the reads without MD tag, or null.
+	private IndexedFastaFile reference = null;
+	// True if the sequence of the current reads is packed by this decoder.
+	private boolean packedReference = false;
+	// The sequence of the last read compared with the reference, or null if the reference does not have it.
+	private String referenceSequenceName = null;
+	private ReferenceSequence referenceSequence = null;
+	// True if the current read is compared with the reference sequence, from the 0-based referencePosition.
+	private boolean comparingReference = false;
+	private int referencePosition = 0;
+
+	// The state of the parser.
+	// The current processed position of the MD tag
+	private int currentMDElementPosition = 0;
+	// The temporary processed length of the processed MD tag element
+	private int temporaryMDElementLength = 0;
+	// The current base call position of the read
+	private int currentBaseCallPosition = 0;
+	// The length of the current Cigar element
+	private int currentCigarElementLength = 0;
+
+
+	/**
+	 * Decode the Cigar and MD tag of a read. If the read cannot be decoded, the reason
+	 * is returned by getErrorType(). As for the CigarMDGenerator, the elements decoded before
+	 * an inconsistency are kept for a read without MD string.
+	 * @param read the read to decode
+	 * @return true if the elements were decoded (possibly without MD tag).
+	 */
+	public boolean decode(SAMRecord read) {
+		reset();
+		record = read;
+		bases = read.getReadBases();
+		basesLength = bases.length;
+		int flags = read.getFlags();
+
+		if((flags & READ_UNMAPPED) == 0) {
+			String mdString = read.getStringAttribute("MD");
+			if(mdString != null && mdString.length() > 0) {
+				if(mdBuffer.length < mdString.length()) {
+					mdBuffer = new byte[mdString.length() * 2];
+				}
+				for(int i=0; i<mdString.length(); i++) {
+					mdBuffer[i] = (byte)mdString.charAt(i);
+				}
+				md = mdBuffer;
+				mdEnd = mdString.length();
+			}
+			Cigar readCigar = read.getCigar();
+			if(readCigar != null) {
+				List<CigarElement> cigarList = readCigar.getCigarElements();
+				int cigarListSize = cigarList.size();
+				ensureCigarCapacity(cigarListSize);
+				for(int i=0; i<cigarListSize; i++) {
+					CigarElement cigarElement = cigarList.get(i);
+					cigar[i] = cigarElement.getLength() << 4 | CigarOperator.enumToBinary(cigarElement.getOperator());
+				}
+				cigarLength = cigarListSize;
+			}
+			if(md == null && reference != null) {
+				selectReference(read.getReferenceName(), read.getAlignmentStart());
+			}
+		}
+		return decodeElements(flags);
+	}
+
+	/**
+	 * Decode the Cigar and MD tag of a BAM record without decoding the record. The elements
+	 * are the same as for the SAMRecord of the view. If the read cannot be decoded, the reason
+	 * is returned by getErrorType().
+	 * @param read the view of the record to decode
+	 * @return true if the elements were decoded (possibly without MD tag).
+	 */
+	public boolean decode(BAMRecordView read) {
+		reset();
+		view = read;
+		packedBases = true;
+		basesLength = read.getReadLength();
+		int flags = read.getFlags();
+
+		if((flags & READ_UNMAPPED) == 0) {
+			int mdPosition = read.findStringAttribute("MD");
+			if(mdPosition >= 0) {
+				byte[] buffer = read.getBuffer();
+				int end = mdPosition;
+				while(end < buffer.length && buffer[end] != 0) {
+					end++;
+				}
+				if(end > mdPosition) {
+					md = buffer;
+					mdStart = mdPosition;
+					mdEnd = end;
+				}
+			}
+			cigarLength = read.getCigarLength();
+			ensureCigarCapacity(cigarLength);
+			for(int i=0; i<cigarLength; i++) {
+				cigar[i] = read.getCigarOperation(i);
+			}
+			if(md == null && reference != null) {
+				selectReference(read.getReferenceName(), read.getAlignmentStart());
+			}
+		}
+		return decodeElements(flags);
+	}
+
+
+	/**
+	 * Set the reference used to find the mismatches of the reads without MD tag.
+	 * @param reference the reference, or null to decode these reads without mismatches.
+	 */
+	public void setReference(IndexedFastaFile reference) {
+		this.reference = reference;
+		referenceSequenceName = null;
+		referenceSequence = null;
+	}
+
+	/**
+	 * Declare whether the sequence of the current reads is packed in memory, which avoids the 
+	 * line arithmetic of the mapped file for every base. Only the last sequence is kept, so 
+	 * this is only worth it for reads sorted by coordinate, which read each sequence once. 
+	 * Otherwise the bases are read from the mapped file.
+	 * @param packedReference true to pack the reference sequences
+	 */
+	public void setPackedReference(boolean packedReference) {
+		this.packedReference = packedReference;
+		referenceSequenceName = null;
+		referenceSequence = null;
+	}
+
+
+	// getter methods
+
+	/**
+	 * It returns the error type. 0: no error, 1: unmapped read, 2: read without MD string,
+	 * 3: read without Cigar, 4: Cigar/MD/read inconsistencies.
+	 * @return the error type.
+	 */
+	public int getErrorType() {
+		return errorType;
+	}
+
+	/**
+	 * Returns true if the read is a first segment, false if it is a second.
+	 * @return true if read is a first segment.
+	 */
+	public boolean isFirst() {
+		return isFirst;
+	}
+
+	/**
+	 * Returns true if the read cycles run against the elements, i.e. the read is a first segment
+	 * on the reverse strand or a second segment on the forward strand. The first read cycle is
+	 * then the complement of the last aligned base.
+	 * @return true if the elements must be reversed and complemented to follow the read cycles.
+	 */
+	public boolean isReverse() {
+		return isReverse;
+	}
+
+	/** Return the number of decoded elements. */
+	public int size() {
+		return elementNumber;
+	}
+
+	/** Return the operator of the i-th element. */
+	public CigarMDOperator operator(int i) {
+		return operators[i];
+	}
+
+	/** Return the length of the i-th element. */
+	public int length(int i) {
+		return lengths[i];
+	}
+
+	/** Return the offset of the bases of the i-th element. The bases end at baseOffset(i+1). */
+	public int baseOffset(int i) {
+		return baseOffsets[i];
+	}
+
+	/** Return the reference bases of the mismatches and deletions, by base offset. */
+	public byte[] referenceBases() {
+		return referenceBases;
+	}
+
+	/** Return the read bases of the mismatches and insertions, by base offset. */
+	public byte[] readBases() {
+		return readBases;
+	}
+
+	/**
+	 * Return a CigarMD object for the decoded elements. The elements of a reverse read are
+	 * reversed and complemented, as by the CigarMDGenerator. This allocates the elements and is
+	 * meant for reporting and testing.
+	 * @return the CigarMD, or null if the read could not be decoded.
+	 */
+	public CigarMD getCigarMD() {
+		if(errorType != 0 && errorType != 2) {
+			return null;
+		}
+		List<CigarMDElement> elements = new ArrayList<CigarMDElement>(elementNumber);
+		for(int k=0; k<elementNumber; k++) {
+			int i = isReverse ? elementNumber - 1 - k : k;
+			int start = baseOffsets[i];
+			int end = baseOffsets[i+1];
+			if(isReverse && operators[i] == CigarMDOperator.MISMATCH) {
+				// the reversed mismatches only keep as many bases as their length.
+				end = Math.min(end, start + lengths[i]);
+			}
+			StringBuilder elementBases = new StringBuilder();
+			for(int l=0; l<end-start; l++) {
+				int j = start + l;
+				byte referenceBase = referenceBases[j];
+				byte readBase = readBases[j];
+				if(isReverse) {
+					j = end - 1 - l;
+					referenceBase = COMPLEMENT[referenceBases[j] & 0x7f];
+					readBase = COMPLEMENT[readBases[j] & 0x7f];
+				}
+				if(operators[i] == CigarMDOperator.MISMATCH) {
+					elementBases.append((char)referenceBase).append((char)readBase);
+				} else if(operators[i] == CigarMDOperator.INSERTION) {
+					elementBases.append((char)readBase);
+				} else {
+					elementBases.append((char)referenceBase);
+				}
+			}
+			elements.add(new CigarMDElement(lengths[i], operators[i], elementBases.toString()));
+		}
+		return new CigarMD(elements);
+	}
+
+
+	// Private methods here
+
+	private void reset() {
+		elementNumber = 0;
+		baseNumber = 0;
+		errorType = 0;
+		isFirst = true;
+		isReverse = false;
+		record = null;
+		view = null;
+		bases = null;
+		packedBases = false;
+		basesLength = 0;
+		cigarLength = 0;
+		md = null;
+		mdStart = 0;
+		mdEnd = 0;
+		comparingReference = false;
+		referencePosition = 0;
+		currentMDElementPosition = 0;
+		temporaryMDElementLength = 0;
+		currentBaseCallPosition = 0;
+		currentCigarElementLength = 0;
+	}
+
+	private void ensureCigarCapacity(int capacity) {
+		if(cigar.length < capacity) {
+			cigar = new int[capacity * 2];
+		}
+	}
+
+	/**
+	 * Select the reference sequence of a read without MD tag. The read is compared with 
+	 * the sequence only if its alignment is within the sequence.
+	 * @param referenceName the name of the reference sequence of the read
+	 * @param alignmentStart the 1-based start of the alignment of the read
+	 */
+	private void selectReference(String referenceName, int alignmentStart) {
+		if(referenceName == null || alignmentStart < 1 || basesLength == 0) {
+			return;
+		}
+		if(!referenceName.equals(referenceSequenceName)) {
+			// the previous sequence can be released before packing
+			referenceSequence = null;
+			try {
+				referenceSequence = reference.sequence(referenceName);
+				if(packedReference && referenceSequence != null) {
+					referenceSequence = new PackedSequence(referenceSequence);
+				}
+			} catch(IOException e) {
+				log.error("The sequence " + referenceName + " of the reference " + reference.file() + " could not be read", e);
+				referenceSequence = null;
+			}
+			referenceSequenceName = referenceName;
+		}
+		if(referenceSequence == null) {
+			return;
+		}
+		long alignmentEnd = alignmentStart - 1L;
+		for(int i=0; i<cigarLength; i++) {
+			int operator = cigar[i] & 0xf;
+			if(operator == OPERATOR_M || operator == OPERATOR_D || operator == OPERATOR_N || operator == OPERATOR_EQ || operator == OPERATOR_X) {
+				alignmentEnd = alignmentEnd + (cigar[i] >>> 4);
+			}
+		}
+		if(alignmentEnd > referenceSequence.length()) {
+			if(log.isDebugEnabled()) {
+				log.debug("Read " + readName() + " ends after the reference sequence " + referenceName);
+			}
+			return;
+		}
+		comparingReference = true;
+		referencePosition = alignmentStart - 1;
+	}
+
+	private boolean decodeElements(int flags) {
+		if(basesLength == 0) {
+			// as for SAMRecord.getReadString(), a read without bases is "*".
+			bases = NULL_SEQUENCE;
+			packedBases = false;
+			basesLength = 1;
+		}
+		currentMDElementPosition = mdStart;
+		if(!decodeRead(flags) && errorType == 0) {
+			// we detected one of a broad range of errors due to inconsistencies between Cigar/MD/read strings.
+			errorType = 4;
+			elementNumber = 0;
+			baseNumber = 0;
+		}
+		record = null;
+		view = null;
+		bases = null;
+		md = null;
+		return errorType == 0 || errorType == 2;
+	}
+
+	private boolean decodeRead(int flags) {
+
+		// A read can be first/second (0x40/0x80) and forward/backward (0x10).
+		// If the read is first/backward(0x40+0x10) or second/forward(0x80), the elements must be reversed and complemented.
+		// An unpaired read, or a read which is neither or both first and second, is treated as a first.
+		// The segment is set first, so that it is also known for the reads which cannot be decoded.
+		boolean reverse = (flags & READ_REVERSE_STRAND) != 0;
+		if((flags & READ_PAIRED) != 0) {
+			if((flags & FIRST_OF_PAIR) != 0) {
+				if((flags & SECOND_OF_PAIR) != 0) {
+					// a segment of a linear template, which is neither the first nor the last read.
+					reverse = false;
+				}
+			} else if((flags & SECOND_OF_PAIR) != 0) {
+				isFirst = false;
+				reverse = !reverse;
+			} else {
+				// the index of the read in the template is unknown.
+				reverse = false;
+			}
+		}
+
+		// if Flag 0x4 is set, then the read is unmapped and no assumptions can be made about its Cigar.
+		if((flags & READ_UNMAPPED) != 0) {
+			if(log.isInfoEnabled()) {
+				log.info("Read " + readName() + " is unmapped and therefore skipped.");
+			}
+			errorType = 1;
+			return false;
+		}
+
+		// It is more likely errors are in the MD rather than the Cigar. Let's put this first.
+		if (md == null) {
+			if(log.isInfoEnabled()) {
+				log.info("Read " + readName() + " does not have MD string.");
+			}
+			errorType = 2;
+			// We continue processing as indels detection does not require the MD string.
+		}
+
+		if (cigarLength == 0) {
+			if(log.isInfoEnabled()) {
+				log.info("Read " + readName() + " does not have Cigar string.");
+			}
+			errorType = 3;
+			return false;
+		}
+
+		for(int i=0; i<cigarLength; i++) {
+			currentCigarElementLength = cigar[i] >>> 4;
+			int currentCigarElementOperator = cigar[i] & 0xf;
+
+			switch(currentCigarElementOperator) {
+				case OPERATOR_M:
+					if(!processMDtagCigarOperatorM()) return false;
+					break;
+				case OPERATOR_I:
+					if(!processMDtagCigarOperatorI()) return false;
+					break;
+				case OPERATOR_D:
+					if(!processMDtagCigarOperatorD()) return false;
+					break;
+				case OPERATOR_N:
+					// Skipped regions are not reported in the read.
+					referencePosition = referencePosition + currentCigarElementLength;
+					addElement(CigarMDOperator.SKIPPED_REGION, currentCigarElementLength);
+					break;
+				case OPERATOR_S:
+					// Soft clips are reported in the read, but not in the MD string.
+					currentBaseCallPosition = currentBaseCallPosition + currentCigarElementLength;
+					addElement(CigarMDOperator.SOFT_CLIP, currentCigarElementLength);
+					break;
+				case OPERATOR_H:
+					addElement(CigarMDOperator.HARD_CLIP, currentCigarElementLength);
+					break;
+				case OPERATOR_P:
+					addElement(CigarMDOperator.PADDING, currentCigarElementLength);
+					break;
+				case OPERATOR_EQ:
+					log.warn("Extended CIGAR element = is currently unsupported.");
+					return false;
+				case OPERATOR_X:
+					log.warn("Extended CIGAR element X is currently unsupported.");
+					return false;
+				default:
+					log.error("Unknown Cigar operator " + currentCigarElementOperator + " in read " + readName());
+					return false;
+			}
+		}
+
+		// Let's do some tests to see whether something is wrong..
+		if(currentBaseCallPosition != basesLength) {
+			log.warn("Cigar string " + cigarString() + " length " + currentBaseCallPosition + " != read length " + basesLength
+					+ ". mdString : " + mdString());
+			return false;
+		}
+		if(md != null && temporaryMDElementLength > 0) {
+			log.warn("MD string " + mdString() + " > Cigar string " + cigarString());
+			return false;
+		}
+
+		// The elements are not reversed. The reader of the elements follows the read cycles backwards.
+		isReverse = reverse;
+		return true;
+	}
+
+	/** Return the base of the read at a position. */
+	private byte base(int position) {
+		if(packedBases) {
+			return view.getReadBase(position);
+		}
+		return bases[position];
+	}
+
+	/** Return the upper case byte of the MD tag at a position. */
+	private byte md(int position) {
+		return UPPER_CASE[md[position] & 0xff];
+	}
+
+	private static boolean isBase(int c) {
+		return c == 'A' || c == 'C' || c == 'G' || c == 'T' || c == 'N';
+	}
+
+	// These methods create the strings of the read for the log messages only.
+
+	private String readName() {
+		return view != null ? view.getReadName() : record.getReadName();
+	}
+
+	private String cigarString() {
+		StringBuilder cigarString = new StringBuilder();
+		for(int i=0; i<cigarLength; i++) {
+			cigarString.append(cigar[i] >>> 4).append(OPERATORS.charAt(Math.min(cigar[i] & 0xf, OPERATORS.length() - 1)));
+		}
+		return cigarString.toString();
+	}
+
+	private String mdString() {
+		if(md == null) {
+			return null;
+		}
+		StringBuilder mdString = new StringBuilder(mdEnd - mdStart);
+		for(int i=mdStart; i<mdEnd; i++) {
+			mdString.append((char)md(i));
+		}
+		return mdString.toString();
+	}
+
+
+	private void addElement(CigarMDOperator operator, int length) {
+		if(elementNumber == operators.length) {
+			int capacity = elementNumber * 2;
+			CigarMDOperator[] newOperators = new CigarMDOperator[capacity];
+			System.arraycopy(operators, 0, newOperators, 0, elementNumber);
+			operators = newOperators;
+			int[] newLengths = new int[capacity];
+			System.arraycopy(lengths, 0, newLengths, 0, elementNumber);
+			lengths = newLengths;
+			int[] newBaseOffsets = new int[capacity + 1];
+			System.arraycopy(baseOffsets, 0, newBaseOffsets, 0, elementNumber + 1);
+			baseOffsets = newBaseOffsets;
+		}
+		operators[elementNumber] = operator;
+		lengths[elementNumber] = length;
+		elementNumber++;
+		baseOffsets[elementNumber] = baseNumber;
+	}
+
+	/** Add a base of the element being parsed. This must be called before adding the element. */
+	private void addBase(byte referenceBase, byte readBase) {
+		if(baseNumber == referenceBases.length) {
+			byte[] newReferenceBases = new byte[baseNumber * 2];
+			System.arraycopy(referenceBases, 0, newReferenceBases, 0, baseNumber);
+			referenceBases = newReferenceBases;
+			byte[] newReadBases = new byte[baseNumber * 2];
+			System.arraycopy(readBases, 0, newReadBases, 0, baseNumber);
+			readBases = newReadBases;
+		}
+		referenceBases[baseNumber] = referenceBase;
+		readBases[baseNumber] = readBase;
+		baseNumber++;
+	}
+
+
+	// These methods process the MD string for each CIGAR operator.
+
+	/**
+	 * Add a new Match element.
+	 * @param temporaryCigarElementLength The length of the current Cigar element (Match) being processed.
+	 * @return the length of the current Cigar element (Match) after being processed.
+	 */
+	private int addMatch(int temporaryCigarElementLength) {
+		if(md != null && temporaryMDElementLength <= temporaryCigarElementLength) {
+			addElement(CigarMDOperator.MATCH, temporaryMDElementLength);
+			currentBaseCallPosition = currentBaseCallPosition + temporaryMDElementLength;
+			temporaryCigarElementLength = temporaryCigarElementLength - temporaryMDElementLength;
+			temporaryMDElementLength = 0;
+		} else {
+			addElement(CigarMDOperator.MATCH, temporaryCigarElementLength);
+			currentBaseCallPosition = currentBaseCallPosition + temporaryCigarElementLength;
+			temporaryMDElementLength = temporaryMDElementLength - temporaryCigarElementLength;
+			temporaryCigarElementLength = 0;
+		}
+		return temporaryCigarElementLength;
+	}
+
+	/**
+	 * Add a new Mismatch element. Its bases must have been added.
+	 * @param temporaryCigarElementLength The length of the current Cigar element (Match) being processed.
+	 * @return the length of the current Cigar element (Match) after being processed.
+	 */
+	private int addMismatch(int temporaryCigarElementLength) {
+		if(temporaryMDElementLength <= temporaryCigarElementLength) {
+			addElement(CigarMDOperator.MISMATCH, temporaryMDElementLength);
+			currentBaseCallPosition = currentBaseCallPosition + temporaryMDElementLength;
+			temporaryCigarElementLength = temporaryCigarElementLength - temporaryMDElementLength;
+			temporaryMDElementLength = 0;
+		} else {
+			addElement(CigarMDOperator.MISMATCH, temporaryCigarElementLength);
+			currentBaseCallPosition = currentBaseCallPosition + temporaryCigarElementLength;
+			temporaryMDElementLength = temporaryMDElementLength - temporaryCigarElementLength;
+			temporaryCigarElementLength = 0;
+		}
+		return temporaryCigarElementLength;
+	}
+
+	/**
+	 * Process the MD string once found the CIGAR operator M.
+	 * @return true if the Cigar operator M has been processed correctly.
+	 */
+	private boolean processMDtagCigarOperatorM() {
+		if(md == null && comparingReference) {
+			return compareReferenceCigarOperatorM();
+		}
+		// The temporary length of the current Cigar element
+		int temporaryCigarElementLength = currentCigarElementLength;
+
+		while(temporaryCigarElementLength > 0) {
+			if(md == null || temporaryMDElementLength != 0) {
+				// The current MD element is a MATCH (the MD string only reports numbers for matches),
+				// or there is no MD string.
+				temporaryCigarElementLength = addMatch(temporaryCigarElementLength);
+				continue;
+			}
+
+			// PARSE A NEW MD ELEMENT. It is either a number [=>MATCH] or a char (A,C,G,T) [=>MISMATCH]
+			if(mdEnd <= currentMDElementPosition) {
+				log.warn("MD string " + mdString() + " < Cigar string " + cigarString());
+				return false;
+			}
+			byte currentMDChar = md(currentMDElementPosition);
+			currentMDElementPosition++;
+
+	     	// skip if the retrieved MD element char is zero. This is redundant information if the CIGAR string is read too..
+			if(currentMDChar == '0') {
+				continue;
+			}
+
+			if(currentMDChar >= '1' && currentMDChar <= '9') {
+				// CASE 1: MATCHED bases. The number of matches is parsed arithmetically.
+				int matches = currentMDChar - '0';
+				while(currentMDElementPosition < mdEnd) {
+					currentMDChar = md[currentMDElementPosition];
+					if(currentMDChar < '0' || currentMDChar > '9') {
+						break;
+					}
+					matches = matches * 10 + (currentMDChar - '0');
+					currentMDElementPosition++;
+				}
+				temporaryMDElementLength = matches;
+				temporaryCigarElementLength = addMatch(temporaryCigarElementLength);
+
+			} else {
+				// CASE 2: MISMATCHED bases. Each mismatch is stored as the base on the reference
+				// and the mutated base on the read.
+				if(currentBaseCallPosition >= basesLength) {
+					log.warn("MD string " + mdString() + " length " + currentBaseCallPosition + " > read length " + basesLength);
+					return false;
+				}
+				if(!isBase(currentMDChar)) {
+					log.warn("Expected mutation but found " + (char)currentMDChar + " at position " + (currentMDElementPosition-1-mdStart)
+							+ " in MD string " + mdString() + ". Cigar : " + cigarString());
+					return false;
+				}
+				byte currentBaseCall = base(currentBaseCallPosition);
+				if(currentMDChar == currentBaseCall) {
+					//error case : FALSE POSITIVE
+					log.warn("Expected mutation " + (char)currentMDChar + " at position " + (currentMDElementPosition-1-mdStart) + " in MD string "
+							+ mdString() + " but found same base " + (char)currentBaseCall + " in read position " + currentBaseCallPosition
+							+ ". Cigar : " + cigarString());
+					return false;
+				}
+				addBase(currentMDChar, currentBaseCall);
+				temporaryMDElementLength++;
+
+				// Let's continue and see how many mismatches we find.
+				while(currentMDElementPosition < mdEnd) {
+					currentMDChar = md(currentMDElementPosition);
+					if(isBase(currentMDChar)) {
+						if(currentBaseCallPosition + temporaryMDElementLength >= basesLength) {
+							log.warn("MD string " + mdString() + " length " + (currentBaseCallPosition+temporaryMDElementLength) + " > read length " + basesLength);
+							return false;
+						}
+						currentBaseCall = base(currentBaseCallPosition + temporaryMDElementLength);
+						if(currentMDChar == currentBaseCall) {
+							//error case : FALSE POSITIVE
+							log.warn("Expected mutation " + (char)currentMDChar + " at position " + (currentMDElementPosition-mdStart) + " in MD string "
+									+ mdString() + " but found base " + (char)currentBaseCall + " in read position "
+									+ (currentBaseCallPosition+temporaryMDElementLength) + ". Cigar : " + cigarString());
+							return false;
+						}
+						addBase(currentMDChar, currentBaseCall);
+						temporaryMDElementLength++;
+						currentMDElementPosition++;
+					} else if(currentMDChar == '0' && temporaryMDElementLength < temporaryCigarElementLength) {
+						// we are still parsing the Cigar operator M, and not something else.
+						currentMDElementPosition++;
+					} else {
+						break;
+					}
+				}
+				temporaryCigarElementLength = addMismatch(temporaryCigarElementLength);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find the matches and mismatches of the CIGAR operator M by comparing the read with the 
+	 * reference sequence, for a read without MD string. As for the MD string, the adjacent 
+	 * mismatches are a single element.
+	 * @return true if the Cigar operator M has been processed correctly.
+	 */
+	private boolean compareReferenceCigarOperatorM() {
+		if(currentBaseCallPosition + currentCigarElementLength > basesLength) {
+			log.warn("Cigar string " + cigarString() + " length " + (currentBaseCallPosition + currentCigarElementLength) + " > read length " + basesLength);
+			return false;
+		}
+		int matches = 0;
+		int mismatches = 0;
+		for(int i=0; i<currentCigarElementLength; i++) {
+			byte currentBaseCall = base(currentBaseCallPosition + i);
+			byte referenceBase = referenceSequence.base(referencePosition + i);
+			if(currentBaseCall == '=' || UPPER_CASE[currentBaseCall & 0xff] == referenceBase) {
+				if(mismatches > 0) {
+					addElement(CigarMDOperator.MISMATCH, mismatches);
+					mismatches = 0;
+				}
+				matches++;
+			} else {
+				if(matches > 0) {
+					addElement(CigarMDOperator.MATCH, matches);
+					matches = 0;
+				}
+				addBase(referenceBase, currentBaseCall);
+				mismatches++;
+			}
+		}
+		if(matches > 0) {
+			addElement(CigarMDOperator.MATCH, matches);
+		} else if(mismatches > 0) {
+			addElement(CigarMDOperator.MISMATCH, mismatches);
+		}
+		currentBaseCallPosition = currentBaseCallPosition + currentCigarElementLength;
+		referencePosition = referencePosition + currentCigarElementLength;
+		return true;
+	}
+
+	/**
+	 * Process the MD string once found the CIGAR operator I. The MD string does not contain
+	 * information regarding an insertion.
+	 * @return true if the Cigar operator I has been processed correctly.
+	 */
+	private boolean processMDtagCigarOperatorI() {
+		if(currentBaseCallPosition + currentCigarElementLength > basesLength) {
+			log.warn("Cigar string " + cigarString() + " length " + (currentBaseCallPosition + currentCigarElementLength) + " > read length " + basesLength);
+			return false;
+		}
+		for(int i=0; i<currentCigarElementLength; i++) {
+			byte c = base(currentBaseCallPosition + i);
+			if(!isBase(c)) {
+				log.warn("Read " + readName() + " contains unknown inserted bases. Cigar string " + cigarString());
+				return false;
+			}
+			addBase((byte)0, c);
+		}
+		currentBaseCallPosition = currentBaseCallPosition + currentCigarElementLength;
+		addElement(CigarMDOperator.INSERTION, currentCigarElementLength);
+		return true;
+	}
+
+	/**
+	 * Process the MD string once found the CIGAR operator D.
+	 * @return true if the Cigar operator D has been processed correctly.
+	 */
+	private boolean processMDtagCigarOperatorD() {
+		if(md == null) {
+			// without the MD string, the deleted bases are only known from the reference
+			if(comparingReference) {
+				for(int i=0; i<currentCigarElementLength; i++) {
+					addBase(referenceSequence.base(referencePosition + i), (byte)0);
+				}
+			}
+			referencePosition = referencePosition + currentCigarElementLength;
+			addElement(CigarMDOperator.DELETION, currentCigarElementLength);
+			return true;
+		}
+		if(temporaryMDElementLength != 0) {
+			// If the currentCigarElement is D, temporaryMDElementLength should be 0.
+			log.warn("MD string " + mdString() + " contains more matches/mismatches than Cigar string " + cigarString()
+					+ ". MD string position : " + (currentMDElementPosition-mdStart) + ". Base call position : " + currentBaseCallPosition);
+			return false;
+		}
+		// The current MD Element is a ^ followed by the deleted bases. Skip the redundant zeros before it.
+		byte currentMDChar = '0';
+		while (currentMDChar == '0') {
+			if(mdEnd <= currentMDElementPosition) {
+				log.warn("MD string " + mdString() + " < Cigar string " + cigarString());
+				return false;
+			}
+			currentMDChar = md(currentMDElementPosition);
+			currentMDElementPosition++;
+		}
+		if (currentMDChar != '^') {
+			log.warn("^ not found in the MD string " + mdString() + " in the Cigar String " + cigarString());
+			return false;
+		}
+		if(mdEnd < currentMDElementPosition + currentCigarElementLength) {
+			log.warn("MD string " + mdString() + " < Cigar string " + cigarString());
+			return false;
+		}
+		for(int i=0; i<currentCigarElementLength; i++) {
+			byte c = md(currentMDElementPosition + i);
+			if(!isBase(c)) {
+				log.warn("MD string " + mdString() + " contains unknown deleted bases. Cigar string " + cigarString());
+				return false;
+			}
+			addBase(c, (byte)0);
+		}
+		currentMDElementPosition = currentMDElementPosition + currentCigarElementLength;
+		addElement(CigarMDOperator.DELETION, currentCigarElementLength);
+		return true;
+	}
+
+}